@@ -54,4 +54,12 @@ public final class APNS {
     public static ApnsServiceBuilder newService() {
         return new ApnsServiceBuilder();
     }
+
+    /**
+     * Returns a new APNS Service for sending notifications of many
+     * applications, each with its own certificate
+     */
+    public static MultiTenantApnsServiceBuilder newMultiTenantService() {
+        return new MultiTenantApnsServiceBuilder();
+    }
 }
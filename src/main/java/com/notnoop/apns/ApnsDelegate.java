@@ -36,6 +36,9 @@ package com.notnoop.apns;
  *
  * The delegate doesn't get notified when the notification actually arrives at
  * the phone.
+ *
+ * Implementations keeping per-device state can use
+ * {@link DeviceToken#of(ApnsNotification)} to key it by device token.
  */
 public interface ApnsDelegate {
 
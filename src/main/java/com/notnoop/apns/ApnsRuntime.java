@@ -0,0 +1,239 @@
+package com.notnoop.apns;
+
+import java.security.Key;
+import java.security.KeyStore;
+import java.security.MessageDigest;
+import java.security.cert.Certificate;
+import java.util.Enumeration;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManager;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.notnoop.apns.internal.Utilities;
+import com.notnoop.exceptions.InvalidSSLConfig;
+
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+
+/**
+ * Resources shared by many {@link ApnsService}s, typically one per
+ * application: the Netty event loop group, the executor handling delivery
+ * results, a timer, the trust managers, and the {@link SSLContext}s built
+ * from the certificates.
+ *
+ * <pre>
+ *   ApnsRuntime runtime = ApnsRuntime.create();
+ *   for (App app : apps) {
+ *       services.put(app.getId(), APNS.newService()
+ *               .withRuntime(runtime)
+ *               .withCert(app.getCertificate(), app.getPassword())
+ *               .withProductionDestination()
+ *               .build());
+ *   }
+ * </pre>
+ *
+ * The services built on a runtime create no event loop of their own, and
+ * services using the same certificate share one {@code SSLContext}, keyed by
+ * the SHA-256 fingerprint of the certificate and its private key. Stop the
+ * services before closing the runtime.
+ */
+public final class ApnsRuntime {
+    private static final Logger logger = LoggerFactory.getLogger(ApnsRuntime.class);
+
+    private static final String KEY_ALGORITHM = "sunx509";
+
+    private final EventLoopGroup eventLoopGroup;
+    private final ExecutorService deliveryResultExecutor;
+    private final ScheduledExecutorService scheduler;
+    private final ConcurrentMap<String, SSLContext> sslContexts = new ConcurrentHashMap<String, SSLContext>();
+    private volatile TrustManager[] trustManagers;
+    private volatile SSLContext tokenSSLContext;
+
+    private ApnsRuntime(int eventLoopThreads) {
+        this.eventLoopGroup = new NioEventLoopGroup(eventLoopThreads, daemonThreads("apns-event-loop"));
+        // delivery results are only received for failed notifications
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), daemonThreads("apns-delivery-result"));
+        executor.allowCoreThreadTimeOut(true);
+        this.deliveryResultExecutor = executor;
+        ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, daemonThreads("apns-timer"));
+        timer.setRemoveOnCancelPolicy(true);
+        this.scheduler = timer;
+    }
+
+    /**
+     * Returns a new runtime with one event loop thread per processor.
+     */
+    public static ApnsRuntime create() {
+        return create(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Returns a new runtime with {@code eventLoopThreads} event loop
+     * threads, shared by all the connections of its services.
+     */
+    public static ApnsRuntime create(int eventLoopThreads) {
+        if (eventLoopThreads < 1) {
+            throw new IllegalArgumentException("eventLoopThreads must be positive");
+        }
+        return new ApnsRuntime(eventLoopThreads);
+    }
+
+    public EventLoopGroup getEventLoopGroup() {
+        return eventLoopGroup;
+    }
+
+    public ExecutorService getDeliveryResultExecutor() {
+        return deliveryResultExecutor;
+    }
+
+    public ScheduledExecutorService getScheduler() {
+        return scheduler;
+    }
+
+    /**
+     * Returns the trust managers of the default keystore, initialized once.
+     */
+    public TrustManager[] getTrustManagers() throws InvalidSSLConfig {
+        TrustManager[] result = trustManagers;
+        if (result == null) {
+            trustManagers = result = Utilities.newTrustManagers(KEY_ALGORITHM);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the context for the certificate of {@code keyStore}, reusing
+     * the context created for an earlier keystore holding the same
+     * certificate and private key. The key is decrypted with
+     * {@code password} on every call, so a wrong password is rejected even
+     * when the context is cached.
+     *
+     * @throws InvalidSSLConfig if {@code keyStore} is invalid or the
+     *             password is invalid
+     */
+    public SSLContext getSSLContext(KeyStore keyStore, String password) throws InvalidSSLConfig {
+        String fingerprint = fingerprint(keyStore, password);
+        if (fingerprint == null) {
+            return Utilities.newSSLContext(keyStore, password, KEY_ALGORITHM, getTrustManagers());
+        }
+        SSLContext context = sslContexts.get(fingerprint);
+        if (context == null) {
+            context = Utilities.newSSLContext(keyStore, password, KEY_ALGORITHM, getTrustManagers());
+            SSLContext existing = sslContexts.putIfAbsent(fingerprint, context);
+            if (existing != null) {
+                context = existing;
+            }
+        }
+        return context;
+    }
+
+    /**
+     * Returns the context with no client certificate, shared by the
+     * services authenticated by a signing key, created once.
+     */
+    public SSLContext getSSLContext() throws InvalidSSLConfig {
+        SSLContext result = tokenSSLContext;
+        if (result == null) {
+            synchronized (this) {
+                result = tokenSSLContext;
+                if (result == null) {
+                    tokenSSLContext = result = Utilities.newSSLContext(getTrustManagers());
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Removes the context cached for the certificate of {@code keyStore},
+     * e.g. once the services using it are stopped. The services already
+     * built keep using it.
+     *
+     * @return whether a context was cached
+     * @throws InvalidSSLConfig if {@code keyStore} is invalid or the
+     *             password is invalid
+     */
+    public boolean removeSSLContext(KeyStore keyStore, String password) throws InvalidSSLConfig {
+        String fingerprint = fingerprint(keyStore, password);
+        return fingerprint != null && sslContexts.remove(fingerprint) != null;
+    }
+
+    /**
+     * Returns the number of cached {@code SSLContext}s.
+     */
+    public int getSSLContextCount() {
+        return sslContexts.size();
+    }
+
+    /**
+     * Shuts the event loop group and the executors down.
+     */
+    public void close() {
+        logger.debug("Closing APNS runtime");
+        sslContexts.clear();
+        scheduler.shutdownNow();
+        deliveryResultExecutor.shutdown();
+        eventLoopGroup.shutdownGracefully(0, 5, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Returns the SHA-256 fingerprint of the certificates and the private
+     * keys of the key entries of {@code keyStore}, or {@code null} if it has
+     * none or a key cannot be encoded.
+     */
+    static String fingerprint(KeyStore keyStore, String password) throws InvalidSSLConfig {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            boolean found = false;
+            Enumeration<String> aliases = keyStore.aliases();
+            while (aliases.hasMoreElements()) {
+                String alias = aliases.nextElement();
+                if (keyStore.isKeyEntry(alias)) {
+                    // fails with a wrong password
+                    Key key = keyStore.getKey(alias, password.toCharArray());
+                    Certificate certificate = keyStore.getCertificate(alias);
+                    if (key == null || key.getEncoded() == null) {
+                        return null;
+                    }
+                    if (certificate != null) {
+                        digest.update(certificate.getEncoded());
+                    }
+                    digest.update(key.getEncoded());
+                    found = true;
+                }
+            }
+            return found ? Utilities.encodeHex(digest.digest()) : null;
+        } catch (Exception e) {
+            throw new InvalidSSLConfig(e);
+        }
+    }
+
+    private static ThreadFactory daemonThreads(final String name) {
+        return new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+            private final ThreadFactory delegate = Executors.defaultThreadFactory();
+
+            public Thread newThread(Runnable r) {
+                Thread t = delegate.newThread(r);
+                t.setName(name + "-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        };
+    }
+}
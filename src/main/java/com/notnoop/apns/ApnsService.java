@@ -32,7 +32,9 @@ package com.notnoop.apns;
 
 import java.util.Collection;
 import java.util.Date;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.concurrent.Future;
 
 import com.notnoop.exceptions.NetworkIOException;
 
@@ -84,6 +86,36 @@ public interface ApnsService {
 
     EnhancedApnsNotification push(byte[] deviceToken, byte[] payload, int expiry) throws NetworkIOException;
 
+    /**
+     * Sends a push notification with the provided {@code payload} to the
+     * iPhone of {@code deviceToken}.
+     *
+     * @param deviceToken   the destination iPhone device token
+     * @param payload       The payload message
+     * @throws NetworkIOException if a network error occurred while
+     *      attempting to send the message
+     */
+    EnhancedApnsNotification push(DeviceToken deviceToken, byte[] payload) throws NetworkIOException;
+
+    EnhancedApnsNotification push(DeviceToken deviceToken, byte[] payload, int expiry) throws NetworkIOException;
+
+    /**
+     * Sends a push notification with the provided {@code payload} to the
+     * iPhone of {@code deviceToken}, using the frame-based binary format
+     * that carries the delivery {@code priority}.
+     *
+     * @param deviceToken   the destination iPhone device token
+     * @param payload       The payload message
+     * @param expiry        the expiry date of the notification
+     * @param priority      {@link FramedApnsNotification#PRIORITY_IMMEDIATE} or
+     *      {@link FramedApnsNotification#PRIORITY_CONSERVE_POWER}
+     * @throws NetworkIOException if a network error occurred while
+     *      attempting to send the message
+     */
+    FramedApnsNotification push(String deviceToken, String payload, Date expiry, int priority) throws NetworkIOException;
+
+    FramedApnsNotification push(byte[] deviceToken, byte[] payload, int expiry, int priority) throws NetworkIOException;
+
     /**
      * Sends a bulk push notification with the provided
      * {@code payload} to iPhone of {@code deviceToken}s set.
@@ -116,6 +148,59 @@ public interface ApnsService {
     Collection<? extends ApnsNotification> push(Collection<byte[]> deviceTokens, byte[] payload) throws NetworkIOException;
     Collection<? extends EnhancedApnsNotification> push(Collection<byte[]> deviceTokens, byte[] payload, int expiry) throws NetworkIOException;
 
+    /**
+     * Sends a bulk push notification with the provided {@code payload} to
+     * iPhone of {@code deviceToken}s set, using the frame-based binary format
+     * that carries the delivery {@code priority}.
+     *
+     * Bulk content-available pushes should use
+     * {@link FramedApnsNotification#PRIORITY_CONSERVE_POWER} so they do not
+     * compete with user-visible alerts.
+     *
+     * @param deviceTokens  the destination iPhone device tokens
+     * @param payload       The payload message
+     * @param expiry        the expiry date of the notifications
+     * @param priority      {@link FramedApnsNotification#PRIORITY_IMMEDIATE} or
+     *      {@link FramedApnsNotification#PRIORITY_CONSERVE_POWER}
+     * @throws NetworkIOException if a network error occurred while
+     *      attempting to send the message
+     */
+    Collection<? extends FramedApnsNotification> push(Collection<String> deviceTokens, String payload, Date expiry, int priority) throws NetworkIOException;
+    Collection<? extends FramedApnsNotification> push(Collection<byte[]> deviceTokens, byte[] payload, int expiry, int priority) throws NetworkIOException;
+
+    /**
+     * Sends the provided {@code payload} to each device token returned by
+     * {@code deviceTokens}, as they are iterated.
+     *
+     * Unlike the {@link Collection} overloads, the notifications are not
+     * collected, so memory use does not grow with the audience: tokens can be
+     * read lazily, e.g. from a {@link DeviceTokenParser}, and each
+     * notification is released once pushed. Progress is reported to
+     * {@code listener}; a notification that fails to be pushed is reported and
+     * skipped rather than aborting the whole push.
+     *
+     * When the service is pooled, the notifications are sent in parallel
+     * across all the connections of the pool, each connection sending its
+     * share in order, and the results of all connections are merged.
+     *
+     * @param deviceTokens  the destination device tokens
+     * @param payload       The payload message
+     * @param expiry        the expiry time of the notifications, in seconds
+     *      since the epoch
+     * @param listener      notified of each notification pushed or failed,
+     *      may be {@code null}
+     * @return the number of notifications pushed and failed
+     */
+    BulkPushResult push(Iterator<DeviceToken> deviceTokens, byte[] payload, int expiry, BulkPushListener listener);
+
+    /**
+     * Sends the notifications returned by {@code notifications}, as they are
+     * iterated.
+     *
+     * @see #push(Iterator, byte[], int, BulkPushListener)
+     */
+    BulkPushResult push(Iterator<? extends ApnsNotification> notifications, BulkPushListener listener);
+
     /**
      * Sends the provided notification {@code message} to the desired
      * destination.
@@ -124,6 +209,22 @@ public interface ApnsService {
      */
     void push(ApnsNotification message) throws NetworkIOException;
 
+    /**
+     * Writes out the notifications pushed so far that are still buffered,
+     * e.g. by a connection built with
+     * {@link ApnsServiceBuilder#withWriteBuffer(int, long)} or by a batched
+     * service.
+     *
+     * Queued services only flush the notifications already handed to their
+     * connections. Netty connections write and flush each notification as
+     * it is sent, so their flush only waits for the notifications being
+     * resent after an error response.
+     *
+     * @throws NetworkIOException if a network error occurred while
+     *      writing the notifications
+     */
+    void flush() throws NetworkIOException;
+
     /**
      * Starts the service.
      *
@@ -160,6 +261,45 @@ public interface ApnsService {
      */
     Map<String, Date> getInactiveDevices() throws NetworkIOException;
 
+    /**
+     * Returns the list of devices that reported failed-delivery
+     * attempts to the Apple Feedback services.
+     *
+     * Same as {@link #getInactiveDevices()}, but keyed by
+     * {@link DeviceToken}; a token reported more than once is only
+     * included once, with its latest timestamp.
+     * @throws NetworkIOException if a network error occurred
+     *      while retrieving invalid device connection
+     */
+    Map<DeviceToken, Date> getInactiveDeviceTokens() throws NetworkIOException;
+
+    /**
+     * Hands the devices that reported failed-delivery attempts to the Apple
+     * Feedback services to {@code listener}, one at a time as they are
+     * read, instead of collecting them in a map first.
+     *
+     * Use this variant when the feedback may hold a large number of
+     * devices: the memory used does not depend on their number. Devices
+     * reported more than once are passed to the listener every time.
+     *
+     * @return the number of devices reported
+     * @throws NetworkIOException if a network error occurred
+     *      while retrieving invalid device connection
+     */
+    int getInactiveDevices(FeedbackListener listener) throws NetworkIOException;
+
+    /**
+     * Same as {@link #getInactiveDevices(FeedbackListener)}, without
+     * waiting for the feedback to be read: the returned future completes
+     * with the number of devices reported, or fails with the error that
+     * ended the read.
+     *
+     * With the Netty backend the feedback is read on its event loop, which
+     * also calls the listener, so the listener must not block. Otherwise it
+     * is read on the calling thread before this method returns.
+     */
+    Future<Integer> getInactiveDevicesAsync(FeedbackListener listener);
+
     /**
      * Test that the service is setup properly and the Apple servers
      * are reachable.
@@ -30,14 +30,17 @@
  */
 package com.notnoop.apns;
 
+import static com.notnoop.apns.internal.Utilities.HTTP2_PORT;
 import static com.notnoop.apns.internal.Utilities.PRODUCTION_FEEDBACK_HOST;
 import static com.notnoop.apns.internal.Utilities.PRODUCTION_FEEDBACK_PORT;
 import static com.notnoop.apns.internal.Utilities.PRODUCTION_GATEWAY_HOST;
 import static com.notnoop.apns.internal.Utilities.PRODUCTION_GATEWAY_PORT;
+import static com.notnoop.apns.internal.Utilities.PRODUCTION_HTTP2_HOST;
 import static com.notnoop.apns.internal.Utilities.SANDBOX_FEEDBACK_HOST;
 import static com.notnoop.apns.internal.Utilities.SANDBOX_FEEDBACK_PORT;
 import static com.notnoop.apns.internal.Utilities.SANDBOX_GATEWAY_HOST;
 import static com.notnoop.apns.internal.Utilities.SANDBOX_GATEWAY_PORT;
+import static com.notnoop.apns.internal.Utilities.SANDBOX_HTTP2_HOST;
 import static com.notnoop.apns.internal.Utilities.newSSLContext;
 import io.netty.channel.EventLoopGroup;
 import io.netty.channel.nio.NioEventLoopGroup;
@@ -62,11 +65,17 @@ import com.notnoop.apns.internal.ApnsFeedbackConnection;
 import com.notnoop.apns.internal.ApnsPooledConnection;
 import com.notnoop.apns.internal.ApnsServiceImpl;
 import com.notnoop.apns.internal.BatchApnsService;
+import com.notnoop.apns.internal.FeedbackPollingApnsService;
 import com.notnoop.apns.internal.QueuedApnsService;
+import com.notnoop.apns.internal.ReconnectPolicies;
+import com.notnoop.apns.internal.RingBufferApnsService;
+import com.notnoop.apns.internal.TlsSettings;
 import com.notnoop.apns.internal.Utilities;
 import com.notnoop.apns.internal.netty.NettyApnsConnectionImpl;
+import com.notnoop.apns.internal.netty.NettyFeedbackConnection;
 import com.notnoop.apns.internal.netty.cache.CacheStoreImpl;
 import com.notnoop.apns.internal.netty.channel.NettyChannelProviderImpl;
+import com.notnoop.apns.internal.netty.http2.Http2ApnsConnection;
 import com.notnoop.exceptions.InvalidSSLConfig;
 import com.notnoop.exceptions.RuntimeIOException;
 
@@ -100,17 +109,35 @@ public class ApnsServiceBuilder {
     private String feedbackHost;
     private int feedbackPort;
     private int pooledMax = 1;
+    private PoolSharding poolSharding = PoolSharding.DEVICE_TOKEN;
     private int cacheLength = ApnsConnection.DEFAULT_CACHE_LENGTH;
     private boolean autoAdjustCacheLength = true;
     private ExecutorService executor = null;
+    private ThreadFactory threadFactory = null;
+    private int writeBufferSize = 0;
+    private long flushDelayMillis = 0;
+    private BackoffPolicy backoffPolicy = null;
 
     private ReconnectPolicy reconnectPolicy = ReconnectPolicy.Provided.NEVER
             .newObject();
     private boolean isQueued = false;
+    private int queueCapacity = Integer.MAX_VALUE;
+    private int queueConsumers = 1;
+    private QueueOverflowPolicy queueOverflowPolicy = QueueOverflowPolicy.BLOCK;
+    private int ringBufferSize = 0;
+    private RingBufferWaitStrategy ringBufferWaitStrategy;
+
+    private long feedbackPollPeriodMillis = 0;
+    private double feedbackPollJitter;
+    private FeedbackSink feedbackSink;
+    private boolean suppressInactiveDevices = false;
 
     private boolean isBatched = false;
-    private int batchWaitTimeInSec;
-    private int batchMaxWaitTimeInSec;
+    private long batchWaitTimeInMillis;
+    private long batchMaxWaitTimeInMillis;
+    private int batchMaxSize = Integer.MAX_VALUE;
+    private int batchMaxBytes = Integer.MAX_VALUE;
+    private boolean batchPersistentConnection = false;
     private ThreadFactory batchThreadFactory;
 
     private ApnsDelegate delegate = ApnsDelegate.EMPTY;
@@ -119,6 +146,16 @@ public class ApnsServiceBuilder {
     private boolean netty = true;
     private EventLoopGroup nettyEventLoopGroup;
     private ExecutorService nettyDeliveryResultExecutor = null;
+    private ApnsRuntime runtime;
+    private KeyStore certKeyStore;
+    private String certPassword;
+    private String[] tlsProtocols;
+    private String[] tlsCipherSuites;
+    private TlsHandshakeMetrics handshakeMetrics;
+    private boolean http2 = false;
+    private int http2MaxConnections = 1;
+    private String topic;
+    private ApnsSigningKey signingKey;
 
     /**
      * Constructs a new instance of {@code ApnsServiceBuilder}
@@ -193,8 +230,8 @@ public class ApnsServiceBuilder {
     public ApnsServiceBuilder withCert(InputStream stream, String password)
             throws InvalidSSLConfig {
         assertPasswordNotEmpty(password);
-        return withSSLContext(newSSLContext(stream, password, KEYSTORE_TYPE,
-                KEY_ALGORITHM));
+        return withCert(Utilities.loadKeyStore(stream, password, KEYSTORE_TYPE),
+                password);
     }
 
     /**
@@ -221,7 +258,11 @@ public class ApnsServiceBuilder {
     public ApnsServiceBuilder withCert(KeyStore keyStore, String password)
             throws InvalidSSLConfig {
         assertPasswordNotEmpty(password);
-        return withSSLContext(newSSLContext(keyStore, password, KEY_ALGORITHM));
+        this.sslContext = runtime != null ? runtime.getSSLContext(keyStore, password)
+                : newSSLContext(keyStore, password, KEY_ALGORITHM);
+        this.certKeyStore = keyStore;
+        this.certPassword = password;
+        return this;
     }
 
     private void assertPasswordNotEmpty(String password) {
@@ -246,6 +287,77 @@ public class ApnsServiceBuilder {
      */
     public ApnsServiceBuilder withSSLContext(SSLContext sslContext) {
         this.sslContext = sslContext;
+        this.certKeyStore = null;
+        this.certPassword = null;
+        return this;
+    }
+
+    /**
+     * Specify the TLS protocols enabled on the connections, e.g.
+     * <code>"TLSv1.2"</code>. By default, those enabled by the
+     * <code>SSLContext</code> are used.
+     * 
+     * @param protocols
+     *            the enabled protocols
+     * @return this
+     */
+    public ApnsServiceBuilder withTlsProtocols(String... protocols) {
+        this.tlsProtocols = protocols;
+        return this;
+    }
+
+    /**
+     * Specify the cipher suites enabled on the connections, in order of
+     * preference. Suites using ECDHE key exchange and AES-GCM, such as
+     * <code>TLS_ECDHE_RSA_WITH_AES_128_GCM_SHA256</code>, make full
+     * handshakes cheaper than the RSA key exchange on most hardware. By
+     * default, those enabled by the <code>SSLContext</code> are used.
+     * 
+     * A faster JSSE provider can be used by building the context with it,
+     * and passing it to {@link #withSSLContext(SSLContext)}.
+     * 
+     * @param cipherSuites
+     *            the enabled cipher suites
+     * @return this
+     */
+    public ApnsServiceBuilder withCipherSuites(String... cipherSuites) {
+        this.tlsCipherSuites = cipherSuites;
+        return this;
+    }
+
+    /**
+     * Times the TLS handshakes of the connections of the service, and counts
+     * those resuming a session cached by the <code>SSLContext</code>.
+     * 
+     * With the blocking connections, the handshake of a socket is started
+     * as soon as it is connected, rather than on its first write.
+     * 
+     * @param metrics
+     *            the metrics, possibly shared with other services
+     * @return this
+     */
+    public ApnsServiceBuilder withHandshakeMetrics(TlsHandshakeMetrics metrics) {
+        this.handshakeMetrics = metrics;
+        return this;
+    }
+
+    /**
+     * Builds the service on the resources of <code>runtime</code>, shared
+     * with the other services built on it: its event loop group and
+     * delivery result executor, unless set explicitly, the timer of the
+     * feedback polling, and its cache of <code>SSLContext</code>s for the
+     * certificates given to {@link #withCert(InputStream, String)} and its
+     * variants.
+     * 
+     * @param runtime
+     *            the shared runtime
+     * @return this
+     */
+    public ApnsServiceBuilder withRuntime(ApnsRuntime runtime) {
+        this.runtime = runtime;
+        if (runtime != null && certKeyStore != null) {
+            this.sslContext = runtime.getSSLContext(certKeyStore, certPassword);
+        }
         return this;
     }
 
@@ -273,9 +385,13 @@ public class ApnsServiceBuilder {
     }
 
     /**
-     * Provide optionally a given event loop group. If none is provided, a new
+     * Provide optionally a given event loop group. If none is provided, the
+     * one of the {@link #withRuntime(ApnsRuntime) runtime} is used, or a new
      * one will be created for this service.
      * 
+     * The feedback service is read on the same event loop group, unless a
+     * proxy is used.
+     * 
      * @param nettyEventLoopGroup
      * @return
      */
@@ -396,6 +512,30 @@ public class ApnsServiceBuilder {
         return this;
     }
 
+    /**
+     * Rotates the connection after <code>maxNotifications</code>
+     * notifications, <code>maxBytes</code> bytes or
+     * <code>maxAgeMillis</code>, whichever comes first; <code>0</code>
+     * disables a limit.
+     * 
+     * Rotation is make-before-break: the new connection is established
+     * before the old one is closed, and the old one is given a grace period
+     * to report errors for the notifications last written to it. The age is
+     * only checked as notifications are sent, so idle connections are left
+     * alone.
+     * 
+     * @return this
+     */
+    public ApnsServiceBuilder withReconnectAfter(long maxNotifications,
+            long maxBytes, long maxAgeMillis) {
+        if (maxNotifications < 0 || maxBytes < 0 || maxAgeMillis < 0) {
+            throw new IllegalArgumentException("Limits must not be negative");
+        }
+        this.reconnectPolicy = new ReconnectPolicies.Traffic(maxNotifications,
+                maxBytes, maxAgeMillis);
+        return this;
+    }
+
     /**
      * Specify if the notification cache should auto adjust. Default is true
      * 
@@ -498,11 +638,11 @@ public class ApnsServiceBuilder {
      * Apple servers recommend using a pooled connection up to 15 concurrent
      * persistent connections to the gateways.
      * 
-     * Note: This option has no effect when using non-blocking connections.
+     * With the netty backend, each connection of the pool is a channel of
+     * its own on the event loop group.
      */
     public ApnsServiceBuilder asPool(int maxConnections) {
-        return asPool(Executors.newFixedThreadPool(maxConnections),
-                maxConnections);
+        return asPool(null, maxConnections);
     }
 
     /**
@@ -511,10 +651,9 @@ public class ApnsServiceBuilder {
      * Apple servers recommend using a pooled connection up to 15 concurrent
      * persistent connections to the gateways.
      * 
-     * Note: This option has no effect when using non-blocking connections.
-     * 
-     * Note: The maxConnections here is used as a hint to how many connections
-     * get created.
+     * Note: Exactly maxConnections connections are created, each one sent on
+     * by a task that runs on the executor for the lifetime of the service, so
+     * the executor must be able to run maxConnections tasks at once.
      */
     public ApnsServiceBuilder asPool(ExecutorService executor,
             int maxConnections) {
@@ -523,6 +662,92 @@ public class ApnsServiceBuilder {
         return this;
     }
 
+    /**
+     * Constructs a pool of connections to the notification servers, choosing
+     * the connection of each notification with {@code sharding}.
+     */
+    public ApnsServiceBuilder asPool(int maxConnections, PoolSharding sharding) {
+        this.poolSharding = sharding;
+        return asPool(maxConnections);
+    }
+
+    /**
+     * Sends the notifications to the HTTP/2 provider API rather than the
+     * binary interface, multiplexed on a single connection. The Apple
+     * gateways given to {@link #withSandboxDestination()} and
+     * {@link #withProductionDestination()} are replaced by their HTTP/2
+     * counterparts; the feedback service is unchanged.
+     * 
+     * Each notification gets its own response, given to the delegate as a
+     * {@link com.notnoop.exceptions.ApnsRejectionException} when it is
+     * rejected, so the cache length and the reconnect policy do not apply.
+     * Requires the netty backend, and ALPN support from the JDK.
+     * 
+     * @return this
+     */
+    public ApnsServiceBuilder asHttp2() {
+        return asHttp2(1);
+    }
+
+    /**
+     * Sends the notifications to the HTTP/2 provider API, on up to
+     * <code>maxConnections</code> connections. A new connection is only
+     * opened once every stream allowed on the others is in use.
+     * 
+     * @param maxConnections
+     *            the connections opened at once, at most
+     * @return this
+     * @see #asHttp2()
+     */
+    public ApnsServiceBuilder asHttp2(int maxConnections) {
+        if (maxConnections < 1) {
+            throw new IllegalArgumentException("maxConnections must be positive");
+        }
+        this.http2 = true;
+        this.http2MaxConnections = maxConnections;
+        return this;
+    }
+
+    /**
+     * Specify the <code>apns-topic</code> of the notifications sent to the
+     * HTTP/2 provider API, usually the bundle id of the application. By
+     * default, the topic of the certificate is used.
+     * 
+     * @param topic
+     *            the topic of the notifications
+     * @return this
+     */
+    public ApnsServiceBuilder withTopic(String topic) {
+        this.topic = topic;
+        return this;
+    }
+
+    /**
+     * Authenticate the requests to the HTTP/2 provider API with tokens
+     * signed by <code>signingKey</code> rather than with a certificate. The
+     * tokens are signed once, shared by the services using the same key,
+     * and re-signed in the background before they expire. Implies
+     * {@link #asHttp2()}.
+     * 
+     * No certificate is then needed: unless one is given, the connections
+     * use a context with no client certificate, shared by the services of
+     * the {@link #withRuntime(ApnsRuntime) runtime}. The feedback service
+     * still requires a certificate: without one, the service has no
+     * feedback connection and {@link #withFeedbackPolling(long, double,
+     * FeedbackSink)} is rejected. Notifications of several applications
+     * of the team can be sent by the same service as
+     * {@link TopicApnsNotification}s.
+     * 
+     * @param signingKey
+     *            the key of the team
+     * @return this
+     */
+    public ApnsServiceBuilder withSigningKey(ApnsSigningKey signingKey) {
+        this.signingKey = signingKey;
+        this.http2 |= signingKey != null;
+        return this;
+    }
+
     /**
      * Constructs a new thread with a processing queue to process notification
      * requests.
@@ -534,6 +759,62 @@ public class ApnsServiceBuilder {
         return this;
     }
 
+    /**
+     * Constructs a bounded processing queue, drained by {@code consumers}
+     * threads, to process notification requests.
+     * 
+     * Each consumer takes the queued notifications in batches and pushes them
+     * with {@link ApnsService#push(java.util.Iterator, BulkPushListener)}, so
+     * with a pooled service a batch is spread across the connections. Failed
+     * notifications are logged. One consumer per pooled connection is usually
+     * enough.
+     * 
+     * @param capacity
+     *            maximum number of queued notifications
+     * @param consumers
+     *            number of threads taking notifications off the queue
+     * @param overflowPolicy
+     *            what to do when a notification is pushed to a full queue
+     * @return this
+     */
+    public ApnsServiceBuilder asQueued(int capacity, int consumers,
+            QueueOverflowPolicy overflowPolicy) {
+        if (capacity < 1 || consumers < 1) {
+            throw new IllegalArgumentException("capacity and consumers must be positive");
+        }
+        this.isQueued = true;
+        this.queueCapacity = capacity;
+        this.queueConsumers = consumers;
+        this.queueOverflowPolicy = overflowPolicy;
+        return this;
+    }
+
+    /**
+     * Constructs a preallocated ring of notification slots, drained by a
+     * single sender thread, to process notification requests.
+     * 
+     * This is a lower latency alternative to {@link #asQueued()}: pushing a
+     * notification neither allocates nor takes a lock. Producers that want to
+     * avoid building a notification object at all can claim and fill slots
+     * directly, see {@link RingBufferApnsService}.
+     * 
+     * @param size
+     *            number of slots, a power of two
+     * @param waitStrategy
+     *            how the sender waits for notifications and producers wait
+     *            for free slots
+     * @return this
+     */
+    public ApnsServiceBuilder asRingBuffered(int size,
+            RingBufferWaitStrategy waitStrategy) {
+        if (size < 1 || Integer.bitCount(size) != 1) {
+            throw new IllegalArgumentException("size must be a power of two");
+        }
+        this.ringBufferSize = size;
+        this.ringBufferWaitStrategy = waitStrategy;
+        return this;
+    }
+
     /**
      * Construct service which will process notification requests in batch.
      * After each request batch will wait
@@ -589,8 +870,52 @@ public class ApnsServiceBuilder {
     public ApnsServiceBuilder asBatched(int waitTimeInSec,
             int maxWaitTimeInSec, ThreadFactory threadFactory) {
         this.isBatched = true;
-        this.batchWaitTimeInSec = waitTimeInSec;
-        this.batchMaxWaitTimeInSec = maxWaitTimeInSec;
+        this.batchWaitTimeInMillis = waitTimeInSec * 1000L;
+        this.batchMaxWaitTimeInMillis = maxWaitTimeInSec * 1000L;
+        this.batchMaxSize = Integer.MAX_VALUE;
+        this.batchMaxBytes = Integer.MAX_VALUE;
+        this.batchPersistentConnection = false;
+        this.batchThreadFactory = threadFactory;
+        return this;
+    }
+
+    /**
+     * Construct service which will process notification requests in batch,
+     * over a single connection kept open between batches.
+     * 
+     * A batch is sent as soon as it holds <code>maxBatchSize</code>
+     * notifications or <code>maxBatchBytes</code> marshalled bytes. Otherwise
+     * each request makes the batch wait <code>waitTimeInMillis</code> for more
+     * requests to come, but not more than <code>maxWaitTimeInMillis</code>
+     * since the first one.
+     * 
+     * Unlike the other batched modes, no connection is opened per batch, so
+     * batches do not pay for a TLS handshake.
+     * 
+     * @param maxBatchSize
+     *            number of notifications that sends the batch right away
+     * @param maxBatchBytes
+     *            marshalled size that sends the batch right away
+     * @param waitTimeInMillis
+     *            time to wait for more notification request before executing
+     *            batch
+     * @param maxWaitTimeInMillis
+     *            maximum wait time for batch before executing
+     * @param threadFactory
+     *            thread factory to use for batch processing
+     */
+    public ApnsServiceBuilder asBatched(int maxBatchSize, int maxBatchBytes,
+            long waitTimeInMillis, long maxWaitTimeInMillis,
+            ThreadFactory threadFactory) {
+        if (maxBatchSize < 1 || maxBatchBytes < 1) {
+            throw new IllegalArgumentException("maxBatchSize and maxBatchBytes must be positive");
+        }
+        this.isBatched = true;
+        this.batchWaitTimeInMillis = waitTimeInMillis;
+        this.batchMaxWaitTimeInMillis = maxWaitTimeInMillis;
+        this.batchMaxSize = maxBatchSize;
+        this.batchMaxBytes = maxBatchBytes;
+        this.batchPersistentConnection = true;
         this.batchThreadFactory = threadFactory;
         return this;
     }
@@ -606,6 +931,123 @@ public class ApnsServiceBuilder {
         return this;
     }
 
+    /**
+     * Sets the factory of the threads the blocking socket connections use:
+     * the threads reading error responses, the pool senders created by
+     * {@link #asPool(int)}, the consumers of {@link #asQueued()} and the
+     * sender of {@link #asRingBuffered(int, RingBufferWaitStrategy)}.
+     * 
+     * Each blocking connection keeps one of these threads blocked reading
+     * its error responses for as long as its socket is open; only the
+     * non-blocking connections share the event loop threads. The
+     * connections do not hold monitors while blocked, so on a JDK with
+     * virtual threads they can run on them, e.g. with
+     * {@code Thread.ofVirtual().factory()}, and hundreds of connections do
+     * not need hundreds of platform threads.
+     * 
+     * Note: Apart from the queue consumers and the ring buffer sender, this
+     * option has no effect when using non-blocking connections.
+     * 
+     * @return this
+     */
+    public ApnsServiceBuilder withThreadFactory(ThreadFactory threadFactory) {
+        this.threadFactory = threadFactory;
+        return this;
+    }
+
+    /**
+     * Sets how the connections retry failed writes. By default a
+     * notification is tried three times, one second apart.
+     * 
+     * The connections schedule the reconnections after the delays rather
+     * than waiting on the pushing thread: the failed notifications, and
+     * those pushed until the reconnection, are queued and their outcome
+     * reported to the delegate, see {@link BackoffPolicy}. With a circuit
+     * breaker, pushes fail right away with a
+     * {@link com.notnoop.exceptions.CircuitOpenException} while the gateway
+     * is considered down.
+     * 
+     * @return this
+     */
+    public ApnsServiceBuilder withReconnectBackoff(BackoffPolicy backoffPolicy) {
+        this.backoffPolicy = backoffPolicy;
+        return this;
+    }
+
+    /**
+     * Gathers the notifications written by the blocking socket connections
+     * in a buffer of <code>bufferSize</code> bytes, written to the socket
+     * with a single flush once full, <code>flushDelayMillis</code> after the
+     * first notification was buffered, or on {@link ApnsService#flush()}.
+     * 
+     * Many small notifications then share TLS records and system calls. The
+     * delegate is told a notification was sent once it has been flushed.
+     * 
+     * Note: This option has no effect when using non-blocking connections,
+     * which already write their notifications in bulk.
+     * 
+     * @param bufferSize
+     *            number of bytes that flushes the buffer right away
+     * @param flushDelayMillis
+     *            maximum time a notification stays in the buffer
+     * @return this
+     */
+    public ApnsServiceBuilder withWriteBuffer(int bufferSize, long flushDelayMillis) {
+        if (bufferSize < 1 || flushDelayMillis < 0) {
+            throw new IllegalArgumentException("bufferSize must be positive and flushDelayMillis not negative");
+        }
+        this.writeBufferSize = bufferSize;
+        this.flushDelayMillis = flushDelayMillis;
+        return this;
+    }
+
+    /**
+     * Polls the feedback service in the background every
+     * <code>periodMillis</code>, each delay shortened by a random fraction
+     * of up to <code>jitter</code>, and hands the devices not reported by an
+     * earlier poll to <code>sink</code>.
+     * 
+     * The polls stream the feedback, and the reported devices are kept in a
+     * compact set, so polling often stays cheap. As the feedback service
+     * reports each device only once, devices read by calling
+     * {@link ApnsService#getInactiveDevices()} directly are not passed to
+     * the sink.
+     * 
+     * @param periodMillis
+     *            time between two polls
+     * @param jitter
+     *            between 0 and 1
+     * @param sink
+     *            receives the newly reported devices, or <code>null</code>
+     *            when only used with {@link #withInactiveDeviceSuppression()}
+     * @return this
+     */
+    public ApnsServiceBuilder withFeedbackPolling(long periodMillis, double jitter,
+            FeedbackSink sink) {
+        if (periodMillis <= 0 || jitter < 0 || jitter > 1) {
+            throw new IllegalArgumentException("periodMillis must be positive and jitter between 0 and 1");
+        }
+        this.feedbackPollPeriodMillis = periodMillis;
+        this.feedbackPollJitter = jitter;
+        this.feedbackSink = sink;
+        return this;
+    }
+
+    /**
+     * Drops the notifications to the devices reported inactive by the
+     * feedback polling instead of pushing them. Requires
+     * {@link #withFeedbackPolling(long, double, FeedbackSink)}.
+     * 
+     * A device that registers again is pushed to again once passed to
+     * {@link FeedbackPollingApnsService#reactivate(byte[])}.
+     * 
+     * @return this
+     */
+    public ApnsServiceBuilder withInactiveDeviceSuppression() {
+        this.suppressInactiveDevices = true;
+        return this;
+    }
+
     /**
      * Disables the enhanced error detection, enabled by the enhanced push
      * notification interface. Error detection is enabled by default.
@@ -629,25 +1071,69 @@ public class ApnsServiceBuilder {
         checkInitialization();
         ApnsService service;
 
-        SSLSocketFactory sslFactory = sslContext.getSocketFactory();
-        ApnsFeedbackConnection feedback = new ApnsFeedbackConnection(
-                sslFactory, feedbackHost, feedbackPort, proxy, readTimeout);
+        // without a certificate, the signing key authenticates the requests
+        boolean certificate = sslContext != null;
+        SSLContext context = certificate ? sslContext : runtime != null
+                ? runtime.getSSLContext()
+                : Utilities.newSSLContext(Utilities.newTrustManagers(KEY_ALGORITHM));
+        TlsSettings tls = new TlsSettings(tlsProtocols, tlsCipherSuites, handshakeMetrics);
+        SSLSocketFactory sslFactory = tls.wrap(context.getSocketFactory(), readTimeout);
+        EventLoopGroup eventLoopGroup = null;
+        if (netty) {
+            if (nettyEventLoopGroup != null) {
+                eventLoopGroup = nettyEventLoopGroup;
+            } else if (runtime != null) {
+                eventLoopGroup = runtime.getEventLoopGroup();
+            } else {
+                eventLoopGroup = new NioEventLoopGroup();
+            }
+        }
 
-        ApnsConnection conn = buildBasicApnsConnection(sslFactory);
+        ApnsFeedbackConnection feedback;
+        if (!certificate) {
+            feedback = null;
+        } else if (netty && proxy == null) {
+            feedback = new NettyFeedbackConnection(eventLoopGroup, context,
+                    feedbackHost, feedbackPort, readTimeout, tls);
+        } else {
+            feedback = new ApnsFeedbackConnection(sslFactory, feedbackHost,
+                    feedbackPort, proxy, readTimeout);
+        }
+
+        ApnsConnection conn = buildBasicApnsConnection(context, sslFactory, eventLoopGroup, tls);
 
         if (pooledMax != 1) {
-            conn = new ApnsPooledConnection(conn, pooledMax, executor);
+            ExecutorService poolExecutor = executor;
+            if (poolExecutor == null) {
+                poolExecutor = threadFactory == null
+                        ? Executors.newFixedThreadPool(pooledMax)
+                        : Executors.newFixedThreadPool(pooledMax, threadFactory);
+            }
+            conn = new ApnsPooledConnection(conn, pooledMax, poolExecutor, poolSharding);
         }
 
         service = new ApnsServiceImpl(conn, feedback);
 
         if (isQueued) {
-            service = new QueuedApnsService(service);
+            service = new QueuedApnsService(service, queueCapacity,
+                    queueConsumers, queueOverflowPolicy, threadFactory);
+        }
+
+        if (ringBufferSize != 0) {
+            service = new RingBufferApnsService(service, ringBufferSize,
+                    ringBufferWaitStrategy, threadFactory);
         }
 
         if (isBatched) {
-            service = new BatchApnsService(conn, feedback, batchWaitTimeInSec,
-                    batchMaxWaitTimeInSec, batchThreadFactory);
+            service = new BatchApnsService(conn, feedback, batchWaitTimeInMillis,
+                    batchMaxWaitTimeInMillis, batchMaxSize, batchMaxBytes,
+                    batchPersistentConnection, batchThreadFactory);
+        }
+
+        if (feedbackPollPeriodMillis != 0) {
+            service = new FeedbackPollingApnsService(service, feedbackPollPeriodMillis,
+                    feedbackPollJitter, feedbackSink, suppressInactiveDevices,
+                    runtime == null ? null : runtime.getScheduler());
         }
 
         service.start();
@@ -655,27 +1141,49 @@ public class ApnsServiceBuilder {
         return service;
     }
 
-    private ApnsConnection buildBasicApnsConnection(SSLSocketFactory sslFactory) {
-        if (netty) {
+    private ApnsConnection buildBasicApnsConnection(SSLContext sslContext,
+            SSLSocketFactory sslFactory, EventLoopGroup eventLoopGroup, TlsSettings tls) {
+        if (http2) {
+            String host = gatewayHost;
+            int port = gatewaPort;
+            if (PRODUCTION_GATEWAY_HOST.equals(host)) {
+                host = PRODUCTION_HTTP2_HOST;
+                port = HTTP2_PORT;
+            } else if (SANDBOX_GATEWAY_HOST.equals(host)) {
+                host = SANDBOX_HTTP2_HOST;
+                port = HTTP2_PORT;
+            }
+            return new Http2ApnsConnection(eventLoopGroup, sslContext, tls,
+                    host, port, topic, http2MaxConnections,
+                    Http2ApnsConnection.DEFAULT_MAX_STREAMS, readTimeout, delegate,
+                    nettyDeliveryResultExecutor != null || runtime == null
+                            ? nettyDeliveryResultExecutor
+                            : runtime.getDeliveryResultExecutor(),
+                    signingKey);
+        } else if (netty) {
             NettyApnsConnectionImpl conn = new NettyApnsConnectionImpl(
                     new NettyChannelProviderImpl(
-                            nettyEventLoopGroup == null ? new NioEventLoopGroup()
-                                    : nettyEventLoopGroup, reconnectPolicy,
-                            gatewayHost, gatewaPort, readTimeout, sslContext),
+                            eventLoopGroup, reconnectPolicy,
+                            gatewayHost, gatewaPort, readTimeout, sslContext, tls),
                     delegate, new CacheStoreImpl(cacheLength,
-                            autoAdjustCacheLength), nettyDeliveryResultExecutor);
+                            autoAdjustCacheLength),
+                    nettyDeliveryResultExecutor != null || runtime == null
+                            ? nettyDeliveryResultExecutor
+                            : runtime.getDeliveryResultExecutor(),
+                    backoffPolicy);
             conn.init();
             return conn;
 
         } else {
             return new ApnsConnectionImpl(sslFactory, gatewayHost, gatewaPort,
                     proxy, reconnectPolicy, delegate, errorDetection,
-                    cacheLength, autoAdjustCacheLength, readTimeout);
+                    cacheLength, autoAdjustCacheLength, readTimeout,
+                    threadFactory, writeBufferSize, flushDelayMillis, backoffPolicy);
         }
     }
 
     private void checkInitialization() {
-        if (sslContext == null)
+        if (sslContext == null && signingKey == null)
             throw new IllegalStateException(
                     "SSL Certificates and attribute are not initialized\n"
                             + "Use .withCert() methods.");
@@ -684,5 +1192,18 @@ public class ApnsServiceBuilder {
                     "The Destination APNS server is not stated\n"
                             + "Use .withDestination(), withSandboxDestination(), "
                             + "or withProductionDestination().");
+        if (sslContext == null && feedbackPollPeriodMillis != 0)
+            throw new IllegalStateException(
+                    "withFeedbackPolling() requires a certificate, "
+                            + "the feedback service does not accept a signing key");
+        if (suppressInactiveDevices && feedbackPollPeriodMillis == 0)
+            throw new IllegalStateException(
+                    "withInactiveDeviceSuppression() requires withFeedbackPolling()");
+        if (isQueued && ringBufferSize != 0)
+            throw new IllegalStateException(
+                    "asQueued() and asRingBuffered() cannot be combined");
+        if (http2 && (!netty || proxy != null))
+            throw new IllegalStateException(
+                    "asHttp2() requires the netty backend, without a proxy");
     }
 }
@@ -0,0 +1,110 @@
+package com.notnoop.apns;
+
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.security.KeyFactory;
+import java.security.PrivateKey;
+import java.security.interfaces.ECPrivateKey;
+import java.security.spec.PKCS8EncodedKeySpec;
+
+import com.fasterxml.jackson.core.Base64Variants;
+import com.notnoop.apns.internal.Utilities;
+import com.notnoop.exceptions.InvalidSigningKeyException;
+
+/**
+ * The key signing the provider authentication tokens of the HTTP/2
+ * provider API, as downloaded from the developer account: a P-256 private
+ * key, its key id, and the id of the team owning it.
+ *
+ * Unlike a certificate, one key serves every application of the team, so
+ * the services of all of them can share one {@code SSLContext}.
+ *
+ * @see ApnsServiceBuilder#withSigningKey(ApnsSigningKey)
+ */
+public final class ApnsSigningKey {
+    private final String keyId;
+    private final String teamId;
+    private final ECPrivateKey privateKey;
+
+    public ApnsSigningKey(String keyId, String teamId, PrivateKey privateKey) {
+        if (keyId == null || teamId == null) {
+            throw new IllegalArgumentException("keyId and teamId are required");
+        }
+        if (!(privateKey instanceof ECPrivateKey)) {
+            throw new InvalidSigningKeyException("Not an elliptic curve key: " + privateKey);
+        }
+        this.keyId = keyId;
+        this.teamId = teamId;
+        this.privateKey = (ECPrivateKey) privateKey;
+    }
+
+    /**
+     * Reads the key from a <code>.p8</code> file.
+     *
+     * @throws InvalidSigningKeyException if the file cannot be read, or holds
+     *             no elliptic curve key
+     */
+    public static ApnsSigningKey load(String fileName, String keyId, String teamId) {
+        FileInputStream stream = null;
+        try {
+            stream = new FileInputStream(fileName);
+            return load(stream, keyId, teamId);
+        } catch (FileNotFoundException e) {
+            throw new InvalidSigningKeyException(e);
+        } finally {
+            Utilities.close(stream);
+        }
+    }
+
+    /**
+     * Reads the key from the PEM content of a <code>.p8</code> file. The
+     * stream is not closed.
+     *
+     * @throws InvalidSigningKeyException if the stream cannot be read, or
+     *             holds no elliptic curve key
+     */
+    public static ApnsSigningKey load(InputStream stream, String keyId, String teamId) {
+        try {
+            StringBuilder pem = new StringBuilder();
+            Reader reader = new InputStreamReader(stream, "US-ASCII");
+            char[] buffer = new char[1024];
+            int read;
+            while ((read = reader.read(buffer)) != -1) {
+                pem.append(buffer, 0, read);
+            }
+            String base64 = pem.toString()
+                    .replaceAll("-----[A-Z ]+-----", "")
+                    .replaceAll("\\s", "");
+            byte[] pkcs8 = Base64Variants.MIME_NO_LINEFEEDS.decode(base64);
+            PrivateKey key = KeyFactory.getInstance("EC").generatePrivate(new PKCS8EncodedKeySpec(pkcs8));
+            return new ApnsSigningKey(keyId, teamId, key);
+        } catch (IOException e) {
+            throw new InvalidSigningKeyException(e);
+        } catch (InvalidSigningKeyException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new InvalidSigningKeyException("Invalid signing key", e);
+        }
+    }
+
+    public String getKeyId() {
+        return keyId;
+    }
+
+    public String getTeamId() {
+        return teamId;
+    }
+
+    public ECPrivateKey getPrivateKey() {
+        return privateKey;
+    }
+
+    @Override
+    public String toString() {
+        return "ApnsSigningKey [keyId=" + keyId + ", teamId=" + teamId + "]";
+    }
+}
@@ -0,0 +1,140 @@
+package com.notnoop.apns;
+
+/**
+ * Describes how a connection retries after failing to send: how long it
+ * waits between attempts, how many attempts a notification gets, and when
+ * it stops trying altogether for a while.
+ *
+ * The delay doubles with every consecutive failure of the connection, from
+ * the initial delay up to the maximum delay. With jitter, each delay is
+ * shortened by a random fraction, so that many services losing their
+ * connections at the same moment do not reconnect at the same moment:
+ *
+ * <pre>
+ *   APNS.newService()
+ *       ...
+ *       .withReconnectBackoff(BackoffPolicy.exponential(100, 30000)
+ *               .withJitter(0.5)
+ *               .withMaxAttempts(5)
+ *               .withCircuitBreaker(10, 60000))
+ *       .build();
+ * </pre>
+ *
+ * The delays are not waited on the thread calling {@code push}. Once a
+ * write has failed, the blocking connection retries it right away on a new
+ * socket; after that, and on the first failure for the Netty connection,
+ * the notification is queued and the reconnection is scheduled after the
+ * delay. The notifications pushed meanwhile queue up behind it without
+ * trying the connection. Their pushes return at once, and the delegate
+ * learns whether they were sent or given up. The circuit breaker fails
+ * pushes right away while the gateway is down, including the queued ones
+ * when their retry comes.
+ *
+ * Instances are immutable.
+ */
+public final class BackoffPolicy {
+
+    private final long initialDelayMillis;
+    private final long maxDelayMillis;
+    private final double jitter;
+    private final int maxAttempts;
+    private final int circuitBreakerThreshold;
+    private final long circuitOpenMillis;
+
+    private BackoffPolicy(long initialDelayMillis, long maxDelayMillis, double jitter,
+            int maxAttempts, int circuitBreakerThreshold, long circuitOpenMillis) {
+        this.initialDelayMillis = initialDelayMillis;
+        this.maxDelayMillis = maxDelayMillis;
+        this.jitter = jitter;
+        this.maxAttempts = maxAttempts;
+        this.circuitBreakerThreshold = circuitBreakerThreshold;
+        this.circuitOpenMillis = circuitOpenMillis;
+    }
+
+    /**
+     * Returns a policy doubling the delay between attempts from
+     * {@code initialDelayMillis} up to {@code maxDelayMillis}, without
+     * jitter, with three attempts per notification and no circuit breaker.
+     */
+    public static BackoffPolicy exponential(long initialDelayMillis, long maxDelayMillis) {
+        if (initialDelayMillis < 0 || maxDelayMillis < initialDelayMillis) {
+            throw new IllegalArgumentException("Invalid delays " + initialDelayMillis
+                    + ", " + maxDelayMillis);
+        }
+        return new BackoffPolicy(initialDelayMillis, maxDelayMillis, 0, 3, 0, 0);
+    }
+
+    /**
+     * Returns a copy of this policy shortening each delay by a random
+     * fraction of up to {@code jitter}, between 0 and 1.
+     */
+    public BackoffPolicy withJitter(double jitter) {
+        if (jitter < 0 || jitter > 1) {
+            throw new IllegalArgumentException("Jitter must be between 0 and 1");
+        }
+        return new BackoffPolicy(initialDelayMillis, maxDelayMillis, jitter,
+                maxAttempts, circuitBreakerThreshold, circuitOpenMillis);
+    }
+
+    /**
+     * Returns a copy of this policy giving up on a notification after
+     * {@code maxAttempts} attempts.
+     */
+    public BackoffPolicy withMaxAttempts(int maxAttempts) {
+        if (maxAttempts < 1) {
+            throw new IllegalArgumentException("maxAttempts must be positive");
+        }
+        return new BackoffPolicy(initialDelayMillis, maxDelayMillis, jitter,
+                maxAttempts, circuitBreakerThreshold, circuitOpenMillis);
+    }
+
+    /**
+     * Returns a copy of this policy that stops connecting for
+     * {@code openMillis} after {@code failureThreshold} consecutive failures.
+     * While the circuit is open, pushes fail right away with a
+     * {@link com.notnoop.exceptions.CircuitOpenException}. Once it expires,
+     * the next push tries again, and reopens the circuit if it fails.
+     */
+    public BackoffPolicy withCircuitBreaker(int failureThreshold, long openMillis) {
+        if (failureThreshold < 1 || openMillis < 0) {
+            throw new IllegalArgumentException("Invalid circuit breaker settings");
+        }
+        return new BackoffPolicy(initialDelayMillis, maxDelayMillis, jitter,
+                maxAttempts, failureThreshold, openMillis);
+    }
+
+    public long getInitialDelayMillis() {
+        return initialDelayMillis;
+    }
+
+    public long getMaxDelayMillis() {
+        return maxDelayMillis;
+    }
+
+    public double getJitter() {
+        return jitter;
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    /**
+     * Returns the number of consecutive failures that opens the circuit, or
+     * {@code 0} if the circuit breaker is disabled.
+     */
+    public int getCircuitBreakerThreshold() {
+        return circuitBreakerThreshold;
+    }
+
+    public long getCircuitOpenMillis() {
+        return circuitOpenMillis;
+    }
+
+    @Override
+    public String toString() {
+        return "BackoffPolicy[delay=" + initialDelayMillis + ".." + maxDelayMillis
+                + "ms, jitter=" + jitter + ", maxAttempts=" + maxAttempts
+                + ", circuitBreaker=" + circuitBreakerThreshold + "/" + circuitOpenMillis + "ms]";
+    }
+}
@@ -0,0 +1,42 @@
+package com.notnoop.apns;
+
+/**
+ * Receives the progress of a streaming bulk push, see
+ * {@link ApnsService#push(java.util.Iterator, BulkPushListener)}.
+ *
+ * Like the {@link ApnsDelegate}, the listener is only told whether the
+ * notification was handed to the underlying connection, not whether it
+ * arrived at the phone. Callbacks run on the thread driving the push, or
+ * concurrently on the pool threads when the service was built with
+ * {@link ApnsServiceBuilder#asPool(int)}, so implementations used with a pool
+ * must be thread-safe.
+ */
+public interface BulkPushListener {
+
+    /**
+     * Called when a notification has been handed to the service.
+     *
+     * @param message the notification that was pushed
+     */
+    public void notificationPushed(ApnsNotification message);
+
+    /**
+     * Called when pushing a notification failed. The bulk push continues with
+     * the next notification.
+     *
+     * @param message the notification that could not be pushed
+     * @param e the cause of the failure
+     */
+    public void notificationFailed(ApnsNotification message, Exception e);
+
+    /**
+     * A NOOP listener that does nothing!
+     */
+    public final static BulkPushListener EMPTY = new BulkPushListener() {
+        public void notificationPushed(ApnsNotification message) {
+        }
+
+        public void notificationFailed(ApnsNotification message, Exception e) {
+        }
+    };
+}
@@ -0,0 +1,116 @@
+package com.notnoop.apns;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Summary of a streaming bulk push. Only counters and the first
+ * {@value #MAX_RECORDED_FAILURES} failures are kept, so the memory used does
+ * not depend on the number of notifications pushed; use a
+ * {@link BulkPushListener} to track individual notifications.
+ */
+public class BulkPushResult {
+
+    /**
+     * Maximum number of failures kept by {@link #getFailures()}
+     */
+    public static final int MAX_RECORDED_FAILURES = 100;
+
+    /**
+     * A notification that could not be pushed, and why.
+     */
+    public static class Failure {
+        private final ApnsNotification notification;
+        private final Exception cause;
+
+        public Failure(ApnsNotification notification, Exception cause) {
+            this.notification = notification;
+            this.cause = cause;
+        }
+
+        public ApnsNotification getNotification() {
+            return notification;
+        }
+
+        public Exception getCause() {
+            return cause;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Failure [notification=%s, cause=%s]", notification, cause);
+        }
+    }
+
+    private long pushed;
+    private long failed;
+    private final List<Failure> failures = new ArrayList<Failure>();
+
+    /**
+     * Records a notification handed to the service.
+     */
+    public void pushed() {
+        pushed++;
+    }
+
+    /**
+     * Records a notification that could not be pushed.
+     */
+    public void failed(ApnsNotification notification, Exception cause) {
+        failed++;
+        if (failures.size() < MAX_RECORDED_FAILURES) {
+            failures.add(new Failure(notification, cause));
+        }
+    }
+
+    /**
+     * Adds the counts and failures of {@code other} to this result, e.g. to
+     * combine the results of the chunks of a parallel push.
+     */
+    public void merge(BulkPushResult other) {
+        pushed += other.pushed;
+        failed += other.failed;
+        for (Failure failure : other.failures) {
+            if (failures.size() == MAX_RECORDED_FAILURES) {
+                break;
+            }
+            failures.add(failure);
+        }
+    }
+
+    /**
+     * Returns the number of notifications handed to the service.
+     */
+    public long getPushed() {
+        return pushed;
+    }
+
+    /**
+     * Returns the number of notifications that could not be pushed.
+     */
+    public long getFailed() {
+        return failed;
+    }
+
+    /**
+     * Returns the number of notifications attempted.
+     */
+    public long getTotal() {
+        return pushed + failed;
+    }
+
+    /**
+     * Returns the first failures, in the order the notifications were read
+     * from the source. At most {@value #MAX_RECORDED_FAILURES} failures are
+     * kept; {@link #getFailed()} has the total count.
+     */
+    public List<Failure> getFailures() {
+        return Collections.unmodifiableList(failures);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("BulkPushResult [pushed=%s, failed=%s]", pushed, failed);
+    }
+}
@@ -0,0 +1,263 @@
+package com.notnoop.apns;
+
+import java.util.Arrays;
+
+import com.notnoop.apns.internal.Utilities;
+
+/**
+ * Immutable value type for a 32-byte APNS device token.
+ *
+ * The token is stored as four {@code long}s with a precomputed hash code, so
+ * instances are cheap to keep in large maps and sets, and unlike
+ * {@code byte[]} they have value equality. Parsing and printing the
+ * hexadecimal representation do not allocate intermediate objects.
+ */
+public final class DeviceToken implements Comparable<DeviceToken> {
+
+    /**
+     * Length in bytes of a device token
+     */
+    public static final int LENGTH = 32;
+
+    /**
+     * Length in characters of the hexadecimal representation of a device
+     * token, without separators
+     */
+    public static final int HEX_LENGTH = 2 * LENGTH;
+
+    private static final char[] HEX_CHARS = "0123456789ABCDEF".toCharArray();
+    private final long w0, w1, w2, w3;
+    private final int hash;
+
+    private DeviceToken(long w0, long w1, long w2, long w3) {
+        this.w0 = w0;
+        this.w1 = w1;
+        this.w2 = w2;
+        this.w3 = w3;
+        long h = w0;
+        h = 31 * h + w1;
+        h = 31 * h + w2;
+        h = 31 * h + w3;
+        this.hash = (int) (h ^ (h >>> 32));
+    }
+
+    /**
+     * Returns the device token represented by the given 32 bytes.
+     *
+     * @throws IllegalArgumentException if {@code bytes} is not 32 bytes long
+     */
+    public static DeviceToken fromBytes(byte[] bytes) {
+        if (bytes.length != LENGTH) {
+            throw new IllegalArgumentException("Invalid device token length "
+                    + bytes.length);
+        }
+        return fromBytes(bytes, 0);
+    }
+
+    /**
+     * Returns the device token represented by the 32 bytes of {@code bytes}
+     * starting at {@code offset}.
+     */
+    public static DeviceToken fromBytes(byte[] bytes, int offset) {
+        if (offset < 0 || bytes.length - offset < LENGTH) {
+            throw new IllegalArgumentException("Not enough bytes for a device token");
+        }
+        return new DeviceToken(readLong(bytes, offset),
+                readLong(bytes, offset + 8), readLong(bytes, offset + 16),
+                readLong(bytes, offset + 24));
+    }
+
+    /**
+     * Parses the hexadecimal representation of a device token. Spaces and
+     * dashes are ignored, so tokens copied from the device logs
+     * ({@code <aaaa bbbb ...>} without the brackets) are accepted.
+     *
+     * @throws IllegalArgumentException if {@code hex} contains an invalid
+     *             character or does not have exactly 64 hexadecimal digits
+     */
+    public static DeviceToken fromHex(CharSequence hex) {
+        long w0 = 0, w1 = 0, w2 = 0, w3 = 0;
+        int digits = 0;
+        for (int i = 0; i < hex.length(); i++) {
+            final char c = hex.charAt(i);
+            if (Utilities.isHexSeparator(c)) {
+                continue;
+            }
+            final int v = Utilities.hexValue(c);
+            if (v < 0) {
+                throw new IllegalArgumentException("Invalid hex character: " + c);
+            }
+            if (digits == HEX_LENGTH) {
+                throw new IllegalArgumentException("Device token is longer than "
+                        + HEX_LENGTH + " hex digits");
+            }
+            switch (digits >>> 4) {
+            case 0: w0 = (w0 << 4) | v; break;
+            case 1: w1 = (w1 << 4) | v; break;
+            case 2: w2 = (w2 << 4) | v; break;
+            default: w3 = (w3 << 4) | v; break;
+            }
+            digits++;
+        }
+        if (digits != HEX_LENGTH) {
+            throw new IllegalArgumentException("Device token has " + digits
+                    + " hex digits, expected " + HEX_LENGTH);
+        }
+        return new DeviceToken(w0, w1, w2, w3);
+    }
+
+    /**
+     * Returns the device token the given notification is addressed to.
+     *
+     * Delegates can use this to key their own bookkeeping by token, e.g. in
+     * {@link ApnsDelegate#messageSendFailed(ApnsNotification, Throwable)}.
+     */
+    public static DeviceToken of(ApnsNotification notification) {
+        return fromBytes(notification.getDeviceToken());
+    }
+
+    /**
+     * Returns {@code Arrays.hashCode(notification.getDeviceToken())}, without
+     * copying the token of the notifications of this package.
+     */
+    public static int hashOf(ApnsNotification notification) {
+        if (notification instanceof TopicApnsNotification) {
+            notification = ((TopicApnsNotification) notification).getNotification();
+        }
+        byte[] token;
+        if (notification instanceof EnhancedApnsNotification) {
+            token = ((EnhancedApnsNotification) notification).deviceToken();
+        } else if (notification instanceof FramedApnsNotification) {
+            token = ((FramedApnsNotification) notification).deviceToken();
+        } else if (notification instanceof SimpleApnsNotification) {
+            token = ((SimpleApnsNotification) notification).deviceToken();
+        } else {
+            token = notification.getDeviceToken();
+        }
+        return Arrays.hashCode(token);
+    }
+
+    /**
+     * Returns the binary representation of the device token.
+     */
+    public byte[] toBytes() {
+        byte[] bytes = new byte[LENGTH];
+        writeTo(bytes, 0);
+        return bytes;
+    }
+
+    /**
+     * Writes the 32 bytes of the device token into {@code dst}, starting at
+     * {@code offset}.
+     */
+    public void writeTo(byte[] dst, int offset) {
+        writeLong(dst, offset, w0);
+        writeLong(dst, offset + 8, w1);
+        writeLong(dst, offset + 16, w2);
+        writeLong(dst, offset + 24, w3);
+    }
+
+    /**
+     * Writes the 64 upper-case hexadecimal characters of the device token
+     * into {@code dst}, starting at {@code offset}.
+     */
+    public void writeHex(char[] dst, int offset) {
+        writeHex(dst, offset, w0);
+        writeHex(dst, offset + 16, w1);
+        writeHex(dst, offset + 32, w2);
+        writeHex(dst, offset + 48, w3);
+    }
+
+    /**
+     * Appends the upper-case hexadecimal representation of the device token
+     * to {@code sb}.
+     */
+    public StringBuilder appendHex(StringBuilder sb) {
+        appendHex(sb, w0);
+        appendHex(sb, w1);
+        appendHex(sb, w2);
+        appendHex(sb, w3);
+        return sb;
+    }
+
+    /**
+     * Returns the upper-case hexadecimal representation of the device token,
+     * as produced by {@code Utilities.encodeHex}.
+     */
+    public String toHex() {
+        char[] chars = new char[HEX_LENGTH];
+        writeHex(chars, 0);
+        return new String(chars);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj)
+            return true;
+        if (!(obj instanceof DeviceToken))
+            return false;
+        DeviceToken o = (DeviceToken) obj;
+        return hash == o.hash && w0 == o.w0 && w1 == o.w1 && w2 == o.w2
+                && w3 == o.w3;
+    }
+
+    /**
+     * Orders device tokens by their unsigned byte representation.
+     */
+    @Override
+    public int compareTo(DeviceToken o) {
+        int c = compareUnsigned(w0, o.w0);
+        if (c == 0)
+            c = compareUnsigned(w1, o.w1);
+        if (c == 0)
+            c = compareUnsigned(w2, o.w2);
+        if (c == 0)
+            c = compareUnsigned(w3, o.w3);
+        return c;
+    }
+
+    @Override
+    public String toString() {
+        return toHex();
+    }
+
+    private static int compareUnsigned(long a, long b) {
+        return Long.compare(a ^ Long.MIN_VALUE, b ^ Long.MIN_VALUE);
+    }
+
+    private static long readLong(byte[] b, int off) {
+        return ((long) (b[off] & 0xFF) << 56)
+             | ((long) (b[off + 1] & 0xFF) << 48)
+             | ((long) (b[off + 2] & 0xFF) << 40)
+             | ((long) (b[off + 3] & 0xFF) << 32)
+             | ((long) (b[off + 4] & 0xFF) << 24)
+             | ((long) (b[off + 5] & 0xFF) << 16)
+             | ((long) (b[off + 6] & 0xFF) << 8)
+             | ((long) (b[off + 7] & 0xFF));
+    }
+
+    private static void writeLong(byte[] b, int off, long v) {
+        for (int i = 7; i >= 0; i--) {
+            b[off + i] = (byte) v;
+            v >>>= 8;
+        }
+    }
+
+    private static void writeHex(char[] dst, int off, long v) {
+        for (int i = 15; i >= 0; i--) {
+            dst[off + i] = HEX_CHARS[(int) (v & 0xF)];
+            v >>>= 4;
+        }
+    }
+
+    private static void appendHex(StringBuilder sb, long v) {
+        for (int shift = 60; shift >= 0; shift -= 4) {
+            sb.append(HEX_CHARS[(int) ((v >>> shift) & 0xF)]);
+        }
+    }
+}
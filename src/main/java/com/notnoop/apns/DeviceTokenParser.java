@@ -0,0 +1,329 @@
+package com.notnoop.apns;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import com.notnoop.apns.internal.Utilities;
+
+/**
+ * Bulk decoder for hexadecimal device token exports, such as newline or
+ * comma separated files with one token per record.
+ *
+ * Records are separated by line breaks, commas, semicolons or tabs. Inside a
+ * record, spaces, dashes and angle brackets are ignored, so tokens copied
+ * from the device logs ({@code <aaaa bbbb ...>}) are accepted. Empty records
+ * are skipped. Records that do not have exactly 64 hexadecimal digits are
+ * counted and reported to the {@link MalformedTokenHandler}, if any, instead
+ * of failing the whole import.
+ *
+ * Tokens are decoded straight into a caller supplied array, 32 bytes per
+ * token, so an import of millions of tokens can reuse a single buffer:
+ *
+ * <pre>
+ *   DeviceTokenParser parser = DeviceTokenParser.forFile(new File("tokens.csv"));
+ *   byte[] batch = new byte[1024 * DeviceToken.LENGTH];
+ *   int n;
+ *   while ((n = parser.read(batch)) != -1) {
+ *       for (int i = 0; i &lt; n; i++) {
+ *           service.push(DeviceToken.fromBytes(batch, i * DeviceToken.LENGTH), payload);
+ *       }
+ *   }
+ *   parser.close();
+ * </pre>
+ *
+ * Instances are not thread-safe.
+ */
+public final class DeviceTokenParser implements Closeable {
+
+    /**
+     * Receives the records that could not be decoded as a device token.
+     */
+    public interface MalformedTokenHandler {
+        /**
+         * Called for every malformed record.
+         *
+         * @param offset position of the first character of the record in the
+         *            input
+         * @param digits number of hexadecimal digits found before the record
+         *            was rejected
+         */
+        void malformedToken(long offset, int digits);
+    }
+
+    private static final int MAPPING_SIZE = 64 * 1024 * 1024;
+    private static final int ITERATOR_BATCH = 256;
+
+    private final CharSequence chars;
+    private final FileChannel channel;
+    private final long channelSize;
+    private ByteBuffer bytes;
+    private long base;
+    private int charPosition;
+
+    private MalformedTokenHandler handler;
+    private long tokenCount;
+    private long malformedCount;
+
+    // state of the record being decoded
+    private long recordOffset;
+    private int digits;
+    private boolean invalid;
+
+    private DeviceTokenParser(CharSequence chars, ByteBuffer bytes,
+            FileChannel channel, long channelSize) {
+        this.chars = chars;
+        this.bytes = bytes;
+        this.channel = channel;
+        this.channelSize = channelSize;
+    }
+
+    /**
+     * Returns a parser reading tokens from the given characters.
+     */
+    public static DeviceTokenParser forChars(CharSequence chars) {
+        return new DeviceTokenParser(chars, null, null, 0);
+    }
+
+    /**
+     * Returns a parser reading ASCII encoded tokens from the remaining bytes
+     * of {@code bytes}. The buffer position is advanced as tokens are read.
+     */
+    public static DeviceTokenParser forBytes(ByteBuffer bytes) {
+        return new DeviceTokenParser(null, bytes, null, 0);
+    }
+
+    /**
+     * Returns a parser reading ASCII encoded tokens from {@code file}. The
+     * file is memory-mapped in windows, so arbitrarily large exports can be
+     * read without loading them on the heap. The parser must be closed once
+     * done.
+     */
+    public static DeviceTokenParser forFile(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            return new DeviceTokenParser(null, null, channel, channel.size());
+        } catch (IOException e) {
+            raf.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Sets the handler notified of malformed records.
+     */
+    public DeviceTokenParser withMalformedTokenHandler(MalformedTokenHandler handler) {
+        this.handler = handler;
+        return this;
+    }
+
+    /**
+     * Decodes as many tokens as fit in {@code dst}.
+     *
+     * @see #read(byte[], int, int)
+     */
+    public int read(byte[] dst) throws IOException {
+        return read(dst, 0, dst.length / DeviceToken.LENGTH);
+    }
+
+    /**
+     * Decodes up to {@code maxTokens} tokens into {@code dst}, 32 bytes each,
+     * starting at {@code offset}.
+     *
+     * @return the number of tokens decoded, or -1 if the end of the input has
+     *         been reached
+     */
+    public int read(byte[] dst, int offset, int maxTokens) throws IOException {
+        if (offset < 0 || maxTokens < 0
+                || (long) offset + (long) maxTokens * DeviceToken.LENGTH > dst.length) {
+            throw new IndexOutOfBoundsException();
+        }
+        if (maxTokens == 0) {
+            return 0;
+        }
+
+        int count = 0;
+        int pos = offset;
+        if (chars != null) {
+            final int length = chars.length();
+            while (count < maxTokens && charPosition < length) {
+                if (consume(chars.charAt(charPosition), charPosition, dst, pos)) {
+                    count++;
+                    pos += DeviceToken.LENGTH;
+                }
+                charPosition++;
+            }
+            if (charPosition == length) {
+                count += finish(count < maxTokens);
+            }
+            return count == 0 && charPosition == length && !pending() ? -1 : count;
+        }
+
+        while (count < maxTokens && nextWindow()) {
+            final ByteBuffer buf = bytes;
+            while (count < maxTokens && buf.hasRemaining()) {
+                final long position = base + buf.position();
+                if (consume(buf.get() & 0xFF, position, dst, pos)) {
+                    count++;
+                    pos += DeviceToken.LENGTH;
+                }
+            }
+        }
+        if (!nextWindow()) {
+            count += finish(count < maxTokens);
+            if (count == 0 && !pending()) {
+                return -1;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns an iterator over the remaining tokens, decoded in batches, for
+     * use with {@link ApnsService#push(Iterator, byte[], int, BulkPushListener)}.
+     * I/O errors are rethrown as runtime exceptions.
+     */
+    public Iterator<DeviceToken> tokens() {
+        return new Iterator<DeviceToken>() {
+            private final byte[] batch = new byte[ITERATOR_BATCH * DeviceToken.LENGTH];
+            private int count;
+            private int index;
+
+            public boolean hasNext() {
+                while (index == count) {
+                    try {
+                        count = read(batch);
+                    } catch (IOException e) {
+                        throw new RuntimeException("Could not read device tokens", e);
+                    }
+                    index = 0;
+                    if (count == -1) {
+                        count = 0;
+                        return false;
+                    }
+                }
+                return true;
+            }
+
+            public DeviceToken next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return DeviceToken.fromBytes(batch, DeviceToken.LENGTH * index++);
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /**
+     * Returns the number of tokens decoded so far.
+     */
+    public long getTokenCount() {
+        return tokenCount;
+    }
+
+    /**
+     * Returns the number of malformed records found so far.
+     */
+    public long getMalformedCount() {
+        return malformedCount;
+    }
+
+    /**
+     * Closes the underlying file, if any.
+     */
+    @Override
+    public void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+        }
+    }
+
+    private boolean pending() {
+        return digits != 0 || invalid;
+    }
+
+    /**
+     * Makes sure {@link #bytes} has remaining bytes, mapping the next window
+     * of the file if needed. Returns false at the end of the input.
+     */
+    private boolean nextWindow() throws IOException {
+        if (bytes != null && bytes.hasRemaining()) {
+            return true;
+        }
+        if (channel == null) {
+            return false;
+        }
+        final long next = bytes == null ? 0 : base + bytes.limit();
+        if (next >= channelSize) {
+            return false;
+        }
+        base = next;
+        bytes = channel.map(FileChannel.MapMode.READ_ONLY, next,
+                Math.min(MAPPING_SIZE, channelSize - next));
+        return true;
+    }
+
+    /**
+     * Feeds one character of the input. Returns true if it completed a token,
+     * which is then in {@code dst} at {@code pos}.
+     */
+    private boolean consume(int c, long position, byte[] dst, int pos) {
+        final int v = Utilities.hexValue(c);
+        if (v >= 0) {
+            if (digits == 0 && !invalid) {
+                recordOffset = position;
+            }
+            if (digits < DeviceToken.HEX_LENGTH) {
+                final int i = pos + (digits >> 1);
+                dst[i] = (byte) ((digits & 1) == 0 ? v << 4 : (dst[i] | v));
+            }
+            digits++;
+            return false;
+        }
+        if (c == '\n' || c == '\r' || c == ',' || c == ';' || c == '\t') {
+            return endRecord();
+        }
+        if (!Utilities.isHexSeparator(c) && c != '<' && c != '>') {
+            if (digits == 0 && !invalid) {
+                recordOffset = position;
+            }
+            invalid = true;
+        }
+        return false;
+    }
+
+    /**
+     * Ends the last record at the end of the input, if there is room for it.
+     */
+    private int finish(boolean room) {
+        if (!room || !pending()) {
+            return 0;
+        }
+        return endRecord() ? 1 : 0;
+    }
+
+    private boolean endRecord() {
+        final boolean valid = !invalid && digits == DeviceToken.HEX_LENGTH;
+        if (valid) {
+            tokenCount++;
+        } else if (invalid || digits != 0) {
+            malformedCount++;
+            if (handler != null) {
+                handler.malformedToken(recordOffset, digits);
+            }
+        }
+        digits = 0;
+        invalid = false;
+        return valid;
+    }
+}
@@ -93,6 +93,21 @@ public class EnhancedApnsNotification implements ApnsNotification {
         this.payload = Utilities.copyOf(payload);
     }
 
+    /**
+     * Constructs an instance of {@code ApnsNotification}.
+     *
+     * @param dtoken    The destination device token
+     * @param payload   The binary representation of the payload to be sent
+     */
+    public EnhancedApnsNotification(
+            int identifier, int expiryTime,
+            DeviceToken dtoken, byte[] payload) {
+        this.identifier = identifier;
+        this.expiry = expiryTime;
+        this.deviceToken = dtoken.toBytes();
+        this.payload = Utilities.copyOf(payload);
+    }
+
     /**
      * Returns the binary representation of the device token.
      *
@@ -101,6 +116,13 @@ public class EnhancedApnsNotification implements ApnsNotification {
         return Utilities.copyOf(deviceToken);
     }
 
+    /**
+     * Returns the device token itself, which must not be modified.
+     */
+    byte[] deviceToken() {
+        return deviceToken;
+    }
+
     /**
      * Returns the binary representation of the payload.
      *
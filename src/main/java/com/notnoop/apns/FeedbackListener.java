@@ -0,0 +1,22 @@
+package com.notnoop.apns;
+
+/**
+ * Receives the tuples of the feedback service one at a time, as they are
+ * read from the connection.
+ *
+ * @see ApnsService#getInactiveDevices(FeedbackListener)
+ */
+public interface FeedbackListener {
+
+    /**
+     * Called for every device reported by the feedback service. A device
+     * may be reported more than once.
+     *
+     * @param deviceToken the token of the device. The array is reused for
+     *            the next tuples, so it must be copied, e.g. with
+     *            {@link DeviceToken#fromBytes(byte[])}, to be kept.
+     * @param timestamp when APNs determined that the application no longer
+     *            exists on the device, in milliseconds since the epoch
+     */
+    void inactiveDevice(byte[] deviceToken, long timestamp);
+}
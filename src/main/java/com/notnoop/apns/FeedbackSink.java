@@ -0,0 +1,23 @@
+package com.notnoop.apns;
+
+import java.util.Date;
+import java.util.Map;
+
+/**
+ * Receives the devices found inactive by the background feedback polling.
+ *
+ * @see ApnsServiceBuilder#withFeedbackPolling(long, double, FeedbackSink)
+ */
+public interface FeedbackSink {
+
+    /**
+     * Called after each poll that reported devices not reported by an
+     * earlier poll of the same service, with the time APNs determined that
+     * the application no longer exists on each of them.
+     *
+     * Called on the polling thread; polls do not overlap. If it throws, the
+     * devices are not suppressed yet, and are handed again, with those of
+     * the next poll, after that poll.
+     */
+    void inactiveDevices(Map<DeviceToken, Date> devices);
+}
@@ -0,0 +1,180 @@
+package com.notnoop.apns;
+
+import java.util.Arrays;
+
+import com.notnoop.apns.internal.Utilities;
+
+/**
+ * Represents an APNS notification encoded with the frame-based binary format
+ * (command 2).
+ *
+ * Unlike {@link EnhancedApnsNotification}, the frame format carries the
+ * notification priority. Notifications sent with
+ * {@link #PRIORITY_CONSERVE_POWER} may be grouped and delayed by Apple to
+ * save power on the device, which is appropriate for content-available
+ * pushes that do not show any alert to the user.
+ */
+public class FramedApnsNotification implements ApnsNotification {
+
+    private final static byte COMMAND = 2;
+
+    /**
+     * The push message is sent immediately. Must be used only for
+     * notifications that trigger an alert, sound or badge on the device.
+     */
+    public final static int PRIORITY_IMMEDIATE = 10;
+
+    /**
+     * The push message is sent at a time that conserves power on the device
+     * receiving it.
+     */
+    public final static int PRIORITY_CONSERVE_POWER = 5;
+
+    private final int identifier;
+    private final int expiry;
+    private final int priority;
+    private final byte[] deviceToken;
+    private final byte[] payload;
+
+    /**
+     * Constructs an instance of {@code ApnsNotification}.
+     *
+     * The message encodes the payload with a {@code UTF-8} encoding.
+     *
+     * @param dtoken    The Hex of the device token of the destination phone
+     * @param payload   The payload message to be sent
+     * @param priority  {@link #PRIORITY_IMMEDIATE} or
+     *                  {@link #PRIORITY_CONSERVE_POWER}
+     */
+    public FramedApnsNotification(
+            int identifier, int expiryTime, int priority,
+            String dtoken, String payload) {
+        this.identifier = identifier;
+        this.expiry = expiryTime;
+        this.priority = checkPriority(priority);
+        this.deviceToken = Utilities.decodeHex(dtoken);
+        this.payload = Utilities.toUTF8Bytes(payload);
+    }
+
+    /**
+     * Constructs an instance of {@code ApnsNotification}.
+     *
+     * @param dtoken    The binary representation of the destination device token
+     * @param payload   The binary representation of the payload to be sent
+     * @param priority  {@link #PRIORITY_IMMEDIATE} or
+     *                  {@link #PRIORITY_CONSERVE_POWER}
+     */
+    public FramedApnsNotification(
+            int identifier, int expiryTime, int priority,
+            byte[] dtoken, byte[] payload) {
+        this.identifier = identifier;
+        this.expiry = expiryTime;
+        this.priority = checkPriority(priority);
+        this.deviceToken = Utilities.copyOf(dtoken);
+        this.payload = Utilities.copyOf(payload);
+    }
+
+    private static int checkPriority(int priority) {
+        if (priority != PRIORITY_IMMEDIATE && priority != PRIORITY_CONSERVE_POWER) {
+            throw new IllegalArgumentException("Invalid priority " + priority);
+        }
+        return priority;
+    }
+
+    /**
+     * Returns the binary representation of the device token.
+     *
+     */
+    public byte[] getDeviceToken() {
+        return Utilities.copyOf(deviceToken);
+    }
+
+    /**
+     * Returns the device token itself, which must not be modified.
+     */
+    byte[] deviceToken() {
+        return deviceToken;
+    }
+
+    /**
+     * Returns the binary representation of the payload.
+     *
+     */
+    public byte[] getPayload() {
+        return Utilities.copyOf(payload);
+    }
+
+    public int getIdentifier() {
+        return identifier;
+    }
+
+    public int getExpiry() {
+        return expiry;
+    }
+
+    /**
+     * Returns the delivery priority of the notification, either
+     * {@link #PRIORITY_IMMEDIATE} or {@link #PRIORITY_CONSERVE_POWER}.
+     */
+    public int getPriority() {
+        return priority;
+    }
+
+    private byte[] marshall = null;
+    /**
+     * Returns the binary representation of the message as expected by the
+     * APNS server.
+     *
+     * The returned array can be used to sent directly to the APNS server
+     * (on the wire/socket) without any modification.
+     */
+    public byte[] marshall() {
+        if (marshall == null) {
+            marshall = Utilities.marshallFramed(COMMAND, identifier,
+                    expiry, priority, deviceToken, payload);
+        }
+        return marshall;
+    }
+
+    /**
+     * Returns the length of the message in bytes as it is encoded on the wire.
+     *
+     * @return length of encoded message in bytes
+     */
+    public int length() {
+        int length = 1 + 4 + Utilities.framedItemsLength(deviceToken.length, payload.length);
+        assert marshall().length == length;
+        return length;
+    }
+
+    @Override
+    public int hashCode() {
+        return (21
+               + 31 * identifier
+               + 31 * expiry
+               + 31 * priority
+               + 31 * Arrays.hashCode(deviceToken)
+               + 31 * Arrays.hashCode(payload));
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (!(obj instanceof FramedApnsNotification))
+            return false;
+        FramedApnsNotification o = (FramedApnsNotification)obj;
+        return (identifier == o.identifier
+                && expiry == o.expiry
+                && priority == o.priority
+                && Arrays.equals(this.deviceToken, o.deviceToken)
+                && Arrays.equals(this.payload, o.payload));
+    }
+
+    @Override
+    public String toString() {
+        String payloadString = "???";
+        try {
+            payloadString = new String(payload, "UTF-8");
+        } catch (Exception _) {}
+        return "Message(Id="+identifier+"; Priority="+priority+"; Token="+Utilities.encodeHex(deviceToken)+"; Payload="+payloadString+")";
+    }
+}
@@ -0,0 +1,61 @@
+package com.notnoop.apns;
+
+import com.notnoop.exceptions.NetworkIOException;
+
+/**
+ * Pushes notifications for many applications, each with its own
+ * certificate, on one {@link ApnsRuntime}.
+ *
+ * The service of a tenant is created when a notification is first pushed
+ * to it, and stopped again once it has been idle for a while, or to make
+ * room for another tenant when the tenant limit is reached.
+ *
+ * @see APNS#newMultiTenantService()
+ */
+public interface MultiTenantApnsService {
+
+    /**
+     * Pushes {@code notification} with the service of {@code appId},
+     * creating it if needed. Blocks while the tenant already has its share
+     * of pushes in progress.
+     *
+     * @throws NetworkIOException if a network error occurred while
+     *      pushing the notification
+     */
+    void push(String appId, ApnsNotification notification) throws NetworkIOException;
+
+    /**
+     * Returns the service of {@code appId}, creating it if needed, e.g. to
+     * read its feedback.
+     *
+     * Unlike {@link #push(String, ApnsNotification)}, the tenant is not held
+     * while the returned service is used: it counts as idle again as soon as
+     * this method returns, so the idle timeout, {@link #evictIdle()} or
+     * another tenant exceeding the tenant limit may stop the service at any
+     * time, even during a call on it, which then fails. Push through
+     * {@link #push(String, ApnsNotification)}, and get the service again for
+     * each use rather than keeping it.
+     */
+    ApnsService getService(String appId);
+
+    /**
+     * Returns the number of tenants whose service is currently running.
+     */
+    int getActiveTenants();
+
+    /**
+     * Stops the services of the tenants not used for the idle timeout.
+     *
+     * @return the number of tenants evicted
+     */
+    int evictIdle();
+
+    void start();
+
+    /**
+     * Stops the services of all the tenants. A runtime given to
+     * {@link MultiTenantApnsServiceBuilder#withRuntime(ApnsRuntime)} is left
+     * open, the one created for this service is closed.
+     */
+    void stop();
+}
@@ -0,0 +1,130 @@
+package com.notnoop.apns;
+
+import com.notnoop.apns.internal.MultiTenantApnsServiceImpl;
+
+/**
+ * The class is used to create instances of {@link MultiTenantApnsService}.
+ *
+ * Sample code:
+ * <pre>
+ *   MultiTenantApnsService service = APNS.newMultiTenantService()
+ *          .withRuntime(runtime)
+ *          .withTenants(new TenantConfigurator() {
+ *              public void configure(String appId, ApnsServiceBuilder builder) {
+ *                  App app = apps.get(appId);
+ *                  builder.withCert(app.getCertificate(), app.getPassword())
+ *                         .withProductionDestination();
+ *              }
+ *          })
+ *          .withIdleTimeout(10 * 60 * 1000)
+ *          .withMaxTenants(500)
+ *          .build();
+ *   service.push(appId, notification);
+ * </pre>
+ */
+public class MultiTenantApnsServiceBuilder {
+    private ApnsRuntime runtime;
+    private TenantConfigurator configurator;
+    private long idleTimeoutMillis;
+    private int maxTenants;
+    private int maxPushesInFlight;
+
+    /**
+     * Constructs a new instance of {@code MultiTenantApnsServiceBuilder}
+     */
+    public MultiTenantApnsServiceBuilder() { }
+
+    /**
+     * Builds the services of the tenants on <code>runtime</code>. If none
+     * is provided, a runtime is created for the service and closed when it
+     * is stopped.
+     *
+     * @param runtime
+     *            the shared runtime
+     * @return this
+     */
+    public MultiTenantApnsServiceBuilder withRuntime(ApnsRuntime runtime) {
+        this.runtime = runtime;
+        return this;
+    }
+
+    /**
+     * Specify how the service of each tenant is configured. The builder
+     * handed to <code>configurator</code> is already attached to the
+     * runtime.
+     *
+     * @param configurator
+     *            configures the service of a tenant
+     * @return this
+     */
+    public MultiTenantApnsServiceBuilder withTenants(TenantConfigurator configurator) {
+        this.configurator = configurator;
+        return this;
+    }
+
+    /**
+     * Stops the service of a tenant, closing its connection, once no
+     * notification has been pushed to it for <code>idleTimeoutMillis</code>.
+     * It is created again on the next push. By default, the tenants are
+     * kept until the service is stopped.
+     *
+     * @param idleTimeoutMillis
+     *            time after which an unused tenant is evicted
+     * @return this
+     */
+    public MultiTenantApnsServiceBuilder withIdleTimeout(long idleTimeoutMillis) {
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        return this;
+    }
+
+    /**
+     * Limits the number of running tenants. This counts tenants, not
+     * connections: a tenant configured with a pool holds as many gateway
+     * connections as its pool size. Adding a tenant beyond the limit evicts
+     * the least recently used one without pushes in progress, and fails with
+     * a <code>NetworkIOException</code> if they all have pushes in progress.
+     *
+     * @param maxTenants
+     *            maximum number of running tenants
+     * @return this
+     */
+    public MultiTenantApnsServiceBuilder withMaxTenants(int maxTenants) {
+        this.maxTenants = maxTenants;
+        return this;
+    }
+
+    /**
+     * Shares <code>maxPushesInFlight</code> concurrent pushes equally between
+     * the running tenants. The pushes of a tenant beyond its share wait for
+     * its earlier pushes to complete, so that a busy tenant doesn't hold the
+     * calling threads and the event loop at the expense of the others. Each
+     * tenant may always have one push in progress.
+     *
+     * @param maxPushesInFlight
+     *            concurrent pushes shared by the tenants
+     * @return this
+     */
+    public MultiTenantApnsServiceBuilder withMaxPushesInFlight(int maxPushesInFlight) {
+        this.maxPushesInFlight = maxPushesInFlight;
+        return this;
+    }
+
+    /**
+     * Returns a started instance of {@link MultiTenantApnsService},
+     * according to the requested settings.
+     *
+     * @return a new instance of MultiTenantApnsService
+     */
+    public MultiTenantApnsService build() {
+        if (configurator == null)
+            throw new IllegalStateException(
+                    "The tenants are not configured\n"
+                            + "Use .withTenants().");
+        boolean ownsRuntime = runtime == null;
+        MultiTenantApnsService service = new MultiTenantApnsServiceImpl(
+                ownsRuntime ? ApnsRuntime.create() : runtime, ownsRuntime,
+                configurator, idleTimeoutMillis, maxTenants, maxPushesInFlight);
+        service.start();
+        return service;
+    }
+}
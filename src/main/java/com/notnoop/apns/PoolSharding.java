@@ -0,0 +1,21 @@
+package com.notnoop.apns;
+
+/**
+ * How a pooled {@link ApnsService} picks the connection a notification is
+ * sent on.
+ *
+ * @see ApnsServiceBuilder#asPool(int, PoolSharding)
+ */
+public enum PoolSharding {
+    /**
+     * Notifications for the same device token always use the same
+     * connection, so they are sent in the order they were pushed.
+     */
+    DEVICE_TOKEN,
+
+    /**
+     * Notifications are spread evenly across the connections, regardless of
+     * the device token.
+     */
+    ROUND_ROBIN
+}
@@ -0,0 +1,30 @@
+package com.notnoop.apns;
+
+/**
+ * What a queued {@link ApnsService} does when a notification is pushed while
+ * its queue is full.
+ *
+ * @see ApnsServiceBuilder#asQueued(int, int, QueueOverflowPolicy)
+ */
+public enum QueueOverflowPolicy {
+    /**
+     * Blocks the pushing thread until there is room in the queue.
+     */
+    BLOCK,
+
+    /**
+     * Throws an {@link IllegalStateException} from {@code push}.
+     */
+    REJECT,
+
+    /**
+     * Drops the notification being pushed.
+     */
+    DROP_NEWEST,
+
+    /**
+     * Drops the oldest queued notification to make room for the one being
+     * pushed.
+     */
+    DROP_OLDEST
+}
@@ -0,0 +1,26 @@
+package com.notnoop.apns;
+
+/**
+ * How the threads of a ring-buffered {@link ApnsService} wait, either for
+ * notifications to send or for free slots to fill.
+ *
+ * @see ApnsServiceBuilder#asRingBuffered(int, RingBufferWaitStrategy)
+ */
+public enum RingBufferWaitStrategy {
+    /**
+     * Spins on the sequence. Lowest latency, but keeps a core busy even when
+     * idle.
+     */
+    BUSY_SPIN,
+
+    /**
+     * Spins, yielding the processor between checks.
+     */
+    YIELD,
+
+    /**
+     * Parks for a short time between checks. Highest latency, lowest CPU
+     * use when idle.
+     */
+    PARK
+}
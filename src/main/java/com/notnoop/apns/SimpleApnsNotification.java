@@ -76,6 +76,13 @@ public class SimpleApnsNotification implements ApnsNotification {
         return Utilities.copyOf(deviceToken);
     }
 
+    /**
+     * Returns the device token itself, which must not be modified.
+     */
+    byte[] deviceToken() {
+        return deviceToken;
+    }
+
     /**
      * Returns the binary representation of the payload.
      *
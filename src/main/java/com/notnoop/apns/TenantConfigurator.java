@@ -0,0 +1,19 @@
+package com.notnoop.apns;
+
+/**
+ * Configures the service of each tenant of a
+ * {@link MultiTenantApnsService}, typically with the certificate and the
+ * destination of the application.
+ */
+public interface TenantConfigurator {
+
+    /**
+     * Configures {@code builder}, already attached to the shared runtime,
+     * for the tenant {@code appId}. Called each time the service of the
+     * tenant is created, the first time a notification is pushed to it or
+     * after it was evicted.
+     *
+     * @throws IllegalArgumentException if {@code appId} is unknown
+     */
+    void configure(String appId, ApnsServiceBuilder builder);
+}
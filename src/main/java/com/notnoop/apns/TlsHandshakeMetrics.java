@@ -0,0 +1,90 @@
+package com.notnoop.apns;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Times the TLS handshakes of the connections to the gateway and the
+ * feedback service, and counts those that resumed an earlier session.
+ *
+ * A resumed handshake skips the key exchange and the certificate
+ * verification. Sessions are cached by the {@code SSLContext} of the
+ * service, per host and port, so services sharing a context, e.g. on an
+ * {@link ApnsRuntime}, resume each other's sessions.
+ *
+ * Thread-safe; one instance may be given to many services.
+ *
+ * @see ApnsServiceBuilder#withHandshakeMetrics(TlsHandshakeMetrics)
+ */
+public class TlsHandshakeMetrics {
+    private final AtomicLong handshakes = new AtomicLong();
+    private final AtomicLong resumed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong totalNanos = new AtomicLong();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    /**
+     * Records a completed handshake.
+     *
+     * @param nanos time from the start of the handshake to its completion
+     * @param resumedSession whether an earlier session was resumed
+     */
+    public void handshakeCompleted(long nanos, boolean resumedSession) {
+        handshakes.incrementAndGet();
+        if (resumedSession) {
+            resumed.incrementAndGet();
+        }
+        totalNanos.addAndGet(nanos);
+        long max;
+        while (nanos > (max = maxNanos.get()) && !maxNanos.compareAndSet(max, nanos)) {
+            // retry
+        }
+    }
+
+    public void handshakeFailed() {
+        failed.incrementAndGet();
+    }
+
+    /**
+     * Returns the number of completed handshakes.
+     */
+    public long getHandshakes() {
+        return handshakes.get();
+    }
+
+    /**
+     * Returns the number of completed handshakes that resumed a session.
+     */
+    public long getResumedHandshakes() {
+        return resumed.get();
+    }
+
+    public long getFailedHandshakes() {
+        return failed.get();
+    }
+
+    public long getTotalHandshakeTime(TimeUnit unit) {
+        return unit.convert(totalNanos.get(), TimeUnit.NANOSECONDS);
+    }
+
+    public long getMaxHandshakeTime(TimeUnit unit) {
+        return unit.convert(maxNanos.get(), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Returns the mean time of the completed handshakes, or {@code 0} if
+     * there was none.
+     */
+    public long getMeanHandshakeTime(TimeUnit unit) {
+        long count = handshakes.get();
+        return count == 0 ? 0 : unit.convert(totalNanos.get() / count, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public String toString() {
+        return "TlsHandshakeMetrics [handshakes=" + handshakes + ", resumed=" + resumed
+                + ", failed=" + failed + ", meanMillis="
+                + getMeanHandshakeTime(TimeUnit.MILLISECONDS) + ", maxMillis="
+                + getMaxHandshakeTime(TimeUnit.MILLISECONDS) + "]";
+    }
+}
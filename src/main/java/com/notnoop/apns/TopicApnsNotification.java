@@ -0,0 +1,63 @@
+package com.notnoop.apns;
+
+/**
+ * A notification sent to the HTTP/2 provider API with its own
+ * <code>apns-topic</code>, rather than the topic of the service.
+ *
+ * With a signing key, one service can so send the notifications of every
+ * application of the team over the same connections.
+ *
+ * @see ApnsServiceBuilder#withSigningKey(ApnsSigningKey)
+ */
+public class TopicApnsNotification implements ApnsNotification {
+    private final ApnsNotification notification;
+    private final String topic;
+
+    /**
+     * @param topic the topic, usually the bundle id of the application
+     * @param notification the notification sent
+     */
+    public TopicApnsNotification(String topic, ApnsNotification notification) {
+        if (topic == null || notification == null) {
+            throw new IllegalArgumentException("topic and notification are required");
+        }
+        this.topic = topic;
+        this.notification = notification;
+    }
+
+    public String getTopic() {
+        return topic;
+    }
+
+    /**
+     * Returns the notification sent with the topic.
+     */
+    public ApnsNotification getNotification() {
+        return notification;
+    }
+
+    public byte[] getDeviceToken() {
+        return notification.getDeviceToken();
+    }
+
+    public byte[] getPayload() {
+        return notification.getPayload();
+    }
+
+    public int getIdentifier() {
+        return notification.getIdentifier();
+    }
+
+    public int getExpiry() {
+        return notification.getExpiry();
+    }
+
+    public byte[] marshall() {
+        return notification.marshall();
+    }
+
+    @Override
+    public String toString() {
+        return "TopicApnsNotification [topic=" + topic + ", " + notification + "]";
+    }
+}
@@ -0,0 +1,20 @@
+package com.notnoop.apns;
+
+/**
+ * A {@link ReconnectPolicy} that is also told about the traffic sent over
+ * the current connection, so it can rotate connections on volume rather
+ * than on time alone.
+ *
+ * Implementations may be called from several threads.
+ */
+public interface TrafficAwareReconnectPolicy extends ReconnectPolicy {
+
+    /**
+     * Called after notifications have been written to the current
+     * connection.
+     *
+     * @param notifications the number of notifications written
+     * @param bytes their marshalled size
+     */
+    void sent(int notifications, int bytes);
+}
@@ -33,13 +33,20 @@ package com.notnoop.apns.internal;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import com.notnoop.apns.ApnsNotification;
 import com.notnoop.apns.ApnsService;
+import com.notnoop.apns.BulkPushListener;
+import com.notnoop.apns.BulkPushResult;
+import com.notnoop.apns.DeviceToken;
+import com.notnoop.apns.FeedbackListener;
 import com.notnoop.apns.EnhancedApnsNotification;
+import com.notnoop.apns.FramedApnsNotification;
 import com.notnoop.exceptions.NetworkIOException;
 
 abstract class AbstractApnsService implements ApnsService {
@@ -78,6 +85,34 @@ abstract class AbstractApnsService implements ApnsService {
         return notification;
     }
 
+    public FramedApnsNotification push(String deviceToken, String payload, Date expiry, int priority) throws NetworkIOException {
+        FramedApnsNotification notification =
+            new FramedApnsNotification(c.incrementAndGet(), (int)(expiry.getTime() / 1000), priority, deviceToken, payload);
+        push(notification);
+        return notification;
+    }
+
+    public FramedApnsNotification push(byte[] deviceToken, byte[] payload, int expiry, int priority) throws NetworkIOException {
+        FramedApnsNotification notification =
+            new FramedApnsNotification(c.incrementAndGet(), expiry, priority, deviceToken, payload);
+        push(notification);
+        return notification;
+    }
+
+    public EnhancedApnsNotification push(DeviceToken deviceToken, byte[] payload) throws NetworkIOException {
+        EnhancedApnsNotification notification =
+            new EnhancedApnsNotification(c.incrementAndGet(), EnhancedApnsNotification.MAXIMUM_EXPIRY, deviceToken, payload);
+        push(notification);
+        return notification;
+    }
+
+    public EnhancedApnsNotification push(DeviceToken deviceToken, byte[] payload, int expiry) throws NetworkIOException {
+        EnhancedApnsNotification notification =
+            new EnhancedApnsNotification(c.incrementAndGet(), expiry, deviceToken, payload);
+        push(notification);
+        return notification;
+    }
+
     public Collection<EnhancedApnsNotification> push(Collection<String> deviceTokens, String payload) throws NetworkIOException {
         byte[] messageBytes = Utilities.toUTF8Bytes(payload);
         List<EnhancedApnsNotification> notifications = new ArrayList<EnhancedApnsNotification>(deviceTokens.size());
@@ -126,9 +161,92 @@ abstract class AbstractApnsService implements ApnsService {
         return notifications;
     }
 
+    public Collection<FramedApnsNotification> push(Collection<String> deviceTokens, String payload, Date expiry, int priority) throws NetworkIOException {
+        byte[] messageBytes = Utilities.toUTF8Bytes(payload);
+        List<FramedApnsNotification> notifications = new ArrayList<FramedApnsNotification>(deviceTokens.size());
+        for (String deviceToken : deviceTokens) {
+            byte[] dtbytes = Utilities.decodeHex(deviceToken);
+            FramedApnsNotification notification =
+                new FramedApnsNotification(c.incrementAndGet(), (int)(expiry.getTime() / 1000), priority, dtbytes, messageBytes);
+            notifications.add(notification);
+            push(notification);
+        }
+        return notifications;
+    }
+
+    public Collection<FramedApnsNotification> push(Collection<byte[]> deviceTokens, byte[] payload, int expiry, int priority) throws NetworkIOException {
+        List<FramedApnsNotification> notifications = new ArrayList<FramedApnsNotification>(deviceTokens.size());
+        for (byte[] deviceToken : deviceTokens) {
+            FramedApnsNotification notification =
+                new FramedApnsNotification(c.incrementAndGet(), expiry, priority, deviceToken, payload);
+            notifications.add(notification);
+            push(notification);
+        }
+        return notifications;
+    }
+
+    public BulkPushResult push(final Iterator<DeviceToken> deviceTokens, final byte[] payload, final int expiry, BulkPushListener listener) {
+        return push(new Iterator<EnhancedApnsNotification>() {
+            public boolean hasNext() {
+                return deviceTokens.hasNext();
+            }
+
+            public EnhancedApnsNotification next() {
+                return new EnhancedApnsNotification(c.incrementAndGet(), expiry, deviceTokens.next(), payload);
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        }, listener);
+    }
+
+    public BulkPushResult push(Iterator<? extends ApnsNotification> notifications, BulkPushListener listener) {
+        BulkPushResult result = new BulkPushResult();
+        while (notifications.hasNext()) {
+            push(notifications.next(), listener, result);
+        }
+        return result;
+    }
+
+    private void push(ApnsNotification notification, BulkPushListener listener, BulkPushResult result) {
+        if (listener == null) {
+            listener = BulkPushListener.EMPTY;
+        }
+        try {
+            push(notification);
+        } catch (NetworkIOException e) {
+            result.failed(notification, e);
+            listener.notificationFailed(notification, e);
+            return;
+        }
+        result.pushed();
+        listener.notificationPushed(notification);
+    }
+
     public abstract void push(ApnsNotification message) throws NetworkIOException;
 
+    private ApnsFeedbackConnection feedback() {
+        if (feedback == null) {
+            throw new IllegalStateException(
+                    "The feedback service requires a certificate, use .withCert()");
+        }
+        return feedback;
+    }
+
     public Map<String, Date> getInactiveDevices() throws NetworkIOException {
-        return feedback.getInactiveDevices();
+        return feedback().getInactiveDevices();
+    }
+
+    public Map<DeviceToken, Date> getInactiveDeviceTokens() throws NetworkIOException {
+        return feedback().getInactiveDeviceTokens();
+    }
+
+    public int getInactiveDevices(FeedbackListener listener) throws NetworkIOException {
+        return feedback().getInactiveDevices(listener);
+    }
+
+    public Future<Integer> getInactiveDevicesAsync(FeedbackListener listener) {
+        return feedback().getInactiveDevicesAsync(listener);
     }
 }
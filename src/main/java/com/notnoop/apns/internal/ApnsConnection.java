@@ -42,6 +42,11 @@ public interface ApnsConnection extends Closeable {
 
     void sendMessage(ApnsNotification m) throws NetworkIOException;
 
+    /**
+     * Writes out the notifications the connection has buffered, if any.
+     */
+    void flush() throws NetworkIOException;
+
     void testConnection() throws NetworkIOException;
 
     ApnsConnection copy();
@@ -30,16 +30,32 @@
  */
 package com.notnoop.apns.internal;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.net.InetSocketAddress;
 import java.net.Proxy;
 import java.net.Socket;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
 import java.util.Queue;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
 
 import javax.net.SocketFactory;
+import javax.net.ssl.SSLSocket;
 import javax.net.ssl.SSLSocketFactory;
 
 import org.slf4j.Logger;
@@ -47,10 +63,13 @@ import org.slf4j.LoggerFactory;
 
 import com.notnoop.apns.ApnsDelegate;
 import com.notnoop.apns.ApnsNotification;
+import com.notnoop.apns.BackoffPolicy;
 import com.notnoop.apns.DeliveryError;
 import com.notnoop.apns.ReconnectPolicy;
 import com.notnoop.apns.SimpleApnsNotification;
+import com.notnoop.apns.TrafficAwareReconnectPolicy;
 import com.notnoop.exceptions.ApnsDeliveryErrorException;
+import com.notnoop.exceptions.CircuitOpenException;
 import com.notnoop.exceptions.NetworkIOException;
 
 public class ApnsConnectionImpl implements ApnsConnection {
@@ -63,11 +82,76 @@ public class ApnsConnectionImpl implements ApnsConnection {
     private final int readTimeout;
     private final Proxy proxy;
     private final ReconnectPolicy reconnectPolicy;
+    private final TrafficAwareReconnectPolicy trafficPolicy;
+    // whether the policy asks for a connection per notification
+    private final boolean perNotification;
     private final ApnsDelegate delegate;
     private int cacheLength;
     private final boolean errorDetection;
     private final boolean autoAdjustCacheLength;
     private final ConcurrentLinkedQueue<ApnsNotification> cachedNotifications, notificationsBuffer;
+    // size of cachedNotifications, whose size() walks the whole queue
+    private final AtomicInteger cachedCount = new AtomicInteger();
+    private final ThreadFactory threadFactory;
+    private final int writeBufferSize;
+    private final long flushDelayMillis;
+    private final ReconnectBackoff backoff;
+
+    // Frames written since the last flush when buffering, and their
+    // notifications. Guarded by lock.
+    private final ByteArrayOutputStream writeBuffer;
+    private final List<ApnsNotification> unflushed = new ArrayList<ApnsNotification>();
+    private ScheduledFuture<?> flushTask;
+
+    // Guards the socket and serializes sends. A lock rather than synchronized
+    // methods, so senders blocked in socket I/O do not pin the carrier thread
+    // when running on virtual threads.
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private static final int ERROR_RESPONSE_LENGTH = 6;
+
+    /**
+     * Runs the readers of the error responses when no thread factory is
+     * given, reusing idle daemon threads across reconnections. This saves
+     * creating a thread per reconnection, not threads per socket: an
+     * {@code SSLSocket} cannot be selected, so each open socket keeps one
+     * thread blocked in its reader.
+     */
+    private static final ExecutorService MONITOR_EXECUTOR = Executors.newCachedThreadPool(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "apns-error-reader");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    private static final ThreadFactory TIMER_THREADS = new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "apns-connection-timer");
+            t.setDaemon(true);
+            return t;
+        }
+    };
+
+    /**
+     * Flushes the write buffer when it has not been filled in time, closes
+     * the sockets replaced by a rotation, and reconnects after the backoff
+     * delays. One per connection, as all block on its sockets, with no
+     * thread while there is nothing to do.
+     */
+    private final ScheduledThreadPoolExecutor scheduler;
+
+    // With a backoff policy, the writes waiting for the reconnection
+    // scheduled after a failed one, in order. Guarded by lock.
+    private final Queue<RetryingWrite> deferred = new LinkedList<RetryingWrite>();
+    private ScheduledFuture<?> reconnectTask;
+
+    // Sockets replaced by a rotation, still read for error responses until
+    // they are closed, with the notifications cached when they were
+    // replaced. Guarded by lock.
+    private final Map<Socket, Queue<ApnsNotification>> retiring =
+            new IdentityHashMap<Socket, Queue<ApnsNotification>>();
+    private final AtomicBoolean rotating = new AtomicBoolean();
 
     public ApnsConnectionImpl(SocketFactory factory, String host, int port) {
         this(factory, host, port, new ReconnectPolicies.Never(), ApnsDelegate.EMPTY);
@@ -91,208 +175,751 @@ public class ApnsConnectionImpl implements ApnsConnection {
             int port, Proxy proxy,
             ReconnectPolicy reconnectPolicy, ApnsDelegate delegate,
             boolean errorDetection, int cacheLength, boolean autoAdjustCacheLength, int readTimeout) {
+        this(factory, host, port, proxy, reconnectPolicy, delegate, errorDetection,
+                cacheLength, autoAdjustCacheLength, readTimeout, null);
+    }
+
+    public ApnsConnectionImpl(SocketFactory factory, String host,
+            int port, Proxy proxy,
+            ReconnectPolicy reconnectPolicy, ApnsDelegate delegate,
+            boolean errorDetection, int cacheLength, boolean autoAdjustCacheLength, int readTimeout,
+            ThreadFactory threadFactory) {
+        this(factory, host, port, proxy, reconnectPolicy, delegate, errorDetection,
+                cacheLength, autoAdjustCacheLength, readTimeout, threadFactory, 0, 0);
+    }
+
+    public ApnsConnectionImpl(SocketFactory factory, String host,
+            int port, Proxy proxy,
+            ReconnectPolicy reconnectPolicy, ApnsDelegate delegate,
+            boolean errorDetection, int cacheLength, boolean autoAdjustCacheLength, int readTimeout,
+            ThreadFactory threadFactory, int writeBufferSize, long flushDelayMillis) {
+        this(factory, host, port, proxy, reconnectPolicy, delegate, errorDetection,
+                cacheLength, autoAdjustCacheLength, readTimeout, threadFactory,
+                writeBufferSize, flushDelayMillis, null);
+    }
+
+    /**
+     * @param threadFactory creates the threads reading the error responses,
+     *            or {@code null} to read them on a shared pool of daemon
+     *            threads
+     * @param writeBufferSize number of bytes of notifications to gather
+     *            before writing them to the socket at once, or {@code 0} to
+     *            write every notification as it is sent
+     * @param flushDelayMillis maximum time a notification stays in the write
+     *            buffer before it is flushed
+     * @param backoffPolicy how to retry failed writes, or {@code null} to
+     *            retry three times, one second apart
+     */
+    public ApnsConnectionImpl(SocketFactory factory, String host,
+            int port, Proxy proxy,
+            ReconnectPolicy reconnectPolicy, ApnsDelegate delegate,
+            boolean errorDetection, int cacheLength, boolean autoAdjustCacheLength, int readTimeout,
+            ThreadFactory threadFactory, int writeBufferSize, long flushDelayMillis,
+            BackoffPolicy backoffPolicy) {
         this.factory = factory;
         this.host = host;
         this.port = port;
         this.reconnectPolicy = reconnectPolicy;
+        this.trafficPolicy = reconnectPolicy instanceof TrafficAwareReconnectPolicy
+                ? (TrafficAwareReconnectPolicy) reconnectPolicy : null;
+        this.perNotification = ReconnectPolicies.isPerNotification(reconnectPolicy);
         this.delegate = delegate == null ? ApnsDelegate.EMPTY : delegate;
         this.proxy = proxy;
         this.errorDetection = errorDetection;
         this.cacheLength = cacheLength;
         this.autoAdjustCacheLength = autoAdjustCacheLength;
         this.readTimeout = readTimeout;
+        this.threadFactory = threadFactory;
+        this.writeBufferSize = writeBufferSize;
+        this.flushDelayMillis = flushDelayMillis;
+        this.backoff = backoffPolicy == null ? null : new ReconnectBackoff(backoffPolicy);
+        this.writeBuffer = writeBufferSize > 0 ? new ByteArrayOutputStream(writeBufferSize) : null;
         cachedNotifications = new ConcurrentLinkedQueue<ApnsNotification>();
         notificationsBuffer = new ConcurrentLinkedQueue<ApnsNotification>();
+        this.scheduler = new ScheduledThreadPoolExecutor(1, TIMER_THREADS);
+        scheduler.setKeepAliveTime(30, TimeUnit.SECONDS);
+        scheduler.allowCoreThreadTimeOut(true);
+        scheduler.setRemoveOnCancelPolicy(true);
     }
 
     @Override
-    public synchronized void close() {
-        Utilities.close(socket);
+    public void close() {
+        if (writeBuffer != null) {
+            try {
+                flush();
+            } catch (RuntimeException e) {
+                logger.warn("Could not flush buffered notifications on close", e);
+            }
+        }
+        scheduler.shutdownNow();
+        lock.lock();
+        try {
+            reconnectTask = null;
+            RetryingWrite write;
+            while ((write = deferred.poll()) != null) {
+                write.giveUpLocked(new NetworkIOException("Connection closed"));
+            }
+            Utilities.close(socket);
+            for (Socket old : retiring.keySet()) {
+                Utilities.close(old);
+            }
+            retiring.clear();
+        } finally {
+            lock.unlock();
+        }
     }
 
     private void monitorSocket(final Socket socket) {
-        class MonitoringThread extends Thread {
+        Runnable reader = new ErrorResponseReader(socket);
+        if (threadFactory == null) {
+            MONITOR_EXECUTOR.execute(reader);
+        } else {
+            threadFactory.newThread(reader).start();
+        }
+    }
 
-            @Override
-            public void run() {
+    /**
+     * Reads the error-response frames of one socket until it is closed.
+     */
+    private class ErrorResponseReader implements Runnable {
+        private final Socket socket;
 
-                try {
-                    InputStream in = socket.getInputStream();
+        ErrorResponseReader(Socket socket) {
+            this.socket = socket;
+        }
 
-                    // TODO(jwilson): this should readFully()
-                    final int expectedSize = 6;
-                    byte[] bytes = new byte[expectedSize];
-                    while (in.read(bytes) == expectedSize) {
+        public void run() {
+            try {
+                DataInputStream in = new DataInputStream(socket.getInputStream());
+                byte[] bytes = new byte[ERROR_RESPONSE_LENGTH];
+                int command;
+                while ((command = in.read()) != -1) {
+                    // the rest of the frame may arrive in several reads
+                    in.readFully(bytes, 1, ERROR_RESPONSE_LENGTH - 1);
+
+                    if (command != 8) {
+                        throw new IOException("Unexpected command byte " + command);
+                    }
+                    int statusCode = bytes[1] & 0xFF;
+                    DeliveryError e = DeliveryError.ofCode(statusCode);
 
-                        int command = bytes[0] & 0xFF;
-                        if (command != 8) {
-                            throw new IOException("Unexpected command byte " + command);
-                        }
-                        int statusCode = bytes[1] & 0xFF;
-                        DeliveryError e = DeliveryError.ofCode(statusCode);
+                    int id = Utilities.parseBytes(bytes[2], bytes[3], bytes[4], bytes[5]);
 
-                        int id = Utilities.parseBytes(bytes[2], bytes[3], bytes[4], bytes[5]);
+                    handleErrorResponse(socket, e, id);
+                }
 
-                        Queue<ApnsNotification> tempCache = new LinkedList<ApnsNotification>();
-                        ApnsNotification notification = null;
-                        boolean foundNotification = false;
+            } catch (Exception e) {
+                // An exception when reading the error code is non-critical, it will cause another retry
+                // sending the message. Other than providing a more stable network connection to the APNS
+                // server we can't do much about it - so let's not spam the application's error log.
+                logger.info("Exception while waiting for error code", e);
+                delegate.connectionClosed(DeliveryError.UNKNOWN, -1);
+            } finally {
+                closeSocket(socket);
+                drainBuffer();
+            }
+        }
+    }
 
-                        while (!cachedNotifications.isEmpty()) {
-                            notification = cachedNotifications.poll();
+    /**
+     * Moves the notifications sent on {@code from} after the rejected one
+     * {@code id} to the resend buffer, and notifies the delegate.
+     */
+    private void handleErrorResponse(Socket from, DeliveryError e, int id) {
+        // a flush caches the notifications right after writing them, so the
+        // ones it wrote before the error was received must be in the cache
+        lock.lock();
+        try {
+            // a retiring socket only rejects what was written to it, not
+            // what has been written to its replacement since
+            Queue<ApnsNotification> cache = retiring.get(from);
+            handleErrorResponseLocked(cache == null ? cachedNotifications : cache, e, id);
+        } finally {
+            lock.unlock();
+        }
+    }
 
-                            if (notification.getIdentifier() == id) {
-                                foundNotification = true;
-                                break;
-                            }
-                            tempCache.add(notification);
-                        }
+    private void handleErrorResponseLocked(Queue<ApnsNotification> cache, DeliveryError e, int id) {
+        Queue<ApnsNotification> tempCache = new LinkedList<ApnsNotification>();
+        ApnsNotification notification = null;
+        boolean foundNotification = false;
 
-                        if (foundNotification) {
-                            delegate.messageSendFailed(notification, new ApnsDeliveryErrorException(e));
-                        } else {
-                            cachedNotifications.addAll(tempCache);
-                            int resendSize = tempCache.size();
-                            logger.warn("Received error for message "
-                                    + "that wasn't in the cache...");
-                            if (autoAdjustCacheLength) {
-                                cacheLength = cacheLength + (resendSize / 2);
-                                delegate.cacheLengthExceeded(cacheLength);
-                            }
-                            delegate.messageSendFailed(null, new ApnsDeliveryErrorException(e));
-                        }
+        while ((notification = pollCached(cache)) != null) {
+            if (notification.getIdentifier() == id) {
+                foundNotification = true;
+                break;
+            }
+            tempCache.add(notification);
+        }
 
-                        int resendSize = 0;
+        if (foundNotification) {
+            delegate.messageSendFailed(notification, new ApnsDeliveryErrorException(e));
+        } else {
+            cache.addAll(tempCache);
+            if (cache == cachedNotifications) {
+                cachedCount.addAndGet(tempCache.size());
+            }
+            int resendSize = tempCache.size();
+            logger.warn("Received error for message "
+                    + "that wasn't in the cache...");
+            if (autoAdjustCacheLength) {
+                cacheLength = cacheLength + (resendSize / 2);
+                delegate.cacheLengthExceeded(cacheLength);
+            }
+            delegate.messageSendFailed(null, new ApnsDeliveryErrorException(e));
+        }
 
-                        while (!cachedNotifications.isEmpty()) {
-                            resendSize++;
-                            notificationsBuffer.add(cachedNotifications.poll());
-                        }
-                        
-                        delegate.notificationsResent(resendSize);
-                        delegate.connectionClosed(e, id);
-                    }
+        int resendSize = 0;
 
-                } catch (Exception e) {
-                    // An exception when reading the error code is non-critical, it will cause another retry
-                    // sending the message. Other than providing a more stable network connection to the APNS
-                    // server we can't do much about it - so let's not spam the application's error log.
-                    logger.info("Exception while waiting for error code", e);
-                    delegate.connectionClosed(DeliveryError.UNKNOWN, -1);
-                } finally {
-                    close();
-                    drainBuffer();
+        ApnsNotification cached;
+        while ((cached = pollCached(cache)) != null) {
+            resendSize++;
+            notificationsBuffer.add(cached);
+        }
 
-                }
+        delegate.notificationsResent(resendSize);
+        delegate.connectionClosed(e, id);
+    }
+
+    private ApnsNotification pollCached(Queue<ApnsNotification> cache) {
+        ApnsNotification notification = cache.poll();
+        if (notification != null && cache == cachedNotifications) {
+            cachedCount.decrementAndGet();
+        }
+        return notification;
+    }
+
+    /**
+     * Closes a monitored socket, forgetting it if it is still the current one
+     */
+    private void closeSocket(Socket monitored) {
+        lock.lock();
+        try {
+            if (socket == monitored) {
+                socket = null;
             }
+            Utilities.close(monitored);
+        } finally {
+            lock.unlock();
         }
-        Thread t = new MonitoringThread();
-        t.setDaemon(true);
-        t.start();
     }
+
     // This method is only called from sendMessage.  sendMessage
     // has the required logic for retrying
     private Socket socket;
 
-    private synchronized Socket socket() throws NetworkIOException {
-        if (reconnectPolicy.shouldReconnect()) {
+    private Socket socketLocked() throws NetworkIOException {
+        if (perNotification && socket != null && reconnectPolicy.shouldReconnect()) {
+            // a connection per notification: break before make
             Utilities.close(socket);
             socket = null;
         }
-
         if (socket == null || socket.isClosed()) {
+            socket = connectLocked();
+        }
+        return socket;
+    }
+
+    /**
+     * Replaces the current socket when the reconnect policy asks for it,
+     * make-before-break: the new socket is connected and handshaken without
+     * the lock, so the other senders keep writing to the old one meanwhile,
+     * and the old one is closed only after a grace period, so that error
+     * responses for the last notifications written to it can still be read.
+     * Policies asking for a connection per notification are left to
+     * {@link #socketLocked()}, which does not keep the old sockets.
+     */
+    private void rotateIfDue() {
+        if (perNotification || !reconnectPolicy.shouldReconnect()
+                || !rotating.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            Socket replacement;
+            try {
+                replacement = connect();
+                if (replacement instanceof SSLSocket) {
+                    ((SSLSocket) replacement).startHandshake();
+                }
+            } catch (Exception e) {
+                // keep sending on the current connection until the next rotation
+                logger.warn("Couldn't rotate connection to APNS, keeping the current one", e);
+                reconnectPolicy.reconnected();
+                return;
+            }
+            lock.lock();
             try {
-                if (proxy == null) {
-                    socket = factory.createSocket(host, port);
-                } else if (proxy.type() == Proxy.Type.HTTP) {
-                    TlsTunnelBuilder tunnelBuilder = new TlsTunnelBuilder();
-                    socket = tunnelBuilder.build((SSLSocketFactory) factory, proxy, host, port);
-                } else {
-                    boolean success = false;
-                    Socket proxySocket = null;
+                Socket old = socket;
+                socket = replacement;
+                reconnectPolicy.reconnected();
+                if (old != null && !old.isClosed()) {
+                    retireLocked(old);
+                }
+            } finally {
+                lock.unlock();
+            }
+            logger.debug("Rotated connection to APNS");
+        } finally {
+            rotating.set(false);
+        }
+    }
+
+    /**
+     * Closes a replaced socket after a grace period, and gives it the cached
+     * notifications, all written to it, which an error response on it may
+     * have to resend.
+     */
+    private void retireLocked(final Socket old) {
+        Queue<ApnsNotification> cache = new LinkedList<ApnsNotification>();
+        ApnsNotification cached;
+        while ((cached = pollCached(cachedNotifications)) != null) {
+            cache.add(cached);
+        }
+        retiring.put(old, cache);
+        try {
+            scheduler.schedule(new Runnable() {
+                public void run() {
+                    lock.lock();
                     try {
-                        proxySocket = new Socket(proxy);
-                        proxySocket.connect(new InetSocketAddress(host, port));
-                        socket = ((SSLSocketFactory) factory).createSocket(proxySocket, host, port, false);
-                        success = true;
+                        retiring.remove(old);
                     } finally {
-                        if (!success) {
-                            Utilities.close(proxySocket);
-                        }
+                        lock.unlock();
                     }
+                    closeSocket(old);
                 }
-                
-                socket.setSoTimeout(readTimeout);
-                socket.setKeepAlive(true);
-                
-                if (errorDetection) {
-                    monitorSocket(socket);
+            }, RETIRE_DELAY_MS, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // closed meanwhile
+            retiring.remove(old);
+            Utilities.close(old);
+        }
+    }
+
+    private Socket connectLocked() throws NetworkIOException {
+        Socket socket = connect();
+        reconnectPolicy.reconnected();
+        return socket;
+    }
+
+    /**
+     * Opens a new socket, monitored for error responses, without touching
+     * the current one.
+     */
+    private Socket connect() throws NetworkIOException {
+        Socket socket;
+        try {
+            if (proxy == null) {
+                socket = factory.createSocket(host, port);
+            } else if (proxy.type() == Proxy.Type.HTTP) {
+                TlsTunnelBuilder tunnelBuilder = new TlsTunnelBuilder();
+                socket = tunnelBuilder.build((SSLSocketFactory) factory, proxy, host, port);
+            } else {
+                boolean success = false;
+                Socket proxySocket = null;
+                try {
+                    proxySocket = new Socket(proxy);
+                    proxySocket.connect(new InetSocketAddress(host, port));
+                    socket = ((SSLSocketFactory) factory).createSocket(proxySocket, host, port, false);
+                    success = true;
+                } finally {
+                    if (!success) {
+                        Utilities.close(proxySocket);
+                    }
                 }
+            }
 
-                reconnectPolicy.reconnected();
-                logger.debug("Made a new connection to APNS");
-            } catch (IOException e) {
-                logger.error("Couldn't connect to APNS server", e);
-                throw new NetworkIOException(e);
+            socket.setSoTimeout(readTimeout);
+            socket.setKeepAlive(true);
+
+            if (errorDetection) {
+                monitorSocket(socket);
             }
+
+            logger.debug("Made a new connection to APNS");
+            return socket;
+        } catch (IOException e) {
+            logger.error("Couldn't connect to APNS server", e);
+            throw new NetworkIOException(e);
         }
-        return socket;
     }
+
+    private void sent(int notifications, int bytes) {
+        if (trafficPolicy != null) {
+            trafficPolicy.sent(notifications, bytes);
+        }
+    }
+
     int DELAY_IN_MS = 1000;
     private static final int RETRIES = 3;
+    private static final int RESEND_CHUNK = 1000;
+    private static final long RETIRE_DELAY_MS = 1000;
+
+    // Frames of the chunk being resent, reused across chunks. Guarded by lock.
+    private final ByteArrayOutputStream resendBuffer = new ByteArrayOutputStream(8192);
 
     @Override
-    public synchronized void sendMessage(ApnsNotification m) throws NetworkIOException {
+    public void sendMessage(ApnsNotification m) throws NetworkIOException {
         sendMessage(m, false);
     }
 
-    public synchronized void sendMessage(ApnsNotification m, boolean fromBuffer) throws NetworkIOException {
+    public void sendMessage(ApnsNotification m, boolean fromBuffer) throws NetworkIOException {
+        if (writeBuffer != null && !fromBuffer) {
+            boolean full;
+            lock.lock();
+            try {
+                full = bufferLocked(m);
+            } finally {
+                lock.unlock();
+            }
+            if (full) {
+                flush();
+            }
+        } else {
+            sendWithRetries(m, fromBuffer);
+        }
+        drainBuffer();
+    }
+
+    /**
+     * Writes out the notifications gathered in the write buffer, if any.
+     */
+    @Override
+    public void flush() throws NetworkIOException {
+        new RetryingWrite() {
+            boolean attemptLocked() throws Exception {
+                return flushLocked();
+            }
+
+            void giveUpLocked(Exception e) {
+                List<ApnsNotification> failed = new ArrayList<ApnsNotification>(unflushed);
+                unflushed.clear();
+                writeBuffer.reset();
+                for (ApnsNotification m : failed) {
+                    delegate.messageSendFailed(m, e);
+                }
+            }
+
+            @Override
+            public String toString() {
+                return unflushed.size() + " buffered messages";
+            }
+        }.run();
+    }
+
+    /**
+     * Adds a notification to the write buffer, returning whether it is full.
+     */
+    private boolean bufferLocked(ApnsNotification m) {
+        byte[] frame = m.marshall();
+        writeBuffer.write(frame, 0, frame.length);
+        unflushed.add(m);
+        if (writeBuffer.size() >= writeBufferSize) {
+            return true;
+        }
+        if (flushTask == null) {
+            try {
+                flushTask = scheduler.schedule(flusher, flushDelayMillis, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                // closing, which flushes the buffer
+            }
+        }
+        return false;
+    }
 
-        int attempts = 0;
-        while (true) {
+    private final Runnable flusher = new Runnable() {
+        public void run() {
             try {
-                attempts++;
-                Socket socket = socket();
-                socket.getOutputStream().write(m.marshall());
+                flush();
+            } catch (RuntimeException e) {
+                // already reported to the delegate
+                logger.debug("Delayed flush failed", e);
+            }
+        }
+    };
+
+    /**
+     * Writes the write buffer with a single flush. The notifications are only
+     * cached, and reported as sent, once written.
+     *
+     * @return false if there was nothing to write
+     */
+    private boolean flushLocked() throws IOException, NetworkIOException {
+        if (flushTask != null) {
+            flushTask.cancel(false);
+            flushTask = null;
+        }
+        if (unflushed.isEmpty()) {
+            return false;
+        }
+
+        Socket socket = socketLocked();
+        writeBuffer.writeTo(socket.getOutputStream());
+        socket.getOutputStream().flush();
+        sent(unflushed.size(), writeBuffer.size());
+
+        for (ApnsNotification m : unflushed) {
+            cacheNotification(m);
+            delegate.messageSent(m, false);
+        }
+        logger.debug("Flushed {} messages", unflushed.size());
+        unflushed.clear();
+        writeBuffer.reset();
+        return true;
+    }
+
+    private void sendWithRetries(final ApnsNotification m, final boolean fromBuffer) throws NetworkIOException {
+        new RetryingWrite() {
+            boolean attemptLocked() throws Exception {
+                Socket socket = socketLocked();
+                byte[] frame = m.marshall();
+                socket.getOutputStream().write(frame);
                 socket.getOutputStream().flush();
+                sent(1, frame.length);
                 cacheNotification(m);
 
                 delegate.messageSent(m, fromBuffer);
 
                 logger.debug("Message \"{}\" sent", m);
+                return true;
+            }
 
-                attempts = 0;
-                drainBuffer();
-                break;
-            } catch (Exception e) {
-                Utilities.close(socket);
-                socket = null;
-                if (attempts >= RETRIES) {
-                    logger.error("Couldn't send message after " + RETRIES + " retries." + m, e);
-                    delegate.messageSendFailed(m, e);
-                    Utilities.wrapAndThrowAsRuntimeException(e);
+            void giveUpLocked(Exception e) {
+                delegate.messageSendFailed(m, e);
+            }
+
+            @Override
+            public String toString() {
+                return "message " + m;
+            }
+        }.run();
+    }
+
+    /**
+     * A write retried on a new socket until it succeeds or the attempts are
+     * exhausted. Each attempt runs under the lock.
+     *
+     * With a backoff policy, a write failing again after the immediate retry
+     * is not retried on the calling thread: it is queued, and retried on the
+     * scheduler once the delay has passed, along with the writes made
+     * meanwhile, which queue up behind it without trying the socket. The
+     * outcome reaches the delegate. Without one, the delay is waited on the
+     * calling thread, without the lock.
+     */
+    private abstract class RetryingWrite {
+        private int attempts;
+
+        /**
+         * @return false if there was nothing to write
+         */
+        abstract boolean attemptLocked() throws Exception;
+
+        abstract void giveUpLocked(Exception e);
+
+        final void run() throws NetworkIOException {
+            rotateIfDue();
+            while (true) {
+                attempts++;
+                Exception failure = null;
+                lock.lock();
+                try {
+                    if (backoff != null) {
+                        try {
+                            backoff.checkCircuit();
+                        } catch (CircuitOpenException e) {
+                            logger.debug("Not sending {}: {}", this, e.getMessage());
+                            giveUpLocked(e);
+                            throw e;
+                        }
+                        if (reconnectTask != null) {
+                            // not an attempt, the socket is not tried
+                            attempts--;
+                            deferred.add(this);
+                            return;
+                        }
+                    }
+                    try {
+                        if (attemptLocked() && backoff != null) {
+                            backoff.succeeded();
+                        }
+                        return;
+                    } catch (Exception e) {
+                        Utilities.close(socket);
+                        socket = null;
+                        if (backoff != null) {
+                            backoff.failed();
+                        }
+                        failure = e;
+                        int maxAttempts = maxAttempts();
+                        if (attempts >= maxAttempts) {
+                            logger.error("Couldn't send " + this + " after " + maxAttempts + " retries.", e);
+                            giveUpLocked(e);
+                            Utilities.wrapAndThrowAsRuntimeException(e);
+                        }
+                        if (backoff != null && attempts != 1) {
+                            long delay = backoff.nextDelayMillis();
+                            logger.info("Failed to send " + this + "... trying again in "
+                                    + delay + "ms", e);
+                            deferLocked(this, delay);
+                            return;
+                        }
+                    }
+                } finally {
+                    lock.unlock();
                 }
                 // The first failure might be due to closed connection
                 // don't delay quite yet
                 if (attempts != 1) {
                     // Do not spam the log files when the APNS server closed the socket (due to a
                     // bad token, for example), only log when on the second retry.
-                    logger.info("Failed to send message " + m + "... trying again after delay", e);
+                    logger.info("Failed to send " + this + "... trying again after delay", failure);
                     Utilities.sleep(DELAY_IN_MS);
                 }
             }
         }
     }
 
+    private int maxAttempts() {
+        return backoff == null ? RETRIES : backoff.getMaxAttempts();
+    }
+
+    /**
+     * Queues a failed write, scheduling the reconnection unless one is due.
+     */
+    private void deferLocked(RetryingWrite write, long delayMillis) {
+        deferred.add(write);
+        if (reconnectTask != null) {
+            return;
+        }
+        try {
+            reconnectTask = scheduler.schedule(reconnector, delayMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            deferred.remove(write);
+            NetworkIOException closed = new NetworkIOException("Connection closed");
+            write.giveUpLocked(closed);
+            throw closed;
+        }
+    }
+
+    private final Runnable reconnector = new Runnable() {
+        public void run() {
+            List<RetryingWrite> writes;
+            lock.lock();
+            try {
+                reconnectTask = null;
+                writes = new ArrayList<RetryingWrite>(deferred);
+                deferred.clear();
+            } finally {
+                lock.unlock();
+            }
+            // the first write reconnects; if it fails again, the others queue
+            // up behind it for the next reconnection
+            for (RetryingWrite write : writes) {
+                try {
+                    write.run();
+                } catch (RuntimeException e) {
+                    // already reported to the delegate
+                    logger.debug("Deferred write failed", e);
+                }
+            }
+            drainBuffer();
+        }
+    };
+
+    /**
+     * Resends the notifications queued after an error response, in chunks of
+     * {@link #RESEND_CHUNK} frames. Each chunk is written with a single flush,
+     * and the lock is released between chunks so that new notifications are
+     * not held back for the whole resend.
+     */
     private void drainBuffer() {
-        if (!notificationsBuffer.isEmpty()) {
-            sendMessage(notificationsBuffer.poll(), true);
+        List<ApnsNotification> chunk = new ArrayList<ApnsNotification>(RESEND_CHUNK);
+        while (!notificationsBuffer.isEmpty()) {
+            boolean resent;
+            lock.lock();
+            try {
+                ApnsNotification m;
+                while (chunk.size() < RESEND_CHUNK && (m = notificationsBuffer.poll()) != null) {
+                    chunk.add(m);
+                }
+                resent = resendLocked(chunk);
+            } finally {
+                lock.unlock();
+            }
+            try {
+                if (!resent) {
+                    // fall back to the retrying path, one notification at a time
+                    for (int i = 0; i < chunk.size(); i++) {
+                        try {
+                            sendWithRetries(chunk.get(i), true);
+                        } catch (RuntimeException e) {
+                            // the failed notification has been reported to the
+                            // delegate, the rest of the chunk is reported as well,
+                            // and what is still buffered waits for the next drain
+                            failUnsent(chunk.subList(i + 1, chunk.size()), e);
+                            return;
+                        }
+                    }
+                }
+            } finally {
+                chunk.clear();
+            }
+        }
+    }
+
+    private void failUnsent(List<ApnsNotification> unsent, RuntimeException e) {
+        logger.warn("Could not resend " + (unsent.size() + 1) + " buffered notifications, "
+                + notificationsBuffer.size() + " are left in the buffer", e);
+        for (ApnsNotification m : unsent) {
+            delegate.messageSendFailed(m, e);
+        }
+    }
+
+    /**
+     * Writes a chunk of buffered notifications with a single flush.
+     *
+     * @return false if the chunk could not be written
+     */
+    private boolean resendLocked(List<ApnsNotification> chunk) {
+        if (chunk.isEmpty()) {
+            return true;
+        }
+        if (backoff != null && (backoff.isOpen() || reconnectTask != null)) {
+            return false;
+        }
+        try {
+            resendBuffer.reset();
+            for (ApnsNotification m : chunk) {
+                resendBuffer.write(m.marshall());
+            }
+            Socket socket = socketLocked();
+            resendBuffer.writeTo(socket.getOutputStream());
+            socket.getOutputStream().flush();
+            sent(chunk.size(), resendBuffer.size());
+        } catch (Exception e) {
+            logger.info("Failed to resend " + chunk.size() + " notifications in bulk", e);
+            Utilities.close(socket);
+            socket = null;
+            if (backoff != null) {
+                backoff.failed();
+            }
+            return false;
+        }
+        if (backoff != null) {
+            backoff.succeeded();
+        }
+        for (ApnsNotification m : chunk) {
+            cacheNotification(m);
+            delegate.messageSent(m, true);
         }
+        logger.debug("Resent {} buffered notifications", chunk.size());
+        return true;
     }
 
     private void cacheNotification(ApnsNotification notification) {
         cachedNotifications.add(notification);
-        while (cachedNotifications.size() > cacheLength) {
-            cachedNotifications.poll();
+        cachedCount.incrementAndGet();
+        while (cachedCount.get() > cacheLength && cachedNotifications.poll() != null) {
+            cachedCount.decrementAndGet();
             logger.debug("Removing notification from cache " + notification);
         }
     }
@@ -300,7 +927,9 @@ public class ApnsConnectionImpl implements ApnsConnection {
     @Override
     public ApnsConnectionImpl copy() {
         return new ApnsConnectionImpl(factory, host, port, proxy, reconnectPolicy.copy(),
-                delegate, errorDetection, cacheLength, autoAdjustCacheLength, readTimeout);
+                delegate, errorDetection, cacheLength, autoAdjustCacheLength, readTimeout,
+                threadFactory, writeBufferSize, flushDelayMillis,
+                backoff == null ? null : backoff.getPolicy());
     }
 
     @Override
@@ -37,10 +37,15 @@ import java.net.Proxy;
 import java.net.Socket;
 import java.util.Date;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 import javax.net.SocketFactory;
 import javax.net.ssl.SSLSocketFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import com.notnoop.apns.DeviceToken;
+import com.notnoop.apns.FeedbackListener;
 import com.notnoop.exceptions.NetworkIOException;
 
 public class ApnsFeedbackConnection {
@@ -73,18 +78,95 @@ public class ApnsFeedbackConnection {
     int DELAY_IN_MS = 1000;
     private static final int RETRIES = 3;
 
+    /**
+     * Converts the feedback stream into the result returned to the caller.
+     */
+    private abstract static class FeedbackParser<T> {
+        abstract T parse(InputStream stream) throws IOException;
+
+        /**
+         * Whether the read can be retried after a failure
+         */
+        boolean canRetry() {
+            return true;
+        }
+    }
+
+    private static final FeedbackParser<Map<String, Date>> HEX_PARSER = new FeedbackParser<Map<String, Date>>() {
+        public Map<String, Date> parse(InputStream stream) {
+            return Utilities.parseFeedbackStream(stream);
+        }
+    };
+
+    private static final FeedbackParser<Map<DeviceToken, Date>> TOKEN_PARSER = new FeedbackParser<Map<DeviceToken, Date>>() {
+        public Map<DeviceToken, Date> parse(InputStream stream) {
+            return Utilities.parseFeedbackStreamTokens(stream);
+        }
+    };
+
     public Map<String, Date> getInactiveDevices() throws NetworkIOException {
+        return readWithRetries(HEX_PARSER);
+    }
+
+    public Map<DeviceToken, Date> getInactiveDeviceTokens() throws NetworkIOException {
+        return readWithRetries(TOKEN_PARSER);
+    }
+
+    /**
+     * Hands the inactive devices to {@code listener} as they are read. The
+     * read is only retried if it failed before any device was reported, as
+     * the feedback service does not report a device twice.
+     *
+     * @return the number of devices reported
+     */
+    public int getInactiveDevices(final FeedbackListener listener) throws NetworkIOException {
+        return readWithRetries(new FeedbackParser<Integer>() {
+            private int reported;
+
+            Integer parse(InputStream stream) throws IOException {
+                return new FeedbackDecoder().decode(stream, new FeedbackListener() {
+                    public void inactiveDevice(byte[] deviceToken, long timestamp) {
+                        reported++;
+                        listener.inactiveDevice(deviceToken, timestamp);
+                    }
+                });
+            }
+
+            @Override
+            boolean canRetry() {
+                return reported == 0;
+            }
+        });
+    }
+
+    /**
+     * Same as {@link #getInactiveDevices(FeedbackListener)}, completing the
+     * returned future with the number of devices reported. This
+     * implementation reads on the calling thread, and returns a completed
+     * future.
+     */
+    public Future<Integer> getInactiveDevicesAsync(final FeedbackListener listener) {
+        final FutureTask<Integer> task = new FutureTask<Integer>(new Callable<Integer>() {
+            public Integer call() {
+                return getInactiveDevices(listener);
+            }
+        });
+        task.run();
+        return task;
+    }
+
+    private <T> T readWithRetries(FeedbackParser<T> parser) throws NetworkIOException {
         int attempts = 0;
         while (true) {
             try {
                 attempts++;
-                final Map<String, Date> result = getInactiveDevicesImpl();
+                final T result = read(parser);
 
                 attempts = 0;
                 return result;
             } catch (final Exception e) {
                 logger.warn("Failed to retreive invalid devices", e);
-                if (attempts >= RETRIES) {
+                if (attempts >= RETRIES || !parser.canRetry()) {
                     logger.error("Couldn't get feedback connection", e);
                     Utilities.wrapAndThrowAsRuntimeException(e);
                 }
@@ -94,6 +176,10 @@ public class ApnsFeedbackConnection {
     }
 
     public Map<String, Date> getInactiveDevicesImpl() throws IOException {
+        return read(HEX_PARSER);
+    }
+
+    private <T> T read(FeedbackParser<T> parser) throws IOException {
         Socket proxySocket = null;
         Socket socket = null;
         try {
@@ -110,7 +196,7 @@ public class ApnsFeedbackConnection {
             socket.setSoTimeout(readTimeout);
             socket.setKeepAlive(true);
             final InputStream stream = socket.getInputStream();
-            return Utilities.parseFeedbackStream(stream);
+            return parser.parse(stream);
         } finally {
             Utilities.close(socket);
             Utilities.close(proxySocket);
@@ -1,52 +1,180 @@
 package com.notnoop.apns.internal;
 
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.slf4j.LoggerFactory;
 import org.slf4j.Logger;
 
 import com.notnoop.apns.ApnsNotification;
+import com.notnoop.apns.BulkPushListener;
+import com.notnoop.apns.BulkPushResult;
+import com.notnoop.apns.DeviceToken;
+import com.notnoop.apns.PoolSharding;
+import com.notnoop.exceptions.ApnsServiceStoppedException;
 import com.notnoop.exceptions.NetworkIOException;
 
+/**
+ * A pool of connections, each one a shard with its own queue and a single
+ * sender task running on the pool executor.
+ *
+ * Notifications are routed to a shard by device token or round-robin, see
+ * {@link PoolSharding}, and each shard sends its notifications in order. A
+ * shard whose connection fails {@value #MAX_CONSECUTIVE_FAILURES} times in
+ * a row closes it and continues on a fresh copy of the prototype.
+ *
+ * The queues are array-backed, so routing a notification does not
+ * allocate; a sender finding its shard's queue full waits for room.
+ */
 public class ApnsPooledConnection implements ApnsConnection {
     private static final Logger logger = LoggerFactory.getLogger(ApnsPooledConnection.class);
 
+    // Maximum number of notifications a shard takes from its queue at once
+    private static final int MAX_BATCH = 256;
+    // Maximum number of notifications of a bulk push queued per shard
+    private static final int MAX_BULK_IN_FLIGHT = 512;
+    // Capacity of the queue of each shard
+    private static final int QUEUE_CAPACITY = 8192;
+    private static final int MAX_CONSECUTIVE_FAILURES = 3;
+    private static final long POLL_INTERVAL_MS = 100;
+
     private final ApnsConnection prototype;
     private final int max;
+    private final PoolSharding sharding;
 
     private final ExecutorService executors;
-    private final ConcurrentLinkedQueue<ApnsConnection> prototypes;
+    private final Shard[] shards;
+    private final AtomicInteger next = new AtomicInteger();
+    private volatile boolean closing;
+    // set once the senders are done, nothing queued afterwards is sent
+    private volatile boolean closed;
+    private volatile int cacheLength = -1;
 
     public ApnsPooledConnection(ApnsConnection prototype, int max) {
         this(prototype, max, Executors.newFixedThreadPool(max));
     }
 
     public ApnsPooledConnection(ApnsConnection prototype, int max, ExecutorService executors) {
+        this(prototype, max, executors, PoolSharding.DEVICE_TOKEN);
+    }
+
+    /**
+     * @param executors runs the sender of each shard for the lifetime of the
+     *            pool, so it must be able to run {@code max} tasks at once
+     */
+    public ApnsPooledConnection(ApnsConnection prototype, int max,
+            ExecutorService executors, PoolSharding sharding) {
         this.prototype = prototype;
         this.max = max;
-
         this.executors = executors;
-        this.prototypes = new ConcurrentLinkedQueue<ApnsConnection>();
+        this.sharding = sharding;
+        this.shards = new Shard[max];
+        for (int i = 0; i < max; i++) {
+            shards[i] = new Shard(i, prototype.copy());
+            executors.execute(shards[i]);
+        }
+    }
+
+    public void sendMessage(final ApnsNotification m) throws NetworkIOException {
+        if (closing) {
+            throw new ApnsServiceStoppedException(Utilities.encodeHex(m.getDeviceToken()));
+        }
+        BlockingQueue<ApnsNotification> queue = shardFor(m).queue;
+        if (!queue.offer(m)) {
+            try {
+                while (!queue.offer(m, POLL_INTERVAL_MS, TimeUnit.MILLISECONDS)) {
+                    if (closing) {
+                        throw new ApnsServiceStoppedException(Utilities.encodeHex(m.getDeviceToken()));
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new NetworkIOException("Interrupted while waiting for room in the pool");
+            }
+        }
+        if (closed) {
+            // queued after the senders stopped
+            abandon(queue);
+        }
     }
 
-    private final ThreadLocal<ApnsConnection> uniquePrototype =
-        new ThreadLocal<ApnsConnection>() {
-        protected ApnsConnection initialValue() {
-            ApnsConnection newCopy = prototype.copy();
-            prototypes.add(newCopy);
-            return newCopy;
+    /**
+     * Empties {@code queue}, failing the notifications of bulk pushes so
+     * that their callers are not left waiting.
+     */
+    private void abandon(BlockingQueue<ApnsNotification> queue) {
+        int dropped = 0;
+        ApnsNotification m;
+        while ((m = queue.poll()) != null) {
+            if (m instanceof TrackedNotification) {
+                TrackedNotification tracked = (TrackedNotification) m;
+                tracked.bulk.failed(tracked.notification, new ApnsServiceStoppedException(
+                        Utilities.encodeHex(tracked.getDeviceToken())));
+            } else {
+                dropped++;
+            }
+        }
+        if (dropped > 0) {
+            logger.warn("Dropped {} notifications queued after the pool was closed", dropped);
         }
-    };
+    }
 
-    public void sendMessage(final ApnsNotification m) throws NetworkIOException {
-        executors.execute(new Runnable() {
-            public void run() {
-                uniquePrototype.get().sendMessage(m);
+    private Shard shardFor(ApnsNotification m) {
+        if (sharding == PoolSharding.ROUND_ROBIN) {
+            return shards[(next.getAndIncrement() & Integer.MAX_VALUE) % shards.length];
+        }
+        if (m instanceof TrackedNotification) {
+            m = ((TrackedNotification) m).notification;
+        }
+        int h = m instanceof EncodedApnsNotification
+                ? ((EncodedApnsNotification) m).deviceTokenHashCode()
+                : DeviceToken.hashOf(m);
+        h ^= (h >>> 16);
+        return shards[(h & Integer.MAX_VALUE) % shards.length];
+    }
+
+    /**
+     * Sends the notifications across all the connections of the pool.
+     *
+     * The notifications are read from {@code notifications} on the calling
+     * thread and routed to the shards like {@link #sendMessage}; at most
+     * {@value #MAX_BULK_IN_FLIGHT} notifications per connection are queued
+     * at a time so memory stays bounded. {@code listener} is called
+     * concurrently from the shard senders.
+     *
+     * Closing the pool ends the push early: the notifications already read
+     * and not sent are counted as failed, and the rest of
+     * {@code notifications} is left unread.
+     *
+     * @return the merged result of all the shards
+     */
+    public BulkPushResult sendMessages(Iterator<? extends ApnsNotification> notifications,
+            BulkPushListener listener) {
+        final BulkPush bulk = new BulkPush(listener == null ? BulkPushListener.EMPTY : listener,
+                MAX_BULK_IN_FLIGHT * shards.length);
+        while (!closing && notifications.hasNext()) {
+            ApnsNotification m = notifications.next();
+            bulk.acquire();
+            try {
+                sendMessage(new TrackedNotification(m, bulk));
+            } catch (ApnsServiceStoppedException e) {
+                bulk.failed(m, e);
+                break;
+            } catch (RuntimeException e) {
+                bulk.release();
+                bulk.awaitDone();
+                throw e;
             }
-        });
+        }
+        bulk.awaitDone();
+        return bulk.result;
     }
 
     public ApnsConnection copy() {
@@ -56,29 +184,221 @@ public class ApnsPooledConnection implements ApnsConnection {
     }
 
     public void close() {
+        closing = true;
         executors.shutdown();
         try {
             executors.awaitTermination(10, TimeUnit.SECONDS);
         } catch (InterruptedException e) {
             logger.warn("pool termination interrupted", e);
         }
-        for (ApnsConnection conn : prototypes) {
-            Utilities.close(conn);
+        closed = true;
+        for (Shard shard : shards) {
+            abandon(shard.queue);
+            Utilities.close(shard.connection);
         }
         Utilities.close(prototype);
     }
 
+    /**
+     * Flushes the connections of all shards. Notifications still queued in
+     * a shard are not waited for.
+     */
+    public void flush() {
+        for (Shard shard : shards) {
+            shard.connection.flush();
+        }
+    }
+
     public void testConnection() {
         prototype.testConnection();
     }
 
-    public synchronized void setCacheLength(int cacheLength) {  
-        for (ApnsConnection conn : prototypes) {
-            conn.setCacheLength(cacheLength);
+    public synchronized void setCacheLength(int cacheLength) {
+        this.cacheLength = cacheLength;
+        for (Shard shard : shards) {
+            shard.connection.setCacheLength(cacheLength);
         }
     }
 
     public int getCacheLength() {
-        return prototypes.peek().getCacheLength();
+        return shards[0].connection.getCacheLength();
+    }
+
+    private class Shard implements Runnable {
+        final int index;
+        final BlockingQueue<ApnsNotification> queue = new ArrayBlockingQueue<ApnsNotification>(QUEUE_CAPACITY);
+        volatile ApnsConnection connection;
+        int consecutiveFailures;
+
+        Shard(int index, ApnsConnection connection) {
+            this.index = index;
+            this.connection = connection;
+        }
+
+        public void run() {
+            List<ApnsNotification> batch = new ArrayList<ApnsNotification>(MAX_BATCH);
+            while (true) {
+                try {
+                    ApnsNotification first = queue.poll(POLL_INTERVAL_MS, TimeUnit.MILLISECONDS);
+                    if (first == null) {
+                        if (closing) {
+                            return;
+                        }
+                        continue;
+                    }
+                    batch.add(first);
+                    queue.drainTo(batch, MAX_BATCH - 1);
+                    for (ApnsNotification m : batch) {
+                        send(m);
+                    }
+                } catch (InterruptedException e) {
+                    if (closing) {
+                        return;
+                    }
+                } catch (Exception e) {
+                    logger.warn("Unexpected exception in pool shard {}", index, e);
+                } finally {
+                    batch.clear();
+                }
+            }
+        }
+
+        private void send(ApnsNotification m) {
+            BulkPush bulk = null;
+            if (m instanceof TrackedNotification) {
+                bulk = ((TrackedNotification) m).bulk;
+                m = ((TrackedNotification) m).notification;
+            }
+            try {
+                connection.sendMessage(m);
+                consecutiveFailures = 0;
+                if (bulk != null) {
+                    bulk.pushed(m);
+                }
+            } catch (RuntimeException e) {
+                if (bulk != null) {
+                    bulk.failed(m, e);
+                } else {
+                    logger.warn("Pool shard {} could not send {}", index, m, e);
+                }
+                if (++consecutiveFailures >= MAX_CONSECUTIVE_FAILURES) {
+                    replaceConnection();
+                }
+            }
+        }
+
+        private void replaceConnection() {
+            logger.warn("Replacing connection of pool shard {} after {} consecutive failures",
+                    index, consecutiveFailures);
+            Utilities.close(connection);
+            ApnsConnection replacement = prototype.copy();
+            if (cacheLength != -1) {
+                replacement.setCacheLength(cacheLength);
+            }
+            connection = replacement;
+            consecutiveFailures = 0;
+        }
+    }
+
+    /**
+     * Progress of one {@link #sendMessages} call, updated by the shards.
+     */
+    private static class BulkPush {
+        final BulkPushListener listener;
+        final BulkPushResult result = new BulkPushResult();
+        private final int maxInFlight;
+        private int inFlight;
+
+        BulkPush(BulkPushListener listener, int maxInFlight) {
+            this.listener = listener;
+            this.maxInFlight = maxInFlight;
+        }
+
+        synchronized void acquire() {
+            boolean interrupted = false;
+            while (inFlight >= maxInFlight) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            inFlight++;
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        synchronized void release() {
+            inFlight--;
+            notifyAll();
+        }
+
+        void pushed(ApnsNotification m) {
+            synchronized (this) {
+                result.pushed();
+            }
+            listener.notificationPushed(m);
+            release();
+        }
+
+        void failed(ApnsNotification m, Exception e) {
+            synchronized (this) {
+                result.failed(m, e);
+            }
+            listener.notificationFailed(m, e);
+            release();
+        }
+
+        /**
+         * Waits until the shards are done with the notifications, keeping
+         * the interrupt status for the caller rather than abandoning them.
+         */
+        synchronized void awaitDone() {
+            boolean interrupted = false;
+            while (inFlight > 0) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * A notification of a bulk push, unwrapped by the shard before sending.
+     */
+    private static class TrackedNotification implements ApnsNotification {
+        final ApnsNotification notification;
+        final BulkPush bulk;
+
+        TrackedNotification(ApnsNotification notification, BulkPush bulk) {
+            this.notification = notification;
+            this.bulk = bulk;
+        }
+
+        public byte[] getDeviceToken() {
+            return notification.getDeviceToken();
+        }
+
+        public byte[] getPayload() {
+            return notification.getPayload();
+        }
+
+        public int getIdentifier() {
+            return notification.getIdentifier();
+        }
+
+        public int getExpiry() {
+            return notification.getExpiry();
+        }
+
+        public byte[] marshall() {
+            return notification.marshall();
+        }
     }
 }
@@ -30,11 +30,14 @@
  */
 package com.notnoop.apns.internal;
 
+import java.util.Iterator;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import com.notnoop.apns.ApnsNotification;
+import com.notnoop.apns.BulkPushListener;
+import com.notnoop.apns.BulkPushResult;
 import com.notnoop.exceptions.ApnsServiceStoppedException;
 import com.notnoop.exceptions.ChannelProviderClosedException;
 import com.notnoop.exceptions.NetworkIOException;
@@ -73,6 +76,33 @@ public class ApnsServiceImpl extends AbstractApnsService {
         }
     }
 
+    /**
+     * Spreads the notifications across the connections when pooled, see
+     * {@link ApnsPooledConnection#sendMessages(Iterator, BulkPushListener)}.
+     * The push is not made under the lock, which {@link #stop()} would wait
+     * for until the end of {@code notifications}: closing the pool ends it
+     * instead.
+     */
+    @Override
+    public BulkPushResult push(Iterator<? extends ApnsNotification> notifications, BulkPushListener listener) {
+        if (connection instanceof ApnsPooledConnection && !stopped.get()) {
+            return ((ApnsPooledConnection) connection).sendMessages(notifications, listener);
+        }
+        // when stopped, throws as push(ApnsNotification) does
+        return super.push(notifications, listener);
+    }
+
+    public void flush() throws NetworkIOException {
+        rwlock.readLock().lock();
+        try {
+            if (!stopped.get()) {
+                connection.flush();
+            }
+        } finally {
+            rwlock.readLock().unlock();
+        }
+    }
+
     public void start() {
     }
 
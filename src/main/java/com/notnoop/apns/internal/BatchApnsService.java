@@ -1,7 +1,8 @@
 package com.notnoop.apns.internal;
 
-import java.util.Queue;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
@@ -14,35 +15,68 @@ import com.notnoop.exceptions.NetworkIOException;
 public class BatchApnsService extends AbstractApnsService {
 
 	/**
-	 * How many seconds to wait for more messages before batch is send.
+	 * How many milliseconds to wait for more messages before batch is send.
 	 * Each message reset the wait time
 	 * 
-	 * @see #maxBatchWaitTimeInSec
+	 * @see #maxBatchWaitTimeInMillis
 	 */
-	private int batchWaitTimeInSec = 5;
+	private long batchWaitTimeInMillis = 5000;
 	
 	/**
-	 * How many seconds can be batch delayed before execution.
+	 * How many milliseconds can be batch delayed before execution.
 	 * This time is not exact amount after which the batch will run its roughly the time
 	 */
-	private int maxBatchWaitTimeInSec = 10;
-	
-	private long firstMessageArrivedTime; 
+	private long maxBatchWaitTimeInMillis = 10000;
+
+	/**
+	 * Number of messages and marshalled bytes that send the batch right away
+	 */
+	private final int maxBatchSize;
+	private final int maxBatchBytes;
+
+	/**
+	 * Whether batches are sent on a single connection kept open between
+	 * batches, instead of a new connection per batch
+	 */
+	private final boolean persistentConnection;
 	
 	private ApnsConnection prototype;
+	private ApnsConnection connection;
 
-	private Queue<ApnsNotification> batch = new ConcurrentLinkedQueue<ApnsNotification>();
+	// guarded by lock
+	private final Object lock = new Object();
+	private List<ApnsNotification> batch = new ArrayList<ApnsNotification>();
+	private int batchBytes;
+	private long firstMessageArrivedTime; 
+	private ScheduledFuture<?> taskFuture;
 
 	private ScheduledExecutorService scheduleService;
-	private ScheduledFuture<?> taskFuture;
 	
 	private Runnable batchRunner = new SendMessagessBatch();
 
 	public BatchApnsService(ApnsConnection prototype, ApnsFeedbackConnection feedback, int batchWaitTimeInSec, int maxBachWaitTimeInSec, ThreadFactory tf) {
+		this(prototype, feedback, batchWaitTimeInSec * 1000L, maxBachWaitTimeInSec * 1000L,
+				Integer.MAX_VALUE, Integer.MAX_VALUE, false, tf);
+	}
+
+	/**
+	 * @param batchWaitTimeInMillis time to wait for more messages, reset by each message
+	 * @param maxBatchWaitTimeInMillis maximum time the first message of a batch waits
+	 * @param maxBatchSize number of messages that sends the batch right away
+	 * @param maxBatchBytes marshalled size that sends the batch right away
+	 * @param persistentConnection whether to keep one connection open between
+	 *            batches instead of opening one per batch
+	 */
+	public BatchApnsService(ApnsConnection prototype, ApnsFeedbackConnection feedback,
+			long batchWaitTimeInMillis, long maxBatchWaitTimeInMillis, int maxBatchSize,
+			int maxBatchBytes, boolean persistentConnection, ThreadFactory tf) {
 		super(feedback);
 		this.prototype = prototype;
-		this.batchWaitTimeInSec = batchWaitTimeInSec;
-		this.maxBatchWaitTimeInSec = maxBachWaitTimeInSec;
+		this.batchWaitTimeInMillis = batchWaitTimeInMillis;
+		this.maxBatchWaitTimeInMillis = maxBatchWaitTimeInMillis;
+		this.maxBatchSize = maxBatchSize;
+		this.maxBatchBytes = maxBatchBytes;
+		this.persistentConnection = persistentConnection;
 		this.scheduleService = new ScheduledThreadPoolExecutor(1, tf);
 	}
 
@@ -51,42 +85,97 @@ public class BatchApnsService extends AbstractApnsService {
 	}
 
 	public void stop() {
-		Utilities.close(prototype);
-		if (taskFuture != null) {
-			taskFuture.cancel(true);
+		synchronized (lock) {
+			if (taskFuture != null) {
+				taskFuture.cancel(true);
+			}
 		}
 		scheduleService.shutdownNow();
+		try {
+			scheduleService.awaitTermination(10, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		Utilities.close(connection);
+		Utilities.close(prototype);
 	}
 
 	public void testConnection() throws NetworkIOException {
 		prototype.testConnection();
 	}
 
+	/**
+	 * Sends the pending batch right away, and waits until it has been sent.
+	 */
+	public void flush() throws NetworkIOException {
+		if (scheduleService.isShutdown()) {
+			return;
+		}
+		try {
+			scheduleService.submit(batchRunner).get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		}
+	}
+
 	@Override
 	public void push(ApnsNotification message) throws NetworkIOException {
-		if (batch.isEmpty()) {
-			firstMessageArrivedTime = System.nanoTime();
-		}
-		
-		long sincFirstMessageSec = (System.nanoTime() - firstMessageArrivedTime) / 1000 / 1000 / 1000;
-		
-		if (taskFuture != null && sincFirstMessageSec < maxBatchWaitTimeInSec) {
-			taskFuture.cancel(false);
+		synchronized (lock) {
+			final long now = System.nanoTime();
+			if (batch.isEmpty()) {
+				firstMessageArrivedTime = now;
+			}
+			batch.add(message);
+			batchBytes += message.marshall().length;
+
+			if (batch.size() >= maxBatchSize || batchBytes >= maxBatchBytes) {
+				if (taskFuture != null) {
+					taskFuture.cancel(false);
+				}
+				taskFuture = scheduleService.schedule(batchRunner, 0, TimeUnit.MILLISECONDS);
+				return;
+			}
+
+			long sinceFirstMessageMillis = TimeUnit.NANOSECONDS.toMillis(now - firstMessageArrivedTime);
+
+			if (taskFuture != null && sinceFirstMessageMillis < maxBatchWaitTimeInMillis) {
+				taskFuture.cancel(false);
+			}
+
+			if (taskFuture == null || taskFuture.isDone()) {
+				taskFuture = scheduleService.schedule(batchRunner, batchWaitTimeInMillis, TimeUnit.MILLISECONDS);
+			}
 		}
-		
-		batch.add(message);
-		
-		if (taskFuture == null || taskFuture.isDone()) {
-			taskFuture = scheduleService.schedule(batchRunner, batchWaitTimeInSec, TimeUnit.SECONDS);
+	}
+
+	private List<ApnsNotification> takeBatch() {
+		synchronized (lock) {
+			List<ApnsNotification> taken = batch;
+			batch = new ArrayList<ApnsNotification>();
+			batchBytes = 0;
+			return taken;
 		}
 	}
 
 	class SendMessagessBatch implements Runnable {
 		public void run() {
-			ApnsConnection newConnection = prototype.copy();
+			List<ApnsNotification> messages = takeBatch();
+			if (messages.isEmpty()) {
+				return;
+			}
+			ApnsConnection newConnection;
+			if (persistentConnection) {
+				if (connection == null) {
+					connection = prototype.copy();
+				}
+				newConnection = connection;
+			} else {
+				newConnection = prototype.copy();
+			}
 			try {
-				ApnsNotification msg = null;
-				while ((msg = batch.poll()) != null) {
+				for (ApnsNotification msg : messages) {
 					try {
 						newConnection.sendMessage(msg);
 					} catch (NetworkIOException e) {
@@ -94,7 +183,19 @@ public class BatchApnsService extends AbstractApnsService {
 					}
 				}
 			} finally {
-				Utilities.close(newConnection);
+				if (persistentConnection) {
+					flush(newConnection);
+				} else {
+					Utilities.close(newConnection);
+				}
+			}
+		}
+
+		private void flush(ApnsConnection connection) {
+			try {
+				connection.flush();
+			} catch (NetworkIOException e) {
+				// reported to the delegate like a failed message
 			}
 		}
 	}
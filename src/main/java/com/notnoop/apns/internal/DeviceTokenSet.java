@@ -0,0 +1,198 @@
+package com.notnoop.apns.internal;
+
+import com.notnoop.apns.DeviceToken;
+
+/**
+ * Set of 32-byte device tokens, stored inline in a single open-addressing
+ * table of {@code long}s kept between a quarter and half full: a token takes
+ * 64 to 128 bytes, without the object headers and references of a
+ * {@link DeviceToken} in a {@code HashSet}, and lookups do not allocate.
+ *
+ * Not thread-safe.
+ */
+public class DeviceTokenSet {
+    private static final int WORDS = DeviceToken.LENGTH / 8;
+    private static final int INITIAL_CAPACITY = 64;
+
+    // the all-zero token marks the empty slots, so it is tracked apart
+    private long[] table;
+    private int size;
+    private boolean containsZero;
+
+    public DeviceTokenSet() {
+        table = new long[INITIAL_CAPACITY * WORDS];
+    }
+
+    private DeviceTokenSet(DeviceTokenSet other) {
+        table = other.table.clone();
+        size = other.size;
+        containsZero = other.containsZero;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public DeviceTokenSet copy() {
+        return new DeviceTokenSet(this);
+    }
+
+    /**
+     * Returns whether the 32 bytes of {@code token} are in the set, or
+     * {@code false} if it is not a 32-byte token.
+     */
+    public boolean contains(byte[] token) {
+        if (token == null || token.length != DeviceToken.LENGTH) {
+            return false;
+        }
+        long w0 = readLong(token, 0), w1 = readLong(token, 8),
+             w2 = readLong(token, 16), w3 = readLong(token, 24);
+        if ((w0 | w1 | w2 | w3) == 0) {
+            return containsZero;
+        }
+        return !isEmpty(table, slot(table, w0, w1, w2, w3));
+    }
+
+    /**
+     * Adds the 32 bytes of {@code token} to the set.
+     *
+     * @return whether the token was not in the set already
+     * @throws IllegalArgumentException if {@code token} is not 32 bytes long
+     */
+    public boolean add(byte[] token) {
+        if (token.length != DeviceToken.LENGTH) {
+            throw new IllegalArgumentException("Invalid device token length " + token.length);
+        }
+        long w0 = readLong(token, 0), w1 = readLong(token, 8),
+             w2 = readLong(token, 16), w3 = readLong(token, 24);
+        if ((w0 | w1 | w2 | w3) == 0) {
+            if (containsZero) {
+                return false;
+            }
+            containsZero = true;
+            size++;
+            return true;
+        }
+        int slot = slot(table, w0, w1, w2, w3);
+        if (!isEmpty(table, slot)) {
+            return false;
+        }
+        put(table, slot, w0, w1, w2, w3);
+        size++;
+        // keep the table at most half full
+        if (size * 2 > table.length / WORDS) {
+            grow();
+        }
+        return true;
+    }
+
+    /**
+     * Removes the 32 bytes of {@code token} from the set.
+     *
+     * @return whether the token was in the set
+     */
+    public boolean remove(byte[] token) {
+        if (token == null || token.length != DeviceToken.LENGTH) {
+            return false;
+        }
+        long w0 = readLong(token, 0), w1 = readLong(token, 8),
+             w2 = readLong(token, 16), w3 = readLong(token, 24);
+        if ((w0 | w1 | w2 | w3) == 0) {
+            if (!containsZero) {
+                return false;
+            }
+            containsZero = false;
+            size--;
+            return true;
+        }
+        int index = slot(table, w0, w1, w2, w3);
+        if (isEmpty(table, index)) {
+            return false;
+        }
+        // move back the tokens probed past the removed one, as a lookup
+        // stops at the first empty slot
+        int slots = table.length / WORDS;
+        int hole = index / WORDS;
+        int i = hole;
+        while (true) {
+            i = (i + 1) & (slots - 1);
+            int next = i * WORDS;
+            if (isEmpty(table, next)) {
+                break;
+            }
+            int home = home(table[next], table[next + 1], table[next + 2], table[next + 3], slots);
+            if (((i - home) & (slots - 1)) >= ((i - hole) & (slots - 1))) {
+                put(table, hole * WORDS, table[next], table[next + 1], table[next + 2], table[next + 3]);
+                hole = i;
+            }
+        }
+        put(table, hole * WORDS, 0, 0, 0, 0);
+        size--;
+        return true;
+    }
+
+    private void grow() {
+        long[] old = table;
+        long[] larger = new long[old.length * 2];
+        for (int i = 0; i < old.length; i += WORDS) {
+            if (!isEmpty(old, i)) {
+                put(larger, slot(larger, old[i], old[i + 1], old[i + 2], old[i + 3]),
+                        old[i], old[i + 1], old[i + 2], old[i + 3]);
+            }
+        }
+        table = larger;
+    }
+
+    /**
+     * Returns the index of the slot holding the token, or of the empty slot
+     * where it belongs.
+     */
+    private static int slot(long[] table, long w0, long w1, long w2, long w3) {
+        int slots = table.length / WORDS;
+        int i = home(w0, w1, w2, w3, slots);
+        while (true) {
+            int index = i * WORDS;
+            if (isEmpty(table, index)
+                    || (table[index] == w0 && table[index + 1] == w1
+                        && table[index + 2] == w2 && table[index + 3] == w3)) {
+                return index;
+            }
+            i = (i + 1) & (slots - 1);
+        }
+    }
+
+    /**
+     * Returns the slot where probing for the token starts.
+     */
+    private static int home(long w0, long w1, long w2, long w3, int slots) {
+        long h = w0;
+        h = 31 * h + w1;
+        h = 31 * h + w2;
+        h = 31 * h + w3;
+        h ^= h >>> 29;
+        h *= 0x9E3779B97F4A7C15L;
+        return (int) (h >>> 32) & (slots - 1);
+    }
+
+    private static boolean isEmpty(long[] table, int index) {
+        return (table[index] | table[index + 1] | table[index + 2] | table[index + 3]) == 0;
+    }
+
+    private static void put(long[] table, int index, long w0, long w1, long w2, long w3) {
+        table[index] = w0;
+        table[index + 1] = w1;
+        table[index + 2] = w2;
+        table[index + 3] = w3;
+    }
+
+    private static long readLong(byte[] b, int off) {
+        return ((long) (b[off] & 0xFF) << 56)
+             | ((long) (b[off + 1] & 0xFF) << 48)
+             | ((long) (b[off + 2] & 0xFF) << 40)
+             | ((long) (b[off + 3] & 0xFF) << 32)
+             | ((long) (b[off + 4] & 0xFF) << 24)
+             | ((long) (b[off + 5] & 0xFF) << 16)
+             | ((long) (b[off + 6] & 0xFF) << 8)
+             | ((long) (b[off + 7] & 0xFF));
+    }
+}
@@ -0,0 +1,179 @@
+package com.notnoop.apns.internal;
+
+import com.notnoop.apns.ApnsNotification;
+import com.notnoop.apns.FramedApnsNotification;
+
+/**
+ * A notification kept as its wire frame, either enhanced (command 1) or
+ * framed (command 2). The frame is encoded once and shared with
+ * {@link #marshall()}, the token and payload are read from it on demand.
+ */
+public final class EncodedApnsNotification implements ApnsNotification {
+
+    static final byte ENHANCED_COMMAND = 1;
+    static final byte FRAMED_COMMAND = 2;
+
+    // command, identifier, expiry and the two lengths
+    private static final int ENHANCED_HEADER_LENGTH = 1 + 4 + 4 + 2 + 2;
+    // command and frame length
+    private static final int FRAMED_HEADER_LENGTH = 1 + 4;
+
+    private final byte[] frame;
+    private final int identifier;
+    private final int expiry;
+    private final int priority;
+    private final int payloadOffset;
+    private final int payloadLength;
+
+    private EncodedApnsNotification(byte[] frame, int identifier, int expiry, int priority,
+            int payloadOffset, int payloadLength) {
+        this.frame = frame;
+        this.identifier = identifier;
+        this.expiry = expiry;
+        this.priority = priority;
+        this.payloadOffset = payloadOffset;
+        this.payloadLength = payloadLength;
+    }
+
+    /**
+     * Encodes an enhanced notification.
+     */
+    static EncodedApnsNotification enhanced(int identifier, int expiry,
+            byte[] deviceToken, byte[] payload, int payloadLength) {
+        byte[] frame = new byte[ENHANCED_HEADER_LENGTH + deviceToken.length + payloadLength];
+        int i = 0;
+        frame[i++] = ENHANCED_COMMAND;
+        i = putInt(frame, i, identifier);
+        i = putInt(frame, i, expiry);
+        i = putShort(frame, i, deviceToken.length);
+        System.arraycopy(deviceToken, 0, frame, i, deviceToken.length);
+        i += deviceToken.length;
+        i = putShort(frame, i, payloadLength);
+        System.arraycopy(payload, 0, frame, i, payloadLength);
+        return new EncodedApnsNotification(frame, identifier, expiry, 0, i, payloadLength);
+    }
+
+    /**
+     * Encodes a framed notification, with the items in the order of
+     * {@link Utilities#marshallFramed}.
+     */
+    static EncodedApnsNotification framed(int identifier, int expiry, int priority,
+            byte[] deviceToken, byte[] payload, int payloadLength) {
+        int itemsLength = Utilities.framedItemsLength(deviceToken.length, payloadLength);
+        byte[] frame = new byte[FRAMED_HEADER_LENGTH + itemsLength];
+        int i = 0;
+        frame[i++] = FRAMED_COMMAND;
+        i = putInt(frame, i, itemsLength);
+
+        frame[i++] = Utilities.FRAME_ITEM_DEVICE_TOKEN;
+        i = putShort(frame, i, deviceToken.length);
+        System.arraycopy(deviceToken, 0, frame, i, deviceToken.length);
+        i += deviceToken.length;
+
+        frame[i++] = Utilities.FRAME_ITEM_PAYLOAD;
+        i = putShort(frame, i, payloadLength);
+        int payloadOffset = i;
+        System.arraycopy(payload, 0, frame, i, payloadLength);
+        i += payloadLength;
+
+        frame[i++] = Utilities.FRAME_ITEM_IDENTIFIER;
+        i = putShort(frame, i, 4);
+        i = putInt(frame, i, identifier);
+
+        frame[i++] = Utilities.FRAME_ITEM_EXPIRATION;
+        i = putShort(frame, i, 4);
+        i = putInt(frame, i, expiry);
+
+        frame[i++] = Utilities.FRAME_ITEM_PRIORITY;
+        i = putShort(frame, i, 1);
+        frame[i] = (byte) priority;
+        return new EncodedApnsNotification(frame, identifier, expiry, priority,
+                payloadOffset, payloadLength);
+    }
+
+    private static int putInt(byte[] frame, int offset, int value) {
+        frame[offset] = (byte) (value >>> 24);
+        frame[offset + 1] = (byte) (value >>> 16);
+        frame[offset + 2] = (byte) (value >>> 8);
+        frame[offset + 3] = (byte) value;
+        return offset + 4;
+    }
+
+    private static int putShort(byte[] frame, int offset, int value) {
+        frame[offset] = (byte) (value >>> 8);
+        frame[offset + 1] = (byte) value;
+        return offset + 2;
+    }
+
+    /**
+     * Returns the binary representation of the device token.
+     */
+    public byte[] getDeviceToken() {
+        int offset = tokenOffset();
+        return Utilities.copyOfRange(frame, offset, offset + tokenLength(offset));
+    }
+
+    /**
+     * Returns {@code Arrays.hashCode(getDeviceToken())}, without copying the
+     * token.
+     */
+    int deviceTokenHashCode() {
+        int offset = tokenOffset();
+        int end = offset + tokenLength(offset);
+        int h = 1;
+        for (int i = offset; i < end; i++) {
+            h = 31 * h + frame[i];
+        }
+        return h;
+    }
+
+    private int tokenOffset() {
+        // both formats put the token right after its length
+        return frame[0] == ENHANCED_COMMAND ? 1 + 4 + 4 + 2 : FRAMED_HEADER_LENGTH + 3;
+    }
+
+    private int tokenLength(int offset) {
+        return ((frame[offset - 2] & 0xFF) << 8) | (frame[offset - 1] & 0xFF);
+    }
+
+    /**
+     * Returns the binary representation of the payload.
+     */
+    public byte[] getPayload() {
+        return Utilities.copyOfRange(frame, payloadOffset, payloadOffset + payloadLength);
+    }
+
+    public int getIdentifier() {
+        return identifier;
+    }
+
+    public int getExpiry() {
+        return expiry;
+    }
+
+    /**
+     * Returns the priority of a framed notification, as
+     * {@link FramedApnsNotification#getPriority()}, or 0 for an enhanced
+     * one.
+     */
+    public int getPriority() {
+        return priority;
+    }
+
+    /**
+     * Returns the frame itself, which must not be modified.
+     */
+    public byte[] marshall() {
+        return frame;
+    }
+
+    @Override
+    public String toString() {
+        String payloadString = "???";
+        try {
+            payloadString = new String(frame, payloadOffset, payloadLength, "UTF-8");
+        } catch (Exception _) {}
+        return "Message(Id=" + identifier + "; Priority=" + priority + "; Token="
+                + Utilities.encodeHex(getDeviceToken()) + "; Payload=" + payloadString + ")";
+    }
+}
@@ -0,0 +1,118 @@
+package com.notnoop.apns.internal;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.notnoop.apns.DeviceToken;
+import com.notnoop.apns.FeedbackListener;
+
+/**
+ * Incremental decoder of the feedback stream: a sequence of tuples made of
+ * a 4-byte timestamp in seconds, a 2-byte token length and the token.
+ *
+ * Tuples are handed to a {@link FeedbackListener} as soon as they are
+ * complete, so the memory used does not depend on the number of tuples.
+ * Instances are not thread-safe.
+ */
+public class FeedbackDecoder {
+    private static final Logger logger = LoggerFactory.getLogger(FeedbackDecoder.class);
+
+    /**
+     * Length of the timestamp and token length preceding each token
+     */
+    public static final int HEADER_LENGTH = 6;
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private byte[] token = new byte[DeviceToken.LENGTH];
+
+    /**
+     * Decodes the complete tuples remaining in {@code buffer}, leaving its
+     * position at the start of a trailing incomplete tuple, if any.
+     *
+     * @return the number of tuples decoded
+     */
+    public int decode(ByteBuffer buffer, FeedbackListener listener) {
+        int count = 0;
+        while (buffer.remaining() >= HEADER_LENGTH) {
+            final int position = buffer.position();
+            final long time = buffer.getInt(position) & 0xFFFFFFFFL;
+            final int length = buffer.getShort(position + 4) & 0xFFFF;
+            if (buffer.remaining() < HEADER_LENGTH + length) {
+                break;
+            }
+            if (token.length != length) {
+                token = new byte[length];
+            }
+            buffer.position(position + HEADER_LENGTH);
+            buffer.get(token);
+            listener.inactiveDevice(token, time * 1000L);
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Reads and decodes {@code in} until the end of the stream.
+     *
+     * @return the number of tuples decoded
+     */
+    public int decode(InputStream in, FeedbackListener listener) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        int count = 0;
+        int n;
+        while ((n = in.read(buffer.array(), buffer.position(), buffer.remaining())) != -1) {
+            buffer.position(buffer.position() + n);
+            buffer.flip();
+            count += decode(buffer, listener);
+            buffer = prepareRead(buffer);
+        }
+        return finish(buffer, count);
+    }
+
+    /**
+     * Reads and decodes {@code channel} until the end of the stream.
+     *
+     * @return the number of tuples decoded
+     */
+    public int decode(ReadableByteChannel channel, FeedbackListener listener) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        int count = 0;
+        while (channel.read(buffer) != -1) {
+            buffer.flip();
+            count += decode(buffer, listener);
+            buffer = prepareRead(buffer);
+        }
+        return finish(buffer, count);
+    }
+
+    /**
+     * Keeps the incomplete tuple left in {@code buffer} for the next read,
+     * growing the buffer if the tuple does not fit.
+     */
+    private static ByteBuffer prepareRead(ByteBuffer buffer) {
+        buffer.compact();
+        if (!buffer.hasRemaining()) {
+            ByteBuffer larger = buffer.isDirect()
+                    ? ByteBuffer.allocateDirect(buffer.capacity() * 2)
+                    : ByteBuffer.allocate(buffer.capacity() * 2);
+            buffer.flip();
+            larger.put(buffer);
+            return larger;
+        }
+        return buffer;
+    }
+
+    private static int finish(ByteBuffer buffer, int count) {
+        if (buffer.position() != 0) {
+            logger.warn("Feedback stream ended within a tuple, ignoring its last {} bytes",
+                    buffer.position());
+        }
+        return count;
+    }
+}
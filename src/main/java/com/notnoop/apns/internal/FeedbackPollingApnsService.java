@@ -0,0 +1,330 @@
+package com.notnoop.apns.internal;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.notnoop.apns.ApnsNotification;
+import com.notnoop.apns.ApnsService;
+import com.notnoop.apns.BulkPushListener;
+import com.notnoop.apns.BulkPushResult;
+import com.notnoop.apns.DeviceToken;
+import com.notnoop.apns.FeedbackListener;
+import com.notnoop.apns.FeedbackSink;
+import com.notnoop.exceptions.NetworkIOException;
+
+/**
+ * Polls the feedback service of the wrapped service in the background, and
+ * hands the devices that were not reported by an earlier poll to a
+ * {@link FeedbackSink}.
+ *
+ * The reported devices are remembered in a {@link DeviceTokenSet} once the
+ * sink accepted them. With suppression enabled, notifications to those
+ * devices are dropped instead of being pushed. Devices the sink failed to
+ * accept are handed to it again with those of the next poll, as the
+ * feedback service does not report them twice.
+ */
+public class FeedbackPollingApnsService extends AbstractApnsService {
+    private static final Logger logger = LoggerFactory.getLogger(FeedbackPollingApnsService.class);
+
+    private final ApnsService service;
+    private final long periodMillis;
+    private final double jitter;
+    private final FeedbackSink sink;
+    private final boolean suppressInactive;
+    private final ScheduledExecutorService sharedScheduler;
+    private final Random random = new Random();
+
+    // replaced, while holding this, after each poll reporting new devices
+    // or following reactivations, so pushes read it without locking
+    private volatile DeviceTokenSet inactive = new DeviceTokenSet();
+    // devices of the set reactivated since, removed from it on the next poll;
+    // replaced after the set, so that a push reading it first sees either
+    // both or neither of them updated
+    private volatile Set<DeviceToken> reactivated = newReactivatedSet();
+    // reported devices the sink did not accept, only used by the polls
+    private Map<DeviceToken, Date> undelivered = Collections.emptyMap();
+    private ScheduledExecutorService scheduler;
+    private ScheduledFuture<?> pending;
+    private boolean stopped;
+
+    /**
+     * @param service the service pushing the notifications and reading the
+     *            feedback
+     * @param periodMillis time between two polls
+     * @param jitter fraction of the period, between 0 and 1, by which each
+     *            delay is randomly shortened
+     * @param sink receives the newly reported devices, or {@code null}
+     * @param suppressInactive whether to drop the notifications to the
+     *            devices reported so far
+     * @param scheduler runs the polls, and is not shut down when the service
+     *            is stopped, or {@code null} to poll on a daemon thread of
+     *            this service
+     */
+    public FeedbackPollingApnsService(ApnsService service, long periodMillis,
+            double jitter, FeedbackSink sink, boolean suppressInactive,
+            ScheduledExecutorService scheduler) {
+        super(null);
+        if (periodMillis <= 0 || jitter < 0 || jitter > 1) {
+            throw new IllegalArgumentException("Invalid polling period or jitter");
+        }
+        this.service = service;
+        this.periodMillis = periodMillis;
+        this.jitter = jitter;
+        this.sink = sink;
+        this.suppressInactive = suppressInactive;
+        this.sharedScheduler = scheduler;
+    }
+
+    /**
+     * Returns whether {@code deviceToken} was reported by a poll, and not
+     * reactivated since.
+     */
+    public boolean isInactive(byte[] deviceToken) {
+        Set<DeviceToken> overlay = reactivated;
+        return inactive.contains(deviceToken)
+                && (overlay.isEmpty() || !overlay.contains(DeviceToken.fromBytes(deviceToken)));
+    }
+
+    /**
+     * Forgets that {@code deviceToken} was reported, e.g. when the device
+     * registers again, so that its notifications are pushed again and a
+     * later report reaches the sink. The device is only removed from the
+     * set of reported devices by the next poll, which copies the set once
+     * for all the reactivations since the previous one.
+     *
+     * @return whether the device was reported
+     */
+    public synchronized boolean reactivate(byte[] deviceToken) {
+        return inactive.contains(deviceToken)
+                && reactivated.add(DeviceToken.fromBytes(deviceToken));
+    }
+
+    /**
+     * Replaces the set with a copy without the reactivated devices and with
+     * {@code deviceTokens}, if there is any change.
+     */
+    private synchronized void updateInactive(Collection<DeviceToken> deviceTokens) {
+        if (deviceTokens.isEmpty() && reactivated.isEmpty()) {
+            return;
+        }
+        DeviceTokenSet next = inactive.copy();
+        byte[] bytes = new byte[DeviceToken.LENGTH];
+        for (DeviceToken token : reactivated) {
+            token.writeTo(bytes, 0);
+            next.remove(bytes);
+        }
+        for (DeviceToken token : deviceTokens) {
+            token.writeTo(bytes, 0);
+            next.add(bytes);
+        }
+        inactive = next;
+        reactivated = newReactivatedSet();
+    }
+
+    private static Set<DeviceToken> newReactivatedSet() {
+        return Collections.newSetFromMap(new ConcurrentHashMap<DeviceToken, Boolean>());
+    }
+
+    @Override
+    public void push(ApnsNotification msg) throws NetworkIOException {
+        if (suppressInactive && isInactive(msg.getDeviceToken())) {
+            logger.debug("Not pushing {} to an inactive device", msg);
+            return;
+        }
+        service.push(msg);
+    }
+
+    @Override
+    public BulkPushResult push(Iterator<? extends ApnsNotification> notifications,
+            BulkPushListener listener) {
+        if (suppressInactive) {
+            notifications = new ActiveOnly(notifications);
+        }
+        return service.push(notifications, listener);
+    }
+
+    public synchronized void start() {
+        service.start();
+        stopped = false;
+        if (sharedScheduler != null) {
+            scheduler = sharedScheduler;
+        } else {
+            scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "apns-feedback-poller");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        // spread the first polls of services started together
+        schedule((long) (periodMillis * jitter * random.nextDouble()));
+    }
+
+    public synchronized void stop() {
+        stopped = true;
+        if (pending != null) {
+            pending.cancel(false);
+        }
+        if (scheduler != null && scheduler != sharedScheduler) {
+            scheduler.shutdownNow();
+        }
+        service.stop();
+    }
+
+    private synchronized void schedule(long delayMillis) {
+        if (stopped) {
+            return;
+        }
+        try {
+            pending = scheduler.schedule(new Runnable() {
+                public void run() {
+                    poll();
+                }
+            }, delayMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // stopped
+        }
+    }
+
+    void poll() {
+        try {
+            Poll poll = new Poll(undelivered);
+            try {
+                service.getInactiveDevices(poll);
+            } catch (RuntimeException e) {
+                // the devices reported before the failure are not reported again
+                logger.warn("Feedback poll failed", e);
+            }
+            if (!poll.reported.isEmpty()) {
+                logger.debug("Feedback reported {} new inactive devices", poll.reported.size());
+            }
+            if (sink != null && !poll.reported.isEmpty()) {
+                try {
+                    sink.inactiveDevices(Collections.unmodifiableMap(poll.reported));
+                } catch (RuntimeException e) {
+                    logger.warn("Feedback sink failed, handing its " + poll.reported.size()
+                            + " devices again after the next poll", e);
+                    undelivered = poll.reported;
+                    updateInactive(Collections.<DeviceToken> emptySet());
+                    return;
+                }
+            }
+            undelivered = Collections.emptyMap();
+            updateInactive(poll.reported.keySet());
+        } finally {
+            schedule(periodMillis - (long) (periodMillis * jitter * random.nextDouble()));
+        }
+    }
+
+    /**
+     * Collects the devices reported by one poll that are not in the set,
+     * along with those a previous poll failed to hand to the sink.
+     */
+    private class Poll implements FeedbackListener {
+        final Map<DeviceToken, Date> reported;
+
+        Poll(Map<DeviceToken, Date> undelivered) {
+            reported = new HashMap<DeviceToken, Date>(undelivered);
+        }
+
+        public void inactiveDevice(byte[] deviceToken, long timestamp) {
+            if (deviceToken.length != DeviceToken.LENGTH) {
+                logger.warn("Skipping feedback tuple with token length {}", deviceToken.length);
+                return;
+            }
+            if (isInactive(deviceToken)) {
+                return;
+            }
+            // keep the latest timestamp of a device reported twice
+            DeviceToken token = DeviceToken.fromBytes(deviceToken);
+            Date previous = reported.get(token);
+            if (previous == null || previous.getTime() < timestamp) {
+                reported.put(token, new Date(timestamp));
+            }
+        }
+    }
+
+    /**
+     * Skips the notifications to inactive devices.
+     */
+    private class ActiveOnly implements Iterator<ApnsNotification> {
+        private final Iterator<? extends ApnsNotification> notifications;
+        private ApnsNotification next;
+
+        ActiveOnly(Iterator<? extends ApnsNotification> notifications) {
+            this.notifications = notifications;
+        }
+
+        public boolean hasNext() {
+            while (next == null && notifications.hasNext()) {
+                ApnsNotification n = notifications.next();
+                if (isInactive(n.getDeviceToken())) {
+                    logger.debug("Not pushing {} to an inactive device", n);
+                } else {
+                    next = n;
+                }
+            }
+            return next != null;
+        }
+
+        public ApnsNotification next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            ApnsNotification n = next;
+            next = null;
+            return n;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    @Override
+    public Map<String, Date> getInactiveDevices() throws NetworkIOException {
+        return service.getInactiveDevices();
+    }
+
+    @Override
+    public Map<DeviceToken, Date> getInactiveDeviceTokens() throws NetworkIOException {
+        return service.getInactiveDeviceTokens();
+    }
+
+    @Override
+    public int getInactiveDevices(FeedbackListener listener) throws NetworkIOException {
+        return service.getInactiveDevices(listener);
+    }
+
+    @Override
+    public Future<Integer> getInactiveDevicesAsync(FeedbackListener listener) {
+        return service.getInactiveDevicesAsync(listener);
+    }
+
+    public void testConnection() throws NetworkIOException {
+        service.testConnection();
+    }
+
+    public void flush() throws NetworkIOException {
+        service.flush();
+    }
+}
@@ -0,0 +1,286 @@
+package com.notnoop.apns.internal;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.notnoop.apns.ApnsNotification;
+import com.notnoop.apns.ApnsRuntime;
+import com.notnoop.apns.ApnsService;
+import com.notnoop.apns.ApnsServiceBuilder;
+import com.notnoop.apns.MultiTenantApnsService;
+import com.notnoop.apns.TenantConfigurator;
+import com.notnoop.exceptions.NetworkIOException;
+
+/**
+ * Keeps one service per tenant, all built on the same runtime.
+ *
+ * Each tenant counts the pushes it has in progress. A tenant is only
+ * evicted when it has none, and may have at most its share of the pushes in
+ * flight, the limit divided by the number of tenants: the pushes of a busy
+ * tenant wait on their own tenant, and leave the callers and the event loop
+ * to the other tenants.
+ */
+public class MultiTenantApnsServiceImpl implements MultiTenantApnsService {
+    private static final Logger logger = LoggerFactory.getLogger(MultiTenantApnsServiceImpl.class);
+
+    private final ApnsRuntime runtime;
+    private final boolean ownsRuntime;
+    private final TenantConfigurator configurator;
+    private final long idleTimeoutNanos;
+    private final int maxTenants;
+    private final int maxPushesInFlight;
+    private final ConcurrentMap<String, Tenant> tenants = new ConcurrentHashMap<String, Tenant>();
+
+    private ScheduledFuture<?> evictions;
+
+    /**
+     * @param runtime shared by the services of the tenants
+     * @param ownsRuntime whether to close the runtime when stopped
+     * @param configurator configures the service of each tenant
+     * @param idleTimeoutMillis time after which an unused tenant is evicted,
+     *            or 0 to keep the tenants
+     * @param maxTenants maximum number of running tenants, or 0 for no
+     *            limit
+     * @param maxPushesInFlight pushes in progress shared by the tenants, or 0
+     *            for no limit
+     */
+    public MultiTenantApnsServiceImpl(ApnsRuntime runtime, boolean ownsRuntime,
+            TenantConfigurator configurator, long idleTimeoutMillis,
+            int maxTenants, int maxPushesInFlight) {
+        if (idleTimeoutMillis < 0 || maxTenants < 0 || maxPushesInFlight < 0) {
+            throw new IllegalArgumentException("Invalid timeout or limit");
+        }
+        this.runtime = runtime;
+        this.ownsRuntime = ownsRuntime;
+        this.configurator = configurator;
+        this.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis);
+        this.maxTenants = maxTenants;
+        this.maxPushesInFlight = maxPushesInFlight;
+    }
+
+    public void push(String appId, ApnsNotification notification) throws NetworkIOException {
+        Tenant tenant = enter(appId, true);
+        try {
+            tenant.service().push(notification);
+        } finally {
+            tenant.exit();
+        }
+    }
+
+    /**
+     * Only holds the tenant while looking the service up; see
+     * {@link MultiTenantApnsService#getService(String)}.
+     */
+    public ApnsService getService(String appId) {
+        Tenant tenant = enter(appId, false);
+        try {
+            return tenant.service();
+        } finally {
+            tenant.exit();
+        }
+    }
+
+    public int getActiveTenants() {
+        return tenants.size();
+    }
+
+    public synchronized void start() {
+        if (idleTimeoutNanos > 0 && evictions == null) {
+            long period = Math.max(1, TimeUnit.NANOSECONDS.toMillis(idleTimeoutNanos) / 2);
+            evictions = runtime.getScheduler().scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    try {
+                        evictIdle();
+                    } catch (RuntimeException e) {
+                        logger.warn("Evicting idle tenants failed", e);
+                    }
+                }
+            }, period, period, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public synchronized void stop() {
+        if (evictions != null) {
+            evictions.cancel(false);
+            evictions = null;
+        }
+        for (Tenant tenant : new ArrayList<Tenant>(tenants.values())) {
+            tenant.close(true);
+        }
+        if (ownsRuntime) {
+            runtime.close();
+        }
+    }
+
+    public int evictIdle() {
+        if (idleTimeoutNanos == 0) {
+            return 0;
+        }
+        long now = System.nanoTime();
+        int evicted = 0;
+        for (Tenant tenant : tenants.values()) {
+            if (now - tenant.lastUsed > idleTimeoutNanos && tenant.close(false)) {
+                logger.debug("Evicted idle tenant {}", tenant.appId);
+                evicted++;
+            }
+        }
+        return evicted;
+    }
+
+    /**
+     * Returns the tenant of {@code appId} with one more push in progress,
+     * adding it if needed.
+     */
+    private Tenant enter(String appId, boolean limited) {
+        while (true) {
+            Tenant tenant = tenants.get(appId);
+            if (tenant == null) {
+                Tenant created = new Tenant(appId);
+                tenant = tenants.putIfAbsent(appId, created);
+                if (tenant == null) {
+                    tenant = created;
+                    if (maxTenants != 0 && tenants.size() > maxTenants) {
+                        makeRoom(created);
+                    }
+                }
+            }
+            if (tenant.enter(limited)) {
+                return tenant;
+            }
+            // evicted meanwhile
+        }
+    }
+
+    /**
+     * Evicts the least recently used tenant other than {@code added}, or
+     * removes {@code added} if all the others are busy, unless another push
+     * has entered it meanwhile.
+     */
+    private void makeRoom(Tenant added) {
+        List<Tenant> candidates = new ArrayList<Tenant>(tenants.values());
+        while (tenants.size() > maxTenants) {
+            Tenant oldest = null;
+            for (Tenant tenant : candidates) {
+                if (tenant != added && (oldest == null || tenant.lastUsed - oldest.lastUsed < 0)) {
+                    oldest = tenant;
+                }
+            }
+            if (oldest == null) {
+                added.close(false);
+                throw new NetworkIOException("All " + maxTenants + " tenants are in use");
+            }
+            candidates.remove(oldest);
+            if (oldest.close(false)) {
+                logger.debug("Evicted tenant {} to make room for {}", oldest.appId, added.appId);
+            }
+        }
+    }
+
+    protected ApnsService newService(String appId) {
+        ApnsServiceBuilder builder = new ApnsServiceBuilder().withRuntime(runtime);
+        configurator.configure(appId, builder);
+        return builder.build();
+    }
+
+    private int share() {
+        if (maxPushesInFlight == 0) {
+            return Integer.MAX_VALUE;
+        }
+        return Math.max(1, maxPushesInFlight / Math.max(1, tenants.size()));
+    }
+
+    private class Tenant {
+        final String appId;
+        volatile long lastUsed = System.nanoTime();
+
+        // guarded by this
+        private int inFlight;
+        private boolean closed;
+        private volatile ApnsService service;
+
+        Tenant(String appId) {
+            this.appId = appId;
+        }
+
+        synchronized boolean enter(boolean limited) {
+            try {
+                while (!closed && limited && inFlight >= share()) {
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new NetworkIOException("Interrupted while waiting to push to " + appId);
+            }
+            if (closed) {
+                return false;
+            }
+            inFlight++;
+            lastUsed = System.nanoTime();
+            return true;
+        }
+
+        synchronized void exit() {
+            inFlight--;
+            notify();
+        }
+
+        ApnsService service() {
+            ApnsService result = service;
+            if (result == null) {
+                synchronized (this) {
+                    result = service;
+                    if (result == null) {
+                        if (closed) {
+                            // the service is stopping
+                            throw new NetworkIOException("Tenant " + appId + " was stopped");
+                        }
+                        try {
+                            service = result = newService(appId);
+                        } catch (RuntimeException e) {
+                            // neither kept nor counted in the shares; the
+                            // next push tries again with a new tenant
+                            closed = true;
+                            notifyAll();
+                            tenants.remove(appId, this);
+                            throw e;
+                        }
+                        logger.debug("Started service of tenant {}", appId);
+                    }
+                }
+            }
+            return result;
+        }
+
+        /**
+         * Removes the tenant and stops its service, unless pushes are in
+         * progress and {@code force} is {@code false}.
+         */
+        boolean close(boolean force) {
+            ApnsService stopping;
+            synchronized (this) {
+                if (closed || (inFlight > 0 && !force)) {
+                    return false;
+                }
+                closed = true;
+                stopping = service;
+                notifyAll();
+            }
+            tenants.remove(appId, this);
+            if (stopping != null) {
+                try {
+                    stopping.stop();
+                } catch (RuntimeException e) {
+                    logger.warn("Failed to stop service of tenant " + appId, e);
+                }
+            }
+            return true;
+        }
+    }
+}
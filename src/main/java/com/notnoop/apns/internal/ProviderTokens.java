@@ -0,0 +1,186 @@
+package com.notnoop.apns.internal;
+
+import java.security.Signature;
+import java.security.interfaces.ECPrivateKey;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.core.Base64Variants;
+import com.notnoop.apns.ApnsSigningKey;
+import com.notnoop.exceptions.InvalidSigningKeyException;
+
+/**
+ * The provider authentication token of a signing key: an ES256 JSON web
+ * token, signed once and then reused by every request until it is
+ * refreshed.
+ *
+ * APNs rejects tokens older than an hour, and refreshes more frequent than
+ * every twenty minutes. The token is re-signed in the background once it is
+ * {@link #DEFAULT_REFRESH_MILLIS} old, on the executor of the caller who
+ * first noticed; it is only signed on the calling thread if the refresh
+ * could not keep up and the token is about to expire.
+ *
+ * One instance is shared by all the connections using the same key.
+ */
+public final class ProviderTokens {
+    private static final Logger logger = LoggerFactory.getLogger(ProviderTokens.class);
+
+    public static final long DEFAULT_REFRESH_MILLIS = TimeUnit.MINUTES.toMillis(45);
+    private static final long MAX_AGE_MILLIS = TimeUnit.MINUTES.toMillis(55);
+
+    private static final Map<ApnsSigningKey, ProviderTokens> SHARED = new WeakHashMap<ApnsSigningKey, ProviderTokens>();
+
+    // not the key itself, which would keep it in the shared map forever
+    private final String keyId;
+    private final String teamId;
+    private final ECPrivateKey privateKey;
+    private final long refreshMillis;
+    private final String header;
+    private final AtomicBoolean refreshing = new AtomicBoolean();
+    private final Runnable refreshTask = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                refresh();
+            } catch (RuntimeException e) {
+                logger.error("Could not refresh the provider token of key {}", keyId, e);
+            } finally {
+                refreshing.set(false);
+            }
+        }
+    };
+
+    private volatile Token token;
+
+    ProviderTokens(ApnsSigningKey key, long refreshMillis) {
+        this.keyId = key.getKeyId();
+        this.teamId = key.getTeamId();
+        this.privateKey = key.getPrivateKey();
+        this.refreshMillis = refreshMillis;
+        this.header = base64Url(Utilities.toUTF8Bytes("{\"alg\":\"ES256\",\"kid\":\"" + keyId + "\"}"));
+    }
+
+    /**
+     * Returns the tokens of {@code key}, shared with the other connections
+     * using it.
+     */
+    public static ProviderTokens of(ApnsSigningKey key) {
+        synchronized (SHARED) {
+            ProviderTokens tokens = SHARED.get(key);
+            if (tokens == null) {
+                tokens = new ProviderTokens(key, DEFAULT_REFRESH_MILLIS);
+                SHARED.put(key, tokens);
+            }
+            return tokens;
+        }
+    }
+
+    /**
+     * Returns the value of the <code>authorization</code> header, i.e.
+     * <code>bearer</code> and the current token.
+     *
+     * @param executor runs the refresh, when the token is due for one
+     */
+    public String getAuthorization(Executor executor) {
+        Token current = token;
+        if (current == null) {
+            return refresh().authorization;
+        }
+        long age = System.currentTimeMillis() - current.issuedAtMillis;
+        if (age >= MAX_AGE_MILLIS) {
+            return refresh(current).authorization;
+        }
+        if (age >= refreshMillis && refreshing.compareAndSet(false, true)) {
+            try {
+                executor.execute(refreshTask);
+            } catch (RejectedExecutionException e) {
+                refreshing.set(false);
+            }
+        }
+        return current.authorization;
+    }
+
+    /**
+     * Signs a new token if {@code authorization} is still the current one,
+     * e.g. after APNs found it expired.
+     */
+    public void expired(String authorization) {
+        Token current = token;
+        if (current != null && current.authorization.equals(authorization)) {
+            refresh(current);
+        }
+    }
+
+    private synchronized Token refresh(Token stale) {
+        return token == stale ? refresh() : token;
+    }
+
+    synchronized Token refresh() {
+        long now = System.currentTimeMillis();
+        String claims = base64Url(Utilities.toUTF8Bytes("{\"iss\":\"" + teamId
+                + "\",\"iat\":" + TimeUnit.MILLISECONDS.toSeconds(now) + "}"));
+        String content = header + "." + claims;
+        String jwt = content + "." + base64Url(sign(Utilities.toUTF8Bytes(content)));
+        logger.debug("Signed a provider token with key {}", keyId);
+        Token result = new Token("bearer " + jwt, now);
+        token = result;
+        return result;
+    }
+
+    private byte[] sign(byte[] content) {
+        try {
+            // not thread-safe, and seldom used
+            Signature signature = Signature.getInstance("SHA256withECDSA");
+            signature.initSign(privateKey);
+            signature.update(content);
+            return derToConcatenated(signature.sign(), 32);
+        } catch (Exception e) {
+            throw new InvalidSigningKeyException("Could not sign the provider token", e);
+        }
+    }
+
+    /**
+     * Converts an ASN.1 DER ECDSA signature, a sequence of the two integers
+     * r and s, into their concatenation on {@code length} bytes each, as
+     * JWS expects.
+     */
+    static byte[] derToConcatenated(byte[] der, int length) {
+        int offset = 2;
+        if ((der[1] & 0x80) != 0) {
+            // long form length of the sequence
+            offset += der[1] & 0x7F;
+        }
+        byte[] result = new byte[2 * length];
+        for (int i = 0; i < 2; i++) {
+            int intLength = der[offset + 1];
+            int start = offset + 2;
+            // skip the sign byte, and any leading zero
+            int skip = Math.max(0, intLength - length);
+            System.arraycopy(der, start + skip, result, (i + 1) * length - (intLength - skip),
+                    intLength - skip);
+            offset = start + intLength;
+        }
+        return result;
+    }
+
+    private static String base64Url(byte[] bytes) {
+        return Base64Variants.MODIFIED_FOR_URL.encode(bytes);
+    }
+
+    static final class Token {
+        final String authorization;
+        final long issuedAtMillis;
+
+        Token(String authorization, long issuedAtMillis) {
+            this.authorization = authorization;
+            this.issuedAtMillis = issuedAtMillis;
+        }
+    }
+}
@@ -30,32 +30,84 @@
  */
 package com.notnoop.apns.internal;
 
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.notnoop.apns.ApnsNotification;
 import com.notnoop.apns.ApnsService;
+import com.notnoop.apns.BulkPushListener;
+import com.notnoop.apns.DeviceToken;
+import com.notnoop.apns.FeedbackListener;
+import com.notnoop.apns.QueueOverflowPolicy;
 import com.notnoop.exceptions.NetworkIOException;
 
 public class QueuedApnsService extends AbstractApnsService {
 
 	private static final Logger logger = LoggerFactory.getLogger(QueuedApnsService.class);
-	
+
+    // Maximum number of notifications a consumer takes from the queue at once
+    private static final int MAX_BATCH = 256;
+
+    private static final BulkPushListener FAILURE_LOGGER = new BulkPushListener() {
+        public void notificationPushed(ApnsNotification message) {
+        }
+
+        public void notificationFailed(ApnsNotification message, Exception e) {
+            logger.warn("Failed to push queued notification {}", message, e);
+        }
+    };
+
     private ApnsService service;
     private BlockingQueue<ApnsNotification> queue;
+    private final int consumers;
+    private final QueueOverflowPolicy overflowPolicy;
+    private final ThreadFactory threadFactory;
     private AtomicBoolean started = new AtomicBoolean(false);
 
     public QueuedApnsService(ApnsService service) {
+        this(service, Integer.MAX_VALUE, 1, QueueOverflowPolicy.BLOCK);
+    }
+
+    /**
+     * @param service the service the queued notifications are pushed to
+     * @param capacity maximum number of queued notifications
+     * @param consumers number of threads taking notifications off the queue
+     * @param overflowPolicy what to do when pushing to a full queue
+     */
+    public QueuedApnsService(ApnsService service, int capacity, int consumers,
+            QueueOverflowPolicy overflowPolicy) {
+        this(service, capacity, consumers, overflowPolicy, null);
+    }
+
+    /**
+     * @param threadFactory creates the consumer threads, or {@code null} for
+     *            plain platform threads
+     */
+    public QueuedApnsService(ApnsService service, int capacity, int consumers,
+            QueueOverflowPolicy overflowPolicy, ThreadFactory threadFactory) {
         super(null);
+        if (capacity < 1 || consumers < 1) {
+            throw new IllegalArgumentException("capacity and consumers must be positive");
+        }
         this.service = service;
-        this.queue = new LinkedBlockingQueue<ApnsNotification>();
-        this.thread = null;
+        this.queue = capacity == Integer.MAX_VALUE
+            ? new LinkedBlockingQueue<ApnsNotification>()
+            : new ArrayBlockingQueue<ApnsNotification>(capacity);
+        this.consumers = consumers;
+        this.overflowPolicy = overflowPolicy;
+        this.threadFactory = threadFactory;
+        this.threads = new Thread[0];
     }
 
     @Override
@@ -63,10 +115,35 @@ public class QueuedApnsService extends AbstractApnsService {
         if (!started.get()) {
             throw new IllegalStateException("service hasn't be started or was closed");
         }
-        queue.add(msg);
+        if (queue.offer(msg)) {
+            return;
+        }
+        switch (overflowPolicy) {
+        case BLOCK:
+            try {
+                queue.put(msg);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for queue space", e);
+            }
+            break;
+        case REJECT:
+            throw new IllegalStateException("Queue full");
+        case DROP_NEWEST:
+            logger.warn("Queue full, dropping {}", msg);
+            break;
+        case DROP_OLDEST:
+            while (!queue.offer(msg)) {
+                ApnsNotification dropped = queue.poll();
+                if (dropped != null) {
+                    logger.warn("Queue full, dropping {}", dropped);
+                }
+            }
+            break;
+        }
     }
 
-    private Thread thread;
+    private Thread[] threads;
     private volatile boolean shouldContinue;
 
     public void start() {
@@ -79,30 +156,38 @@ public class QueuedApnsService extends AbstractApnsService {
 
         service.start();
         shouldContinue = true;
-        thread = new Thread() {
-            public void run() {
-                while (shouldContinue) {
-                    try {
-                        ApnsNotification msg = queue.take();
-                        service.push(msg);
-                    } catch (InterruptedException e) {
-                    	// ignore
-                    } catch (NetworkIOException e) {
-                    	// ignore: failed connect...
-                    } catch (Exception e) {
-                    	// weird if we reached here - something wrong is happening, but we shouldn't stop the service anyway!
-                    	logger.warn("Unexpected message caught... Shouldn't be here", e);
+        threads = new Thread[consumers];
+        for (int i = 0; i < consumers; i++) {
+            Runnable consumer = new Runnable() {
+                public void run() {
+                    List<ApnsNotification> batch = new ArrayList<ApnsNotification>(MAX_BATCH);
+                    while (shouldContinue) {
+                        try {
+                            batch.add(queue.take());
+                            queue.drainTo(batch, MAX_BATCH - 1);
+                            service.push(batch.iterator(), FAILURE_LOGGER);
+                        } catch (InterruptedException e) {
+                            // ignore
+                        } catch (Exception e) {
+                            // weird if we reached here - something wrong is happening, but we shouldn't stop the service anyway!
+                            logger.warn("Unexpected message caught... Shouldn't be here", e);
+                        } finally {
+                            batch.clear();
+                        }
                     }
                 }
-            }
-        };
-        thread.start();
+            };
+            threads[i] = threadFactory == null ? new Thread(consumer) : threadFactory.newThread(consumer);
+            threads[i].start();
+        }
     }
 
     public void stop() {
         started.set(false);
         shouldContinue = false;
-        thread.interrupt();
+        for (Thread thread : threads) {
+            thread.interrupt();
+        }
         service.stop();
     }
 
@@ -111,8 +196,31 @@ public class QueuedApnsService extends AbstractApnsService {
         return service.getInactiveDevices();
     }
 
+    @Override
+    public Map<DeviceToken, Date> getInactiveDeviceTokens() throws NetworkIOException {
+        return service.getInactiveDeviceTokens();
+    }
+
+    @Override
+    public int getInactiveDevices(FeedbackListener listener) throws NetworkIOException {
+        return service.getInactiveDevices(listener);
+    }
+
+    @Override
+    public Future<Integer> getInactiveDevicesAsync(FeedbackListener listener) {
+        return service.getInactiveDevicesAsync(listener);
+    }
+
     public void testConnection() throws NetworkIOException {
         service.testConnection();
     }
 
+    /**
+     * Flushes the underlying service. Notifications not yet taken from the
+     * queue are not waited for.
+     */
+    public void flush() throws NetworkIOException {
+        service.flush();
+    }
+
 }
@@ -0,0 +1,108 @@
+package com.notnoop.apns.internal;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import com.notnoop.apns.BackoffPolicy;
+import com.notnoop.exceptions.CircuitOpenException;
+
+/**
+ * Failure state of one connection, applying a {@link BackoffPolicy}.
+ *
+ * Thread-safe. Delays are computed from the consecutive failures of the
+ * connection rather than of one notification, so concurrent senders back
+ * off together.
+ */
+public class ReconnectBackoff {
+
+    private final BackoffPolicy policy;
+    private final Random random;
+
+    // guarded by this
+    private int failures;
+    private long openUntilNanos;
+    private boolean open;
+
+    public ReconnectBackoff(BackoffPolicy policy) {
+        this(policy, new Random());
+    }
+
+    ReconnectBackoff(BackoffPolicy policy, Random random) {
+        this.policy = policy;
+        this.random = random;
+    }
+
+    public BackoffPolicy getPolicy() {
+        return policy;
+    }
+
+    public int getMaxAttempts() {
+        return policy.getMaxAttempts();
+    }
+
+    /**
+     * Fails fast while the circuit is open.
+     *
+     * @throws CircuitOpenException if the circuit is open
+     */
+    public synchronized void checkCircuit() throws CircuitOpenException {
+        if (open) {
+            long remaining = openUntilNanos - System.nanoTime();
+            if (remaining > 0) {
+                throw new CircuitOpenException("Not connecting for another "
+                        + TimeUnit.NANOSECONDS.toMillis(remaining) + "ms after "
+                        + failures + " consecutive failures");
+            }
+            // half-open: let the next attempts through, a failure reopens it
+            open = false;
+        }
+    }
+
+    public synchronized boolean isOpen() {
+        return open && openUntilNanos - System.nanoTime() > 0;
+    }
+
+    public synchronized int getFailures() {
+        return failures;
+    }
+
+    /**
+     * Records a failed attempt, opening the circuit once the threshold of
+     * consecutive failures is reached.
+     */
+    public synchronized void failed() {
+        failures++;
+        int threshold = policy.getCircuitBreakerThreshold();
+        if (threshold > 0 && failures >= threshold) {
+            open = true;
+            openUntilNanos = System.nanoTime()
+                    + TimeUnit.MILLISECONDS.toNanos(policy.getCircuitOpenMillis());
+        }
+    }
+
+    /**
+     * Records a successful attempt, resetting the delay and closing the
+     * circuit.
+     */
+    public synchronized void succeeded() {
+        failures = 0;
+        open = false;
+    }
+
+    /**
+     * Returns the time to wait before the next attempt: the initial delay
+     * doubled for every consecutive failure but the first, capped at the
+     * maximum delay, minus the random jitter.
+     */
+    public synchronized long nextDelayMillis() {
+        long delay = policy.getInitialDelayMillis();
+        for (int i = 1; i < failures && delay > 0 && delay < policy.getMaxDelayMillis(); i++) {
+            delay *= 2;
+        }
+        delay = Math.min(delay, policy.getMaxDelayMillis());
+        if (policy.getJitter() > 0) {
+            delay -= (long) (delay * policy.getJitter() * random.nextDouble());
+        }
+        return delay;
+    }
+}
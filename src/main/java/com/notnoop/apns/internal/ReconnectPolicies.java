@@ -30,10 +30,23 @@
  */
 package com.notnoop.apns.internal;
 
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
 import com.notnoop.apns.ReconnectPolicy;
+import com.notnoop.apns.TrafficAwareReconnectPolicy;
 
 public final class ReconnectPolicies {
 
+    /**
+     * Returns whether {@code policy} asks for a new connection for every
+     * notification. Such a connection replaces the current one before the
+     * notification is written, rather than being rotated in alongside it.
+     */
+    public static boolean isPerNotification(ReconnectPolicy policy) {
+        return policy instanceof Always;
+    }
+
     public static class Never implements ReconnectPolicy {
 
         public boolean shouldReconnect() { return false; }
@@ -64,4 +77,61 @@ public final class ReconnectPolicies {
             return new EveryHalfHour();
         }
     }
+
+    /**
+     * Rotates the connection after a number of notifications, a number of
+     * bytes or a maximum age, whichever comes first. A limit of {@code 0}
+     * disables it.
+     *
+     * The age is only checked every {@value #CLOCK_CHECK_INTERVAL}
+     * notifications, so the clock is not read on every push and an idle
+     * connection is not churned.
+     */
+    public static class Traffic implements TrafficAwareReconnectPolicy {
+        static final int CLOCK_CHECK_INTERVAL = 64;
+
+        private final long maxNotifications;
+        private final long maxBytes;
+        private final long maxAgeMillis;
+
+        private final AtomicLong notifications = new AtomicLong();
+        private final AtomicLong bytes = new AtomicLong();
+        private volatile long connectedAt;
+        private volatile boolean expired;
+
+        public Traffic(long maxNotifications, long maxBytes, long maxAgeMillis) {
+            this.maxNotifications = maxNotifications;
+            this.maxBytes = maxBytes;
+            this.maxAgeMillis = maxAgeMillis;
+        }
+
+        public boolean shouldReconnect() {
+            return expired
+                    || (maxNotifications > 0 && notifications.get() >= maxNotifications)
+                    || (maxBytes > 0 && bytes.get() >= maxBytes);
+        }
+
+        public void sent(int n, int size) {
+            long count = notifications.addAndGet(n);
+            if (maxBytes > 0) {
+                bytes.addAndGet(size);
+            }
+            if (maxAgeMillis > 0
+                    && count / CLOCK_CHECK_INTERVAL != (count - n) / CLOCK_CHECK_INTERVAL
+                    && System.nanoTime() - connectedAt > TimeUnit.MILLISECONDS.toNanos(maxAgeMillis)) {
+                expired = true;
+            }
+        }
+
+        public void reconnected() {
+            notifications.set(0);
+            bytes.set(0);
+            connectedAt = System.nanoTime();
+            expired = false;
+        }
+
+        public Traffic copy() {
+            return new Traffic(maxNotifications, maxBytes, maxAgeMillis);
+        }
+    }
 }
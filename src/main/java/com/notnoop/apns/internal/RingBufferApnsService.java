@@ -0,0 +1,327 @@
+package com.notnoop.apns.internal;
+
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.notnoop.apns.ApnsNotification;
+import com.notnoop.apns.ApnsService;
+import com.notnoop.apns.DeviceToken;
+import com.notnoop.apns.FeedbackListener;
+import com.notnoop.apns.EnhancedApnsNotification;
+import com.notnoop.apns.RingBufferWaitStrategy;
+import com.notnoop.exceptions.NetworkIOException;
+
+/**
+ * Queued service backed by a preallocated ring of mutable slots, as an
+ * alternative to {@link QueuedApnsService} for latency sensitive producers.
+ *
+ * Producers claim a sequence with {@link #next()}, fill the slot returned by
+ * {@link #get(long)} in place and {@link #publish(long)} it; a single sender
+ * thread sends the published slots in sequence order. Claiming and publishing
+ * do not allocate and do not take locks. {@link #push(ApnsNotification)} uses
+ * the same path, storing a reference to the notification in the slot.
+ *
+ * Every claimed sequence must be published, even when filling the slot
+ * fails, since the sender waits for each sequence in turn: publish in a
+ * {@code finally} block. A slot published without being filled is skipped.
+ *
+ * The sender encodes each filled slot straight into its wire frame, which is
+ * the only allocation per notification: the connections write that frame
+ * and keep it for resending after an error response.
+ */
+public class RingBufferApnsService extends AbstractApnsService {
+
+    private static final Logger logger = LoggerFactory.getLogger(RingBufferApnsService.class);
+
+    private static final long PARK_NANOS = 1000;
+
+    /**
+     * A preallocated notification slot. Fill it between {@link #next()} and
+     * {@link #publish(long)}.
+     */
+    public static final class Slot {
+        private final byte[] deviceToken = new byte[DeviceToken.LENGTH];
+        private byte[] payload = new byte[Utilities.MAX_PAYLOAD_LENGTH];
+        private int payloadLength;
+        private int identifier;
+        private int expiry;
+        private int priority;
+        private boolean filled;
+        private ApnsNotification notification;
+
+        /**
+         * Sets the content of the notification. The token and payload are
+         * copied into the slot.
+         *
+         * @param priority the frame priority, or 0 to send it in the
+         *            enhanced format, as an {@link EnhancedApnsNotification}
+         */
+        public void set(int identifier, int expiry, int priority,
+                DeviceToken deviceToken, byte[] payload, int payloadOffset, int payloadLength) {
+            if (payloadLength > this.payload.length) {
+                this.payload = new byte[payloadLength];
+            }
+            deviceToken.writeTo(this.deviceToken, 0);
+            System.arraycopy(payload, payloadOffset, this.payload, 0, payloadLength);
+            this.payloadLength = payloadLength;
+            this.identifier = identifier;
+            this.expiry = expiry;
+            this.priority = priority;
+            this.notification = null;
+            this.filled = true;
+        }
+
+        /**
+         * Sets an already built notification to be sent as is.
+         */
+        public void set(ApnsNotification notification) {
+            this.notification = notification;
+            this.filled = notification != null;
+        }
+
+        void clear() {
+            filled = false;
+            notification = null;
+        }
+
+        /**
+         * Returns the notification of the slot, encoded from its fields, or
+         * {@code null} if it was not filled.
+         */
+        ApnsNotification toNotification() {
+            if (!filled) {
+                return null;
+            }
+            filled = false;
+            ApnsNotification n = notification;
+            if (n != null) {
+                notification = null;
+                return n;
+            }
+            if (priority == 0) {
+                return EncodedApnsNotification.enhanced(identifier, expiry,
+                        deviceToken, payload, payloadLength);
+            }
+            return EncodedApnsNotification.framed(identifier, expiry, priority,
+                    deviceToken, payload, payloadLength);
+        }
+    }
+
+    private final ApnsService service;
+    private final RingBufferWaitStrategy waitStrategy;
+    private final ThreadFactory threadFactory;
+    private final Slot[] slots;
+    private final int mask;
+    private final int shift;
+    // round of the sequence published in each slot
+    private final AtomicIntegerArray published;
+    private final AtomicLong claimed = new AtomicLong(-1);
+    private final AtomicLong sent = new AtomicLong(-1);
+
+    private final AtomicBoolean started = new AtomicBoolean(false);
+    private volatile boolean shouldContinue;
+    private Thread thread;
+
+    /**
+     * @param service the service the notifications are pushed to
+     * @param size number of slots, a power of two
+     * @param waitStrategy how producers and the sender wait
+     */
+    public RingBufferApnsService(ApnsService service, int size, RingBufferWaitStrategy waitStrategy) {
+        this(service, size, waitStrategy, null);
+    }
+
+    /**
+     * @param service the service the notifications are pushed to
+     * @param size number of slots, a power of two
+     * @param waitStrategy how producers and the sender wait
+     * @param threadFactory creates the sender thread, or {@code null} for a
+     *            thread named "apns-ring-buffer-sender"
+     */
+    public RingBufferApnsService(ApnsService service, int size, RingBufferWaitStrategy waitStrategy,
+            ThreadFactory threadFactory) {
+        super(null);
+        if (size < 1 || Integer.bitCount(size) != 1) {
+            throw new IllegalArgumentException("size must be a power of two");
+        }
+        this.service = service;
+        this.waitStrategy = waitStrategy;
+        this.threadFactory = threadFactory;
+        this.slots = new Slot[size];
+        for (int i = 0; i < size; i++) {
+            slots[i] = new Slot();
+        }
+        this.mask = size - 1;
+        this.shift = Integer.numberOfTrailingZeros(size);
+        this.published = new AtomicIntegerArray(size);
+        for (int i = 0; i < size; i++) {
+            published.set(i, -1);
+        }
+    }
+
+    /**
+     * Claims the next sequence, waiting for the sender to free a slot if the
+     * ring is full. Each claimed sequence must be published, see
+     * {@link #publish(long)}.
+     */
+    public long next() {
+        if (!started.get()) {
+            throw new IllegalStateException("service hasn't be started or was closed");
+        }
+        final long sequence = claimed.incrementAndGet();
+        final long wrapPoint = sequence - slots.length;
+        while (wrapPoint > sent.get()) {
+            if (!started.get()) {
+                throw new IllegalStateException("service was closed");
+            }
+            waitOnce();
+        }
+        get(sequence).clear();
+        return sequence;
+    }
+
+    /**
+     * Returns the slot of a claimed sequence.
+     */
+    public Slot get(long sequence) {
+        return slots[(int) sequence & mask];
+    }
+
+    /**
+     * Makes the slot of {@code sequence} available to the sender. Must be
+     * called for each claimed sequence, filled or not, typically in a
+     * {@code finally} block.
+     */
+    public void publish(long sequence) {
+        published.lazySet((int) sequence & mask, (int) (sequence >>> shift));
+    }
+
+    @Override
+    public void push(ApnsNotification msg) {
+        final long sequence = next();
+        try {
+            get(sequence).set(msg);
+        } finally {
+            publish(sequence);
+        }
+    }
+
+    public void start() {
+        if (started.getAndSet(true)) {
+            return;
+        }
+
+        service.start();
+        shouldContinue = true;
+        Runnable sender = new Runnable() {
+            public void run() {
+                while (shouldContinue) {
+                    final long next = sent.get() + 1;
+                    long available = next - 1;
+                    while (isPublished(available + 1) && available + 1 - next < slots.length) {
+                        available++;
+                    }
+                    if (available < next) {
+                        waitOnce();
+                        continue;
+                    }
+                    for (long s = next; s <= available; s++) {
+                        send(get(s));
+                    }
+                    sent.lazySet(available);
+                }
+            }
+        };
+        thread = threadFactory == null
+                ? new Thread(sender, "apns-ring-buffer-sender")
+                : threadFactory.newThread(sender);
+        thread.start();
+    }
+
+    private boolean isPublished(long sequence) {
+        return published.get((int) sequence & mask) == (int) (sequence >>> shift);
+    }
+
+    private void send(Slot slot) {
+        ApnsNotification notification = slot.toNotification();
+        if (notification == null) {
+            logger.debug("Skipping a slot published without a notification");
+            return;
+        }
+        try {
+            service.push(notification);
+        } catch (NetworkIOException e) {
+            logger.warn("Failed to push notification", e);
+        } catch (Exception e) {
+            // weird if we reached here - something wrong is happening, but we shouldn't stop the service anyway!
+            logger.warn("Unexpected message caught... Shouldn't be here", e);
+        }
+    }
+
+    private void waitOnce() {
+        switch (waitStrategy) {
+        case BUSY_SPIN:
+            break;
+        case YIELD:
+            Thread.yield();
+            break;
+        case PARK:
+            LockSupport.parkNanos(PARK_NANOS);
+            break;
+        }
+    }
+
+    public void stop() {
+        started.set(false);
+        shouldContinue = false;
+        if (thread != null) {
+            try {
+                thread.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        service.stop();
+    }
+
+    @Override
+    public Map<String, Date> getInactiveDevices() throws NetworkIOException {
+        return service.getInactiveDevices();
+    }
+
+    @Override
+    public Map<DeviceToken, Date> getInactiveDeviceTokens() throws NetworkIOException {
+        return service.getInactiveDeviceTokens();
+    }
+
+    @Override
+    public int getInactiveDevices(FeedbackListener listener) throws NetworkIOException {
+        return service.getInactiveDevices(listener);
+    }
+
+    @Override
+    public Future<Integer> getInactiveDevicesAsync(FeedbackListener listener) {
+        return service.getInactiveDevicesAsync(listener);
+    }
+
+    public void testConnection() throws NetworkIOException {
+        service.testConnection();
+    }
+
+    /**
+     * Flushes the underlying service. Notifications not yet taken from the
+     * queue are not waited for.
+     */
+    public void flush() throws NetworkIOException {
+        service.flush();
+    }
+}
@@ -0,0 +1,191 @@
+package com.notnoop.apns.internal;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.Socket;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+import com.notnoop.apns.TlsHandshakeMetrics;
+
+/**
+ * The protocols and cipher suites enabled on the client connections, and
+ * the metrics of their handshakes.
+ *
+ * Engines are always created for the host and port they connect to: the
+ * client session cache of the {@code SSLContext} is keyed by them, and an
+ * engine created without them never resumes a session.
+ */
+public final class TlsSettings {
+
+    public static final TlsSettings DEFAULT = new TlsSettings(null, null, null);
+
+    private final String[] protocols;
+    private final String[] cipherSuites;
+    private final TlsHandshakeMetrics metrics;
+
+    /**
+     * @param protocols the enabled protocols, or {@code null} for those of
+     *            the context
+     * @param cipherSuites the enabled cipher suites, in order of preference,
+     *            or {@code null} for those of the context
+     * @param metrics times the handshakes, or {@code null}
+     */
+    public TlsSettings(String[] protocols, String[] cipherSuites, TlsHandshakeMetrics metrics) {
+        this.protocols = protocols == null ? null : protocols.clone();
+        this.cipherSuites = cipherSuites == null ? null : cipherSuites.clone();
+        this.metrics = metrics;
+    }
+
+    public TlsHandshakeMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Returns a client engine for {@code host} and {@code port}.
+     */
+    public SSLEngine newClientEngine(SSLContext context, String host, int port) {
+        SSLEngine engine = context.createSSLEngine(host, port);
+        engine.setUseClientMode(true);
+        if (protocols != null) {
+            engine.setEnabledProtocols(protocols);
+        }
+        if (cipherSuites != null) {
+            engine.setEnabledCipherSuites(cipherSuites);
+        }
+        return engine;
+    }
+
+    /**
+     * Returns {@code factory} itself if the settings are the defaults, or a
+     * factory applying them to its sockets. With metrics, the handshake of
+     * the connected sockets is started and timed when they are created.
+     */
+    public SSLSocketFactory wrap(SSLSocketFactory factory) {
+        return wrap(factory, 0);
+    }
+
+    /**
+     * Same as {@link #wrap(SSLSocketFactory)}, with the handshakes started
+     * when the sockets are created failing after {@code readTimeout}
+     * milliseconds without an answer, or never if {@code 0}.
+     */
+    public SSLSocketFactory wrap(SSLSocketFactory factory, int readTimeout) {
+        if (protocols == null && cipherSuites == null && metrics == null) {
+            return factory;
+        }
+        return new ConfiguredSocketFactory(factory, readTimeout);
+    }
+
+    /**
+     * Offers {@code protocols} through ALPN, where the JDK supports it
+     * (Java 9, and 8u252 onwards).
+     *
+     * @return whether ALPN is supported
+     */
+    public static boolean setApplicationProtocols(SSLEngine engine, String... protocols) {
+        try {
+            Method method = SSLParameters.class.getMethod("setApplicationProtocols", String[].class);
+            SSLParameters parameters = engine.getSSLParameters();
+            method.invoke(parameters, (Object) protocols);
+            engine.setSSLParameters(parameters);
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        } catch (Exception e) {
+            throw new IllegalStateException("Could not set the ALPN protocols", e);
+        }
+    }
+
+    /**
+     * Returns whether {@code session} was created before the handshake
+     * started at {@code startMillis}, i.e. was resumed.
+     */
+    public static boolean isResumed(SSLSession session, long startMillis) {
+        return session != null && session.isValid() && session.getCreationTime() < startMillis;
+    }
+
+    private class ConfiguredSocketFactory extends SSLSocketFactory {
+        private final SSLSocketFactory factory;
+        private final int readTimeout;
+
+        ConfiguredSocketFactory(SSLSocketFactory factory, int readTimeout) {
+            this.factory = factory;
+            this.readTimeout = readTimeout;
+        }
+
+        private Socket configure(Socket socket, boolean connected) throws IOException {
+            if (!(socket instanceof SSLSocket)) {
+                return socket;
+            }
+            SSLSocket ssl = (SSLSocket) socket;
+            if (protocols != null) {
+                ssl.setEnabledProtocols(protocols);
+            }
+            if (cipherSuites != null) {
+                ssl.setEnabledCipherSuites(cipherSuites);
+            }
+            if (connected && metrics != null) {
+                ssl.setSoTimeout(readTimeout);
+                long startMillis = System.currentTimeMillis();
+                long start = System.nanoTime();
+                try {
+                    ssl.startHandshake();
+                } catch (IOException e) {
+                    metrics.handshakeFailed();
+                    Utilities.close(ssl);
+                    throw e;
+                }
+                metrics.handshakeCompleted(System.nanoTime() - start,
+                        isResumed(ssl.getSession(), startMillis));
+            }
+            return ssl;
+        }
+
+        @Override
+        public Socket createSocket() throws IOException {
+            return configure(factory.createSocket(), false);
+        }
+
+        @Override
+        public Socket createSocket(Socket s, String host, int port, boolean autoClose) throws IOException {
+            return configure(factory.createSocket(s, host, port, autoClose), true);
+        }
+
+        @Override
+        public Socket createSocket(String host, int port) throws IOException {
+            return configure(factory.createSocket(host, port), true);
+        }
+
+        @Override
+        public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+            return configure(factory.createSocket(host, port, localHost, localPort), true);
+        }
+
+        @Override
+        public Socket createSocket(InetAddress host, int port) throws IOException {
+            return configure(factory.createSocket(host, port), true);
+        }
+
+        @Override
+        public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) throws IOException {
+            return configure(factory.createSocket(address, port, localAddress, localPort), true);
+        }
+
+        @Override
+        public String[] getDefaultCipherSuites() {
+            return cipherSuites != null ? cipherSuites.clone() : factory.getDefaultCipherSuites();
+        }
+
+        @Override
+        public String[] getSupportedCipherSuites() {
+            return factory.getSupportedCipherSuites();
+        }
+    }
+}
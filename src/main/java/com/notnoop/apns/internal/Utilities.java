@@ -43,13 +43,15 @@ import java.security.KeyStore;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.regex.Pattern;
 import javax.net.ssl.KeyManagerFactory;
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManager;
 import javax.net.ssl.TrustManagerFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import com.notnoop.apns.DeviceToken;
+import com.notnoop.apns.FeedbackListener;
 import com.notnoop.exceptions.InvalidSSLConfig;
 import com.notnoop.exceptions.NetworkIOException;
 
@@ -68,6 +70,10 @@ public final class Utilities {
     public static final String PRODUCTION_FEEDBACK_HOST = "feedback.push.apple.com";
     public static final int PRODUCTION_FEEDBACK_PORT = 2196;
 
+    public static final String SANDBOX_HTTP2_HOST = "api.sandbox.push.apple.com";
+    public static final String PRODUCTION_HTTP2_HOST = "api.push.apple.com";
+    public static final int HTTP2_PORT = 443;
+
     public static final int MAX_PAYLOAD_LENGTH = 2048;
 
     private Utilities() { throw new AssertionError("Uninstantiable class"); }
@@ -80,57 +86,133 @@ public final class Utilities {
 
     public static SSLContext newSSLContext(final InputStream cert, final String password,
             final String ksType, final String ksAlgorithm) throws InvalidSSLConfig {
-           try {
-               final KeyStore ks = KeyStore.getInstance(ksType);
-               ks.load(cert, password.toCharArray());
-               return newSSLContext(ks, password, ksAlgorithm);
-           } catch (final Exception e) {
-               throw new InvalidSSLConfig(e);
-           }
-       }
+        return newSSLContext(loadKeyStore(cert, password, ksType), password, ksAlgorithm);
+    }
     
     public static SSLContext newSSLContext(final KeyStore ks, final String password,
             final String ksAlgorithm) throws InvalidSSLConfig {
+        return newSSLContext(ks, password, ksAlgorithm, null);
+    }
+
+    /**
+     * Same as {@link #newSSLContext(KeyStore, String, String)}, trusting
+     * {@code trustManagers} instead of initializing new trust managers from
+     * the default keystore, when not {@code null}.
+     */
+    public static SSLContext newSSLContext(final KeyStore ks, final String password,
+            final String ksAlgorithm, TrustManager[] trustManagers) throws InvalidSSLConfig {
            try {
                // Get a KeyManager and initialize it
                final KeyManagerFactory kmf = KeyManagerFactory.getInstance(ksAlgorithm);
                kmf.init(ks, password.toCharArray());
 
-               // Get a TrustManagerFactory with the DEFAULT KEYSTORE, so we have all
-               // the certificates in cacerts trusted
-               final TrustManagerFactory tmf = TrustManagerFactory.getInstance(ksAlgorithm);
-               tmf.init((KeyStore)null);
+               if (trustManagers == null) {
+                   trustManagers = newTrustManagers(ksAlgorithm);
+               }
 
                // Get the SSLContext to help create SSLSocketFactory
                final SSLContext sslc = SSLContext.getInstance("TLS");
-               sslc.init(kmf.getKeyManagers(), tmf.getTrustManagers(), null);
+               sslc.init(kmf.getKeyManagers(), trustManagers, null);
                return sslc;
+           } catch (final InvalidSSLConfig e) {
+               throw e;
            } catch (final Exception e) {
                throw new InvalidSSLConfig(e);
            }
        }
 
-    private static final Pattern pattern = Pattern.compile("[ -]");
-    public static byte[] decodeHex(final String deviceToken) {
-        final String hex = pattern.matcher(deviceToken).replaceAll("");
+    /**
+     * Returns trust managers trusting the certificates of the default
+     * keystore (cacerts).
+     */
+    public static TrustManager[] newTrustManagers(final String algorithm) throws InvalidSSLConfig {
+        try {
+            final TrustManagerFactory tmf = TrustManagerFactory.getInstance(algorithm);
+            tmf.init((KeyStore)null);
+            return tmf.getTrustManagers();
+        } catch (final Exception e) {
+            throw new InvalidSSLConfig(e);
+        }
+    }
 
-        final byte[] bts = new byte[hex.length() / 2];
-        for (int i = 0; i < bts.length; i++) {
-            bts[i] = (byte) (charval(hex.charAt(2*i)) * 16 + charval(hex.charAt(2*i + 1)));
+    /**
+     * Returns a context trusting {@code trustManagers}, with no client
+     * certificate, for the connections authenticated by provider tokens.
+     */
+    public static SSLContext newSSLContext(TrustManager[] trustManagers) throws InvalidSSLConfig {
+        try {
+            final SSLContext sslc = SSLContext.getInstance("TLS");
+            sslc.init(null, trustManagers, null);
+            return sslc;
+        } catch (final Exception e) {
+            throw new InvalidSSLConfig(e);
         }
-        return bts;
     }
 
-    private static int charval(final char a) {
-        if ('0' <= a && a <= '9') {
-            return (a - '0');
-        } else if ('a' <= a && a <= 'f') {
-            return (a - 'a') + 10;
-        } else if ('A' <= a && a <= 'F') {
-            return (a - 'A') + 10;
-        } else {
-            throw new RuntimeException("Invalid hex character: " + a);
+    public static KeyStore loadKeyStore(final InputStream cert, final String password,
+            final String ksType) throws InvalidSSLConfig {
+        try {
+            final KeyStore ks = KeyStore.getInstance(ksType);
+            ks.load(cert, password.toCharArray());
+            return ks;
+        } catch (final Exception e) {
+            throw new InvalidSSLConfig(e);
+        }
+    }
+
+    private static final byte[] HEX_VALUES = new byte[128];
+    static {
+        for (int i = 0; i < HEX_VALUES.length; i++) {
+            HEX_VALUES[i] = -1;
+        }
+        for (int i = 0; i < 10; i++) {
+            HEX_VALUES['0' + i] = (byte) i;
         }
+        for (int i = 0; i < 6; i++) {
+            HEX_VALUES['a' + i] = (byte) (10 + i);
+            HEX_VALUES['A' + i] = (byte) (10 + i);
+        }
+    }
+
+    /**
+     * Returns the value of the hexadecimal digit {@code c}, or -1 if it is
+     * not a hexadecimal digit.
+     */
+    public static int hexValue(final int c) {
+        return c >= 0 && c < 128 ? HEX_VALUES[c] : -1;
+    }
+
+    /**
+     * Returns whether {@code c} is a separator allowed inside the hexadecimal
+     * representation of a device token.
+     */
+    public static boolean isHexSeparator(final int c) {
+        return c == ' ' || c == '-';
+    }
+
+    public static byte[] decodeHex(final String deviceToken) {
+        int digits = 0;
+        for (int i = 0; i < deviceToken.length(); i++) {
+            if (!isHexSeparator(deviceToken.charAt(i))) {
+                digits++;
+            }
+        }
+
+        final byte[] bts = new byte[digits / 2];
+        int nibble = 0;
+        for (int i = 0; i < deviceToken.length() && nibble < 2 * bts.length; i++) {
+            final char c = deviceToken.charAt(i);
+            if (isHexSeparator(c)) {
+                continue;
+            }
+            final int v = hexValue(c);
+            if (v < 0) {
+                throw new RuntimeException("Invalid hex character: " + c);
+            }
+            bts[nibble >> 1] |= (nibble & 1) == 0 ? v << 4 : v;
+            nibble++;
+        }
+        return bts;
     }
 
     private static final char base[] = {'0','1','2','3','4','5','6','7','8','9','A','B','C','D','E','F'};
@@ -190,6 +272,60 @@ public final class Utilities {
         }
     }
 
+    public static final byte FRAME_ITEM_DEVICE_TOKEN = 1;
+    public static final byte FRAME_ITEM_PAYLOAD = 2;
+    public static final byte FRAME_ITEM_IDENTIFIER = 3;
+    public static final byte FRAME_ITEM_EXPIRATION = 4;
+    public static final byte FRAME_ITEM_PRIORITY = 5;
+
+    /**
+     * Returns the length of the frame data (all the items, excluding the
+     * command byte and the frame length) of a framed notification.
+     */
+    public static int framedItemsLength(final int deviceTokenLength, final int payloadLength) {
+        // each item is: item id (1 byte), item length (2 bytes), item data
+        return (3 + deviceTokenLength)
+             + (3 + payloadLength)
+             + (3 + 4)  // identifier
+             + (3 + 4)  // expiration
+             + (3 + 1); // priority
+    }
+
+    public static byte[] marshallFramed(final byte command, final int identifier,
+            final int expiryTime, final int priority, final byte[] deviceToken, final byte[] payload) {
+        final int frameLength = framedItemsLength(deviceToken.length, payload.length);
+        final ByteArrayOutputStream boas = new ByteArrayOutputStream(1 + 4 + frameLength);
+        final DataOutputStream dos = new DataOutputStream(boas);
+
+        try {
+            dos.writeByte(command);
+            dos.writeInt(frameLength);
+
+            dos.writeByte(FRAME_ITEM_DEVICE_TOKEN);
+            dos.writeShort(deviceToken.length);
+            dos.write(deviceToken);
+
+            dos.writeByte(FRAME_ITEM_PAYLOAD);
+            dos.writeShort(payload.length);
+            dos.write(payload);
+
+            dos.writeByte(FRAME_ITEM_IDENTIFIER);
+            dos.writeShort(4);
+            dos.writeInt(identifier);
+
+            dos.writeByte(FRAME_ITEM_EXPIRATION);
+            dos.writeShort(4);
+            dos.writeInt(expiryTime);
+
+            dos.writeByte(FRAME_ITEM_PRIORITY);
+            dos.writeShort(1);
+            dos.writeByte(priority);
+            return boas.toByteArray();
+        } catch (final IOException e) {
+            throw new AssertionError();
+        }
+    }
+
     public static Map<byte[], Integer> parseFeedbackStreamRaw(final InputStream in) {
         final Map<byte[], Integer> result = new HashMap<byte[], Integer>();
 
@@ -213,22 +349,80 @@ public final class Utilities {
         return result;
     }
 
-    public static Map<String, Date> parseFeedbackStream(final InputStream in) {
-        final Map<String, Date> result = new HashMap<String, Date>();
+    /**
+     * Parses the feedback stream into a map keyed by device token. Tokens
+     * reported several times are merged, keeping the latest timestamp.
+     * Tuples whose token is not {@link DeviceToken#LENGTH} bytes long are
+     * skipped.
+     */
+    public static Map<DeviceToken, Date> parseFeedbackStreamTokens(final InputStream in) {
+        final Map<DeviceToken, Date> result = new HashMap<DeviceToken, Date>();
+
+        final DataInputStream data = new DataInputStream(in);
+        final byte[] deviceToken = new byte[DeviceToken.LENGTH];
 
-        final Map<byte[], Integer> raw = parseFeedbackStreamRaw(in);
-        for (final Map.Entry<byte[], Integer> entry : raw.entrySet()) {
-            final byte[] dtArray = entry.getKey();
-            final int time = entry.getValue(); // in seconds
+        while (true) {
+            try {
+                final int time = data.readInt();
+                final int dtLength = data.readUnsignedShort();
+                if (dtLength != DeviceToken.LENGTH) {
+                    logger.warn("Skipping feedback tuple with token length {}", dtLength);
+                    data.readFully(new byte[dtLength]);
+                    continue;
+                }
+                data.readFully(deviceToken);
 
-            final Date date = new Date(time * 1000L);    // in ms
-            final String dtString = encodeHex(dtArray);
-            result.put(dtString, date);
+                final DeviceToken token = DeviceToken.fromBytes(deviceToken);
+                final Date date = new Date(time * 1000L);    // in ms
+                final Date previous = result.put(token, date);
+                if (previous != null && previous.after(date)) {
+                    result.put(token, previous);
+                }
+            } catch (final EOFException e) {
+                break;
+            } catch (final IOException e) {
+                throw new RuntimeException(e);
+            }
         }
 
         return result;
     }
 
+    /**
+     * Parses the feedback stream into a map keyed by the hexadecimal device
+     * tokens. Tokens reported several times are merged, keeping the latest
+     * timestamp.
+     */
+    public static Map<String, Date> parseFeedbackStream(final InputStream in) {
+        final Map<String, Date> result = new HashMap<String, Date>();
+
+        parseFeedbackStream(in, new FeedbackListener() {
+            public void inactiveDevice(byte[] deviceToken, long timestamp) {
+                final String dtString = encodeHex(deviceToken);
+                final Date previous = result.get(dtString);
+                if (previous == null || previous.getTime() < timestamp) {
+                    result.put(dtString, new Date(timestamp));
+                }
+            }
+        });
+
+        return result;
+    }
+
+    /**
+     * Hands each tuple of the feedback stream to {@code listener} as soon as
+     * it has been read, without buffering the stream.
+     *
+     * @return the number of tuples read
+     */
+    public static int parseFeedbackStream(final InputStream in, final FeedbackListener listener) {
+        try {
+            return new FeedbackDecoder().decode(in, listener);
+        } catch (final IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
     public static void close(final Closeable closeable) {
         try {
             if (closeable != null) {
@@ -1,13 +1,17 @@
 package com.notnoop.apns.internal.netty;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Queue;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
@@ -17,8 +21,10 @@ import org.slf4j.LoggerFactory;
 
 import com.notnoop.apns.ApnsDelegate;
 import com.notnoop.apns.ApnsNotification;
+import com.notnoop.apns.BackoffPolicy;
 import com.notnoop.apns.DeliveryResult;
 import com.notnoop.apns.internal.ApnsConnection;
+import com.notnoop.apns.internal.ReconnectBackoff;
 import com.notnoop.apns.internal.Utilities;
 import com.notnoop.apns.internal.netty.cache.CacheStore;
 import com.notnoop.apns.internal.netty.cache.CacheStore.Drainer;
@@ -28,6 +34,7 @@ import com.notnoop.apns.internal.netty.channel.ChannelProvider.ChannelHandlersPr
 import com.notnoop.apns.internal.netty.channel.ChannelProvider.WithChannelAction;
 import com.notnoop.apns.internal.netty.encoding.ApnsResultDecoder;
 import com.notnoop.exceptions.ApnsDeliveryErrorException;
+import com.notnoop.exceptions.CircuitOpenException;
 import com.notnoop.exceptions.ChannelProviderClosedException;
 import com.notnoop.exceptions.NetworkIOException;
 
@@ -39,6 +46,7 @@ import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.logging.LogLevel;
 import io.netty.handler.logging.LoggingHandler;
 import io.netty.handler.timeout.WriteTimeoutHandler;
+import io.netty.util.AttributeKey;
 
 public class NettyApnsConnectionImpl implements ApnsConnection,
         DeliveryResultListener, ChannelClosedListener {
@@ -51,13 +59,22 @@ public class NettyApnsConnectionImpl implements ApnsConnection,
     private final ApnsDelegate delegate;
     private final ChannelProvider channelProvider;
     private final CacheStore cacheStore;
+    private final BackoffPolicy backoffPolicy;
+    private final ReconnectBackoff backoff;
 
-    private final ExecutorService drainBufferExecutorService;
+    // resends the buffered notifications, and the deferred ones once the
+    // backoff delay has passed
+    private final ScheduledThreadPoolExecutor drainBufferExecutorService;
     private final ExecutorService deliveryResultExecutorService;
     private final boolean deliveryResultExecutorServiceProvided;
 
     private final Object lockSendMessage = new Object();
 
+    // With a backoff policy, the notifications waiting for the retry
+    // scheduled after a failed write, in order. Guarded by itself.
+    private final Queue<DeferredSend> deferred = new LinkedList<DeferredSend>();
+    private boolean retryScheduled;
+
     // This semaphore is used to control when is allowed to send messages to the
     // channel, it will be disallowed when a response is received from the APNS
     // server (onDeliveryResult is called) and allowed when the cache is moved
@@ -71,19 +88,42 @@ public class NettyApnsConnectionImpl implements ApnsConnection,
     // to be resent in the draining operation.
     private final Semaphore accessCacheStoreSemaphore = new Semaphore(1, true);
 
+    // The notifications written to a channel replaced by a rotation, which an
+    // error response on it may have to resend, cut from the cache store when
+    // the first notification is written to the new channel.
+    private static final AttributeKey<Queue<ApnsNotification>> RETIRED_CACHE =
+            AttributeKey.valueOf(NettyApnsConnectionImpl.class, "retiredCache");
+
+    // The channel the notifications in the cache store were written to.
+    // Guarded by accessCacheStoreSemaphore.
+    private Channel cachedChannel;
+
     public NettyApnsConnectionImpl(ChannelProvider channelProvider,
             ApnsDelegate delegate, CacheStore cacheStore,
             ExecutorService deliveryResultExecutorService) {
+        this(channelProvider, delegate, cacheStore, deliveryResultExecutorService, null);
+    }
+
+    /**
+     * @param backoffPolicy how to retry failed writes, or {@code null} to
+     *            retry three times, one second apart
+     */
+    public NettyApnsConnectionImpl(ChannelProvider channelProvider,
+            ApnsDelegate delegate, CacheStore cacheStore,
+            ExecutorService deliveryResultExecutorService,
+            BackoffPolicy backoffPolicy) {
         this.delegate = delegate;
+        this.backoffPolicy = backoffPolicy;
+        this.backoff = backoffPolicy == null ? null : new ReconnectBackoff(backoffPolicy);
         this.channelProvider = channelProvider;
         this.cacheStore = cacheStore;
 
-        ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 30,
-                TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
-        executor.allowCoreThreadTimeOut(true);
-
-        drainBufferExecutorService = executor;
+        drainBufferExecutorService = new ScheduledThreadPoolExecutor(1);
+        drainBufferExecutorService.setKeepAliveTime(30, TimeUnit.SECONDS);
+        drainBufferExecutorService.allowCoreThreadTimeOut(true);
+        drainBufferExecutorService.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
 
+        ThreadPoolExecutor executor;
         if (deliveryResultExecutorService != null) {
             this.deliveryResultExecutorService = deliveryResultExecutorService;
             deliveryResultExecutorServiceProvided = true;
@@ -140,6 +180,7 @@ public class NettyApnsConnectionImpl implements ApnsConnection,
         } catch (InterruptedException e) {
             LOGGER.error("Termination did not complete in 30 seconds");
         }
+        failDeferred(new NetworkIOException("Connection closed"));
 
         if (!deliveryResultExecutorServiceProvided) {
             LOGGER.debug("Shutdown of single-thread executor service for handling delivery results...");
@@ -164,8 +205,34 @@ public class NettyApnsConnectionImpl implements ApnsConnection,
 
     protected void sendMessage(final ApnsNotification m,
             final boolean fromBuffer) {
-        int attempts = 0;
+        sendMessage(m, fromBuffer, 0);
+    }
+
+    /**
+     * Writes a notification, retrying failed writes. With a backoff policy,
+     * a failed write is not retried on the calling thread: the notification
+     * is queued, and retried on the drain executor once the delay has
+     * passed, along with those sent meanwhile, which queue up behind it
+     * without trying the channel. The outcome reaches the delegate. Without
+     * one, the delay is waited on the calling thread.
+     */
+    private void sendMessage(final ApnsNotification m,
+            final boolean fromBuffer, int attempts) {
         while (true) {
+            if (backoff != null) {
+                try {
+                    backoff.checkCircuit();
+                } catch (CircuitOpenException e) {
+                    delegate.messageSendFailed(m, e);
+                    throw e;
+                }
+                synchronized (deferred) {
+                    if (retryScheduled) {
+                        deferred.add(new DeferredSend(m, fromBuffer, attempts));
+                        return;
+                    }
+                }
+            }
             attempts++;
             try {
                 synchronized (lockSendMessage) {
@@ -182,7 +249,7 @@ public class NettyApnsConnectionImpl implements ApnsConnection,
                                 accessCacheStoreSemaphore.acquire();
                                 LOGGER.trace("Acquired accessCacheStoreSemaphore in sendMessage");
                                 write(channel, m);
-                                cacheStore.add(m);
+                                cacheOn(channel, m);
                             } finally {
                                 accessCacheStoreSemaphore.release();
                                 LOGGER.trace("Released accessCacheStoreSemaphore in sendMessage");
@@ -194,6 +261,9 @@ public class NettyApnsConnectionImpl implements ApnsConnection,
                         }
                     });
                 }
+                if (backoff != null) {
+                    backoff.succeeded();
+                }
                 break;
             } catch (ChannelProviderClosedException e) {
                 LOGGER.info(
@@ -201,18 +271,100 @@ public class NettyApnsConnectionImpl implements ApnsConnection,
                         m, fromBuffer, attempts, e.getMessage());
                 throw e;
             } catch (Exception e) {
-                if (attempts > RETRIES) {
+                if (backoff != null) {
+                    backoff.failed();
+                }
+                if (backoff == null ? attempts > RETRIES : attempts >= backoff.getMaxAttempts()) {
                     delegate.messageSendFailed(m, e);
                     Utilities.wrapAndThrowAsRuntimeException(e);
                 }
+                if (backoff != null) {
+                    long delay = backoff.nextDelayMillis();
+                    LOGGER.info("Failed to send message " + m + " (fromBuffer="
+                            + fromBuffer + ", attempts=" + attempts
+                            + " trying again in " + delay + "ms)", e);
+                    defer(new DeferredSend(m, fromBuffer, attempts), delay);
+                    return;
+                }
                 LOGGER.info("Failed to send message " + m + " (fromBuffer="
                         + fromBuffer + ", attempts=" + attempts
                         + " trying again after delay...)", e);
+                // on the pushing thread, or the drain executor for resends
                 Utilities.sleep(DELAY_IN_MS);
             }
         }
     }
 
+    /**
+     * A notification waiting for the scheduled retry.
+     */
+    private static class DeferredSend {
+        final ApnsNotification notification;
+        final boolean fromBuffer;
+        final int attempts;
+
+        DeferredSend(ApnsNotification notification, boolean fromBuffer, int attempts) {
+            this.notification = notification;
+            this.fromBuffer = fromBuffer;
+            this.attempts = attempts;
+        }
+    }
+
+    /**
+     * Queues a failed notification, scheduling the retry unless one is due.
+     */
+    private void defer(DeferredSend send, long delayMillis) {
+        synchronized (deferred) {
+            deferred.add(send);
+            if (retryScheduled) {
+                return;
+            }
+            try {
+                drainBufferExecutorService.schedule(retrier, delayMillis, TimeUnit.MILLISECONDS);
+                retryScheduled = true;
+                return;
+            } catch (RejectedExecutionException e) {
+                deferred.remove(send);
+            }
+        }
+        NetworkIOException closed = new NetworkIOException("Connection closed");
+        delegate.messageSendFailed(send.notification, closed);
+        throw closed;
+    }
+
+    private final Runnable retrier = new Runnable() {
+        public void run() {
+            List<DeferredSend> sends;
+            synchronized (deferred) {
+                retryScheduled = false;
+                sends = new ArrayList<DeferredSend>(deferred);
+                deferred.clear();
+            }
+            // the first send reconnects; if it fails again, the others queue
+            // up behind it for the next retry
+            for (DeferredSend send : sends) {
+                try {
+                    sendMessage(send.notification, send.fromBuffer, send.attempts);
+                } catch (RuntimeException e) {
+                    // already reported to the delegate
+                    LOGGER.debug("Deferred send failed", e);
+                }
+            }
+        }
+    };
+
+    private void failDeferred(NetworkIOException e) {
+        List<DeferredSend> sends;
+        synchronized (deferred) {
+            retryScheduled = false;
+            sends = new ArrayList<DeferredSend>(deferred);
+            deferred.clear();
+        }
+        for (DeferredSend send : sends) {
+            delegate.messageSendFailed(send.notification, e);
+        }
+    }
+
     protected static void write(Channel channel, ApnsNotification m)
             throws InterruptedException {
         byte[] b = m.marshall();
@@ -221,6 +373,19 @@ public class NettyApnsConnectionImpl implements ApnsConnection,
         channel.writeAndFlush(buf).sync();
     }
 
+    private void cacheOn(Channel channel, ApnsNotification m) {
+        if (channel != cachedChannel) {
+            if (cachedChannel != null && cachedChannel.isActive()) {
+                // still read for error responses until it is closed
+                Queue<ApnsNotification> retired = new LinkedList<ApnsNotification>();
+                cacheStore.moveCacheTo(retired);
+                cachedChannel.attr(RETIRED_CACHE).set(retired);
+            }
+            cachedChannel = channel;
+        }
+        cacheStore.add(m);
+    }
+
     private void drainBuffer() {
         try {
             drainBufferExecutorService.submit(new Runnable() {
@@ -275,6 +440,16 @@ public class NettyApnsConnectionImpl implements ApnsConnection,
                         }
                         LOGGER.trace("Acquired accessCacheStoreSemaphore in onDeliveryResult");
 
+                        Queue<ApnsNotification> retired = ctx.channel()
+                                .attr(RETIRED_CACHE).getAndRemove();
+                        if (retired != null) {
+                            // only resend what was written to the replaced
+                            // channel, not what its replacement got since
+                            ctx.channel().close();
+                            resendRetired(retired, msg);
+                            return;
+                        }
+
                         // Move to the buffer all the notifications sent after
                         // the fail
                         Queue<ApnsNotification> tempCache = new LinkedList<ApnsNotification>();
@@ -338,16 +513,78 @@ public class NettyApnsConnectionImpl implements ApnsConnection,
 
     }
 
+    private void resendRetired(Queue<ApnsNotification> retired, DeliveryResult msg) {
+        ApnsNotification notification;
+        while ((notification = retired.poll()) != null
+                && notification.getIdentifier() != msg.getId()) {
+            // delivered before the failed one
+        }
+        delegate.messageSendFailed(notification,
+                new ApnsDeliveryErrorException(msg.getError()));
+        int resendSize = retired.size();
+        while ((notification = retired.poll()) != null) {
+            cacheStore.addToBuffer(notification);
+        }
+        delegate.notificationsResent(resendSize);
+        delegate.connectionClosed(msg.getError(), msg.getId());
+        drainBuffer();
+    }
+
+    /**
+     * Waits until the notifications to resend after the error responses
+     * received so far have been written. The other notifications are
+     * written and flushed as they are sent.
+     */
+    @Override
+    public void flush() throws NetworkIOException {
+        // an error response is handled on the delivery result executor,
+        // which then queues the resend on the drain executor
+        awaitQueued(deliveryResultExecutorService);
+        awaitQueued(drainBufferExecutorService);
+    }
+
+    private static void awaitQueued(ExecutorService executor) {
+        Future<?> done;
+        try {
+            done = executor.submit(NOOP);
+        } catch (RejectedExecutionException e) {
+            // closed
+            return;
+        }
+        try {
+            done.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new NetworkIOException("Interrupted while flushing");
+        } catch (ExecutionException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static final Runnable NOOP = new Runnable() {
+        public void run() {
+        }
+    };
+
     @Override
     public void testConnection() throws NetworkIOException {
         // TODO Auto-generated method stub
 
     }
 
+    /**
+     * Returns an initialized connection to the same destination, with its
+     * own channel and cache, sharing the delivery result executor if one was
+     * provided.
+     */
     @Override
-    public ApnsConnection copy() {
-        // TODO Auto-generated method stub
-        return null;
+    public NettyApnsConnectionImpl copy() {
+        NettyApnsConnectionImpl copy = new NettyApnsConnectionImpl(channelProvider.copy(),
+                delegate, cacheStore.copy(),
+                deliveryResultExecutorServiceProvided ? deliveryResultExecutorService : null,
+                backoffPolicy);
+        copy.init();
+        return copy;
     }
 
 }
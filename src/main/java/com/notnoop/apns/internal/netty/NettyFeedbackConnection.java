@@ -0,0 +1,352 @@
+package com.notnoop.apns.internal.netty;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.nio.channels.ClosedChannelException;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.notnoop.apns.DeviceToken;
+import com.notnoop.apns.FeedbackListener;
+import com.notnoop.apns.internal.ApnsFeedbackConnection;
+import com.notnoop.apns.internal.TlsSettings;
+import com.notnoop.apns.internal.Utilities;
+import com.notnoop.apns.internal.netty.encoding.FeedbackTupleDecoder;
+import com.notnoop.exceptions.NetworkIOException;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.DecoderException;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.handler.timeout.ReadTimeoutException;
+import io.netty.handler.timeout.ReadTimeoutHandler;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.Promise;
+
+/**
+ * Feedback connection reading the feedback service on a Netty event loop,
+ * usually the one shared with the gateway connections, instead of on the
+ * calling thread.
+ *
+ * {@link #getInactiveDevicesAsync(FeedbackListener)} returns right away and
+ * the listener is called on the event loop as the tuples arrive; the
+ * blocking methods wait for the same read to complete, and may not be
+ * called on a thread of the event loop group. Failed reads are retried on
+ * the event loop, without holding any thread in between.
+ */
+public class NettyFeedbackConnection extends ApnsFeedbackConnection {
+    private static final Logger LOGGER = LoggerFactory.getLogger(NettyFeedbackConnection.class);
+
+    private static final int RETRIES = 3;
+    int DELAY_IN_MS = 1000;
+
+    private final EventLoopGroup eventLoopGroup;
+    private final SSLContext sslContext;
+    private final TlsSettings tls;
+    private final Bootstrap bootstrap;
+    private final String host;
+    private final int port;
+    private final int readTimeout;
+
+    public NettyFeedbackConnection(EventLoopGroup eventLoopGroup,
+            SSLContext sslContext, String host, int port, int readTimeout) {
+        this(eventLoopGroup, sslContext, host, port, readTimeout, TlsSettings.DEFAULT);
+    }
+
+    public NettyFeedbackConnection(EventLoopGroup eventLoopGroup,
+            SSLContext sslContext, String host, int port, int readTimeout,
+            TlsSettings tls) {
+        super(tls.wrap(sslContext.getSocketFactory(), readTimeout), host, port, null, readTimeout);
+        this.eventLoopGroup = eventLoopGroup;
+        this.sslContext = sslContext;
+        this.tls = tls;
+        this.host = host;
+        this.port = port;
+        this.readTimeout = readTimeout;
+        bootstrap = new Bootstrap();
+        bootstrap.group(eventLoopGroup);
+        bootstrap.channel(NioSocketChannel.class);
+        bootstrap.option(ChannelOption.SO_KEEPALIVE, true);
+        if (readTimeout > 0) {
+            bootstrap.option(ChannelOption.CONNECT_TIMEOUT_MILLIS, readTimeout);
+        }
+    }
+
+    @Override
+    public Future<Integer> getInactiveDevicesAsync(FeedbackListener listener) {
+        return start(listener).promise;
+    }
+
+    /**
+     * Waits for the read on the calling thread. With a read timeout, the
+     * read fails with a {@link SocketTimeoutException} once it made no
+     * progress for that long, on top of the delay between two attempts.
+     *
+     * @throws IllegalStateException
+     *             if called on a thread of the event loop group, which would
+     *             wait for itself
+     */
+    @Override
+    public int getInactiveDevices(FeedbackListener listener) throws NetworkIOException {
+        for (EventExecutor executor : eventLoopGroup) {
+            if (executor.inEventLoop()) {
+                throw new IllegalStateException("Blocking feedback read on an event loop thread, "
+                        + "use getInactiveDevicesAsync instead");
+            }
+        }
+        Read read = start(listener);
+        try {
+            if (readTimeout <= 0) {
+                read.promise.await();
+            } else {
+                while (!read.promise.await(readTimeout) && !read.stalled()) {
+                    // still connecting, reading or about to retry
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            read.abort(new InterruptedIOException("Interrupted while reading the feedback"));
+        }
+        if (!read.promise.isDone()) {
+            LOGGER.error("Couldn't get feedback connection, no progress in {} ms",
+                    readTimeout + DELAY_IN_MS);
+            read.abort(new SocketTimeoutException("Read timed out"));
+        }
+        if (!read.promise.isSuccess()) {
+            throw (RuntimeException) read.promise.cause();
+        }
+        return read.promise.getNow();
+    }
+
+    @Override
+    public Map<String, Date> getInactiveDevices() throws NetworkIOException {
+        final Map<String, Date> result = new HashMap<String, Date>();
+        getInactiveDevices(new FeedbackListener() {
+            public void inactiveDevice(byte[] deviceToken, long timestamp) {
+                final String dtString = Utilities.encodeHex(deviceToken);
+                final Date previous = result.get(dtString);
+                if (previous == null || previous.getTime() < timestamp) {
+                    result.put(dtString, new Date(timestamp));
+                }
+            }
+        });
+        return result;
+    }
+
+    @Override
+    public Map<DeviceToken, Date> getInactiveDeviceTokens() throws NetworkIOException {
+        final Map<DeviceToken, Date> result = new HashMap<DeviceToken, Date>();
+        getInactiveDevices(new FeedbackListener() {
+            public void inactiveDevice(byte[] deviceToken, long timestamp) {
+                if (deviceToken.length != DeviceToken.LENGTH) {
+                    LOGGER.warn("Skipping feedback tuple with token length {}", deviceToken.length);
+                    return;
+                }
+                final DeviceToken token = DeviceToken.fromBytes(deviceToken);
+                final Date previous = result.get(token);
+                if (previous == null || previous.getTime() < timestamp) {
+                    result.put(token, new Date(timestamp));
+                }
+            }
+        });
+        return result;
+    }
+
+    private Read start(FeedbackListener listener) {
+        Read read = new Read(listener, eventLoopGroup.next().<Integer> newPromise());
+        read.attempt();
+        return read;
+    }
+
+    /**
+     * One read of the feedback service, with its retries. The read is only
+     * retried if it failed before any device was reported, as the feedback
+     * service does not report a device twice.
+     */
+    private class Read implements FeedbackListener {
+        private final FeedbackListener listener;
+        final Promise<Integer> promise;
+        private final AtomicInteger reported = new AtomicInteger();
+        private int attempts;
+        private volatile long progressNanos = System.nanoTime();
+        private volatile Channel channel;
+
+        Read(FeedbackListener listener, Promise<Integer> promise) {
+            this.listener = listener;
+            this.promise = promise;
+        }
+
+        public void inactiveDevice(byte[] deviceToken, long timestamp) {
+            progressNanos = System.nanoTime();
+            reported.incrementAndGet();
+            listener.inactiveDevice(deviceToken, timestamp);
+        }
+
+        /**
+         * Whether the read made no progress for longer than an attempt may
+         * stay silent: the delay before a retry, then the read timeout of
+         * its connection or of its reads.
+         */
+        boolean stalled() {
+            return System.nanoTime() - progressNanos
+                    > TimeUnit.MILLISECONDS.toNanos(readTimeout + DELAY_IN_MS);
+        }
+
+        /**
+         * Fails the read with {@code cause} and closes its connection.
+         */
+        void abort(IOException cause) {
+            if (promise.tryFailure(new NetworkIOException(cause))) {
+                Channel current = channel;
+                if (current != null) {
+                    current.close();
+                }
+            }
+        }
+
+        void attempt() {
+            if (promise.isDone()) {
+                return;
+            }
+            attempts++;
+            progressNanos = System.nanoTime();
+            final Completion completion = new Completion(this);
+            Bootstrap b = bootstrap.clone();
+            b.handler(new ChannelInitializer<SocketChannel>() {
+                @Override
+                protected void initChannel(SocketChannel ch) throws Exception {
+                    SSLEngine engine = tls.newClientEngine(sslContext, host, port);
+                    SslHandler ssl = new SslHandler(engine);
+                    ch.pipeline().addLast("ssl", ssl);
+                    if (tls.getMetrics() != null) {
+                        ch.pipeline().addLast(new TlsHandshakeTimer(tls.getMetrics(), ssl));
+                    }
+                    if (readTimeout > 0) {
+                        ch.pipeline().addLast(new ReadTimeoutHandler(readTimeout,
+                                TimeUnit.MILLISECONDS));
+                    }
+                    ch.pipeline().addLast(completion.decoder, completion);
+                }
+            });
+            ChannelFuture connect = b.connect(host, port);
+            channel = connect.channel();
+            connect.addListener(new ChannelFutureListener() {
+                @Override
+                public void operationComplete(ChannelFuture future) throws Exception {
+                    progressNanos = System.nanoTime();
+                    if (!future.isSuccess()) {
+                        completion.failed(future.cause());
+                    } else if (promise.isDone()) {
+                        future.channel().close();
+                    }
+                }
+            });
+        }
+
+        void completed(int tuples) {
+            promise.trySuccess(tuples);
+        }
+
+        void failed(Throwable cause) {
+            if (promise.isDone()) {
+                return;
+            }
+            progressNanos = System.nanoTime();
+            LOGGER.warn("Failed to retreive invalid devices", cause);
+            if (attempts >= RETRIES || reported.get() > 0) {
+                LOGGER.error("Couldn't get feedback connection", cause);
+                promise.tryFailure(toException(cause));
+                return;
+            }
+            eventLoopGroup.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    attempt();
+                }
+            }, DELAY_IN_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Completes one attempt of a read once the feedback service closes the
+     * connection, or when it fails.
+     */
+    private static class Completion extends ChannelInboundHandlerAdapter {
+        private final Read read;
+        final FeedbackTupleDecoder decoder;
+        private boolean done;
+
+        Completion(Read read) {
+            this.read = read;
+            this.decoder = new FeedbackTupleDecoder(read);
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+            SslHandler ssl = ctx.pipeline().get(SslHandler.class);
+            if (!ssl.handshakeFuture().isSuccess()) {
+                Throwable cause = ssl.handshakeFuture().cause();
+                failed(cause != null ? cause : new ClosedChannelException());
+                return;
+            }
+            if (decoder.getPendingBytes() != 0) {
+                LOGGER.warn("Feedback stream ended within a tuple, ignoring its last {} bytes",
+                        decoder.getPendingBytes());
+            }
+            if (!done) {
+                done = true;
+                read.completed(decoder.getTuples());
+            }
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            failed(cause);
+            ctx.close();
+        }
+
+        void failed(Throwable cause) {
+            if (!done) {
+                done = true;
+                read.failed(cause);
+            }
+        }
+    }
+
+    private static RuntimeException toException(Throwable cause) {
+        if (cause instanceof DecoderException && cause.getCause() != null) {
+            cause = cause.getCause();
+        }
+        if (cause instanceof ReadTimeoutException) {
+            // as reported by the blocking connection
+            cause = new SocketTimeoutException("Read timed out");
+        }
+        if (cause instanceof IOException) {
+            return new NetworkIOException((IOException) cause);
+        } else if (cause instanceof RuntimeException) {
+            return (RuntimeException) cause;
+        } else {
+            return new RuntimeException(cause);
+        }
+    }
+}
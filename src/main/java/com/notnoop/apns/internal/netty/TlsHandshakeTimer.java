@@ -0,0 +1,45 @@
+package com.notnoop.apns.internal.netty;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.GenericFutureListener;
+
+import com.notnoop.apns.TlsHandshakeMetrics;
+import com.notnoop.apns.internal.TlsSettings;
+
+/**
+ * Reports the handshake of the {@link SslHandler} of the channel, from the
+ * connection to its completion, to the metrics. Removes itself once the
+ * channel is active.
+ */
+public class TlsHandshakeTimer extends ChannelInboundHandlerAdapter {
+    private final TlsHandshakeMetrics metrics;
+    private final SslHandler ssl;
+
+    public TlsHandshakeTimer(TlsHandshakeMetrics metrics, SslHandler ssl) {
+        this.metrics = metrics;
+        this.ssl = ssl;
+    }
+
+    @Override
+    public void channelActive(ChannelHandlerContext ctx) throws Exception {
+        final long startMillis = System.currentTimeMillis();
+        final long start = System.nanoTime();
+        ssl.handshakeFuture().addListener(new GenericFutureListener<Future<Channel>>() {
+            @Override
+            public void operationComplete(Future<Channel> future) throws Exception {
+                if (future.isSuccess()) {
+                    metrics.handshakeCompleted(System.nanoTime() - start,
+                            TlsSettings.isResumed(ssl.engine().getSession(), startMillis));
+                } else {
+                    metrics.handshakeFailed();
+                }
+            }
+        });
+        ctx.pipeline().remove(this);
+        super.channelActive(ctx);
+    }
+}
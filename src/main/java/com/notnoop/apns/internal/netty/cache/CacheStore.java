@@ -6,6 +6,11 @@ import com.notnoop.apns.ApnsNotification;
 import com.notnoop.apns.DeliveryResult;
 
 public interface CacheStore {
+    /**
+     * Returns a new, empty store with the same settings.
+     */
+    CacheStore copy();
+
     /**
      * If this cache requires resize, resize it. TODO make this operation less
      * 'weird'
@@ -36,6 +41,15 @@ public interface CacheStore {
      */
     int moveCacheToBuffer();
 
+    /**
+     * Move existing items in the cache to the provided collection, e.g. to
+     * keep the notifications written to a replaced channel apart.
+     * 
+     * @param target
+     * @return The number of items moved.
+     */
+    int moveCacheTo(Collection<ApnsNotification> target);
+
     /**
      * Interface to process buffer items.
      * 
@@ -25,6 +25,11 @@ public class CacheStoreImpl implements CacheStore {
         this.autoAdjustCacheLength = autoAdjustCacheLength;
     }
 
+    @Override
+    public CacheStoreImpl copy() {
+        return new CacheStoreImpl(cacheLength, autoAdjustCacheLength);
+    }
+
     /*
      * (non-Javadoc)
      * 
@@ -87,6 +92,24 @@ public class CacheStoreImpl implements CacheStore {
         return resendSize;
     }
 
+    /*
+     * (non-Javadoc)
+     * 
+     * @see
+     * com.notnoop.apns.internal.netty.cache.CacheStore#moveCacheTo(java.util
+     * .Collection)
+     */
+    @Override
+    public int moveCacheTo(Collection<ApnsNotification> target) {
+        int moved = 0;
+        ApnsNotification cachedNotification = null;
+        while ((cachedNotification = cachedNotifications.poll()) != null) {
+            moved++;
+            target.add(cachedNotification);
+        }
+        return moved;
+    }
+
     /*
      * (non-Javadoc)
      * 
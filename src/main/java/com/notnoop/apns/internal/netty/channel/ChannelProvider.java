@@ -70,6 +70,12 @@ public interface ChannelProvider {
      */
     void init();
 
+    /**
+     * Returns a new channel provider to the same destination, with a copy
+     * of the reconnect policy, not yet initialized.
+     */
+    ChannelProvider copy();
+
     public static interface ChannelHandlersProvider {
         List<ChannelHandler> getChannelHandlers();
     }
@@ -1,6 +1,7 @@
 package com.notnoop.apns.internal.netty.channel;
 
 import java.io.IOException;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicReference;
 
@@ -8,39 +9,68 @@ import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLEngine;
 
 import com.notnoop.apns.ReconnectPolicy;
+import com.notnoop.apns.TrafficAwareReconnectPolicy;
+import com.notnoop.apns.internal.ReconnectPolicies;
+import com.notnoop.apns.internal.TlsSettings;
+import com.notnoop.apns.internal.netty.TlsHandshakeTimer;
 import com.notnoop.exceptions.ChannelProviderClosedException;
 
 import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelOption;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.ChannelPromise;
 import io.netty.channel.EventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
 import io.netty.channel.socket.nio.NioSocketChannel;
 import io.netty.handler.ssl.SslHandler;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.GenericFutureListener;
 
 // TODO test
 public class NettyChannelProviderImpl extends AbstractChannelProvider {
 
+    private final EventLoopGroup eventLoopGroup;
+    private final int readTimeout;
     private final ReconnectPolicy reconnectPolicy;
     private final SSLContext sslContext;
+    private final TlsSettings tls;
     private final Bootstrap bootstrap;
     private final String host;
 
     private final int port;
     private final AtomicReference<ChannelFuture> channelFutureReference = new AtomicReference<>();
     private final AtomicBoolean closed = new AtomicBoolean(false);
+    private final AtomicBoolean rotating = new AtomicBoolean(false);
+    // whether the policy asks for a connection per notification
+    private final boolean perNotification;
+
+    private static final long RETIRE_DELAY_MS = 1000;
 
     public NettyChannelProviderImpl(EventLoopGroup eventLoopGroup,
             ReconnectPolicy reconnectPolicy, String host, int port,
             int readTimeout, SSLContext sslContext) {
+        this(eventLoopGroup, reconnectPolicy, host, port, readTimeout,
+                sslContext, TlsSettings.DEFAULT);
+    }
+
+    public NettyChannelProviderImpl(EventLoopGroup eventLoopGroup,
+            ReconnectPolicy reconnectPolicy, String host, int port,
+            int readTimeout, SSLContext sslContext, TlsSettings tls) {
+        this.eventLoopGroup = eventLoopGroup;
+        this.readTimeout = readTimeout;
         this.reconnectPolicy = reconnectPolicy;
+        this.perNotification = ReconnectPolicies.isPerNotification(reconnectPolicy);
         this.host = host;
         this.port = port;
         this.sslContext = sslContext;
+        this.tls = tls;
         bootstrap = new Bootstrap();
         bootstrap.group(eventLoopGroup);
         bootstrap.channel(NioSocketChannel.class);
@@ -60,10 +90,16 @@ public class NettyChannelProviderImpl extends AbstractChannelProvider {
         ChannelFuture channelFuture = channelFutureReference.get();
 
         if (reconnectPolicy.shouldReconnect() && channelFuture != null) {
-            try {
-                closeCurrentChannel();
-            } catch (Throwable t) {
-                LOGGER.error("Error while closing connection", t);
+            if (channelFuture.channel().isActive() && !perNotification) {
+                rotate();
+            } else {
+                // a connection per notification is replaced, not rotated
+                try {
+                    closeCurrentChannel();
+                } catch (Throwable t) {
+                    LOGGER.error("Error while closing connection", t);
+                }
+                channelFuture = null;
             }
         }
         if (channelFuture == null || !channelFuture.channel().isActive()) {
@@ -79,6 +115,78 @@ public class NettyChannelProviderImpl extends AbstractChannelProvider {
         return channelFuture.channel();
     }
 
+    /**
+     * Replaces the active channel, make-before-break: the new channel is
+     * connected and handshaken in the background while the current one keeps
+     * being used, and the old one is closed only after a grace period, so
+     * that error responses for the last notifications written to it can
+     * still be read.
+     */
+    private void rotate() {
+        if (!rotating.compareAndSet(false, true)) {
+            return;
+        }
+        final ChannelFuture replacement = bootstrap.connect(host, port);
+        replacement.addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture future) throws Exception {
+                if (!future.isSuccess()) {
+                    rotationFailed(future.cause());
+                    return;
+                }
+                SslHandler ssl = future.channel().pipeline().get(SslHandler.class);
+                if (ssl == null) {
+                    swap(replacement);
+                    return;
+                }
+                ssl.handshakeFuture().addListener(
+                        new GenericFutureListener<Future<Channel>>() {
+                            @Override
+                            public void operationComplete(Future<Channel> handshake) {
+                                if (handshake.isSuccess()) {
+                                    swap(replacement);
+                                } else {
+                                    replacement.channel().close();
+                                    rotationFailed(handshake.cause());
+                                }
+                            }
+                        });
+            }
+        });
+    }
+
+    private void swap(ChannelFuture replacement) {
+        ChannelFuture current = channelFutureReference.getAndSet(replacement);
+        reconnectPolicy.reconnected();
+        rotating.set(false);
+        if (closed.get()) {
+            // closed meanwhile
+            closeCurrentChannel();
+            if (current != null) {
+                current.channel().close();
+            }
+            return;
+        }
+        LOGGER.debug("APNS connection rotated");
+        if (current != null) {
+            final Channel old = current.channel();
+            old.eventLoop().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    LOGGER.debug("Closing rotated channel...");
+                    old.close();
+                }
+            }, RETIRE_DELAY_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void rotationFailed(Throwable cause) {
+        // keep sending on the current channel until the next rotation
+        LOGGER.warn("Could not rotate APNS connection, keeping the current one", cause);
+        reconnectPolicy.reconnected();
+        rotating.set(false);
+    }
+
     @Override
     public void close() throws IOException {
         LOGGER.info("Closing channel provider...");
@@ -124,13 +232,21 @@ public class NettyChannelProviderImpl extends AbstractChannelProvider {
         bootstrap.handler(new ChannelInitializer<SocketChannel>() {
             @Override
             protected void initChannel(final SocketChannel ch) throws Exception {
-                SSLEngine engine = sslContext.createSSLEngine();
-                engine.setUseClientMode(true);
-                ch.pipeline().addFirst("ssl", new SslHandler(engine));
+                SSLEngine engine = tls.newClientEngine(sslContext, host, port);
+                SslHandler ssl = new SslHandler(engine);
+                ch.pipeline().addFirst("ssl", ssl);
+                if (tls.getMetrics() != null) {
+                    ch.pipeline().addAfter("ssl", "handshake-timer",
+                            new TlsHandshakeTimer(tls.getMetrics(), ssl));
+                }
                 for (ChannelHandler h : NettyChannelProviderImpl.this
                         .getChannelHandlersProvider().getChannelHandlers()) {
                     ch.pipeline().addLast(h);
                 }
+                if (reconnectPolicy instanceof TrafficAwareReconnectPolicy) {
+                    ch.pipeline().addLast(new TrafficCounter(
+                            (TrafficAwareReconnectPolicy) reconnectPolicy));
+                }
                 ch.config().setAutoClose(false);
                 ch.closeFuture().addListener(new ChannelFutureListener() {
 
@@ -144,4 +260,30 @@ public class NettyChannelProviderImpl extends AbstractChannelProvider {
         });
     }
 
+    @Override
+    public NettyChannelProviderImpl copy() {
+        return new NettyChannelProviderImpl(eventLoopGroup, reconnectPolicy.copy(), host, port,
+                readTimeout, sslContext, tls);
+    }
+
+    /**
+     * Reports each notification written to the channel to the reconnect
+     * policy.
+     */
+    private static class TrafficCounter extends ChannelOutboundHandlerAdapter {
+        private final TrafficAwareReconnectPolicy policy;
+
+        TrafficCounter(TrafficAwareReconnectPolicy policy) {
+            this.policy = policy;
+        }
+
+        @Override
+        public void write(ChannelHandlerContext ctx, Object msg,
+                ChannelPromise promise) throws Exception {
+            if (msg instanceof ByteBuf) {
+                policy.sent(1, ((ByteBuf) msg).readableBytes());
+            }
+            super.write(ctx, msg, promise);
+        }
+    }
 }
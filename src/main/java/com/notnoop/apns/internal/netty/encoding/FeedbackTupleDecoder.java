@@ -0,0 +1,66 @@
+package com.notnoop.apns.internal.netty.encoding;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import com.notnoop.apns.FeedbackListener;
+import com.notnoop.apns.internal.FeedbackDecoder;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.ByteToMessageDecoder;
+
+/**
+ * Decodes the feedback tuples (timestamp, token length, token) received on
+ * a channel, handing each one to a {@link FeedbackListener} as soon as it is
+ * complete instead of passing it down the pipeline.
+ *
+ * The tuples are read in place from the received buffers, which are direct
+ * with the default allocator; incomplete tuples are kept until the next
+ * read.
+ */
+public class FeedbackTupleDecoder extends ByteToMessageDecoder {
+
+    private final FeedbackDecoder decoder = new FeedbackDecoder();
+    private final FeedbackListener listener;
+    private int tuples;
+    private int pendingBytes;
+
+    public FeedbackTupleDecoder(FeedbackListener listener) {
+        this.listener = listener;
+    }
+
+    @Override
+    protected void decode(ChannelHandlerContext ctx, ByteBuf in,
+            List<Object> out) throws Exception {
+        if (in.readableBytes() < FeedbackDecoder.HEADER_LENGTH) {
+            return;
+        }
+        ByteBuffer buffer = in.nioBuffer();
+        int start = buffer.position();
+        tuples += decoder.decode(buffer, listener);
+        in.skipBytes(buffer.position() - start);
+    }
+
+    @Override
+    protected void decodeLast(ChannelHandlerContext ctx, ByteBuf in,
+            List<Object> out) throws Exception {
+        decode(ctx, in, out);
+        pendingBytes = in.readableBytes();
+    }
+
+    /**
+     * Returns the number of tuples decoded so far.
+     */
+    public int getTuples() {
+        return tuples;
+    }
+
+    /**
+     * Returns the number of bytes of an incomplete tuple left when the
+     * channel was closed.
+     */
+    public int getPendingBytes() {
+        return pendingBytes;
+    }
+}
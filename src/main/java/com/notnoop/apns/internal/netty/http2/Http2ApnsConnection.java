@@ -0,0 +1,628 @@
+package com.notnoop.apns.internal.netty.http2;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.http2.DefaultHttp2Headers;
+import io.netty.handler.codec.http2.Http2Headers;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.GenericFutureListener;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.notnoop.apns.ApnsDelegate;
+import com.notnoop.apns.ApnsNotification;
+import com.notnoop.apns.ApnsSigningKey;
+import com.notnoop.apns.EnhancedApnsNotification;
+import com.notnoop.apns.FramedApnsNotification;
+import com.notnoop.apns.TopicApnsNotification;
+import com.notnoop.apns.internal.ApnsConnection;
+import com.notnoop.apns.internal.EncodedApnsNotification;
+import com.notnoop.apns.internal.ProviderTokens;
+import com.notnoop.apns.internal.TlsSettings;
+import com.notnoop.apns.internal.Utilities;
+import com.notnoop.apns.internal.netty.TlsHandshakeTimer;
+import com.notnoop.exceptions.ApnsRejectionException;
+import com.notnoop.exceptions.ChannelProviderClosedException;
+import com.notnoop.exceptions.NetworkIOException;
+
+/**
+ * Sends the notifications to the HTTP/2 provider API, each on its own
+ * stream, multiplexed over a few connections.
+ *
+ * A notification is sent on the connection with the most streams
+ * available; a new connection is only opened when all of them are full,
+ * up to the maximum. When every stream of every connection is in use,
+ * {@link #sendMessage(ApnsNotification)} waits for one to be released.
+ *
+ * Each notification gets its own response, so there is no resend cache:
+ * the notifications are only resent, up to three times, when the server
+ * did not process them, that is when it refused their stream or when they
+ * were above the last stream of a GOAWAY. The ones interrupted otherwise
+ * may have been delivered, and are reported as failed. A resend that finds
+ * no stream available is handed to a thread of its own, so that it does not
+ * hold the delivery of the other responses while it connects or waits.
+ */
+public class Http2ApnsConnection implements ApnsConnection, Http2ResponseListener,
+        Http2ClientHandler.CapacityListener {
+    private static final Logger LOGGER = LoggerFactory.getLogger(Http2ApnsConnection.class);
+
+    public static final int DEFAULT_MAX_STREAMS = 1000;
+    private static final int DEFAULT_TIMEOUT_MILLIS = 10000;
+    private static final int RETRIES = 3;
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    // unique to each notification, never worth a table entry
+    private static final String[] UNINDEXED_HEADERS = { ":path", "apns-expiration",
+            "apns-id", "content-length" };
+
+    private final EventLoopGroup eventLoopGroup;
+    private final SSLContext sslContext;
+    private final TlsSettings tls;
+    private final String host;
+    private final int port;
+    private final String authority;
+    private final String topic;
+    private final int maxConnections;
+    private final int maxStreams;
+    private final int timeoutMillis;
+    private final ApnsDelegate delegate;
+    private final ExecutorService executor;
+    private final boolean executorProvided;
+    private final ThreadPoolExecutor resender;
+    private final ApnsSigningKey signingKey;
+    private final ProviderTokens tokens;
+
+    private final List<Http2ClientHandler> handlers = new CopyOnWriteArrayList<Http2ClientHandler>();
+    private final List<Channel> channels = new CopyOnWriteArrayList<Channel>();
+    private final Object connectLock = new Object();
+
+    // notified when streams are released, and when nothing is in flight
+    private final Object capacity = new Object();
+    private final AtomicInteger capacityVersion = new AtomicInteger();
+    private volatile int waiters;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private volatile boolean closed;
+
+    /**
+     * @param topic the <code>apns-topic</code> of the notifications, or
+     *            {@code null} to leave it to the certificate
+     * @param maxConnections the connections opened at once, at most
+     * @param maxStreams the streams open at once on a connection, at most,
+     *            whatever the server allows
+     * @param timeoutMillis how long to wait for a connection or a stream,
+     *            or 0 for the default of 10 seconds
+     * @param executor runs the delegate and the resends, or {@code null}
+     *            for a thread of the connection
+     */
+    public Http2ApnsConnection(EventLoopGroup eventLoopGroup, SSLContext sslContext,
+            TlsSettings tls, String host, int port, String topic, int maxConnections,
+            int maxStreams, int timeoutMillis, ApnsDelegate delegate,
+            ExecutorService executor) {
+        this(eventLoopGroup, sslContext, tls, host, port, topic, maxConnections, maxStreams,
+                timeoutMillis, delegate, executor, null);
+    }
+
+    /**
+     * @param signingKey signs the provider tokens authenticating the
+     *            requests, or {@code null} to authenticate with the client
+     *            certificate of the context
+     */
+    public Http2ApnsConnection(EventLoopGroup eventLoopGroup, SSLContext sslContext,
+            TlsSettings tls, String host, int port, String topic, int maxConnections,
+            int maxStreams, int timeoutMillis, ApnsDelegate delegate,
+            ExecutorService executor, ApnsSigningKey signingKey) {
+        this.eventLoopGroup = eventLoopGroup;
+        this.sslContext = sslContext;
+        this.tls = tls;
+        this.host = host;
+        this.port = port;
+        this.authority = port == 443 ? host : host + ":" + port;
+        this.topic = topic;
+        this.maxConnections = maxConnections;
+        this.maxStreams = maxStreams;
+        this.timeoutMillis = timeoutMillis > 0 ? timeoutMillis : DEFAULT_TIMEOUT_MILLIS;
+        this.delegate = delegate == null ? ApnsDelegate.EMPTY : delegate;
+        if (executor != null) {
+            this.executor = executor;
+            this.executorProvided = true;
+        } else {
+            ThreadPoolExecutor own = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>());
+            own.allowCoreThreadTimeOut(true);
+            this.executor = own;
+            this.executorProvided = false;
+        }
+        this.resender = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>());
+        this.resender.allowCoreThreadTimeOut(true);
+        this.signingKey = signingKey;
+        this.tokens = signingKey == null ? null : ProviderTokens.of(signingKey);
+    }
+
+    @Override
+    public void sendMessage(ApnsNotification m) throws NetworkIOException {
+        Push push = new Push(m, headers(m), 1);
+        try {
+            dispatch(push);
+        } catch (RuntimeException e) {
+            delegate.messageSendFailed(m, e);
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the headers of the request for {@code m}. The provider token
+     * is the one already signed, and is sent from the dynamic table of the
+     * connection after its first request.
+     */
+    protected Http2Headers headers(ApnsNotification m) {
+        Http2Headers headers = new DefaultHttp2Headers()
+                .method("POST")
+                .scheme("https")
+                .path("/3/device/" + Utilities.encodeHex(m.getDeviceToken()))
+                .authority(authority);
+        if (tokens != null) {
+            headers.add("authorization", tokens.getAuthorization(executor));
+        }
+        String notificationTopic = m instanceof TopicApnsNotification
+                ? ((TopicApnsNotification) m).getTopic() : topic;
+        if (notificationTopic != null) {
+            headers.add("apns-topic", notificationTopic);
+        }
+        int expiry = m.getExpiry();
+        if (expiry >= 0 && expiry != EnhancedApnsNotification.MAXIMUM_EXPIRY) {
+            headers.add("apns-expiration", Integer.toString(expiry));
+        }
+        int priority = priority(m);
+        if (priority > 0) {
+            headers.add("apns-priority", Integer.toString(priority));
+        }
+        return headers;
+    }
+
+    /**
+     * Returns the priority of {@code m}, or 0 if it carries none.
+     */
+    private static int priority(ApnsNotification m) {
+        while (m instanceof TopicApnsNotification) {
+            m = ((TopicApnsNotification) m).getNotification();
+        }
+        if (m instanceof FramedApnsNotification) {
+            return ((FramedApnsNotification) m).getPriority();
+        }
+        if (m instanceof EncodedApnsNotification) {
+            return ((EncodedApnsNotification) m).getPriority();
+        }
+        return 0;
+    }
+
+    private void dispatch(Push push) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        while (true) {
+            if (closed) {
+                throw new ChannelProviderClosedException();
+            }
+            int version = capacityVersion.get();
+            Http2ClientHandler handler = reserve();
+            if (handler != null) {
+                inFlight.incrementAndGet();
+                handler.send(push);
+                return;
+            }
+            if (handlers.size() < maxConnections) {
+                connect(deadline);
+                continue;
+            }
+            if (!awaitCapacity(version, deadline)) {
+                throw new NetworkIOException("No HTTP/2 stream available within "
+                        + timeoutMillis + " ms");
+            }
+        }
+    }
+
+    /**
+     * Reserves a stream on the connection with the most available.
+     */
+    private Http2ClientHandler reserve() {
+        for (int attempt = 0; attempt <= handlers.size(); attempt++) {
+            Http2ClientHandler best = null;
+            int available = 0;
+            for (Http2ClientHandler handler : handlers) {
+                int streams = handler.availableStreams();
+                if (streams > available) {
+                    best = handler;
+                    available = streams;
+                }
+            }
+            if (best == null) {
+                return null;
+            }
+            if (best.tryReserve()) {
+                return best;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Waits until the capacity changes from {@code version}.
+     *
+     * @return false if the deadline passed
+     */
+    private boolean awaitCapacity(int version, long deadline) {
+        synchronized (capacity) {
+            waiters++;
+            try {
+                while (capacityVersion.get() == version) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        return false;
+                    }
+                    capacity.wait(Math.max(1, TimeUnit.NANOSECONDS.toMillis(remaining)));
+                }
+                return true;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new NetworkIOException("Interrupted while waiting for a stream");
+            } finally {
+                waiters--;
+            }
+        }
+    }
+
+    @Override
+    public void capacityChanged(Http2ClientHandler handler) {
+        if (handler.isClosing()) {
+            handlers.remove(handler);
+        }
+        signal();
+    }
+
+    /**
+     * Wakes up the waiting threads. The version is bumped before the
+     * waiters are checked, and they check it after registering, so that
+     * none of them misses a change.
+     */
+    private void signal() {
+        capacityVersion.incrementAndGet();
+        if (waiters > 0) {
+            synchronized (capacity) {
+                capacity.notifyAll();
+            }
+        }
+    }
+
+    private void connect(long deadline) {
+        synchronized (connectLock) {
+            if (closed || handlers.size() >= maxConnections) {
+                return;
+            }
+            for (Http2ClientHandler handler : handlers) {
+                if (handler.availableStreams() > 0) {
+                    // another thread connected meanwhile
+                    return;
+                }
+            }
+            final Http2ClientHandler handler = new Http2ClientHandler(maxStreams, this,
+                    UNINDEXED_HEADERS);
+            final SslHandler[] ssl = new SslHandler[1];
+            Bootstrap bootstrap = new Bootstrap()
+                    .group(eventLoopGroup)
+                    .channel(NioSocketChannel.class)
+                    .option(ChannelOption.SO_KEEPALIVE, true)
+                    .option(ChannelOption.TCP_NODELAY, true)
+                    .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, timeoutMillis)
+                    .handler(new ChannelInitializer<SocketChannel>() {
+                        @Override
+                        protected void initChannel(SocketChannel ch) throws Exception {
+                            SSLEngine engine = tls.newClientEngine(sslContext, host, port);
+                            if (!TlsSettings.setApplicationProtocols(engine, "h2")) {
+                                LOGGER.warn("ALPN is not supported by this JDK, "
+                                        + "the server may refuse HTTP/2");
+                            }
+                            ssl[0] = new SslHandler(engine);
+                            ch.pipeline().addLast("ssl", ssl[0]);
+                            if (tls.getMetrics() != null) {
+                                ch.pipeline().addLast("handshakeTimer",
+                                        new TlsHandshakeTimer(tls.getMetrics(), ssl[0]));
+                            }
+                            ch.pipeline().addLast("http2", handler);
+                        }
+                    });
+
+            LOGGER.debug("Connecting to {}:{} over HTTP/2", host, port);
+            ChannelFuture connect = bootstrap.connect(host, port);
+            final Channel channel = connect.channel();
+            try {
+                await(connect, deadline);
+                await(ssl[0].handshakeFuture(), deadline);
+                await(handler.settingsReceived(channel), deadline);
+            } catch (NetworkIOException e) {
+                channel.close();
+                throw e;
+            }
+            handlers.add(handler);
+            channels.add(channel);
+            channel.closeFuture().addListener(new GenericFutureListener<Future<Void>>() {
+                @Override
+                public void operationComplete(Future<Void> future) throws Exception {
+                    handlers.remove(handler);
+                    channels.remove(channel);
+                    signal();
+                }
+            });
+        }
+    }
+
+    private void await(Future<?> future, long deadline) {
+        long remaining = deadline - System.nanoTime();
+        try {
+            if (remaining <= 0 || !future.await(TimeUnit.NANOSECONDS.toMillis(remaining))) {
+                throw new NetworkIOException("Could not connect to " + authority + " within "
+                        + timeoutMillis + " ms");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new NetworkIOException("Interrupted while connecting to " + authority);
+        }
+        if (!future.isSuccess()) {
+            Throwable cause = future.cause();
+            if (cause instanceof IOException) {
+                throw new NetworkIOException((IOException) cause);
+            }
+            throw new NetworkIOException("Could not connect to " + authority,
+                    new IOException(cause));
+        }
+    }
+
+    @Override
+    public void onResponse(Http2Request request, final int status, Http2Headers headers,
+            final byte[] body) {
+        final Push push = (Push) request;
+        completed(new Runnable() {
+            @Override
+            public void run() {
+                if (status == 200) {
+                    delegate.messageSent(push.notification, push.attempt > 1);
+                    return;
+                }
+                ApnsRejectionException rejection = rejection(status, body);
+                if (tokens != null && "ExpiredProviderToken".equals(rejection.getReason())
+                        && push.attempt < RETRIES) {
+                    tokens.expired(String.valueOf(push.getHeaders().get("authorization")));
+                    resend(push);
+                } else {
+                    delegate.messageSendFailed(push.notification, rejection);
+                }
+            }
+        });
+    }
+
+    /**
+     * Resends {@code push} on a stream available now, or else from the
+     * resend thread, counted in flight meanwhile.
+     */
+    private void resend(Push push) {
+        final Push next = new Push(push.notification, headers(push.notification),
+                push.attempt + 1);
+        Http2ClientHandler handler = closed ? null : reserve();
+        if (handler != null) {
+            inFlight.incrementAndGet();
+            handler.send(next);
+            return;
+        }
+        inFlight.incrementAndGet();
+        try {
+            resender.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        dispatch(next);
+                    } catch (RuntimeException e) {
+                        delegate.messageSendFailed(next.notification, e);
+                    } finally {
+                        if (inFlight.decrementAndGet() == 0) {
+                            signal();
+                        }
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            inFlight.decrementAndGet();
+            delegate.messageSendFailed(next.notification, new ChannelProviderClosedException());
+        }
+    }
+
+    private static ApnsRejectionException rejection(int status, byte[] body) {
+        String reason = null;
+        long timestamp = 0;
+        if (body.length > 0) {
+            try {
+                JsonNode json = MAPPER.readTree(body);
+                if (json.hasNonNull("reason")) {
+                    reason = json.get("reason").asText();
+                }
+                if (json.hasNonNull("timestamp")) {
+                    timestamp = json.get("timestamp").asLong();
+                }
+            } catch (IOException e) {
+                LOGGER.warn("Invalid response body for status {}", status);
+            }
+        }
+        return new ApnsRejectionException(status, reason, timestamp);
+    }
+
+    @Override
+    public void onFailure(Http2Request request, final Throwable cause, boolean processed) {
+        final Push push = (Push) request;
+        if (!processed && push.attempt < RETRIES && !closed) {
+            LOGGER.debug("Resending notification {}, it was not processed",
+                    push.notification.getIdentifier());
+            completed(new Runnable() {
+                @Override
+                public void run() {
+                    resend(push);
+                }
+            });
+        } else {
+            completed(new Runnable() {
+                @Override
+                public void run() {
+                    delegate.messageSendFailed(push.notification, cause instanceof IOException
+                            ? new NetworkIOException((IOException) cause)
+                            : new NetworkIOException("Notification failed", new IOException(cause)));
+                }
+            });
+        }
+    }
+
+    /**
+     * Runs {@code task} on the executor, then counts the notification out.
+     */
+    private void completed(final Runnable task) {
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        task.run();
+                    } finally {
+                        if (inFlight.decrementAndGet() == 0) {
+                            signal();
+                        }
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            LOGGER.warn("Delivery result dropped, the executor is shut down");
+            if (inFlight.decrementAndGet() == 0) {
+                signal();
+            }
+        }
+    }
+
+    /**
+     * Waits for the responses of the notifications in flight, for the
+     * timeout at most.
+     */
+    @Override
+    public void flush() throws NetworkIOException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        while (inFlight.get() > 0) {
+            int version = capacityVersion.get();
+            if (inFlight.get() == 0) {
+                return;
+            }
+            if (!awaitCapacity(version, deadline)) {
+                throw new NetworkIOException(inFlight.get()
+                        + " notifications still in flight after " + timeoutMillis + " ms");
+            }
+        }
+    }
+
+    @Override
+    public void testConnection() throws NetworkIOException {
+        Http2ApnsConnection test = new Http2ApnsConnection(eventLoopGroup, sslContext, tls,
+                host, port, topic, 1, maxStreams, timeoutMillis, ApnsDelegate.EMPTY, executor,
+                signingKey);
+        try {
+            test.connect(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis));
+        } finally {
+            Utilities.close(test);
+        }
+    }
+
+    @Override
+    public Http2ApnsConnection copy() {
+        return new Http2ApnsConnection(eventLoopGroup, sslContext, tls, host, port, topic,
+                maxConnections, maxStreams, timeoutMillis, delegate,
+                executorProvided ? executor : null, signingKey);
+    }
+
+    @Override
+    public void setCacheLength(int cacheLength) {
+        // no resend cache: each notification gets its own response
+    }
+
+    @Override
+    public int getCacheLength() {
+        return 0;
+    }
+
+    /**
+     * Returns the connections currently open.
+     */
+    public int getConnections() {
+        return channels.size();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        LOGGER.debug("Closing HTTP/2 APNS connection");
+        try {
+            flush();
+        } catch (NetworkIOException e) {
+            LOGGER.warn("Closing with notifications in flight", e);
+        }
+        closed = true;
+        for (Channel channel : channels) {
+            channel.close().awaitUninterruptibly(timeoutMillis);
+        }
+        channels.clear();
+        handlers.clear();
+        signal();
+        resender.shutdown();
+        try {
+            resender.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (!executorProvided) {
+            executor.shutdown();
+            try {
+                executor.awaitTermination(30, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                LOGGER.error("Termination did not complete in 30 seconds");
+            }
+        }
+    }
+
+    private class Push extends Http2Request {
+        final ApnsNotification notification;
+        final int attempt;
+
+        Push(ApnsNotification notification, Http2Headers headers, int attempt) {
+            super(headers, notification.getPayload(), Http2ApnsConnection.this);
+            this.notification = notification;
+            this.attempt = attempt;
+        }
+    }
+}
@@ -0,0 +1,425 @@
+package com.notnoop.apns.internal.netty.http2;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http2.DefaultHttp2Connection;
+import io.netty.handler.codec.http2.DefaultHttp2ConnectionDecoder;
+import io.netty.handler.codec.http2.DefaultHttp2ConnectionEncoder;
+import io.netty.handler.codec.http2.DefaultHttp2FrameReader;
+import io.netty.handler.codec.http2.DefaultHttp2FrameWriter;
+import io.netty.handler.codec.http2.DefaultHttp2Headers;
+import io.netty.handler.codec.http2.DefaultHttp2HeadersEncoder;
+import io.netty.handler.codec.http2.Http2Connection;
+import io.netty.handler.codec.http2.Http2ConnectionAdapter;
+import io.netty.handler.codec.http2.Http2ConnectionEncoder;
+import io.netty.handler.codec.http2.Http2ConnectionHandler;
+import io.netty.handler.codec.http2.Http2Error;
+import io.netty.handler.codec.http2.Http2Exception;
+import io.netty.handler.codec.http2.Http2FrameAdapter;
+import io.netty.handler.codec.http2.Http2Headers;
+import io.netty.handler.codec.http2.Http2HeadersEncoder;
+import io.netty.handler.codec.http2.Http2Settings;
+import io.netty.handler.codec.http2.Http2Stream;
+import io.netty.util.AsciiString;
+import io.netty.util.CharsetUtil;
+import io.netty.util.concurrent.Promise;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The client side of one HTTP/2 connection: sends each request on a new
+ * stream, within the stream limit of the server, and hands each response
+ * to the listener of its request. Framing, HPACK and flow control are
+ * those of the Netty HTTP/2 codec.
+ *
+ * Callers first reserve a stream with {@link #tryReserve()}, from any
+ * thread, then {@link #send(Http2Request)} the request. The state of the
+ * connection is only touched on its event loop.
+ */
+public class Http2ClientHandler extends Http2ConnectionHandler {
+    private static final Logger LOGGER = LoggerFactory.getLogger(Http2ClientHandler.class);
+
+    /**
+     * Told when streams may have become available, or the connection is
+     * closing.
+     */
+    public interface CapacityListener {
+        void capacityChanged(Http2ClientHandler handler);
+    }
+
+    private final int maxStreams;
+    private final CapacityListener capacityListener;
+    private final Http2Connection.PropertyKey streamKey;
+
+    // streams reserved by the callers, until their response
+    private final AtomicInteger reserved = new AtomicInteger();
+    private volatile int streamLimit;
+    private volatile boolean goingAway;
+    private volatile ChannelHandlerContext context;
+    private Promise<Void> settingsReceived;
+
+    // event loop only
+    private int lastProcessedStreamId = Integer.MAX_VALUE;
+    private boolean flushScheduled;
+
+    /**
+     * @param maxStreams streams open at once, at most, whatever the server
+     *            allows
+     * @param capacityListener told when streams may have become available
+     * @param unindexedHeaders headers unique to each request, not worth
+     *            adding to the dynamic table
+     */
+    public Http2ClientHandler(int maxStreams, CapacityListener capacityListener,
+            String... unindexedHeaders) {
+        this(encoder(new DefaultHttp2Connection(false), unindexedHeaders), maxStreams,
+                capacityListener);
+    }
+
+    private Http2ClientHandler(Http2ConnectionEncoder encoder, int maxStreams,
+            CapacityListener capacityListener) {
+        super(new DefaultHttp2ConnectionDecoder(encoder.connection(), encoder,
+                new DefaultHttp2FrameReader()), encoder, new Http2Settings().pushEnabled(false));
+        this.maxStreams = maxStreams;
+        this.capacityListener = capacityListener;
+        this.streamKey = connection().newKey();
+        // until the server tells its limit
+        this.streamLimit = 1;
+        decoder().frameListener(new ResponseReader());
+        connection().addListener(new StreamCloser());
+    }
+
+    private static Http2ConnectionEncoder encoder(Http2Connection connection,
+            final String... unindexedHeaders) {
+        Http2HeadersEncoder headersEncoder = new DefaultHttp2HeadersEncoder(
+                new Http2HeadersEncoder.SensitivityDetector() {
+                    @Override
+                    public boolean isSensitive(CharSequence name, CharSequence value) {
+                        for (String unindexed : unindexedHeaders) {
+                            if (AsciiString.contentEquals(unindexed, name)) {
+                                return true;
+                            }
+                        }
+                        return false;
+                    }
+                });
+        return new DefaultHttp2ConnectionEncoder(connection,
+                new DefaultHttp2FrameWriter(headersEncoder));
+    }
+
+    /**
+     * Completed once the first SETTINGS frame of the server is received.
+     */
+    public synchronized Promise<Void> settingsReceived(Channel channel) {
+        if (settingsReceived == null) {
+            settingsReceived = channel.eventLoop().newPromise();
+        }
+        return settingsReceived;
+    }
+
+    /**
+     * Returns the streams that can be reserved, 0 if the connection is
+     * closing.
+     */
+    public int availableStreams() {
+        if (isClosing()) {
+            return 0;
+        }
+        return Math.max(0, streamLimit - reserved.get());
+    }
+
+    /**
+     * Returns whether the connection takes no new streams anymore.
+     */
+    public boolean isClosing() {
+        ChannelHandlerContext c = context;
+        return goingAway || c == null || !c.channel().isActive();
+    }
+
+    /**
+     * Reserves a stream for a request to be sent.
+     *
+     * @return whether a stream was available
+     */
+    public boolean tryReserve() {
+        while (true) {
+            int current = reserved.get();
+            if (goingAway || current >= streamLimit) {
+                return false;
+            }
+            if (reserved.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Sends {@code request} on the stream reserved for it.
+     */
+    public void send(final Http2Request request) {
+        final ChannelHandlerContext c = context;
+        if (c == null) {
+            fail(request, new ClosedChannelException(), false);
+            return;
+        }
+        c.executor().execute(new Runnable() {
+            @Override
+            public void run() {
+                if (goingAway || !c.channel().isActive()) {
+                    fail(request, new ClosedChannelException(), false);
+                } else {
+                    write(c, request);
+                }
+            }
+        });
+    }
+
+    private void write(ChannelHandlerContext c, Http2Request request) {
+        int streamId = connection().local().incrementAndGetNextStreamId();
+        if (streamId < 0 || streamId > Integer.MAX_VALUE - 2) {
+            // stream ids exhausted, the next requests go to a new connection
+            goingAway = true;
+        }
+        byte[] body = request.getBody();
+        encoder().writeHeaders(c, streamId, request.getHeaders(), 0, body.length == 0,
+                c.newPromise());
+        Http2Stream stream = connection().stream(streamId);
+        if (stream == null) {
+            // refused by the codec before it was sent
+            fail(request, new IOException("Stream " + streamId + " could not be created"), false);
+            closeIfDone();
+            return;
+        }
+        stream.setProperty(streamKey, new Response(request));
+        if (body.length > 0) {
+            encoder().writeData(c, streamId, Unpooled.wrappedBuffer(body), 0, true, c.newPromise());
+        }
+        scheduleFlush(c);
+    }
+
+    /**
+     * Flushes once the requests already queued on the event loop are
+     * written, rather than after each of them.
+     */
+    private void scheduleFlush(final ChannelHandlerContext c) {
+        if (!flushScheduled) {
+            flushScheduled = true;
+            c.executor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    flushScheduled = false;
+                    // through the pipeline, for the codec to write what flow
+                    // control allows
+                    c.channel().flush();
+                }
+            });
+        }
+    }
+
+    private void release() {
+        reserved.decrementAndGet();
+        capacityListener.capacityChanged(this);
+    }
+
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) throws Exception {
+        this.context = ctx;
+        super.handlerAdded(ctx);
+    }
+
+    private void complete(Http2Stream stream) {
+        Response response = stream.removeProperty(streamKey);
+        if (response == null) {
+            return;
+        }
+        byte[] body;
+        if (response.body == null) {
+            body = new byte[0];
+        } else {
+            body = new byte[response.body.readableBytes()];
+            response.body.readBytes(body);
+            response.body.release();
+        }
+        int status = 0;
+        CharSequence value = response.headers == null ? null : response.headers.status();
+        try {
+            status = value == null ? 0 : Integer.parseInt(value.toString());
+        } catch (NumberFormatException e) {
+            LOGGER.warn("Invalid status {}", value);
+        }
+        release();
+        try {
+            response.request.getListener().onResponse(response.request, status,
+                    response.headers == null ? new DefaultHttp2Headers() : response.headers, body);
+        } catch (RuntimeException e) {
+            LOGGER.warn("Response listener failed", e);
+        }
+        closeIfDone();
+    }
+
+    private void closeIfDone() {
+        ChannelHandlerContext c = context;
+        if (goingAway && reserved.get() == 0 && c != null && c.channel().isActive()) {
+            c.channel().close();
+        }
+    }
+
+    private void fail(Http2Request request, Throwable cause, boolean processed) {
+        release();
+        try {
+            request.getListener().onFailure(request, cause, processed);
+        } catch (RuntimeException e) {
+            LOGGER.warn("Response listener failed", e);
+        }
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        goingAway = true;
+        // closes the open streams, failing their requests
+        super.channelInactive(ctx);
+        settingsReceived(ctx.channel()).tryFailure(new ClosedChannelException());
+        capacityListener.capacityChanged(this);
+    }
+
+    @Override
+    protected void onConnectionError(ChannelHandlerContext ctx, boolean outbound,
+            Throwable cause, Http2Exception http2Ex) {
+        LOGGER.warn("HTTP/2 connection failed", cause);
+        goingAway = true;
+        super.onConnectionError(ctx, outbound, cause, http2Ex);
+    }
+
+    /**
+     * Collects the responses.
+     */
+    private class ResponseReader extends Http2FrameAdapter {
+
+        @Override
+        public void onSettingsRead(ChannelHandlerContext ctx, Http2Settings settings) {
+            // no limit until the server sets one
+            int limit = isSettingsReceived() ? streamLimit : maxStreams;
+            Long max = settings.maxConcurrentStreams();
+            if (max != null) {
+                limit = (int) Math.min(max, maxStreams);
+            }
+            streamLimit = limit;
+            LOGGER.debug("HTTP/2 settings received, up to {} streams", limit);
+            settingsReceived(ctx.channel()).trySuccess(null);
+            capacityListener.capacityChanged(Http2ClientHandler.this);
+        }
+
+        @Override
+        public void onHeadersRead(ChannelHandlerContext ctx, int streamId, Http2Headers headers,
+                int streamDependency, short weight, boolean exclusive, int padding,
+                boolean endOfStream) {
+            Http2Stream stream = connection().stream(streamId);
+            Response response = stream == null ? null : stream.<Response> getProperty(streamKey);
+            if (response == null) {
+                return;
+            }
+            if (response.headers == null) {
+                response.headers = headers;
+            }
+            if (endOfStream) {
+                complete(stream);
+            }
+        }
+
+        @Override
+        public int onDataRead(ChannelHandlerContext ctx, int streamId, ByteBuf data, int padding,
+                boolean endOfStream) {
+            // the responses are consumed at once
+            int processed = data.readableBytes() + padding;
+            Http2Stream stream = connection().stream(streamId);
+            Response response = stream == null ? null : stream.<Response> getProperty(streamKey);
+            if (response == null) {
+                return processed;
+            }
+            if (response.body == null) {
+                response.body = ctx.alloc().buffer(data.readableBytes());
+            }
+            response.body.writeBytes(data);
+            if (endOfStream) {
+                complete(stream);
+            }
+            return processed;
+        }
+
+        @Override
+        public void onRstStreamRead(ChannelHandlerContext ctx, int streamId, long errorCode) {
+            Http2Stream stream = connection().stream(streamId);
+            Response response = stream == null ? null : stream.<Response> removeProperty(streamKey);
+            if (response != null) {
+                response.release();
+                fail(response.request, new IOException("Stream reset with error " + errorCode),
+                        errorCode != Http2Error.REFUSED_STREAM.code());
+                closeIfDone();
+            }
+        }
+
+        @Override
+        public void onGoAwayRead(ChannelHandlerContext ctx, int lastStreamId, long errorCode,
+                ByteBuf debugData) {
+            capacityListener.capacityChanged(Http2ClientHandler.this);
+            closeIfDone();
+        }
+    }
+
+    private boolean isSettingsReceived() {
+        Promise<Void> promise = settingsReceived;
+        return promise != null && promise.isDone();
+    }
+
+    /**
+     * Fails the requests of the streams closed before their response.
+     */
+    private class StreamCloser extends Http2ConnectionAdapter {
+
+        @Override
+        public void onGoAwayReceived(int lastStreamId, long errorCode, ByteBuf debugData) {
+            String debug = debugData.toString(CharsetUtil.UTF_8);
+            LOGGER.info("HTTP/2 GOAWAY received, last stream {}, error {} {}",
+                    lastStreamId, errorCode, debug);
+            goingAway = true;
+            // the streams above the last one were not processed
+            lastProcessedStreamId = lastStreamId;
+        }
+
+        @Override
+        public void onStreamClosed(Http2Stream stream) {
+            Response response = stream.removeProperty(streamKey);
+            if (response == null) {
+                return;
+            }
+            response.release();
+            boolean processed = stream.id() <= lastProcessedStreamId;
+            fail(response.request, processed ? new ClosedChannelException()
+                    : new IOException("Stream " + stream.id() + " refused by GOAWAY"), processed);
+            closeIfDone();
+        }
+    }
+
+    private static class Response {
+        final Http2Request request;
+        Http2Headers headers;
+        ByteBuf body;
+
+        Response(Http2Request request) {
+            this.request = request;
+        }
+
+        void release() {
+            if (body != null) {
+                body.release();
+                body = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package com.notnoop.apns.internal.netty.http2;
+
+import io.netty.handler.codec.http2.Http2Headers;
+
+/**
+ * A request sent on its own stream by a {@link Http2ClientHandler}.
+ */
+public class Http2Request {
+    private final Http2Headers headers;
+    private final byte[] body;
+    private final Http2ResponseListener listener;
+
+    public Http2Request(Http2Headers headers, byte[] body, Http2ResponseListener listener) {
+        this.headers = headers;
+        this.body = body;
+        this.listener = listener;
+    }
+
+    public Http2Headers getHeaders() {
+        return headers;
+    }
+
+    public byte[] getBody() {
+        return body;
+    }
+
+    public Http2ResponseListener getListener() {
+        return listener;
+    }
+}
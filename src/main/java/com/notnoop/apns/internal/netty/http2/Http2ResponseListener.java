@@ -0,0 +1,24 @@
+package com.notnoop.apns.internal.netty.http2;
+
+import io.netty.handler.codec.http2.Http2Headers;
+
+/**
+ * Receives the outcome of the requests, on the event loop of their
+ * connection.
+ */
+public interface Http2ResponseListener {
+
+    /**
+     * Called with the complete response to {@code request}.
+     */
+    void onResponse(Http2Request request, int status, Http2Headers headers, byte[] body);
+
+    /**
+     * Called when {@code request} got no response.
+     *
+     * @param processed whether the server may have processed the request:
+     *            {@code false} if it was never sent, or was refused by
+     *            the server
+     */
+    void onFailure(Http2Request request, Throwable cause, boolean processed);
+}
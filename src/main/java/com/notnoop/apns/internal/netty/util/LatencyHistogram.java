@@ -0,0 +1,77 @@
+package com.notnoop.apns.internal.netty.util;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of durations, in power of two buckets of
+ * nanoseconds: percentiles are accurate to a factor of two, which is
+ * enough to tell microseconds from milliseconds, for the cost of one
+ * atomic increment per value.
+ */
+public class LatencyHistogram {
+    private static final int BUCKETS = 64;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long nanos) {
+        long value = Math.max(0, nanos);
+        // bucket i holds the values of i bits
+        counts.incrementAndGet(64 - Long.numberOfLeadingZeros(value));
+        count.incrementAndGet();
+        long current;
+        while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+            // retry
+        }
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getMax(TimeUnit unit) {
+        return unit.convert(max.get(), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Returns the upper bound of the bucket holding the
+     * {@code percentile}th value, 0 if there is none.
+     *
+     * @param percentile between 0 and 100
+     */
+    public long getPercentile(double percentile, TimeUnit unit) {
+        long total = count.get();
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(total * percentile / 100);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank && seen > 0) {
+                long bound = (1L << i) - 1;
+                return unit.convert(Math.min(bound, max.get()), TimeUnit.NANOSECONDS);
+            }
+        }
+        return getMax(unit);
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts.set(i, 0);
+        }
+        count.set(0);
+        max.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return "LatencyHistogram [count=" + count + ", p50Micros="
+                + getPercentile(50, TimeUnit.MICROSECONDS) + ", p99Micros="
+                + getPercentile(99, TimeUnit.MICROSECONDS) + ", maxMicros="
+                + getMax(TimeUnit.MICROSECONDS) + "]";
+    }
+}
@@ -2,6 +2,8 @@ package com.notnoop.apns.internal.netty.util;
 
 import io.netty.bootstrap.ServerBootstrap;
 import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelOption;
@@ -10,19 +12,24 @@ import io.netty.channel.SimpleChannelInboundHandler;
 import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
 import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.codec.ByteToMessageDecoder;
 import io.netty.handler.codec.MessageToByteEncoder;
 import io.netty.handler.codec.ReplayingDecoder;
 import io.netty.handler.ssl.SslHandler;
 
+import java.net.InetSocketAddress;
 import java.util.ArrayList;
 import java.util.Date;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLEngine;
@@ -34,7 +41,22 @@ import com.notnoop.apns.ApnsNotification;
 import com.notnoop.apns.DeliveryError;
 import com.notnoop.apns.DeliveryResult;
 import com.notnoop.apns.EnhancedApnsNotification;
-
+import com.notnoop.apns.FramedApnsNotification;
+import com.notnoop.apns.internal.Utilities;
+
+/**
+ * A local stand-in for the binary gateway.
+ *
+ * By default it records every notification received, per connection, for
+ * the tests to inspect. Created with {@code recording} false, it only
+ * counts them instead: frames are validated in place in the buffer, with
+ * no allocation and no lock, payloads up to
+ * {@link Utilities#MAX_PAYLOAD_LENGTH} are accepted, and the gaps between
+ * the notifications of each connection are kept in a histogram, so that it
+ * can take millions of notifications from a load test. Errors are then
+ * injected with {@link #injectErrors(double, DeliveryError)}, or on given
+ * identifiers with {@link #fail(DeliveryError, int, int)}.
+ */
 public class MockApnsServer {
 
     private static final Logger LOGGER = LoggerFactory
@@ -42,19 +64,31 @@ public class MockApnsServer {
 
     private EventLoopGroup bossGroup;
     private EventLoopGroup workerGroup;
+    private Channel serverChannel;
 
     private final int port;
+    private final boolean recording;
+    private final int workerThreads;
     private final AtomicInteger currentNotificationList = new AtomicInteger(-1);
     private final List<List<ApnsNotification>> receivedNotifications = new CopyOnWriteArrayList<>();
     private final Vector<CountDownLatch> countdownLatches;
 
     private SSLContext sslContext;
-    private Map<Integer, DeliveryResult> fails = new HashMap<Integer, DeliveryResult>();
+    private final Map<Integer, DeliveryResult> fails = new ConcurrentHashMap<Integer, DeliveryResult>();
+
+    // counting mode
+    private volatile double errorRate;
+    private volatile DeliveryError injectedError = DeliveryError.PROCESSING_ERROR;
+    private final AtomicLong notificationCount = new AtomicLong();
+    private final AtomicLong payloadBytes = new AtomicLong();
+    private final AtomicLong connectionCount = new AtomicLong();
+    private final AtomicLong errorCount = new AtomicLong();
+    private final LatencyHistogram arrivalGaps = new LatencyHistogram();
 
     public static final int MAX_PAYLOAD_SIZE = 256;
 
     private enum ApnsPushNotificationDecoderState {
-        OPCODE, SEQUENCE_NUMBER, EXPIRATION, TOKEN_LENGTH, TOKEN, PAYLOAD_LENGTH, PAYLOAD
+        OPCODE, SEQUENCE_NUMBER, EXPIRATION, TOKEN_LENGTH, TOKEN, PAYLOAD_LENGTH, PAYLOAD, FRAME_LENGTH, FRAME
     }
 
     private class ApnsPushNotificationDecoder extends
@@ -64,8 +98,15 @@ public class MockApnsServer {
         private Date expiration;
         private byte[] token;
         private byte[] payloadBytes;
+        private int frameLength;
 
-        private static final byte EXPECTED_OPCODE = 1;
+        private static final byte ENHANCED_OPCODE = 1;
+        private static final byte FRAMED_OPCODE = 2;
+        // item id and length
+        private static final int ITEM_HEADER_LENGTH = 1 + 2;
+        // token, payload, identifier, expiry and priority items
+        private static final int MAX_FRAME_LENGTH = 5 * ITEM_HEADER_LENGTH
+                + 32 + Utilities.MAX_PAYLOAD_LENGTH + 4 + 4 + 1;
 
         public ApnsPushNotificationDecoder() {
             super(ApnsPushNotificationDecoderState.OPCODE);
@@ -79,11 +120,13 @@ public class MockApnsServer {
             case OPCODE: {
                 final byte opcode = in.readByte();
 
-                if (opcode != EXPECTED_OPCODE) {
+                if (opcode == ENHANCED_OPCODE) {
+                    this.checkpoint(ApnsPushNotificationDecoderState.SEQUENCE_NUMBER);
+                } else if (opcode == FRAMED_OPCODE) {
+                    this.checkpoint(ApnsPushNotificationDecoderState.FRAME_LENGTH);
+                } else {
                     reportErrorAndCloseConnection(context, 0,
                             DeliveryError.UNKNOWN);
-                } else {
-                    this.checkpoint(ApnsPushNotificationDecoderState.SEQUENCE_NUMBER);
                 }
 
                 break;
@@ -155,6 +198,116 @@ public class MockApnsServer {
 
                 break;
             }
+
+            case FRAME_LENGTH: {
+                this.frameLength = in.readInt();
+
+                if (this.frameLength <= 0 || this.frameLength > MAX_FRAME_LENGTH) {
+                    this.reportErrorAndCloseConnection(context, 0,
+                            DeliveryError.PROCESSING_ERROR);
+                } else {
+                    this.checkpoint(ApnsPushNotificationDecoderState.FRAME);
+                }
+
+                break;
+            }
+
+            case FRAME: {
+                final ByteBuf frame = in.readSlice(this.frameLength);
+                final ApnsNotification pushNotification = decodeFrame(
+                        context, frame);
+
+                if (pushNotification != null) {
+                    out.add(pushNotification);
+                    this.checkpoint(ApnsPushNotificationDecoderState.OPCODE);
+                }
+
+                break;
+            }
+            }
+        }
+
+        private ApnsNotification decodeFrame(
+                final ChannelHandlerContext context, final ByteBuf frame)
+                throws InterruptedException {
+            byte[] frameToken = null;
+            byte[] framePayload = null;
+            int identifier = 0;
+            int expiry = 0;
+            int priority = FramedApnsNotification.PRIORITY_IMMEDIATE;
+
+            while (frame.isReadable()) {
+                if (frame.readableBytes() < ITEM_HEADER_LENGTH) {
+                    this.reportErrorAndCloseConnection(context, identifier,
+                            DeliveryError.PROCESSING_ERROR);
+                    return null;
+                }
+                final byte itemId = frame.readByte();
+                final int itemLength = frame.readUnsignedShort();
+                if (itemLength > frame.readableBytes()
+                        || itemLength != itemLength(itemId, itemLength)) {
+                    this.reportErrorAndCloseConnection(context, identifier,
+                            DeliveryError.PROCESSING_ERROR);
+                    return null;
+                }
+
+                switch (itemId) {
+                case Utilities.FRAME_ITEM_DEVICE_TOKEN:
+                    frameToken = new byte[itemLength];
+                    frame.readBytes(frameToken);
+                    break;
+                case Utilities.FRAME_ITEM_PAYLOAD:
+                    framePayload = new byte[itemLength];
+                    frame.readBytes(framePayload);
+                    break;
+                case Utilities.FRAME_ITEM_IDENTIFIER:
+                    identifier = frame.readInt();
+                    break;
+                case Utilities.FRAME_ITEM_EXPIRATION:
+                    expiry = frame.readInt();
+                    break;
+                case Utilities.FRAME_ITEM_PRIORITY:
+                    priority = frame.readUnsignedByte();
+                    break;
+                default:
+                    frame.skipBytes(itemLength);
+                }
+            }
+
+            if (frameToken == null || frameToken.length == 0) {
+                this.reportErrorAndCloseConnection(context, identifier,
+                        DeliveryError.MISSING_DEVICE_TOKEN);
+                return null;
+            }
+            if (framePayload == null || framePayload.length == 0
+                    || framePayload.length > MAX_PAYLOAD_SIZE) {
+                this.reportErrorAndCloseConnection(context, identifier,
+                        DeliveryError.INVALID_PAYLOAD_SIZE);
+                return null;
+            }
+            if (priority != FramedApnsNotification.PRIORITY_IMMEDIATE
+                    && priority != FramedApnsNotification.PRIORITY_CONSERVE_POWER) {
+                this.reportErrorAndCloseConnection(context, identifier,
+                        DeliveryError.PROCESSING_ERROR);
+                return null;
+            }
+            return new FramedApnsNotification(identifier, expiry, priority,
+                    frameToken, framePayload);
+        }
+
+        /**
+         * Returns the length the item {@code itemId} must have, or
+         * {@code itemLength} for the items of variable or unknown length.
+         */
+        private int itemLength(final byte itemId, final int itemLength) {
+            switch (itemId) {
+            case Utilities.FRAME_ITEM_IDENTIFIER:
+            case Utilities.FRAME_ITEM_EXPIRATION:
+                return 4;
+            case Utilities.FRAME_ITEM_PRIORITY:
+                return 1;
+            default:
+                return itemLength;
             }
         }
 
@@ -235,16 +388,207 @@ public class MockApnsServer {
         }
     }
 
+    /**
+     * Counts the notifications received on each connection, rejecting the
+     * first invalid one as the gateway does.
+     */
+    private class CountingDecoder extends ByteToMessageDecoder {
+        private static final byte ENHANCED_OPCODE = 1;
+        private static final byte FRAMED_OPCODE = 2;
+        // opcode, identifier, expiry, token length, payload length
+        private static final int ENHANCED_HEADER_LENGTH = 1 + 4 + 4 + 2 + 2;
+        private static final int FRAMED_HEADER_LENGTH = 1 + 4;
+        // item id and length
+        private static final int ITEM_HEADER_LENGTH = 1 + 2;
+        private static final int DEVICE_TOKEN_LENGTH = 32;
+
+        private boolean rejecting;
+        private long lastArrival;
+
+        @Override
+        public void channelActive(ChannelHandlerContext ctx) throws Exception {
+            connectionCount.incrementAndGet();
+            super.channelActive(ctx);
+        }
+
+        @Override
+        protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) {
+            while (!rejecting && in.isReadable()) {
+                int start = in.readerIndex();
+                int readable = in.readableBytes();
+                byte opcode = in.getByte(start);
+                int length;
+                int identifier;
+                DeliveryError error = null;
+                if (opcode == ENHANCED_OPCODE) {
+                    if (readable < ENHANCED_HEADER_LENGTH) {
+                        return;
+                    }
+                    int tokenLength = in.getUnsignedShort(start + 9);
+                    if (readable < ENHANCED_HEADER_LENGTH + tokenLength) {
+                        return;
+                    }
+                    int payloadLength = in.getUnsignedShort(start + 11 + tokenLength);
+                    length = ENHANCED_HEADER_LENGTH + tokenLength + payloadLength;
+                    if (readable < length) {
+                        return;
+                    }
+                    identifier = in.getInt(start + 1);
+                    error = validate(tokenLength, payloadLength, FramedApnsNotification.PRIORITY_IMMEDIATE);
+                    payloadBytes.addAndGet(payloadLength);
+                } else if (opcode == FRAMED_OPCODE) {
+                    if (readable < FRAMED_HEADER_LENGTH) {
+                        return;
+                    }
+                    int frameLength = in.getInt(start + 1);
+                    if (frameLength <= 0) {
+                        reject(ctx, in, new DeliveryResult(DeliveryError.PROCESSING_ERROR, 0));
+                        return;
+                    }
+                    length = FRAMED_HEADER_LENGTH + frameLength;
+                    if (readable < length) {
+                        return;
+                    }
+                    int tokenLength = 0;
+                    int payloadLength = 0;
+                    int priority = FramedApnsNotification.PRIORITY_IMMEDIATE;
+                    identifier = 0;
+                    boolean malformed = false;
+                    int end = start + length;
+                    for (int item = start + FRAMED_HEADER_LENGTH; item < end;) {
+                        if (item + ITEM_HEADER_LENGTH > end) {
+                            malformed = true;
+                            break;
+                        }
+                        int itemLength = in.getUnsignedShort(item + 1);
+                        int data = item + ITEM_HEADER_LENGTH;
+                        if (data + itemLength > end) {
+                            malformed = true;
+                            break;
+                        }
+                        switch (in.getByte(item)) {
+                        case Utilities.FRAME_ITEM_DEVICE_TOKEN:
+                            tokenLength = itemLength;
+                            break;
+                        case Utilities.FRAME_ITEM_PAYLOAD:
+                            payloadLength = itemLength;
+                            break;
+                        case Utilities.FRAME_ITEM_IDENTIFIER:
+                            if (itemLength == 4) {
+                                identifier = in.getInt(data);
+                            } else {
+                                malformed = true;
+                            }
+                            break;
+                        case Utilities.FRAME_ITEM_PRIORITY:
+                            if (itemLength == 1) {
+                                priority = in.getUnsignedByte(data);
+                            } else {
+                                malformed = true;
+                            }
+                            break;
+                        default:
+                            break;
+                        }
+                        if (malformed) {
+                            break;
+                        }
+                        item = data + itemLength;
+                    }
+                    error = malformed ? DeliveryError.PROCESSING_ERROR
+                            : validate(tokenLength, payloadLength, priority);
+                    payloadBytes.addAndGet(payloadLength);
+                } else {
+                    reject(ctx, in, new DeliveryResult(DeliveryError.UNKNOWN, 0));
+                    return;
+                }
+                in.skipBytes(length);
+
+                notificationCount.incrementAndGet();
+                long now = System.nanoTime();
+                if (lastArrival != 0) {
+                    arrivalGaps.record(now - lastArrival);
+                }
+                lastArrival = now;
+
+                DeliveryResult result = error != null ? new DeliveryResult(error, identifier)
+                        : injectedResult(identifier);
+                if (result != null) {
+                    reject(ctx, in, result);
+                }
+            }
+            if (rejecting) {
+                in.skipBytes(in.readableBytes());
+            }
+        }
+
+        private DeliveryError validate(int tokenLength, int payloadLength, int priority) {
+            if (tokenLength == 0) {
+                return DeliveryError.MISSING_DEVICE_TOKEN;
+            }
+            if (tokenLength != DEVICE_TOKEN_LENGTH) {
+                return DeliveryError.INVALID_TOKEN_SIZE;
+            }
+            if (payloadLength == 0 || payloadLength > Utilities.MAX_PAYLOAD_LENGTH) {
+                return DeliveryError.INVALID_PAYLOAD_SIZE;
+            }
+            if (priority != FramedApnsNotification.PRIORITY_IMMEDIATE
+                    && priority != FramedApnsNotification.PRIORITY_CONSERVE_POWER) {
+                return DeliveryError.PROCESSING_ERROR;
+            }
+            return null;
+        }
+
+        private DeliveryResult injectedResult(int identifier) {
+            if (!fails.isEmpty()) {
+                DeliveryResult result = fails.remove(identifier);
+                if (result != null) {
+                    return result;
+                }
+            }
+            double rate = errorRate;
+            if (rate > 0 && ThreadLocalRandom.current().nextDouble() < rate) {
+                return new DeliveryResult(injectedError, identifier);
+            }
+            return null;
+        }
+
+        /**
+         * Answers {@code result} and closes the connection, ignoring what is
+         * received meanwhile.
+         */
+        private void reject(ChannelHandlerContext ctx, ByteBuf in, DeliveryResult result) {
+            rejecting = true;
+            errorCount.incrementAndGet();
+            in.skipBytes(in.readableBytes());
+            ctx.writeAndFlush(result).addListener(ChannelFutureListener.CLOSE);
+        }
+    }
+
     public MockApnsServer(final int port, final SSLContext sslContext) {
+        this(port, sslContext, true, 0);
+    }
+
+    /**
+     * @param port the port, or 0 for any free port
+     * @param recording whether the notifications are recorded, or only
+     *            counted
+     * @param workerThreads the event loop threads serving the connections,
+     *            or 0 for the Netty default
+     */
+    public MockApnsServer(final int port, final SSLContext sslContext,
+            final boolean recording, final int workerThreads) {
         this.port = port;
         this.sslContext = sslContext;
+        this.recording = recording;
+        this.workerThreads = workerThreads;
         this.countdownLatches = new Vector<CountDownLatch>();
         setupNextNotificationsList();
     }
 
     public void start() throws InterruptedException {
-        this.bossGroup = new NioEventLoopGroup();
-        this.workerGroup = new NioEventLoopGroup();
+        this.bossGroup = new NioEventLoopGroup(1);
+        this.workerGroup = new NioEventLoopGroup(workerThreads);
 
         final ServerBootstrap bootstrap = new ServerBootstrap();
 
@@ -267,6 +611,10 @@ public class MockApnsServer {
                 // channel.pipeline().addLast("log", new
                 // LoggingHandler(LogLevel.INFO));
                 channel.pipeline().addLast("encoder", new ApnsErrorEncoder());
+                if (!recording) {
+                    channel.pipeline().addLast("decoder", new CountingDecoder());
+                    return;
+                }
                 channel.pipeline().addLast("decoder",
                         new ApnsPushNotificationDecoder());
                 channel.pipeline().addLast("handler",
@@ -278,7 +626,14 @@ public class MockApnsServer {
 
         bootstrap.childOption(ChannelOption.SO_KEEPALIVE, true);
 
-        bootstrap.bind(this.port).sync();
+        serverChannel = bootstrap.bind(this.port).sync().channel();
+    }
+
+    /**
+     * Returns the port the server listens on.
+     */
+    public int getPort() {
+        return ((InetSocketAddress) serverChannel.localAddress()).getPort();
     }
 
     public void shutdown() throws InterruptedException {
@@ -298,6 +653,71 @@ public class MockApnsServer {
         fails.put(failWhenReceive, new DeliveryResult(errorCode, idToFail));
     }
 
+    /**
+     * In counting mode, rejects each notification with probability
+     * {@code rate}, with {@code error}.
+     */
+    public void injectErrors(final double rate, final DeliveryError error) {
+        this.injectedError = error;
+        this.errorRate = rate;
+    }
+
+    /**
+     * Returns the notifications counted, including the rejected ones.
+     */
+    public long getNotificationCount() {
+        return notificationCount.get();
+    }
+
+    public long getPayloadBytes() {
+        return payloadBytes.get();
+    }
+
+    public long getConnectionCount() {
+        return connectionCount.get();
+    }
+
+    /**
+     * Returns the errors answered, whether injected or for invalid
+     * notifications.
+     */
+    public long getErrorCount() {
+        return errorCount.get();
+    }
+
+    /**
+     * Returns the gaps between the notifications received on each
+     * connection.
+     */
+    public LatencyHistogram getArrivalGaps() {
+        return arrivalGaps;
+    }
+
+    /**
+     * Waits until {@code count} notifications were counted.
+     *
+     * @return false if the timeout elapsed first
+     */
+    public boolean awaitNotificationCount(final long count, final long timeout,
+            final TimeUnit unit) throws InterruptedException {
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (notificationCount.get() < count) {
+            if (System.nanoTime() >= deadline) {
+                return false;
+            }
+            Thread.sleep(1);
+        }
+        return true;
+    }
+
+    public void resetCounters() {
+        notificationCount.set(0);
+        payloadBytes.set(0);
+        connectionCount.set(0);
+        errorCount.set(0);
+        arrivalGaps.reset();
+    }
+
     protected DeliveryResult handleReceivedNotification(
             final ApnsNotification receivedNotification) {
         synchronized (this) {
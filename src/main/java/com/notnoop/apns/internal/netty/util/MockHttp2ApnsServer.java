@@ -0,0 +1,566 @@
+package com.notnoop.apns.internal.netty.util;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.group.ChannelGroup;
+import io.netty.channel.group.DefaultChannelGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.codec.http2.DefaultHttp2Connection;
+import io.netty.handler.codec.http2.DefaultHttp2ConnectionDecoder;
+import io.netty.handler.codec.http2.DefaultHttp2ConnectionEncoder;
+import io.netty.handler.codec.http2.DefaultHttp2FrameReader;
+import io.netty.handler.codec.http2.DefaultHttp2FrameWriter;
+import io.netty.handler.codec.http2.DefaultHttp2Headers;
+import io.netty.handler.codec.http2.Http2ConnectionEncoder;
+import io.netty.handler.codec.http2.Http2ConnectionHandler;
+import io.netty.handler.codec.http2.Http2Error;
+import io.netty.handler.codec.http2.Http2Exception;
+import io.netty.handler.codec.http2.Http2FrameAdapter;
+import io.netty.handler.codec.http2.Http2Headers;
+import io.netty.handler.codec.http2.Http2Settings;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.util.AsciiString;
+import io.netty.util.CharsetUtil;
+import io.netty.util.concurrent.GlobalEventExecutor;
+
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.notnoop.apns.internal.TlsSettings;
+import com.notnoop.apns.internal.Utilities;
+
+/**
+ * A local stand-in for the HTTP/2 provider API, for load and correctness
+ * tests of the HTTP/2 transport.
+ *
+ * Every request to <code>/3/device/&lt;token&gt;</code> is answered with
+ * 200, or with the response configured for its token with
+ * {@link #respond(String, int, String)}, once it passed the checks of the
+ * provider API on the token and the payload, after a delay drawn from a
+ * {@link Latency}. The server limits the concurrent streams of each
+ * connection, refusing those above the limit, and can send GOAWAY after a
+ * number of requests, or at once with {@link #goAway(int)}.
+ *
+ * Nothing is recorded beyond counters, so that it can take millions of
+ * requests.
+ */
+public class MockHttp2ApnsServer {
+    private static final Logger LOGGER = LoggerFactory.getLogger(MockHttp2ApnsServer.class);
+
+    private static final String PATH_PREFIX = "/3/device/";
+    private static final int MAX_PAYLOAD_SIZE = 4096;
+
+    /**
+     * Draws the delay of each response.
+     */
+    public interface Latency {
+        long nextDelayNanos();
+    }
+
+    public static final Latency NO_LATENCY = fixed(0, TimeUnit.NANOSECONDS);
+
+    public static Latency fixed(long delay, TimeUnit unit) {
+        final long nanos = unit.toNanos(delay);
+        return new Latency() {
+            public long nextDelayNanos() {
+                return nanos;
+            }
+        };
+    }
+
+    /**
+     * Returns delays uniformly distributed between {@code min} and
+     * {@code max}.
+     */
+    public static Latency uniform(long min, long max, TimeUnit unit) {
+        final long minNanos = unit.toNanos(min);
+        final long range = unit.toNanos(max) - minNanos;
+        return new Latency() {
+            public long nextDelayNanos() {
+                return minNanos + (long) (ThreadLocalRandom.current().nextDouble() * range);
+            }
+        };
+    }
+
+    /**
+     * Returns exponentially distributed delays, i.e. mostly short with a
+     * long tail, of mean {@code mean}.
+     */
+    public static Latency exponential(long mean, TimeUnit unit) {
+        final double meanNanos = unit.toNanos(mean);
+        return new Latency() {
+            public long nextDelayNanos() {
+                return (long) (-meanNanos * Math.log(1 - ThreadLocalRandom.current().nextDouble()));
+            }
+        };
+    }
+
+    private final int port;
+    private final SSLContext sslContext;
+    private final int workerThreads;
+    private EventLoopGroup bossGroup;
+    private EventLoopGroup workerGroup;
+    private Channel serverChannel;
+    private final ChannelGroup channels = new DefaultChannelGroup(GlobalEventExecutor.INSTANCE);
+
+    private final Map<String, Response> responses = new ConcurrentHashMap<String, Response>();
+    private volatile Latency latency = NO_LATENCY;
+    private volatile int maxConcurrentStreams = 1000;
+    private volatile int goAwayAfter = 0;
+
+    private final AtomicLong connections = new AtomicLong();
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong accepted = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong refused = new AtomicLong();
+    private final AtomicLong goAways = new AtomicLong();
+    private final AtomicLong payloadBytes = new AtomicLong();
+    private volatile long countingSince = System.nanoTime();
+
+    /**
+     * @param port the port, or 0 for any free port
+     */
+    public MockHttp2ApnsServer(int port, SSLContext sslContext) {
+        this(port, sslContext, 0);
+    }
+
+    /**
+     * @param workerThreads the event loop threads serving the connections,
+     *            or 0 for the Netty default
+     */
+    public MockHttp2ApnsServer(int port, SSLContext sslContext, int workerThreads) {
+        this.port = port;
+        this.sslContext = sslContext;
+        this.workerThreads = workerThreads;
+    }
+
+    public void start() throws InterruptedException {
+        bossGroup = new NioEventLoopGroup(1);
+        workerGroup = new NioEventLoopGroup(workerThreads);
+        ServerBootstrap bootstrap = new ServerBootstrap()
+                .group(bossGroup, workerGroup)
+                .channel(NioServerSocketChannel.class)
+                .childOption(ChannelOption.TCP_NODELAY, true)
+                .childHandler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel channel) throws Exception {
+                        SSLEngine engine = sslContext.createSSLEngine();
+                        engine.setUseClientMode(false);
+                        TlsSettings.setApplicationProtocols(engine, "h2");
+                        channel.pipeline().addLast("ssl", new SslHandler(engine));
+                        channel.pipeline().addLast("handler",
+                                new StreamHandler(maxConcurrentStreams));
+                    }
+                });
+        serverChannel = bootstrap.bind(port).sync().channel();
+        LOGGER.debug("HTTP/2 mock server listening on port {}", getPort());
+    }
+
+    public void shutdown() throws InterruptedException {
+        if (serverChannel != null) {
+            serverChannel.close().sync();
+        }
+        channels.close().awaitUninterruptibly();
+        workerGroup.shutdownGracefully(0, 1, TimeUnit.SECONDS);
+        bossGroup.shutdownGracefully(0, 1, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Returns the port the server listens on.
+     */
+    public int getPort() {
+        return ((InetSocketAddress) serverChannel.localAddress()).getPort();
+    }
+
+    /**
+     * Answers the requests for {@code token} with {@code status}, and the
+     * {@code reason} in the body. A status of 410 also gives the current
+     * time as the last time the token was valid.
+     *
+     * @param token the device token, in hexadecimal
+     */
+    public void respond(String token, int status, String reason) {
+        responses.put(token.toLowerCase(Locale.ENGLISH), new Response(status, reason));
+    }
+
+    public void respond(byte[] token, int status, String reason) {
+        respond(Utilities.encodeHex(token), status, reason);
+    }
+
+    public void setLatency(Latency latency) {
+        this.latency = latency == null ? NO_LATENCY : latency;
+    }
+
+    /**
+     * Sets the streams a connection may have open at once, advertised to
+     * new connections; the streams above it are refused.
+     */
+    public void setMaxConcurrentStreams(int maxConcurrentStreams) {
+        this.maxConcurrentStreams = maxConcurrentStreams;
+    }
+
+    /**
+     * Makes each connection go away after {@code requests} requests, or
+     * never if 0. The streams after the last request are not processed.
+     */
+    public void setGoAwayAfter(int requests) {
+        this.goAwayAfter = requests;
+    }
+
+    /**
+     * Sends GOAWAY with {@code errorCode} on every open connection, then
+     * closes them once their open streams are answered.
+     */
+    public void goAway(final long errorCode) {
+        for (final Channel channel : channels) {
+            channel.eventLoop().execute(new Runnable() {
+                @Override
+                public void run() {
+                    StreamHandler handler = channel.pipeline().get(StreamHandler.class);
+                    if (handler != null) {
+                        handler.goAway(channel.pipeline().context(handler), errorCode);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Resets the counters.
+     */
+    public void resetCounters() {
+        connections.set(0);
+        requests.set(0);
+        accepted.set(0);
+        rejected.set(0);
+        refused.set(0);
+        goAways.set(0);
+        payloadBytes.set(0);
+        countingSince = System.nanoTime();
+    }
+
+    public long getConnections() {
+        return connections.get();
+    }
+
+    /**
+     * Returns the requests received, including those refused.
+     */
+    public long getRequests() {
+        return requests.get();
+    }
+
+    /**
+     * Returns the requests answered with 200.
+     */
+    public long getAccepted() {
+        return accepted.get();
+    }
+
+    /**
+     * Returns the requests answered with another status.
+     */
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    /**
+     * Returns the streams refused for exceeding the stream limit.
+     */
+    public long getRefused() {
+        return refused.get();
+    }
+
+    public long getGoAways() {
+        return goAways.get();
+    }
+
+    public long getPayloadBytes() {
+        return payloadBytes.get();
+    }
+
+    /**
+     * Returns the responses per second since the start, or the last reset
+     * of the counters.
+     */
+    public double getResponsesPerSecond() {
+        long nanos = System.nanoTime() - countingSince;
+        return nanos <= 0 ? 0 : (accepted.get() + rejected.get()) * 1e9 / nanos;
+    }
+
+    @Override
+    public String toString() {
+        return "MockHttp2ApnsServer [connections=" + connections + ", requests=" + requests
+                + ", accepted=" + accepted + ", rejected=" + rejected + ", refused=" + refused
+                + ", goAways=" + goAways + ", responsesPerSecond="
+                + (long) getResponsesPerSecond() + "]";
+    }
+
+    private static final class Response {
+        final int status;
+        final String reason;
+
+        Response(int status, String reason) {
+            this.status = status;
+            this.reason = reason;
+        }
+    }
+
+    /**
+     * A request, until its last frame is received.
+     */
+    private static final class Stream {
+        String token;
+        Response response;
+        int length;
+    }
+
+    /**
+     * Ignores the streams opened after the GOAWAY, as announced, where the
+     * codec would refuse them and then fail the connection on their DATA
+     * frames.
+     */
+    private static final class ServerConnection extends DefaultHttp2Connection {
+
+        ServerConnection() {
+            super(true);
+        }
+
+        @Override
+        public boolean streamMayHaveExisted(int streamId) {
+            return super.streamMayHaveExisted(streamId)
+                    || goAwaySent() && streamId > remote().lastStreamKnownByPeer();
+        }
+    }
+
+    private class StreamHandler extends Http2ConnectionHandler {
+        // received, not answered yet
+        private final Map<Integer, Stream> streams = new HashMap<Integer, Stream>();
+        private int open;
+        private int received;
+        private int lastStreamId;
+        private boolean goingAway;
+
+        StreamHandler(int maxConcurrentStreams) {
+            this(new DefaultHttp2ConnectionEncoder(new ServerConnection(),
+                    new DefaultHttp2FrameWriter()), maxConcurrentStreams);
+        }
+
+        private StreamHandler(Http2ConnectionEncoder encoder, int maxConcurrentStreams) {
+            super(new DefaultHttp2ConnectionDecoder(encoder.connection(), encoder,
+                    new DefaultHttp2FrameReader()), encoder,
+                    new Http2Settings().maxConcurrentStreams(maxConcurrentStreams));
+            decoder().frameListener(new RequestReader());
+        }
+
+        @Override
+        public void channelActive(ChannelHandlerContext ctx) throws Exception {
+            connections.incrementAndGet();
+            channels.add(ctx.channel());
+            super.channelActive(ctx);
+        }
+
+        /**
+         * Reads the requests, and answers them.
+         */
+        private class RequestReader extends Http2FrameAdapter {
+
+            @Override
+            public void onSettingsAckRead(ChannelHandlerContext ctx) {
+                // the streams above the limit are refused here, and counted,
+                // rather than failing the whole connection in the codec
+                connection().remote().maxActiveStreams(Integer.MAX_VALUE);
+            }
+
+            @Override
+            public void onHeadersRead(ChannelHandlerContext ctx, int streamId,
+                    Http2Headers headers, int streamDependency, short weight, boolean exclusive,
+                    int padding, boolean endOfStream) {
+                if (goingAway && streamId > lastStreamId) {
+                    // not processed, as announced by the GOAWAY
+                    return;
+                }
+                requests.incrementAndGet();
+                if (open >= maxConcurrentStreams) {
+                    refused.incrementAndGet();
+                    resetStream(ctx, streamId, Http2Error.REFUSED_STREAM.code(), ctx.newPromise());
+                    ctx.channel().flush();
+                    return;
+                }
+                open++;
+                lastStreamId = streamId;
+                Stream stream = new Stream();
+                route(headers, stream);
+                streams.put(streamId, stream);
+                if (endOfStream) {
+                    complete(ctx, streamId, stream);
+                }
+                int limit = goAwayAfter;
+                if (limit > 0 && ++received == limit) {
+                    goAway(ctx, Http2Error.NO_ERROR.code());
+                }
+            }
+
+            @Override
+            public int onDataRead(ChannelHandlerContext ctx, int streamId, ByteBuf data,
+                    int padding, boolean endOfStream) {
+                // consumed at once: the window is given back
+                int length = data.readableBytes();
+                Stream stream = streams.get(streamId);
+                if (stream != null) {
+                    stream.length += length;
+                    if (endOfStream) {
+                        complete(ctx, streamId, stream);
+                    }
+                }
+                return length + padding;
+            }
+
+            @Override
+            public void onGoAwayRead(ChannelHandlerContext ctx, int lastStreamId, long errorCode,
+                    ByteBuf debugData) {
+                ctx.close();
+            }
+        }
+
+        /**
+         * Sets the token of {@code stream}, or its response if the request
+         * is invalid.
+         */
+        private void route(Http2Headers headers, Stream stream) {
+            CharSequence path = headers.path();
+            if (!AsciiString.contentEquals("POST", headers.method())) {
+                stream.response = new Response(405, "MethodNotAllowed");
+            } else if (path == null || !path.toString().startsWith(PATH_PREFIX)) {
+                stream.response = new Response(404, "BadPath");
+            } else {
+                String token = path.toString().substring(PATH_PREFIX.length());
+                if (token.isEmpty()) {
+                    stream.response = new Response(400, "MissingDeviceToken");
+                } else if (!isToken(token)) {
+                    stream.response = new Response(400, "BadDeviceToken");
+                } else {
+                    stream.token = token.toLowerCase(Locale.ENGLISH);
+                }
+            }
+        }
+
+        private boolean isToken(String token) {
+            if (token.length() != 64) {
+                return false;
+            }
+            for (int i = 0; i < token.length(); i++) {
+                if (Character.digit(token.charAt(i), 16) < 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private void complete(final ChannelHandlerContext ctx, final int streamId, Stream stream) {
+            payloadBytes.addAndGet(stream.length);
+            Response response = stream.response;
+            if (response == null) {
+                if (stream.length == 0) {
+                    response = new Response(400, "PayloadEmpty");
+                } else if (stream.length > MAX_PAYLOAD_SIZE) {
+                    response = new Response(413, "PayloadTooLarge");
+                } else {
+                    response = responses.get(stream.token);
+                }
+            }
+            final Response result = response;
+            long delay = latency.nextDelayNanos();
+            if (delay <= 0) {
+                respond(ctx, streamId, result);
+            } else {
+                ctx.executor().schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        respond(ctx, streamId, result);
+                    }
+                }, delay, TimeUnit.NANOSECONDS);
+            }
+        }
+
+        private void respond(ChannelHandlerContext ctx, int streamId, Response response) {
+            if (streams.remove(streamId) == null || !ctx.channel().isActive()) {
+                return;
+            }
+            open--;
+            int status = response == null ? 200 : response.status;
+            byte[] body = null;
+            if (response != null && response.reason != null) {
+                body = ("{\"reason\":\"" + response.reason + "\""
+                        + (status == 410 ? ",\"timestamp\":" + System.currentTimeMillis() : "")
+                        + "}").getBytes(CharsetUtil.UTF_8);
+            }
+            encoder().writeHeaders(ctx, streamId,
+                    new DefaultHttp2Headers().status(Integer.toString(status)), 0, body == null,
+                    ctx.newPromise());
+            if (body != null) {
+                encoder().writeData(ctx, streamId, Unpooled.wrappedBuffer(body), 0, true,
+                        ctx.newPromise());
+            }
+            ctx.channel().flush();
+            if (status == 200) {
+                accepted.incrementAndGet();
+            } else {
+                rejected.incrementAndGet();
+            }
+            closeIfDone(ctx);
+        }
+
+        void goAway(ChannelHandlerContext ctx, long errorCode) {
+            if (goingAway || !ctx.channel().isActive()) {
+                return;
+            }
+            goingAway = true;
+            goAways.incrementAndGet();
+            goAway(ctx, lastStreamId, errorCode, Unpooled.EMPTY_BUFFER, ctx.newPromise());
+            ctx.channel().flush();
+            closeIfDone(ctx);
+        }
+
+        private void closeIfDone(ChannelHandlerContext ctx) {
+            if (goingAway && streams.isEmpty()) {
+                // past the codec, which would wait for the streams to close
+                ctx.writeAndFlush(Unpooled.EMPTY_BUFFER).addListener(ChannelFutureListener.CLOSE);
+            }
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+            streams.clear();
+            super.channelInactive(ctx);
+        }
+
+        @Override
+        protected void onConnectionError(ChannelHandlerContext ctx, boolean outbound,
+                Throwable cause, Http2Exception http2Ex) {
+            LOGGER.debug("HTTP/2 mock connection failed", cause);
+            super.onConnectionError(ctx, outbound, cause, http2Ex);
+        }
+    }
+}
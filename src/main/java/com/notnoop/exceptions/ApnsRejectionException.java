@@ -0,0 +1,84 @@
+package com.notnoop.exceptions;
+
+import com.notnoop.apns.DeliveryError;
+
+/**
+ * Thrown to indicate that the HTTP/2 provider API rejected a notification,
+ * with the status and the reason of its response.
+ *
+ * The closest {@link DeliveryError} of the binary interface is also given,
+ * so that delegates handling {@link ApnsDeliveryErrorException}s keep
+ * working.
+ */
+public class ApnsRejectionException extends ApnsDeliveryErrorException {
+    private static final long serialVersionUID = -2514623318526624867L;
+
+    private final int status;
+    private final String reason;
+    private final long timestamp;
+
+    /**
+     * @param timestamp for the status 410, the time in milliseconds at
+     *            which the device token was last valid, 0 otherwise
+     */
+    public ApnsRejectionException(int status, String reason, long timestamp) {
+        super(toDeliveryError(status, reason));
+        this.status = status;
+        this.reason = reason;
+        this.timestamp = timestamp;
+    }
+
+    public int getStatus() {
+        return status;
+    }
+
+    /**
+     * Returns the reason given by APNs, e.g. {@code BadDeviceToken}, or
+     * {@code null}.
+     */
+    public String getReason() {
+        return reason;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * Returns whether the device token is no longer valid, and should not
+     * be used again.
+     */
+    public boolean isInactiveDevice() {
+        return status == 410 || "BadDeviceToken".equals(reason)
+                || "DeviceTokenNotForTopic".equals(reason);
+    }
+
+    @Override
+    public String getMessage() {
+        return "Notification rejected with status " + status
+                + (reason == null ? "" : " (" + reason + ")");
+    }
+
+    static DeliveryError toDeliveryError(int status, String reason) {
+        if (status == 410 || "BadDeviceToken".equals(reason)
+                || "DeviceTokenNotForTopic".equals(reason)) {
+            return DeliveryError.INVALID_TOKEN;
+        }
+        if ("MissingDeviceToken".equals(reason)) {
+            return DeliveryError.MISSING_DEVICE_TOKEN;
+        }
+        if ("MissingTopic".equals(reason)) {
+            return DeliveryError.MISSING_TOPIC;
+        }
+        if ("PayloadEmpty".equals(reason)) {
+            return DeliveryError.MISSING_PAYLOAD;
+        }
+        if ("PayloadTooLarge".equals(reason) || status == 413) {
+            return DeliveryError.INVALID_PAYLOAD_SIZE;
+        }
+        if (status >= 500) {
+            return DeliveryError.PROCESSING_ERROR;
+        }
+        return DeliveryError.UNKNOWN;
+    }
+}
@@ -0,0 +1,15 @@
+package com.notnoop.exceptions;
+
+/**
+ * Thrown instead of connecting while the circuit breaker of a connection is
+ * open, after too many consecutive failures.
+ *
+ * @see com.notnoop.apns.BackoffPolicy#withCircuitBreaker(int, long)
+ */
+public class CircuitOpenException extends NetworkIOException {
+    private static final long serialVersionUID = -2419512738512034263L;
+
+    public CircuitOpenException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,13 @@
+package com.notnoop.exceptions;
+
+/**
+ * Thrown when the key signing the provider authentication tokens cannot be
+ * read, or cannot sign.
+ */
+public class InvalidSigningKeyException extends ApnsException {
+    private static final long serialVersionUID = 4512379086521203388L;
+
+    public InvalidSigningKeyException(String message)        { super(message); }
+    public InvalidSigningKeyException(Throwable cause)       { super(cause); }
+    public InvalidSigningKeyException(String m, Throwable c) { super(m, c); }
+}
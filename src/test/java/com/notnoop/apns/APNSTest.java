@@ -1,5 +1,9 @@
 package com.notnoop.apns;
 
+import java.security.KeyPairGenerator;
+import java.util.Date;
+import java.util.Map;
+
 import org.junit.Test;
 import static org.junit.Assert.*;
 import static org.hamcrest.CoreMatchers.*;
@@ -24,4 +28,34 @@ public class APNSTest {
     public void newServiceGetNewInstances() {
         assertNotSame(APNS.newService(), APNS.newService());
     }
+
+    private static ApnsSigningKey signingKey() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+        generator.initialize(256);
+        return new ApnsSigningKey("ABC123DEFG", "DEF123GHIJ",
+                generator.generateKeyPair().getPrivate());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void feedbackPollingNeedsACertificate() throws Exception {
+        APNS.newService().withSigningKey(signingKey()).withSandboxDestination()
+                .withFeedbackPolling(60000, 0, new FeedbackSink() {
+                    @Override
+                    public void inactiveDevices(Map<DeviceToken, Date> devices) {
+                    }
+                }).build();
+    }
+
+    @Test
+    public void signingKeyAloneHasNoFeedback() throws Exception {
+        ApnsService service = APNS.newService().withSigningKey(signingKey())
+                .withSandboxDestination().build();
+        try {
+            service.getInactiveDevices();
+            fail("the feedback service needs a certificate");
+        } catch (IllegalStateException expected) {
+        } finally {
+            service.stop();
+        }
+    }
 }
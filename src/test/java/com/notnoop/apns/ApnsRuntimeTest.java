@@ -0,0 +1,104 @@
+package com.notnoop.apns;
+
+import static com.notnoop.apns.utils.FixedCertificates.*;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.security.KeyStore;
+import java.util.Collections;
+
+import javax.net.ssl.SSLContext;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.notnoop.apns.internal.Utilities;
+import com.notnoop.exceptions.InvalidSSLConfig;
+
+public class ApnsRuntimeTest {
+
+    ApnsRuntime runtime = ApnsRuntime.create(1);
+
+    @After
+    public void close() {
+        runtime.close();
+    }
+
+    private static KeyStore load(String store, String password) {
+        return Utilities.loadKeyStore(ClassLoader.getSystemResourceAsStream(store),
+                password, "PKCS12");
+    }
+
+    @Test
+    public void sharesSSLContextByFingerprint() {
+        SSLContext client = runtime.getSSLContext(load(CLIENT_STORE, CLIENT_PASSWD), CLIENT_PASSWD);
+        assertSame(client, runtime.getSSLContext(load(CLIENT_STORE, CLIENT_PASSWD), CLIENT_PASSWD));
+
+        SSLContext server = runtime.getSSLContext(load(SERVER_STORE, SERVER_PASSWD), SERVER_PASSWD);
+        assertNotSame(client, server);
+        assertEquals(2, runtime.getSSLContextCount());
+        assertSame(runtime.getTrustManagers(), runtime.getTrustManagers());
+    }
+
+    @Test(expected = InvalidSSLConfig.class)
+    public void wrongPasswordRejectedWhenCached() {
+        runtime.getSSLContext(load(CLIENT_STORE, CLIENT_PASSWD), CLIENT_PASSWD);
+        runtime.getSSLContext(load(CLIENT_STORE, CLIENT_PASSWD), CLIENT_PASSWD + "x");
+    }
+
+    @Test
+    public void privateKeyIsPartOfTheFingerprint() throws Exception {
+        KeyStore client = load(CLIENT_STORE, CLIENT_PASSWD);
+        KeyStore server = load(SERVER_STORE, SERVER_PASSWD);
+        String alias = keyAlias(client);
+        // the certificate of the client with another private key
+        KeyStore mismatched = KeyStore.getInstance("PKCS12");
+        mismatched.load(null, null);
+        mismatched.setKeyEntry(alias, server.getKey(keyAlias(server), SERVER_PASSWD.toCharArray()),
+                CLIENT_PASSWD.toCharArray(), client.getCertificateChain(alias));
+
+        SSLContext context = runtime.getSSLContext(client, CLIENT_PASSWD);
+        assertNotSame(context, runtime.getSSLContext(mismatched, CLIENT_PASSWD));
+        assertEquals(2, runtime.getSSLContextCount());
+    }
+
+    @Test
+    public void removeSSLContext() {
+        SSLContext context = runtime.getSSLContext(load(CLIENT_STORE, CLIENT_PASSWD), CLIENT_PASSWD);
+        assertTrue(runtime.removeSSLContext(load(CLIENT_STORE, CLIENT_PASSWD), CLIENT_PASSWD));
+        assertFalse(runtime.removeSSLContext(load(CLIENT_STORE, CLIENT_PASSWD), CLIENT_PASSWD));
+        assertEquals(0, runtime.getSSLContextCount());
+        assertNotSame(context, runtime.getSSLContext(load(CLIENT_STORE, CLIENT_PASSWD), CLIENT_PASSWD));
+    }
+
+    private static String keyAlias(KeyStore keyStore) throws Exception {
+        for (String alias : Collections.list(keyStore.aliases())) {
+            if (keyStore.isKeyEntry(alias)) {
+                return alias;
+            }
+        }
+        throw new AssertionError("No key entry");
+    }
+
+    @Test
+    public void servicesShareRuntime() {
+        ApnsService first = APNS.newService()
+                .withRuntime(runtime)
+                .withCert(ClassLoader.getSystemResourceAsStream(CLIENT_STORE), CLIENT_PASSWD)
+                .withGatewayDestination(TEST_HOST, TEST_GATEWAY_PORT)
+                .build();
+        // the certificate given before the runtime is looked up once it is
+        ApnsService second = APNS.newService()
+                .withCert(ClassLoader.getSystemResourceAsStream(CLIENT_STORE), CLIENT_PASSWD)
+                .withRuntime(runtime)
+                .withGatewayDestination(TEST_HOST, TEST_GATEWAY_PORT)
+                .build();
+        first.stop();
+        second.stop();
+
+        assertEquals(1, runtime.getSSLContextCount());
+    }
+}
@@ -0,0 +1,138 @@
+package com.notnoop.apns;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.notnoop.apns.internal.Utilities;
+
+public class DeviceTokenParserTest {
+
+    private static final String A = "0123456789ABCDEF0123456789ABCDEF0123456789ABCDEF0123456789ABCDEF";
+    private static final String B = "FEDCBA9876543210FEDCBA9876543210FEDCBA9876543210FEDCBA9876543210";
+
+    @Test
+    public void readsSeparatedRecords() throws IOException {
+        String input = A + "\r\n" + B.toLowerCase() + ",<" + spaced(A) + ">\n\n";
+        assertEquals(tokens(A, B, A), readAll(DeviceTokenParser.forChars(input), 2));
+    }
+
+    @Test
+    public void lastRecordWithoutSeparator() throws IOException {
+        assertEquals(tokens(A, B), readAll(DeviceTokenParser.forChars(A + "\n" + B), 10));
+    }
+
+    @Test
+    public void reportsMalformedRecords() throws IOException {
+        final List<Long> offsets = new ArrayList<Long>();
+        String input = A + "\nnot-a-token\n" + A + "00\n0123\n" + B;
+        DeviceTokenParser parser = DeviceTokenParser.forChars(input)
+                .withMalformedTokenHandler(new DeviceTokenParser.MalformedTokenHandler() {
+                    public void malformedToken(long offset, int digits) {
+                        offsets.add(offset);
+                    }
+                });
+
+        assertEquals(tokens(A, B), readAll(parser, 1));
+        assertEquals(2, parser.getTokenCount());
+        assertEquals(3, parser.getMalformedCount());
+        assertEquals(input.indexOf("not"), offsets.get(0).longValue());
+        assertEquals(input.indexOf(A + "00"), offsets.get(1).longValue());
+        assertEquals(input.indexOf("0123\n"), offsets.get(2).longValue());
+    }
+
+    @Test
+    public void readsByteBuffer() throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap(Utilities.toUTF8Bytes(A + "\n" + B + "\n"));
+        assertEquals(tokens(A, B), readAll(DeviceTokenParser.forBytes(buf), 3));
+    }
+
+    @Test
+    public void readsMappedFile() throws IOException {
+        File file = File.createTempFile("tokens", ".csv");
+        try {
+            StringBuilder sb = new StringBuilder();
+            List<String> expected = new ArrayList<String>();
+            for (int i = 0; i < 1000; i++) {
+                String token = i % 2 == 0 ? A : B;
+                sb.append(token).append('\n');
+                expected.add(token);
+            }
+            FileOutputStream out = new FileOutputStream(file);
+            out.write(Utilities.toUTF8Bytes(sb.toString()));
+            out.close();
+
+            DeviceTokenParser parser = DeviceTokenParser.forFile(file);
+            try {
+                assertEquals(tokens(expected.toArray(new String[0])), readAll(parser, 64));
+            } finally {
+                parser.close();
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void iteratesTokens() {
+        Iterator<DeviceToken> it = DeviceTokenParser.forChars(A + "\nbad\n" + B).tokens();
+        List<DeviceToken> tokens = new ArrayList<DeviceToken>();
+        while (it.hasNext()) {
+            tokens.add(it.next());
+        }
+        assertEquals(tokens(A, B), tokens);
+    }
+
+    @Test
+    public void emptyInput() throws IOException {
+        assertEquals(-1, DeviceTokenParser.forChars("\n\n").read(new byte[DeviceToken.LENGTH]));
+    }
+
+    @Test
+    public void decodeHexMatchesParser() {
+        byte[] dst = new byte[DeviceToken.LENGTH];
+        try {
+            DeviceTokenParser.forChars(spaced(A)).read(dst);
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+        assertArrayEquals(Utilities.decodeHex(spaced(A)), dst);
+    }
+
+    private static String spaced(String hex) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < hex.length(); i += 8) {
+            sb.append(hex, i, i + 8).append(i == 24 ? '-' : ' ');
+        }
+        return sb.toString().trim();
+    }
+
+    private static List<DeviceToken> tokens(String... hex) {
+        List<DeviceToken> tokens = new ArrayList<DeviceToken>();
+        for (String h : hex) {
+            tokens.add(DeviceToken.fromHex(h));
+        }
+        return tokens;
+    }
+
+    private static List<DeviceToken> readAll(DeviceTokenParser parser, int batch) throws IOException {
+        List<DeviceToken> tokens = new ArrayList<DeviceToken>();
+        byte[] dst = new byte[batch * DeviceToken.LENGTH];
+        int n;
+        while ((n = parser.read(dst)) != -1) {
+            for (int i = 0; i < n; i++) {
+                tokens.add(DeviceToken.fromBytes(dst, i * DeviceToken.LENGTH));
+            }
+        }
+        return tokens;
+    }
+}
@@ -0,0 +1,119 @@
+package com.notnoop.apns;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+import com.notnoop.apns.internal.Utilities;
+
+public class DeviceTokenTest {
+
+    private static final String HEX = "0123456789ABCDEF0123456789abcdef0123456789ABCDEF0123456789abcdef";
+
+    @Test
+    public void hexRoundTrip() {
+        DeviceToken token = DeviceToken.fromHex(HEX);
+        assertEquals(HEX.toUpperCase(), token.toHex());
+        assertEquals(HEX.toUpperCase(), token.toString());
+        assertEquals(HEX.toUpperCase(), token.appendHex(new StringBuilder()).toString());
+    }
+
+    @Test
+    public void bytesRoundTrip() {
+        byte[] bytes = new byte[DeviceToken.LENGTH];
+        new Random().nextBytes(bytes);
+
+        DeviceToken token = DeviceToken.fromBytes(bytes);
+        assertArrayEquals(bytes, token.toBytes());
+        assertEquals(Utilities.encodeHex(bytes), token.toHex());
+        assertEquals(token, DeviceToken.fromHex(Utilities.encodeHex(bytes)));
+    }
+
+    @Test
+    public void fromBytesWithOffset() {
+        byte[] bytes = new byte[DeviceToken.LENGTH + 3];
+        new Random().nextBytes(bytes);
+
+        byte[] written = new byte[DeviceToken.LENGTH + 3];
+        DeviceToken.fromBytes(bytes, 3).writeTo(written, 3);
+        assertArrayEquals(Utilities.copyOfRange(bytes, 3, bytes.length),
+                Utilities.copyOfRange(written, 3, written.length));
+    }
+
+    @Test
+    public void ignoresSeparators() {
+        String spaced = "01234567 89ABCDEF-01234567 89abcdef 01234567 89ABCDEF 01234567 89abcdef";
+        assertEquals(DeviceToken.fromHex(HEX), DeviceToken.fromHex(spaced));
+    }
+
+    @Test
+    public void valueEquality() {
+        DeviceToken a = DeviceToken.fromHex(HEX);
+        DeviceToken b = DeviceToken.fromBytes(Utilities.decodeHex(HEX));
+        assertEquals(a, b);
+        assertEquals(a.hashCode(), b.hashCode());
+        assertEquals(0, a.compareTo(b));
+
+        Set<DeviceToken> set = new HashSet<DeviceToken>();
+        set.add(a);
+        assertFalse(set.add(b));
+    }
+
+    @Test
+    public void ordersAsUnsignedBytes() {
+        byte[] low = new byte[DeviceToken.LENGTH];
+        byte[] high = new byte[DeviceToken.LENGTH];
+        high[0] = (byte) 0xFF;
+        assertTrue(DeviceToken.fromBytes(low).compareTo(DeviceToken.fromBytes(high)) < 0);
+        assertTrue(DeviceToken.fromBytes(high).compareTo(DeviceToken.fromBytes(low)) > 0);
+    }
+
+    @Test
+    public void ofNotification() {
+        EnhancedApnsNotification notification = new EnhancedApnsNotification(
+                1, EnhancedApnsNotification.MAXIMUM_EXPIRY,
+                DeviceToken.fromHex(HEX), new byte[] { '{', '}' });
+        assertEquals(DeviceToken.fromHex(HEX), DeviceToken.of(notification));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsShortHex() {
+        DeviceToken.fromHex("0123");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsLongHex() {
+        DeviceToken.fromHex(HEX + "00");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsInvalidCharacter() {
+        DeviceToken.fromHex(HEX.substring(1) + "g");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsWrongByteLength() {
+        DeviceToken.fromBytes(new byte[DeviceToken.LENGTH - 1]);
+    }
+
+    @Test
+    public void hashOfNotificationMatchesTokenHash() {
+        byte[] token = Utilities.decodeHex(HEX);
+        byte[] payload = { '{', '}' };
+        int expected = Arrays.hashCode(token);
+        assertEquals(expected, DeviceToken.hashOf(new SimpleApnsNotification(token, payload)));
+        assertEquals(expected, DeviceToken.hashOf(new EnhancedApnsNotification(1, 0, token, payload)));
+        ApnsNotification framed = new FramedApnsNotification(1, 0,
+                FramedApnsNotification.PRIORITY_IMMEDIATE, token, payload);
+        assertEquals(expected, DeviceToken.hashOf(framed));
+        assertEquals(expected, DeviceToken.hashOf(new TopicApnsNotification("topic", framed)));
+    }
+}
@@ -4,15 +4,24 @@ import static com.notnoop.apns.utils.FixedCertificates.*;
 
 import java.io.IOException;
 import java.net.SocketTimeoutException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.net.ssl.SSLContext;
 
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
 import com.notnoop.apns.APNS;
 import com.notnoop.apns.ApnsService;
+import com.notnoop.apns.FeedbackListener;
 import static com.notnoop.apns.internal.ApnsFeedbackParsingUtils.*;
 import com.notnoop.apns.utils.ApnsServerStub;
 
@@ -96,6 +105,53 @@ public class FeedbackTest {
         checkParsedThree(service.getInactiveDevices());
     }
 
+    @Test
+    public void threeAsyncFeedback() throws Exception {
+        server.toSend.write(three);
+
+        ApnsService service =
+            APNS.newService().withSSLContext(clientContext)
+            .withGatewayDestination(TEST_HOST, TEST_GATEWAY_PORT)
+            .withFeedbackDestination(TEST_HOST, TEST_FEEDBACK_PORT)
+            .build();
+
+        final AtomicInteger reported = new AtomicInteger();
+        Future<Integer> result = service.getInactiveDevicesAsync(new FeedbackListener() {
+            public void inactiveDevice(byte[] deviceToken, long timestamp) {
+                reported.incrementAndGet();
+            }
+        });
+        assertEquals(3, result.get(5, TimeUnit.SECONDS).intValue());
+        assertEquals(3, reported.get());
+    }
+
+    @Test
+    public void blockingFeedbackOnEventLoopFails() throws Exception {
+        server.toSend.write(simple);
+        EventLoopGroup group = new NioEventLoopGroup(1);
+        try {
+            final ApnsService service =
+                APNS.newService().withSSLContext(clientContext)
+                .withGatewayDestination(TEST_HOST, TEST_GATEWAY_PORT)
+                .withFeedbackDestination(TEST_HOST, TEST_FEEDBACK_PORT)
+                .withNettyEventLoopGroup(group)
+                .build();
+            try {
+                group.submit(new Callable<Object>() {
+                    public Object call() {
+                        return service.getInactiveDevices();
+                    }
+                }).get(5, TimeUnit.SECONDS);
+                fail("IllegalStateException expected");
+            } catch (ExecutionException e) {
+                assertEquals(IllegalStateException.class, e.getCause().getClass());
+            }
+            checkParsedSimple(service.getInactiveDevices());
+        } finally {
+            group.shutdownGracefully();
+        }
+    }
+
     @Test
     public void simpleQueuedFeedback() throws IOException {
         server.toSend.write(simple);
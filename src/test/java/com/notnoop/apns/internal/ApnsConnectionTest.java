@@ -1,8 +1,32 @@
 package com.notnoop.apns.internal;
 
 import static com.notnoop.apns.internal.MockingUtils.*;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.net.SocketFactory;
 
@@ -10,7 +34,15 @@ import org.junit.Assert;
 import org.junit.Test;
 import org.junit.Ignore;
 
+import com.notnoop.apns.ApnsDelegate;
+import com.notnoop.apns.ApnsDelegateAdapter;
+import com.notnoop.apns.ApnsNotification;
+import com.notnoop.apns.BackoffPolicy;
+import com.notnoop.apns.DeliveryError;
+import com.notnoop.apns.EnhancedApnsNotification;
 import com.notnoop.apns.SimpleApnsNotification;
+import com.notnoop.exceptions.CircuitOpenException;
+import com.notnoop.exceptions.NetworkIOException;
 
 
 public class ApnsConnectionTest {
@@ -55,6 +87,369 @@ public class ApnsConnectionTest {
         packetSentRegardless(factory, baos);
     }
 
+    @Test
+    public void monitoringThreadFromFactory() {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        SocketFactory factory = mockSocketFactory(baos, new ByteArrayInputStream(new byte[0]));
+        final AtomicInteger threads = new AtomicInteger();
+        ThreadFactory threadFactory = new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                threads.incrementAndGet();
+                return new Thread(r);
+            }
+        };
+
+        ApnsConnectionImpl connection = new ApnsConnectionImpl(factory, "localhost", 80,
+                null, new ReconnectPolicies.Never(), ApnsDelegate.EMPTY, true,
+                ApnsConnection.DEFAULT_CACHE_LENGTH, true, 0, threadFactory);
+        connection.sendMessage(msg);
+        Assert.assertArrayEquals(msg.marshall(), baos.toByteArray());
+        Assert.assertEquals(1, threads.get());
+        connection.close();
+    }
+
+    @Test
+    public void errorResponseSplitAcrossReads() {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        // an error frame delivered one byte per read
+        InputStream in = new FilterInputStream(new ByteArrayInputStream(
+                new byte[] { 8, 8, 0, 0, 0, 1 })) {
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                return super.read(b, off, Math.min(len, 1));
+            }
+        };
+        SocketFactory factory = mockSocketFactory(baos, in);
+        ApnsDelegate delegate = mock(ApnsDelegate.class);
+
+        ApnsConnectionImpl connection = new ApnsConnectionImpl(factory, "localhost", 80,
+                null, new ReconnectPolicies.Never(), delegate, true,
+                ApnsConnection.DEFAULT_CACHE_LENGTH, false, 0, null);
+        connection.sendMessage(msg);
+
+        verify(delegate, timeout(2000)).connectionClosed(DeliveryError.INVALID_TOKEN, 1);
+        connection.close();
+    }
+
+    @Test
+    public void resendsLargeBufferIteratively() throws Exception {
+        final int count = 20000;
+        final CountDownLatch sent = new CountDownLatch(1);
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        // rejects the first notification once all of them have been sent
+        InputStream in = new FilterInputStream(new ByteArrayInputStream(
+                new byte[] { 8, 8, 0, 0, 0, 0 })) {
+            @Override
+            public int read() throws IOException {
+                awaitSent();
+                return super.read();
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                awaitSent();
+                return super.read(b, off, len);
+            }
+
+            private void awaitSent() throws IOException {
+                try {
+                    sent.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+            }
+        };
+        SocketFactory factory = mockSocketFactory(baos, in);
+        ApnsDelegate delegate = mock(ApnsDelegate.class);
+
+        ApnsConnectionImpl connection = new ApnsConnectionImpl(factory, "localhost", 80,
+                null, new ReconnectPolicies.Never(), delegate, true, count, false, 0, null);
+        int length = 0;
+        for (int i = 0; i < count; i++) {
+            EnhancedApnsNotification m = new EnhancedApnsNotification(i,
+                    EnhancedApnsNotification.MAXIMUM_EXPIRY, new byte[32], new byte[] { '{', '}' });
+            length = m.length();
+            connection.sendMessage(m);
+        }
+        sent.countDown();
+
+        verify(delegate, timeout(5000)).notificationsResent(count - 1);
+        verify(delegate, timeout(5000).times(count - 1)).messageSent(any(ApnsNotification.class), eq(true));
+        Assert.assertEquals((2 * count - 1) * length, baos.size());
+        connection.close();
+    }
+
+    @Test
+    public void failedResendReportsTheRestOfTheChunk() throws Exception {
+        EnhancedApnsNotification first = new EnhancedApnsNotification(1, 0, "a87d8878d878a79", "{}");
+        EnhancedApnsNotification second = new EnhancedApnsNotification(2, 0, "a87d8878d878a79", "{}");
+        EnhancedApnsNotification third = new EnhancedApnsNotification(3, 0, "a87d8878d878a79", "{}");
+        PipedOutputStream errors = new PipedOutputStream();
+        Socket socket = mock(Socket.class);
+        when(socket.getOutputStream()).thenReturn(new ByteArrayOutputStream());
+        when(socket.getInputStream()).thenReturn(new PipedInputStream(errors));
+        SocketFactory factory = mock(SocketFactory.class);
+        // the resend finds the gateway unreachable
+        when(factory.createSocket(anyString(), anyInt())).thenReturn(socket)
+                .thenThrow(new IOException("refused"));
+        final List<ApnsNotification> failed = new CopyOnWriteArrayList<ApnsNotification>();
+        ApnsDelegate delegate = new ApnsDelegateAdapter() {
+            @Override
+            public void messageSendFailed(ApnsNotification message, Throwable e) {
+                failed.add(message);
+            }
+        };
+
+        ApnsConnectionImpl connection = new ApnsConnectionImpl(factory, "localhost", 80, null,
+                new ReconnectPolicies.Never(), delegate, true,
+                ApnsConnection.DEFAULT_CACHE_LENGTH, false, 0, null);
+        connection.DELAY_IN_MS = 0;
+        try {
+            connection.sendMessage(first);
+            connection.sendMessage(second);
+            connection.sendMessage(third);
+            errors.write(new byte[] { 8, 8, 0, 0, 0, 1 });
+            errors.close();
+
+            long deadline = System.currentTimeMillis() + 5000;
+            while (failed.size() < 3 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            Assert.assertEquals(Arrays.<ApnsNotification>asList(first, second, third), failed);
+        } finally {
+            connection.close();
+        }
+    }
+
+    @Test
+    public void bufferedWritesFlushWhenFull() {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        ApnsDelegate delegate = mock(ApnsDelegate.class);
+        ApnsConnectionImpl connection = bufferedConnection(baos, delegate,
+                3 * msg.length(), 60000);
+
+        connection.sendMessage(msg);
+        connection.sendMessage(msg);
+        Assert.assertEquals(0, baos.size());
+        verify(delegate, never()).messageSent(any(ApnsNotification.class), anyBoolean());
+
+        connection.sendMessage(msg);
+        Assert.assertEquals(3 * msg.length(), baos.size());
+        verify(delegate, times(3)).messageSent(msg, false);
+        connection.close();
+    }
+
+    @Test
+    public void bufferedWritesFlushAfterDelay() {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        ApnsDelegate delegate = mock(ApnsDelegate.class);
+        ApnsConnectionImpl connection = bufferedConnection(baos, delegate, 8192, 50);
+
+        connection.sendMessage(msg);
+        verify(delegate, timeout(2000)).messageSent(msg, false);
+        Assert.assertArrayEquals(msg.marshall(), baos.toByteArray());
+        connection.close();
+    }
+
+    @Test
+    public void bufferedWritesExplicitFlush() {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        ApnsDelegate delegate = mock(ApnsDelegate.class);
+        ApnsConnectionImpl connection = bufferedConnection(baos, delegate, 8192, 60000);
+
+        connection.sendMessage(msg);
+        connection.sendMessage(msg);
+        Assert.assertEquals(0, baos.size());
+        connection.flush();
+        Assert.assertEquals(2 * msg.length(), baos.size());
+        verify(delegate, times(2)).messageSent(msg, false);
+        connection.close();
+    }
+
+    @Test
+    public void openCircuitFailsFast() throws Exception {
+        SocketFactory factory = mock(SocketFactory.class);
+        when(factory.createSocket(anyString(), anyInt())).thenThrow(new IOException("refused"));
+        ApnsDelegate delegate = mock(ApnsDelegate.class);
+        ApnsConnectionImpl connection = new ApnsConnectionImpl(factory, "localhost", 80, null,
+                new ReconnectPolicies.Never(), delegate, false,
+                ApnsConnection.DEFAULT_CACHE_LENGTH, false, 0, null, 0, 0,
+                BackoffPolicy.exponential(0, 0).withMaxAttempts(2).withCircuitBreaker(2, 60000));
+
+        try {
+            connection.sendMessage(msg);
+            Assert.fail();
+        } catch (NetworkIOException e) {
+            Assert.assertFalse(e instanceof CircuitOpenException);
+        }
+        try {
+            connection.sendMessage(msg);
+            Assert.fail();
+        } catch (CircuitOpenException expected) {
+        }
+
+        verify(factory, times(2)).createSocket(anyString(), anyInt());
+        verify(delegate, times(2)).messageSendFailed(eq(msg), any(NetworkIOException.class));
+        connection.close();
+    }
+
+    @Test
+    public void backoffRetriesOnTheScheduler() throws Exception {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        Socket socket = mock(Socket.class);
+        when(socket.getOutputStream()).thenReturn(baos);
+        SocketFactory factory = mock(SocketFactory.class);
+        when(factory.createSocket(anyString(), anyInt()))
+                .thenThrow(new IOException("refused"))
+                .thenThrow(new IOException("refused"))
+                .thenReturn(socket);
+        ApnsDelegate delegate = mock(ApnsDelegate.class);
+        ApnsConnectionImpl connection = new ApnsConnectionImpl(factory, "localhost", 80, null,
+                new ReconnectPolicies.Never(), delegate, false,
+                ApnsConnection.DEFAULT_CACHE_LENGTH, false, 0, null, 0, 0,
+                BackoffPolicy.exponential(500, 500).withMaxAttempts(5));
+
+        // fails twice and is queued, the second one queues up behind it
+        connection.sendMessage(msg);
+        connection.sendMessage(msg);
+        verify(factory, times(2)).createSocket(anyString(), anyInt());
+        verify(delegate, never()).messageSent(eq(msg), anyBoolean());
+
+        verify(delegate, timeout(5000).times(2)).messageSent(msg, false);
+        verify(factory, times(3)).createSocket(anyString(), anyInt());
+        verify(delegate, never()).messageSendFailed(any(ApnsNotification.class), any(Throwable.class));
+        Assert.assertEquals(2 * msg.length(), baos.size());
+        connection.close();
+    }
+
+    @Test
+    public void rotationMakesBeforeBreak() throws Exception {
+        ByteArrayOutputStream first = new ByteArrayOutputStream();
+        ByteArrayOutputStream second = new ByteArrayOutputStream();
+        Socket firstSocket = mock(Socket.class);
+        when(firstSocket.getOutputStream()).thenReturn(first);
+        Socket secondSocket = mock(Socket.class);
+        when(secondSocket.getOutputStream()).thenReturn(second);
+        SocketFactory factory = mock(SocketFactory.class);
+        when(factory.createSocket(anyString(), anyInt())).thenReturn(firstSocket, secondSocket);
+
+        ApnsConnectionImpl connection = new ApnsConnectionImpl(factory, "localhost", 80, null,
+                new ReconnectPolicies.Traffic(2, 0, 0), ApnsDelegate.EMPTY, false,
+                ApnsConnection.DEFAULT_CACHE_LENGTH, false, 0, null);
+        connection.sendMessage(msg);
+        connection.sendMessage(msg);
+        connection.sendMessage(msg);
+
+        Assert.assertEquals(2 * msg.length(), first.size());
+        Assert.assertEquals(msg.length(), second.size());
+        // the rotated socket is closed after a grace period
+        verify(firstSocket, never()).close();
+        verify(firstSocket, timeout(5000)).close();
+        verify(secondSocket, never()).close();
+        connection.close();
+    }
+
+    @Test
+    public void lateErrorOnRotatedSocketResendsOnlyItsNotifications() throws Exception {
+        EnhancedApnsNotification first = new EnhancedApnsNotification(1, 0, "a87d8878d878a79", "{}");
+        EnhancedApnsNotification second = new EnhancedApnsNotification(2, 0, "a87d8878d878a79", "{}");
+        EnhancedApnsNotification third = new EnhancedApnsNotification(3, 0, "a87d8878d878a79", "{}");
+        PipedOutputStream firstErrors = new PipedOutputStream();
+        PipedOutputStream secondErrors = new PipedOutputStream();
+        Socket firstSocket = mock(Socket.class);
+        when(firstSocket.getOutputStream()).thenReturn(new ByteArrayOutputStream());
+        when(firstSocket.getInputStream()).thenReturn(new PipedInputStream(firstErrors));
+        ByteArrayOutputStream written = new ByteArrayOutputStream();
+        Socket secondSocket = mock(Socket.class);
+        when(secondSocket.getOutputStream()).thenReturn(written);
+        when(secondSocket.getInputStream()).thenReturn(new PipedInputStream(secondErrors));
+        SocketFactory factory = mock(SocketFactory.class);
+        when(factory.createSocket(anyString(), anyInt())).thenReturn(firstSocket, secondSocket);
+        ApnsDelegate delegate = mock(ApnsDelegate.class);
+
+        ApnsConnectionImpl connection = new ApnsConnectionImpl(factory, "localhost", 80, null,
+                new ReconnectPolicies.Traffic(2, 0, 0), delegate, true,
+                ApnsConnection.DEFAULT_CACHE_LENGTH, false, 0, null);
+        try {
+            connection.sendMessage(first);
+            connection.sendMessage(second);
+            connection.sendMessage(third);
+
+            // the first socket rejects the first notification, and is closed
+            firstErrors.write(new byte[] { 8, 8, 0, 0, 0, 1 });
+            firstErrors.close();
+
+            ByteArrayOutputStream expected = new ByteArrayOutputStream();
+            expected.write(third.marshall());
+            expected.write(second.marshall());
+            long deadline = System.currentTimeMillis() + 5000;
+            while (written.size() < expected.size() && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            Assert.assertArrayEquals(expected.toByteArray(), written.toByteArray());
+            verify(delegate).notificationsResent(1);
+            verify(delegate, never()).messageSent(third, true);
+        } finally {
+            connection.close();
+            secondErrors.close();
+        }
+    }
+
+    @Test
+    public void perNotificationPolicyReplacesTheSocket() throws Exception {
+        ByteArrayOutputStream first = new ByteArrayOutputStream();
+        ByteArrayOutputStream second = new ByteArrayOutputStream();
+        Socket firstSocket = mock(Socket.class);
+        when(firstSocket.getOutputStream()).thenReturn(first);
+        Socket secondSocket = mock(Socket.class);
+        when(secondSocket.getOutputStream()).thenReturn(second);
+        SocketFactory factory = mock(SocketFactory.class);
+        when(factory.createSocket(anyString(), anyInt())).thenReturn(firstSocket, secondSocket);
+
+        ApnsConnectionImpl connection = new ApnsConnectionImpl(factory, "localhost", 80, null,
+                new ReconnectPolicies.Always(), ApnsDelegate.EMPTY, false,
+                ApnsConnection.DEFAULT_CACHE_LENGTH, false, 0, null);
+        connection.sendMessage(msg);
+        connection.sendMessage(msg);
+
+        // closed before the second notification, not after a grace period
+        verify(firstSocket).close();
+        verify(secondSocket, never()).close();
+        Assert.assertEquals(msg.length(), first.size());
+        Assert.assertEquals(msg.length(), second.size());
+        connection.close();
+    }
+
+    @Test
+    public void closeClosesRotatedSocket() throws Exception {
+        Socket firstSocket = mock(Socket.class);
+        when(firstSocket.getOutputStream()).thenReturn(new ByteArrayOutputStream());
+        Socket secondSocket = mock(Socket.class);
+        when(secondSocket.getOutputStream()).thenReturn(new ByteArrayOutputStream());
+        SocketFactory factory = mock(SocketFactory.class);
+        when(factory.createSocket(anyString(), anyInt())).thenReturn(firstSocket, secondSocket);
+
+        ApnsConnectionImpl connection = new ApnsConnectionImpl(factory, "localhost", 80, null,
+                new ReconnectPolicies.Traffic(1, 0, 0), ApnsDelegate.EMPTY, false,
+                ApnsConnection.DEFAULT_CACHE_LENGTH, false, 0, null);
+        connection.sendMessage(msg);
+        connection.sendMessage(msg);
+        connection.close();
+
+        // without waiting for the grace period
+        verify(firstSocket).close();
+        verify(secondSocket).close();
+    }
+
+    private ApnsConnectionImpl bufferedConnection(ByteArrayOutputStream baos,
+            ApnsDelegate delegate, int bufferSize, long flushDelayMillis) {
+        SocketFactory factory = mockSocketFactory(baos, null);
+        return new ApnsConnectionImpl(factory, "localhost", 80, null,
+                new ReconnectPolicies.Never(), delegate, false,
+                ApnsConnection.DEFAULT_CACHE_LENGTH, false, 0, null,
+                bufferSize, flushDelayMillis);
+    }
+
     private void packetSentRegardless(SocketFactory sf, ByteArrayOutputStream baos) {
         ApnsConnectionImpl connection = new ApnsConnectionImpl(sf, "localhost", 80);
         connection.DELAY_IN_MS = 0;
@@ -1,13 +1,25 @@
 package com.notnoop.apns.internal;
 
 import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
 
 import javax.net.SocketFactory;
 
 import org.junit.Test;
 
+import com.notnoop.apns.DeviceToken;
+import com.notnoop.apns.FeedbackListener;
+
 import static com.notnoop.apns.internal.ApnsFeedbackParsingUtils.*;
+import static org.junit.Assert.assertEquals;
 import static com.notnoop.apns.internal.MockingUtils.mockClosedThenOpenSocket;
 
 public class ApnsFeedbackConnectionTest {
@@ -36,6 +48,93 @@ public class ApnsFeedbackConnectionTest {
         checkParsedThree(Utilities.parseFeedbackStream(threeStream));
     }
 
+    @Test
+    public void parsedThreeTokens() {
+        Map<DeviceToken, Date> parsed = Utilities.parseFeedbackStreamTokens(threeStream);
+        assertEquals(3, parsed.size());
+        assertEquals(new Date(firstDate * 1000L), parsed.get(DeviceToken.fromBytes(firstDevice)));
+        assertEquals(new Date(secondDate * 1000L), parsed.get(DeviceToken.fromBytes(secondDevice)));
+        assertEquals(new Date(thirdDate * 1000L), parsed.get(DeviceToken.fromBytes(thirdDevice)));
+    }
+
+    @Test
+    public void parsedTokensMergesDuplicates() {
+        byte[] duplicated = pack(
+                /* time_t */  new byte[] {0, 0, 1, 0},
+                /* length */  new byte[] { 0, 32 },
+                /* device token */ firstDevice,
+
+                /* time_t */  new byte[] {0, 0, 0, 10},
+                /* length */  new byte[] { 0, 32 },
+                /* device token */ firstDevice);
+        Map<DeviceToken, Date> parsed = Utilities.parseFeedbackStreamTokens(new ByteArrayInputStream(duplicated));
+        assertEquals(1, parsed.size());
+        assertEquals(new Date((1 << 8) * 1000L), parsed.get(DeviceToken.fromBytes(firstDevice)));
+    }
+
+    @Test
+    public void parsedMergesDuplicates() {
+        byte[] duplicated = pack(
+                /* time_t */  new byte[] {0, 0, 0, 10},
+                /* length */  new byte[] { 0, 32 },
+                /* device token */ firstDevice,
+
+                /* time_t */  new byte[] {0, 0, 1, 0},
+                /* length */  new byte[] { 0, 32 },
+                /* device token */ firstDevice);
+        Map<String, Date> parsed = Utilities.parseFeedbackStream(new ByteArrayInputStream(duplicated));
+        assertEquals(1, parsed.size());
+        assertEquals(new Date((1 << 8) * 1000L), parsed.get(Utilities.encodeHex(firstDevice)));
+    }
+
+    /** Streaming **/
+    @Test
+    public void streamedThreeInSplitReads() {
+        // the tuples arrive one byte at a time
+        InputStream in = new FilterInputStream(threeStream) {
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                return super.read(b, off, Math.min(len, 1));
+            }
+        };
+        RecordingListener listener = new RecordingListener();
+        assertEquals(3, Utilities.parseFeedbackStream(in, listener));
+        listener.checkThree();
+    }
+
+    @Test
+    public void streamedThreeFromChannel() throws IOException {
+        RecordingListener listener = new RecordingListener();
+        assertEquals(3, new FeedbackDecoder().decode(Channels.newChannel(threeStream), listener));
+        listener.checkThree();
+    }
+
+    @Test
+    public void connectionStreamsThree() {
+        SocketFactory sf = MockingUtils.mockSocketFactory(null, threeStream);
+        ApnsFeedbackConnection connection = new ApnsFeedbackConnection(sf, "localhost", 80);
+        RecordingListener listener = new RecordingListener();
+        assertEquals(3, connection.getInactiveDevices(listener));
+        listener.checkThree();
+    }
+
+    static class RecordingListener implements FeedbackListener {
+        final List<DeviceToken> tokens = new ArrayList<DeviceToken>();
+        final List<Long> timestamps = new ArrayList<Long>();
+
+        public void inactiveDevice(byte[] deviceToken, long timestamp) {
+            tokens.add(DeviceToken.fromBytes(deviceToken));
+            timestamps.add(timestamp);
+        }
+
+        void checkThree() {
+            assertEquals(Arrays.asList(DeviceToken.fromBytes(firstDevice),
+                    DeviceToken.fromBytes(secondDevice), DeviceToken.fromBytes(thirdDevice)), tokens);
+            assertEquals(Arrays.asList(firstDate * 1000L, secondDate * 1000L, thirdDate * 1000L),
+                    timestamps);
+        }
+    }
+
     /** With Connection **/
     @Test
     public void connectionParsedOne() {
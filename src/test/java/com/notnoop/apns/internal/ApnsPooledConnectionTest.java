@@ -0,0 +1,207 @@
+package com.notnoop.apns.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.notnoop.apns.ApnsNotification;
+import com.notnoop.apns.BulkPushResult;
+import com.notnoop.apns.EnhancedApnsNotification;
+import com.notnoop.apns.PoolSharding;
+import com.notnoop.exceptions.NetworkIOException;
+
+public class ApnsPooledConnectionTest {
+
+    @Test
+    public void roundRobinSpreadsInOrder() {
+        RecordingConnection prototype = new RecordingConnection(-1);
+        ApnsPooledConnection pool = newPool(prototype, 4, PoolSharding.ROUND_ROBIN);
+
+        BulkPushResult result = pool.sendMessages(notifications(5000, 1).iterator(), null);
+        pool.close();
+
+        assertEquals(5000, result.getPushed());
+        assertEquals(0, result.getFailed());
+        assertEquals(4, prototype.copies.size());
+        for (RecordingConnection c : prototype.copies) {
+            assertEquals(1250, c.sent.size());
+            for (int i = 1; i < c.sent.size(); i++) {
+                assertTrue(c.sent.get(i - 1) < c.sent.get(i));
+            }
+        }
+    }
+
+    @Test
+    public void deviceTokenShardingKeepsTokenOnOneConnection() {
+        RecordingConnection prototype = new RecordingConnection(-1);
+        ApnsPooledConnection pool = newPool(prototype, 4, PoolSharding.DEVICE_TOKEN);
+
+        for (ApnsNotification m : notifications(1000, 8)) {
+            pool.sendMessage(m);
+        }
+        pool.close();
+
+        int total = 0;
+        for (RecordingConnection c : prototype.copies) {
+            for (int i = 1; i < c.sent.size(); i++) {
+                assertTrue(c.sent.get(i - 1) < c.sent.get(i));
+            }
+            for (int token : c.tokens) {
+                for (RecordingConnection other : prototype.copies) {
+                    assertTrue(other == c || !other.tokens.contains(token));
+                }
+            }
+            total += c.sent.size();
+        }
+        assertEquals(1000, total);
+    }
+
+    @Test
+    public void sendMessagesMergesFailures() {
+        RecordingConnection prototype = new RecordingConnection(100);
+        ApnsPooledConnection pool = newPool(prototype, 3, PoolSharding.ROUND_ROBIN);
+
+        BulkPushResult result = pool.sendMessages(notifications(1000, 1).iterator(), null);
+        pool.close();
+
+        assertEquals(990, result.getPushed());
+        assertEquals(10, result.getFailed());
+        assertEquals(10, result.getFailures().size());
+    }
+
+    @Test
+    public void replacesFailingConnection() {
+        RecordingConnection prototype = new RecordingConnection(1);
+        ApnsPooledConnection pool = newPool(prototype, 1, PoolSharding.ROUND_ROBIN);
+
+        BulkPushResult result = pool.sendMessages(notifications(6, 1).iterator(), null);
+        pool.close();
+
+        assertEquals(6, result.getFailed());
+        // the initial connection, replaced after every third failure
+        assertEquals(3, prototype.copies.size());
+    }
+
+    @Test
+    public void interruptedBulkPushCompletes() {
+        RecordingConnection prototype = new RecordingConnection(-1);
+        ApnsPooledConnection pool = newPool(prototype, 2, PoolSharding.ROUND_ROBIN);
+
+        Thread.currentThread().interrupt();
+        BulkPushResult result;
+        try {
+            result = pool.sendMessages(notifications(2000, 1).iterator(), null);
+        } finally {
+            assertTrue(Thread.interrupted());
+        }
+        pool.close();
+
+        assertEquals(2000, result.getPushed());
+    }
+
+    @Test(timeout = 10000)
+    public void stopEndsBulkPush() throws Exception {
+        RecordingConnection prototype = new RecordingConnection(-1);
+        final ApnsServiceImpl service = new ApnsServiceImpl(
+                newPool(prototype, 2, PoolSharding.ROUND_ROBIN), null);
+        final AtomicInteger read = new AtomicInteger();
+        // never ends on its own
+        Iterator<ApnsNotification> notifications = new Iterator<ApnsNotification>() {
+            public boolean hasNext() {
+                return true;
+            }
+
+            public ApnsNotification next() {
+                int i = read.getAndIncrement();
+                if (i == 1000) {
+                    new Thread() {
+                        @Override
+                        public void run() {
+                            service.stop();
+                        }
+                    }.start();
+                }
+                return new EnhancedApnsNotification(i, EnhancedApnsNotification.MAXIMUM_EXPIRY,
+                        new byte[32], new byte[] { '{', '}' });
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+
+        BulkPushResult result = service.push(notifications, null);
+
+        assertEquals(read.get(), result.getTotal());
+        assertTrue(result.getPushed() >= 1000);
+    }
+
+    private static ApnsPooledConnection newPool(ApnsConnection prototype, int max,
+            PoolSharding sharding) {
+        return new ApnsPooledConnection(prototype, max, Executors.newFixedThreadPool(max), sharding);
+    }
+
+    private static List<ApnsNotification> notifications(int count, int tokens) {
+        List<ApnsNotification> notifications = new ArrayList<ApnsNotification>();
+        for (int i = 0; i < count; i++) {
+            byte[] token = new byte[32];
+            token[0] = (byte) (i % tokens);
+            notifications.add(new EnhancedApnsNotification(i,
+                    EnhancedApnsNotification.MAXIMUM_EXPIRY, token, new byte[] { '{', '}' }));
+        }
+        return notifications;
+    }
+
+    /**
+     * Records the identifiers and tokens sent to each copy, failing every
+     * {@code failEvery}th notification.
+     */
+    private static class RecordingConnection implements ApnsConnection {
+        final List<RecordingConnection> copies = new CopyOnWriteArrayList<RecordingConnection>();
+        final List<Integer> sent = new ArrayList<Integer>();
+        final List<Integer> tokens = new ArrayList<Integer>();
+        final int failEvery;
+
+        RecordingConnection(int failEvery) {
+            this.failEvery = failEvery;
+        }
+
+        public void sendMessage(ApnsNotification m) throws NetworkIOException {
+            if (failEvery > 0 && m.getIdentifier() % failEvery == 0) {
+                throw new NetworkIOException();
+            }
+            sent.add(m.getIdentifier());
+            tokens.add((int) m.getDeviceToken()[0]);
+        }
+
+        public void flush() {
+        }
+
+        public ApnsConnection copy() {
+            RecordingConnection copy = new RecordingConnection(failEvery);
+            copies.add(copy);
+            return copy;
+        }
+
+        public void testConnection() throws NetworkIOException {
+        }
+
+        public void setCacheLength(int cacheLength) {
+        }
+
+        public int getCacheLength() {
+            return 0;
+        }
+
+        public void close() {
+        }
+    }
+}
@@ -1,10 +1,21 @@
 package com.notnoop.apns.internal;
 
-import org.junit.Test;
+import static org.junit.Assert.assertEquals;
 import static org.mockito.Mockito.*;
 
+import java.util.Arrays;
+import java.util.Iterator;
+
+import org.junit.Test;
+
+import com.notnoop.apns.ApnsNotification;
 import com.notnoop.apns.ApnsService;
+import com.notnoop.apns.BulkPushListener;
+import com.notnoop.apns.BulkPushResult;
+import com.notnoop.apns.DeviceToken;
 import com.notnoop.apns.EnhancedApnsNotification;
+import com.notnoop.exceptions.ApnsServiceStoppedException;
+import com.notnoop.exceptions.NetworkIOException;
 
 public class ApnsServiceImplTest {
 
@@ -31,6 +42,68 @@ public class ApnsServiceImplTest {
         verify(connection, times(1)).sendMessage(notification);
     }
 
+    @Test
+    public void flushFlushesConnection() {
+        ApnsConnection connection = mock(ApnsConnection.class);
+        ApnsService service = newService(connection, null);
+
+        service.flush();
+
+        verify(connection, times(1)).flush();
+    }
+
+    @Test
+    public void pushIteratorReportsEachNotification() {
+        ApnsConnection connection = mock(ApnsConnection.class);
+        ApnsService service = newService(connection, null);
+        BulkPushListener listener = mock(BulkPushListener.class);
+
+        DeviceToken token = DeviceToken.fromBytes(new byte[DeviceToken.LENGTH]);
+        BulkPushResult result = service.push(Arrays.asList(token, token, token).iterator(),
+                new byte[] { '{', '}' }, EnhancedApnsNotification.MAXIMUM_EXPIRY, listener);
+
+        assertEquals(3, result.getPushed());
+        assertEquals(0, result.getFailed());
+        verify(connection, times(3)).sendMessage(any(ApnsNotification.class));
+        verify(listener, times(3)).notificationPushed(any(ApnsNotification.class));
+    }
+
+    @Test
+    public void pushIteratorContinuesAfterFailure() {
+        ApnsConnection connection = mock(ApnsConnection.class);
+        doThrow(new NetworkIOException()).doNothing()
+            .when(connection).sendMessage(any(ApnsNotification.class));
+        ApnsService service = newService(connection, null);
+        BulkPushListener listener = mock(BulkPushListener.class);
+
+        BulkPushResult result = service.push(
+                Arrays.asList(notification, notification).iterator(), listener);
+
+        assertEquals(1, result.getPushed());
+        assertEquals(1, result.getFailed());
+        verify(listener).notificationFailed(eq(notification), any(NetworkIOException.class));
+        verify(listener).notificationPushed(notification);
+    }
+
+    @Test(expected = ApnsServiceStoppedException.class)
+    public void pooledPushIteratorAfterStopIsRejected() {
+        ApnsPooledConnection connection = mock(ApnsPooledConnection.class);
+        ApnsService service = newService(connection, null);
+        service.stop();
+
+        try {
+            service.push(Arrays.asList(notification).iterator(), null);
+        } finally {
+            verify(connection, never()).sendMessages(
+                    anyIteratorOf(ApnsNotification.class), any(BulkPushListener.class));
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> Iterator<? extends T> anyIteratorOf(Class<T> type) {
+        return any(Iterator.class);
+    }
+
     protected ApnsService newService(ApnsConnection connection, ApnsFeedbackConnection feedback) {
         return new ApnsServiceImpl(connection, null);
     }
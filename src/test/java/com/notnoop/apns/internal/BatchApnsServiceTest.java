@@ -1,17 +1,22 @@
 package com.notnoop.apns.internal;
 
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import java.io.IOException;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 import org.junit.Before;
 import org.junit.Test;
 
 import com.notnoop.apns.ApnsNotification;
+import com.notnoop.apns.EnhancedApnsNotification;
 
 public class BatchApnsServiceTest {
 
@@ -110,4 +115,54 @@ public class BatchApnsServiceTest {
 		verify(prototype, times(1)).close();
 	}
 
+	@Test
+	public void persistentBatchSizeTrigger() throws IOException, InterruptedException {
+		BatchApnsService persistent = new BatchApnsService(prototype, null, 60000, 60000,
+				3, Integer.MAX_VALUE, true, Executors.defaultThreadFactory());
+
+		for (int i = 0; i < 6; i++) {
+			persistent.push("1234", "{}");
+		}
+
+		// two full batches, on the same connection
+		verify(prototype, timeout(2000).times(6)).sendMessage(any(ApnsNotification.class));
+		verify(prototype, times(1)).copy();
+		verify(prototype, times(0)).close();
+
+		persistent.stop();
+		verify(prototype, times(2)).close();
+	}
+
+	@Test
+	public void persistentBatchBytesTrigger() throws IOException, InterruptedException {
+		ApnsNotification message = new EnhancedApnsNotification(1,
+				EnhancedApnsNotification.MAXIMUM_EXPIRY, "1234", "{}");
+		BatchApnsService persistent = new BatchApnsService(prototype, null, 60000, 60000,
+				Integer.MAX_VALUE, 2 * message.marshall().length, true,
+				Executors.defaultThreadFactory());
+
+		persistent.push(message);
+		Thread.sleep(250);
+		verify(prototype, times(0)).sendMessage(message);
+
+		persistent.push(message);
+		verify(prototype, timeout(2000).times(2)).sendMessage(message);
+
+		persistent.stop();
+	}
+
+	@Test
+	public void persistentBatchMillisDeadline() throws IOException, InterruptedException {
+		BatchApnsService persistent = new BatchApnsService(prototype, null, 100, 200,
+				Integer.MAX_VALUE, Integer.MAX_VALUE, true, Executors.defaultThreadFactory());
+
+		long start = System.nanoTime();
+		ApnsNotification message = persistent.push("1234", "{}");
+		verify(prototype, times(0)).sendMessage(message);
+		verify(prototype, timeout(2000)).sendMessage(message);
+		assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(100));
+
+		persistent.stop();
+	}
+
 }
@@ -0,0 +1,104 @@
+package com.notnoop.apns.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+import com.notnoop.apns.DeviceToken;
+
+public class DeviceTokenSetTest {
+
+    @Test
+    public void matchesHashSet() {
+        Random random = new Random(42);
+        DeviceTokenSet set = new DeviceTokenSet();
+        Set<DeviceToken> expected = new HashSet<DeviceToken>();
+        byte[] token = new byte[DeviceToken.LENGTH];
+        for (int i = 0; i < 20000; i++) {
+            random.nextBytes(token);
+            // reuse a few prefixes to get colliding words
+            token[0] = (byte) (i % 7);
+            assertEquals(expected.add(DeviceToken.fromBytes(token)), set.add(token));
+        }
+        assertEquals(expected.size(), set.size());
+        for (DeviceToken t : expected) {
+            assertTrue(set.contains(Utilities.decodeHex(t.toString())));
+        }
+        random.nextBytes(token);
+        assertFalse(set.contains(token));
+    }
+
+    @Test
+    public void zeroToken() {
+        DeviceTokenSet set = new DeviceTokenSet();
+        byte[] zero = new byte[DeviceToken.LENGTH];
+        assertFalse(set.contains(zero));
+        assertTrue(set.add(zero));
+        assertFalse(set.add(zero));
+        assertTrue(set.contains(zero));
+        assertEquals(1, set.size());
+    }
+
+    @Test
+    public void copyIsIndependent() {
+        DeviceTokenSet set = new DeviceTokenSet();
+        byte[] a = new byte[DeviceToken.LENGTH];
+        byte[] b = new byte[DeviceToken.LENGTH];
+        a[31] = 1;
+        b[31] = 2;
+        set.add(a);
+        DeviceTokenSet copy = set.copy();
+        copy.add(b);
+
+        assertTrue(copy.contains(a));
+        assertTrue(copy.contains(b));
+        assertFalse(set.contains(b));
+        assertFalse(set.contains(new byte[] { 1, 2, 3 }));
+    }
+
+    @Test
+    public void removeMatchesHashSet() {
+        Random random = new Random(42);
+        DeviceTokenSet set = new DeviceTokenSet();
+        Set<DeviceToken> expected = new HashSet<DeviceToken>();
+        byte[] token = new byte[DeviceToken.LENGTH];
+        for (int i = 0; i < 5000; i++) {
+            random.nextBytes(token);
+            token[0] = (byte) (i % 7);
+            expected.add(DeviceToken.fromBytes(token));
+            set.add(token);
+        }
+        List<DeviceToken> removed = new ArrayList<DeviceToken>();
+        int i = 0;
+        for (Iterator<DeviceToken> it = expected.iterator(); it.hasNext(); i++) {
+            DeviceToken t = it.next();
+            if (i % 3 == 0) {
+                assertTrue(set.remove(t.toBytes()));
+                assertFalse(set.remove(t.toBytes()));
+                it.remove();
+                removed.add(t);
+            }
+        }
+        assertEquals(expected.size(), set.size());
+        for (DeviceToken t : expected) {
+            assertTrue(set.contains(t.toBytes()));
+        }
+        for (DeviceToken t : removed) {
+            assertFalse(set.contains(t.toBytes()));
+        }
+        byte[] zero = new byte[DeviceToken.LENGTH];
+        set.add(zero);
+        assertTrue(set.remove(zero));
+        assertFalse(set.contains(zero));
+        assertEquals(expected.size(), set.size());
+    }
+}
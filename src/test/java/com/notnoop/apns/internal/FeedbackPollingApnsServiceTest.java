@@ -0,0 +1,207 @@
+package com.notnoop.apns.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.notnoop.apns.ApnsNotification;
+import com.notnoop.apns.ApnsService;
+import com.notnoop.apns.BulkPushListener;
+import com.notnoop.apns.DeviceToken;
+import com.notnoop.apns.EnhancedApnsNotification;
+import com.notnoop.apns.FeedbackListener;
+import com.notnoop.apns.FeedbackSink;
+
+public class FeedbackPollingApnsServiceTest {
+
+    static byte[] token(int i) {
+        byte[] token = new byte[DeviceToken.LENGTH];
+        token[31] = (byte) i;
+        return token;
+    }
+
+    static ApnsNotification notification(int i) {
+        return new EnhancedApnsNotification(i, EnhancedApnsNotification.MAXIMUM_EXPIRY,
+                token(i), new byte[] { '{', '}' });
+    }
+
+    /**
+     * Mocks a service whose successive polls report the given devices.
+     */
+    static ApnsService reporting(final int[]... polls) {
+        ApnsService service = mock(ApnsService.class);
+        final AtomicInteger poll = new AtomicInteger();
+        when(service.getInactiveDevices(any(FeedbackListener.class))).thenAnswer(new Answer<Integer>() {
+            public Integer answer(InvocationOnMock invocation) {
+                FeedbackListener listener = (FeedbackListener) invocation.getArguments()[0];
+                int[] devices = polls[Math.min(poll.getAndIncrement(), polls.length - 1)];
+                for (int device : devices) {
+                    listener.inactiveDevice(token(device), device * 1000L);
+                }
+                return devices.length;
+            }
+        });
+        return service;
+    }
+
+    @Test
+    public void sinkReceivesDeltas() throws InterruptedException {
+        ApnsService delegate = reporting(new int[] { 1, 2, 1 }, new int[] { 2, 3 }, new int[0]);
+        final LinkedBlockingQueue<Map<DeviceToken, Date>> deltas = new LinkedBlockingQueue<Map<DeviceToken, Date>>();
+        FeedbackPollingApnsService service = new FeedbackPollingApnsService(delegate, 20, 0.5,
+                new FeedbackSink() {
+                    public void inactiveDevices(Map<DeviceToken, Date> devices) {
+                        deltas.add(devices);
+                    }
+                }, false, null);
+        service.start();
+        try {
+            Map<DeviceToken, Date> first = deltas.poll(5, TimeUnit.SECONDS);
+            assertEquals(2, first.size());
+            assertEquals(new Date(2000), first.get(DeviceToken.fromBytes(token(2))));
+            Map<DeviceToken, Date> second = deltas.poll(5, TimeUnit.SECONDS);
+            assertEquals(Collections.singletonMap(DeviceToken.fromBytes(token(3)), new Date(3000)), second);
+            verify(delegate, timeout(5000).atLeast(4)).getInactiveDevices(any(FeedbackListener.class));
+            assertEquals(0, deltas.size());
+        } finally {
+            service.stop();
+        }
+        verify(delegate).stop();
+    }
+
+    @Test
+    public void suppressesInactiveDevices() throws InterruptedException {
+        ApnsService delegate = reporting(new int[] { 1, 3 });
+        FeedbackPollingApnsService service = new FeedbackPollingApnsService(delegate, 60000, 0,
+                null, true, null);
+        service.start();
+        try {
+            awaitInactive(service, 1);
+
+            service.push(notification(1));
+            service.push(notification(2));
+            verify(delegate, never()).push(notification(1));
+            verify(delegate).push(notification(2));
+
+            final List<ApnsNotification> pushed = new ArrayList<ApnsNotification>();
+            when(delegate.push(anyIteratorOf(ApnsNotification.class), any(BulkPushListener.class))).thenAnswer(new Answer<Object>() {
+                public Object answer(InvocationOnMock invocation) {
+                    Iterator<?> it = (Iterator<?>) invocation.getArguments()[0];
+                    while (it.hasNext()) {
+                        pushed.add((ApnsNotification) it.next());
+                    }
+                    return null;
+                }
+            });
+            service.push(Arrays.asList(notification(1), notification(2), notification(3), notification(4)).iterator(), null);
+            assertEquals(Arrays.asList(notification(2), notification(4)), pushed);
+        } finally {
+            service.stop();
+        }
+    }
+
+    @Test
+    public void reactivatedDevicesArePushed() throws InterruptedException {
+        ApnsService delegate = reporting(new int[] { 1 });
+        FeedbackPollingApnsService service = new FeedbackPollingApnsService(delegate, 60000, 0,
+                null, true, null);
+        service.start();
+        try {
+            awaitInactive(service, 1);
+
+            assertTrue(service.reactivate(token(1)));
+            assertFalse(service.reactivate(token(1)));
+            service.push(notification(1));
+            verify(delegate).push(notification(1));
+        } finally {
+            service.stop();
+        }
+    }
+
+    @Test
+    public void failedDeltasAreHandedAgain() throws InterruptedException {
+        ApnsService delegate = reporting(new int[] { 1 }, new int[] { 2 }, new int[0]);
+        final LinkedBlockingQueue<Map<DeviceToken, Date>> deltas = new LinkedBlockingQueue<Map<DeviceToken, Date>>();
+        final AtomicInteger calls = new AtomicInteger();
+        FeedbackPollingApnsService service = new FeedbackPollingApnsService(delegate, 20, 0,
+                new FeedbackSink() {
+                    public void inactiveDevices(Map<DeviceToken, Date> devices) {
+                        if (calls.getAndIncrement() == 0) {
+                            throw new IllegalStateException("sink down");
+                        }
+                        deltas.add(devices);
+                    }
+                }, true, null);
+        service.start();
+        try {
+            Map<DeviceToken, Date> delta = deltas.poll(5, TimeUnit.SECONDS);
+            assertEquals(2, delta.size());
+            assertEquals(new Date(1000), delta.get(DeviceToken.fromBytes(token(1))));
+            assertEquals(new Date(2000), delta.get(DeviceToken.fromBytes(token(2))));
+            awaitInactive(service, 1);
+            assertTrue(service.isInactive(token(2)));
+        } finally {
+            service.stop();
+        }
+    }
+
+    @Test
+    public void reactivatedDevicesAreReportedAgain() throws InterruptedException {
+        ApnsService delegate = reporting(new int[] { 1, 2 }, new int[0], new int[] { 1 });
+        final LinkedBlockingQueue<Map<DeviceToken, Date>> deltas = new LinkedBlockingQueue<Map<DeviceToken, Date>>();
+        FeedbackPollingApnsService service = new FeedbackPollingApnsService(delegate, 100, 0,
+                new FeedbackSink() {
+                    public void inactiveDevices(Map<DeviceToken, Date> devices) {
+                        deltas.add(devices);
+                    }
+                }, true, null);
+        service.start();
+        try {
+            assertEquals(2, deltas.poll(5, TimeUnit.SECONDS).size());
+            awaitInactive(service, 1);
+            assertTrue(service.reactivate(token(1)));
+            assertFalse(service.isInactive(token(1)));
+            assertTrue(service.isInactive(token(2)));
+
+            assertEquals(Collections.singletonMap(DeviceToken.fromBytes(token(1)), new Date(1000)),
+                    deltas.poll(5, TimeUnit.SECONDS));
+            awaitInactive(service, 1);
+            assertTrue(service.isInactive(token(2)));
+        } finally {
+            service.stop();
+        }
+    }
+
+    /**
+     * Waits until the first poll has been applied.
+     */
+    static void awaitInactive(FeedbackPollingApnsService service, int device) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!service.isInactive(token(device))) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> Iterator<? extends T> anyIteratorOf(Class<T> type) {
+        return any(Iterator.class);
+    }
+}
@@ -0,0 +1,84 @@
+package com.notnoop.apns.internal;
+
+import static com.notnoop.apns.PayloadBuilder.newPayload;
+import static com.notnoop.apns.internal.Utilities.decodeHex;
+import static com.notnoop.apns.internal.Utilities.toUTF8Bytes;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+import org.junit.experimental.theories.DataPoints;
+import org.junit.experimental.theories.Theories;
+import org.junit.experimental.theories.Theory;
+import org.junit.runner.RunWith;
+
+import com.notnoop.apns.FramedApnsNotification;
+import com.notnoop.apns.PayloadBuilder;
+
+@RunWith(Theories.class)
+public class FramedApnsNotificationTest {
+
+    // Device Tokens
+    @DataPoints public static String[] deviceTokens =
+    {
+        "298893742908AB98C",
+        "98234098203BACCCC93284092"
+    };
+
+    // Messages
+    @DataPoints public static PayloadBuilder[] payloaders =
+    {
+        newPayload().alertBody("test").sound("default"),
+        newPayload().sound("chimes").actionKey("Cancel"),
+        newPayload().customField("notice", "this")
+    };
+
+    @Theory
+    public void lengthConsistency(String deviceToken, PayloadBuilder payload) {
+        FramedApnsNotification msg = newNotification(deviceToken, payload.build());
+        assertEquals(msg.marshall().length, msg.length());
+    }
+
+    @Theory
+    public void commandAndFrameLength(String deviceToken, PayloadBuilder payload) {
+        FramedApnsNotification msg = newNotification(deviceToken, payload.build());
+        ByteBuffer bytes = ByteBuffer.wrap(msg.marshall());
+
+        assertEquals(2, /*command part*/ bytes.get());
+        assertEquals(bytes.remaining() - 4, /*frame length*/ bytes.getInt());
+    }
+
+    @Theory
+    public void itemsPart(String deviceToken, PayloadBuilder payload) {
+        String payloadString = payload.build();
+        FramedApnsNotification msg = newNotification(deviceToken, payloadString);
+        ByteBuffer bytes = ByteBuffer.wrap(msg.marshall());
+        bytes.position(1 + 4);
+
+        assertArrayEquals(decodeHex(deviceToken), readItem(bytes, 1));
+        assertArrayEquals(toUTF8Bytes(payloadString), readItem(bytes, 2));
+        assertEquals(42, ByteBuffer.wrap(readItem(bytes, 3)).getInt());
+        assertEquals(1000, ByteBuffer.wrap(readItem(bytes, 4)).getInt());
+        assertArrayEquals(new byte[] { FramedApnsNotification.PRIORITY_CONSERVE_POWER }, readItem(bytes, 5));
+        assertEquals(0, bytes.remaining());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidPriority() {
+        new FramedApnsNotification(1, 1000, 7, "2342", "{}");
+    }
+
+    private static FramedApnsNotification newNotification(String deviceToken, String payload) {
+        return new FramedApnsNotification(42, 1000,
+                FramedApnsNotification.PRIORITY_CONSERVE_POWER, deviceToken, payload);
+    }
+
+    private static byte[] readItem(ByteBuffer bytes, int expectedItemId) {
+        assertEquals(expectedItemId, bytes.get());
+        byte[] item = new byte[bytes.getShort() & 0xFFFF];
+        bytes.get(item);
+        return item;
+    }
+}
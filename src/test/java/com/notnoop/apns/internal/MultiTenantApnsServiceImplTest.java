@@ -0,0 +1,182 @@
+package com.notnoop.apns.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.*;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.notnoop.apns.ApnsNotification;
+import com.notnoop.apns.ApnsRuntime;
+import com.notnoop.apns.ApnsService;
+import com.notnoop.apns.EnhancedApnsNotification;
+import com.notnoop.exceptions.InvalidSSLConfig;
+
+public class MultiTenantApnsServiceImplTest {
+
+    ApnsRuntime runtime = ApnsRuntime.create(1);
+
+    @After
+    public void close() {
+        runtime.close();
+    }
+
+    static ApnsNotification notification(int i) {
+        return new EnhancedApnsNotification(i, EnhancedApnsNotification.MAXIMUM_EXPIRY,
+                new byte[32], new byte[] { '{', '}' });
+    }
+
+    /**
+     * Creates a mock service for each tenant, remembering the last one.
+     */
+    class Tenants extends MultiTenantApnsServiceImpl {
+        final Map<String, ApnsService> created = new HashMap<String, ApnsService>();
+        int count;
+
+        Tenants(long idleTimeoutMillis, int maxTenants, int maxPushesInFlight) {
+            super(runtime, false, null, idleTimeoutMillis, maxTenants, maxPushesInFlight);
+        }
+
+        @Override
+        protected synchronized ApnsService newService(String appId) {
+            ApnsService service = mock(ApnsService.class);
+            created.put(appId, service);
+            count++;
+            return service;
+        }
+    }
+
+    @Test
+    public void routesToLazilyCreatedTenants() {
+        Tenants tenants = new Tenants(0, 0, 0);
+        tenants.push("a", notification(1));
+        tenants.push("b", notification(2));
+        tenants.push("a", notification(3));
+
+        assertEquals(2, tenants.count);
+        assertEquals(2, tenants.getActiveTenants());
+        verify(tenants.created.get("a"), times(2)).push(any(ApnsNotification.class));
+        verify(tenants.created.get("b")).push(notification(2));
+        assertSame(tenants.created.get("b"), tenants.getService("b"));
+
+        tenants.stop();
+        verify(tenants.created.get("a")).stop();
+        assertEquals(0, tenants.getActiveTenants());
+    }
+
+    @Test
+    public void evictsIdleTenants() throws InterruptedException {
+        Tenants tenants = new Tenants(50, 0, 0);
+        tenants.push("a", notification(1));
+        ApnsService first = tenants.created.get("a");
+        Thread.sleep(100);
+        tenants.push("b", notification(2));
+
+        assertEquals(1, tenants.evictIdle());
+        verify(first).stop();
+        verify(tenants.created.get("b"), never()).stop();
+
+        tenants.push("a", notification(3));
+        assertNotSame(first, tenants.created.get("a"));
+        assertEquals(3, tenants.count);
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsedBeyondMaxTenants() throws InterruptedException {
+        Tenants tenants = new Tenants(0, 2, 0);
+        tenants.push("a", notification(1));
+        Thread.sleep(2);
+        tenants.push("b", notification(2));
+        Thread.sleep(2);
+        tenants.push("a", notification(3));
+        Thread.sleep(2);
+        tenants.push("c", notification(4));
+
+        assertEquals(2, tenants.getActiveTenants());
+        verify(tenants.created.get("b")).stop();
+        verify(tenants.created.get("a"), never()).stop();
+    }
+
+    @Test
+    public void failedTenantIsNotKept() {
+        Tenants tenants = new Tenants(0, 0, 0) {
+            @Override
+            protected synchronized ApnsService newService(String appId) {
+                if (appId.equals("bad")) {
+                    throw new InvalidSSLConfig("bad certificate");
+                }
+                return super.newService(appId);
+            }
+        };
+        tenants.push("a", notification(1));
+        for (int i = 0; i < 2; i++) {
+            try {
+                tenants.push("bad", notification(2));
+                fail();
+            } catch (InvalidSSLConfig expected) {
+            }
+        }
+        assertEquals(1, tenants.getActiveTenants());
+    }
+
+    @Test(timeout = 5000)
+    public void busyTenantWaitsForItsShare() throws InterruptedException {
+        final Tenants tenants = new Tenants(0, 0, 2);
+        tenants.push("b", notification(0));
+
+        // two tenants, so "a" may have a single push in progress
+        final CountDownLatch pushing = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        ApnsService a = tenants.getService("a");
+        doAnswer(new Answer<Void>() {
+            public Void answer(InvocationOnMock invocation) throws InterruptedException {
+                pushing.countDown();
+                release.await();
+                return null;
+            }
+        }).when(a).push(notification(1));
+
+        Thread first = push(tenants, "a", 1);
+        assertTrue(pushing.await(1, TimeUnit.SECONDS));
+        final CountDownLatch second = new CountDownLatch(1);
+        Thread waiting = new Thread() {
+            public void run() {
+                tenants.push("a", notification(2));
+                second.countDown();
+            }
+        };
+        waiting.start();
+
+        tenants.push("b", notification(3));
+        assertEquals(1, second.getCount());
+        verify(a, never()).push(notification(2));
+
+        release.countDown();
+        assertTrue(second.await(1, TimeUnit.SECONDS));
+        first.join();
+        verify(a).push(notification(2));
+    }
+
+    private static Thread push(final MultiTenantApnsServiceImpl tenants,
+            final String appId, final int id) {
+        Thread t = new Thread() {
+            public void run() {
+                tenants.push(appId, notification(id));
+            }
+        };
+        t.start();
+        return t;
+    }
+}
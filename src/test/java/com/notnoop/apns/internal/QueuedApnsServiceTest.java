@@ -11,6 +11,7 @@ import static org.mockito.Mockito.*;
 import com.notnoop.apns.ApnsNotification;
 import com.notnoop.apns.ApnsService;
 import com.notnoop.apns.EnhancedApnsNotification;
+import com.notnoop.apns.QueueOverflowPolicy;
 import com.notnoop.exceptions.NetworkIOException;
 
 public class QueuedApnsServiceTest {
@@ -65,6 +66,39 @@ public class QueuedApnsServiceTest {
         queued.stop();
     }
 
+    @Test
+    public void multipleConsumersDrainQueue() {
+        ConnectionStub connection = spy(new ConnectionStub(0, 100));
+        QueuedApnsService queued = new QueuedApnsService(
+                new ApnsServiceImpl(connection, null), 1000, 4, QueueOverflowPolicy.BLOCK);
+        queued.start();
+
+        for (int i = 0; i < 100; i++) {
+            queued.push(notification);
+        }
+        connection.semaphor.acquireUninterruptibly();
+        verify(connection, times(100)).sendMessage(notification);
+
+        queued.stop();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void rejectWhenFull() {
+        ConnectionStub connection = new ConnectionStub(10000, 1);
+        QueuedApnsService queued = new QueuedApnsService(
+                new ApnsServiceImpl(connection, null), 1, 1, QueueOverflowPolicy.REJECT);
+        queued.start();
+        try {
+            // the consumer is stuck sending the first notifications
+            for (int i = 0; i < 4; i++) {
+                queued.push(notification);
+            }
+        } finally {
+            connection.interrupt();
+            queued.stop();
+        }
+    }
+
     protected ApnsService newService(ApnsConnection connection, ApnsFeedbackConnection feedback) {
         ApnsService service = new ApnsServiceImpl(connection, null);
         ApnsService queued = new QueuedApnsService(service);
@@ -89,6 +123,9 @@ public class QueuedApnsServiceTest {
             semaphor.release();
         }
 
+        public void flush() {
+        }
+
         protected void interrupt() {
             stop = true;
         }
@@ -0,0 +1,78 @@
+package com.notnoop.apns.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.notnoop.apns.BackoffPolicy;
+import com.notnoop.exceptions.CircuitOpenException;
+
+public class ReconnectBackoffTest {
+
+    @Test
+    public void delayDoublesUpToMaximum() {
+        ReconnectBackoff backoff = new ReconnectBackoff(BackoffPolicy.exponential(100, 1000));
+        assertEquals(100, backoff.nextDelayMillis());
+        backoff.failed();
+        assertEquals(100, backoff.nextDelayMillis());
+        backoff.failed();
+        assertEquals(200, backoff.nextDelayMillis());
+        backoff.failed();
+        assertEquals(400, backoff.nextDelayMillis());
+        for (int i = 0; i < 100; i++) {
+            backoff.failed();
+        }
+        assertEquals(1000, backoff.nextDelayMillis());
+
+        backoff.succeeded();
+        assertEquals(100, backoff.nextDelayMillis());
+    }
+
+    @Test
+    public void jitterShortensDelay() {
+        ReconnectBackoff backoff = new ReconnectBackoff(
+                BackoffPolicy.exponential(1000, 1000).withJitter(0.5), new Random(42));
+        boolean varied = false;
+        long first = backoff.nextDelayMillis();
+        for (int i = 0; i < 100; i++) {
+            long delay = backoff.nextDelayMillis();
+            assertTrue(delay > 500 && delay <= 1000);
+            varied |= delay != first;
+        }
+        assertTrue(varied);
+    }
+
+    @Test
+    public void circuitOpensAfterThreshold() {
+        ReconnectBackoff backoff = new ReconnectBackoff(
+                BackoffPolicy.exponential(0, 0).withCircuitBreaker(2, 60000));
+        backoff.failed();
+        backoff.checkCircuit();
+        backoff.failed();
+        assertTrue(backoff.isOpen());
+        try {
+            backoff.checkCircuit();
+            throw new AssertionError("circuit should be open");
+        } catch (CircuitOpenException expected) {
+        }
+
+        backoff.succeeded();
+        assertFalse(backoff.isOpen());
+        backoff.checkCircuit();
+    }
+
+    @Test
+    public void circuitHalfOpensAfterOpenTime() {
+        ReconnectBackoff backoff = new ReconnectBackoff(
+                BackoffPolicy.exponential(0, 0).withCircuitBreaker(1, 0));
+        backoff.failed();
+        // lets the next attempt through, whose failure reopens the circuit
+        backoff.checkCircuit();
+        backoff.failed();
+        assertEquals(2, backoff.getFailures());
+    }
+}
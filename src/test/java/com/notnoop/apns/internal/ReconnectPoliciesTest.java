@@ -0,0 +1,54 @@
+package com.notnoop.apns.internal;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class ReconnectPoliciesTest {
+
+    @Test
+    public void trafficRotatesAfterNotifications() {
+        ReconnectPolicies.Traffic policy = new ReconnectPolicies.Traffic(3, 0, 0);
+        policy.reconnected();
+        policy.sent(2, 100);
+        assertFalse(policy.shouldReconnect());
+        policy.sent(1, 100);
+        assertTrue(policy.shouldReconnect());
+
+        policy.reconnected();
+        assertFalse(policy.shouldReconnect());
+    }
+
+    @Test
+    public void trafficRotatesAfterBytes() {
+        ReconnectPolicies.Traffic policy = new ReconnectPolicies.Traffic(0, 1000, 0);
+        policy.reconnected();
+        policy.sent(10, 999);
+        assertFalse(policy.shouldReconnect());
+        policy.sent(1, 1);
+        assertTrue(policy.shouldReconnect());
+    }
+
+    @Test
+    public void trafficChecksAgeEveryIntervalOnly() throws InterruptedException {
+        ReconnectPolicies.Traffic policy = new ReconnectPolicies.Traffic(0, 0, 1);
+        policy.reconnected();
+        Thread.sleep(10);
+        for (int i = 1; i < ReconnectPolicies.Traffic.CLOCK_CHECK_INTERVAL; i++) {
+            policy.sent(1, 100);
+        }
+        assertFalse(policy.shouldReconnect());
+        policy.sent(1, 100);
+        assertTrue(policy.shouldReconnect());
+    }
+
+    @Test
+    public void trafficCopyStartsAfresh() {
+        ReconnectPolicies.Traffic policy = new ReconnectPolicies.Traffic(1, 0, 0);
+        policy.reconnected();
+        policy.sent(1, 100);
+        assertTrue(policy.shouldReconnect());
+        assertFalse(policy.copy().shouldReconnect());
+    }
+}
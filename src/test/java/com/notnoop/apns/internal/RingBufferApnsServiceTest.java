@@ -0,0 +1,142 @@
+package com.notnoop.apns.internal;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.*;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import com.notnoop.apns.ApnsNotification;
+import com.notnoop.apns.DeviceToken;
+import com.notnoop.apns.EnhancedApnsNotification;
+import com.notnoop.apns.FramedApnsNotification;
+import com.notnoop.apns.RingBufferWaitStrategy;
+import com.notnoop.apns.internal.QueuedApnsServiceTest.ConnectionStub;
+
+public class RingBufferApnsServiceTest {
+
+    EnhancedApnsNotification notification = new EnhancedApnsNotification(1,
+            EnhancedApnsNotification.MAXIMUM_EXPIRY, "2342", "{}");
+
+    @Test(expected = IllegalStateException.class)
+    public void sendWithoutStarting() {
+        new RingBufferApnsService(null, 8, RingBufferWaitStrategy.PARK).push(notification);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void sizeMustBePowerOfTwo() {
+        new RingBufferApnsService(null, 6, RingBufferWaitStrategy.PARK);
+    }
+
+    @Test
+    public void concurrentProducersWrapAround() throws InterruptedException {
+        final int producers = 4;
+        final int perProducer = 500;
+        ConnectionStub connection = spy(new ConnectionStub(0, producers * perProducer));
+        final RingBufferApnsService service = new RingBufferApnsService(
+                new ApnsServiceImpl(connection, null), 16, RingBufferWaitStrategy.YIELD);
+        service.start();
+
+        final CountDownLatch done = new CountDownLatch(producers);
+        for (int p = 0; p < producers; p++) {
+            new Thread() {
+                public void run() {
+                    for (int i = 0; i < perProducer; i++) {
+                        service.push(notification);
+                    }
+                    done.countDown();
+                }
+            }.start();
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertTrue(connection.semaphor.tryAcquire(10, TimeUnit.SECONDS));
+        verify(connection, times(producers * perProducer)).sendMessage(notification);
+
+        service.stop();
+    }
+
+    @Test
+    public void senderUsesTheThreadFactory() throws InterruptedException {
+        ConnectionStub connection = spy(new ConnectionStub(0, 1));
+        ThreadFactory threadFactory = spy(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                return new Thread(r, "custom-sender");
+            }
+        });
+        RingBufferApnsService service = new RingBufferApnsService(
+                new ApnsServiceImpl(connection, null), 4, RingBufferWaitStrategy.PARK, threadFactory);
+        service.start();
+
+        service.push(notification);
+        assertTrue(connection.semaphor.tryAcquire(10, TimeUnit.SECONDS));
+        verify(threadFactory).newThread(any(Runnable.class));
+
+        service.stop();
+    }
+
+    @Test
+    public void filledSlotsAreSent() throws InterruptedException {
+        ConnectionStub connection = spy(new ConnectionStub(0, 2));
+        RingBufferApnsService service = new RingBufferApnsService(
+                new ApnsServiceImpl(connection, null), 4, RingBufferWaitStrategy.PARK);
+        service.start();
+
+        DeviceToken token = DeviceToken.fromBytes(new byte[DeviceToken.LENGTH]);
+        byte[] payload = "xx{}xx".getBytes();
+        long s1 = service.next();
+        service.get(s1).set(7, 100, 0, token, payload, 2, 2);
+        service.publish(s1);
+        long s2 = service.next();
+        service.get(s2).set(8, 100, FramedApnsNotification.PRIORITY_IMMEDIATE, token, payload, 2, 2);
+        service.publish(s2);
+
+        assertTrue(connection.semaphor.tryAcquire(10, TimeUnit.SECONDS));
+        ArgumentCaptor<ApnsNotification> sent = ArgumentCaptor.forClass(ApnsNotification.class);
+        verify(connection, times(2)).sendMessage(sent.capture());
+        byte[] json = new byte[] { '{', '}' };
+        ApnsNotification enhanced = sent.getAllValues().get(0);
+        assertArrayEquals(new EnhancedApnsNotification(7, 100, token.toBytes(), json).marshall(),
+                enhanced.marshall());
+        assertEquals(7, enhanced.getIdentifier());
+        assertArrayEquals(json, enhanced.getPayload());
+        EncodedApnsNotification framed = (EncodedApnsNotification) sent.getAllValues().get(1);
+        assertArrayEquals(new FramedApnsNotification(8, 100, FramedApnsNotification.PRIORITY_IMMEDIATE,
+                token.toBytes(), json).marshall(), framed.marshall());
+        assertEquals(8, framed.getIdentifier());
+        assertEquals(FramedApnsNotification.PRIORITY_IMMEDIATE, framed.getPriority());
+        assertArrayEquals(token.toBytes(), framed.getDeviceToken());
+        assertArrayEquals(json, framed.getPayload());
+
+        service.stop();
+    }
+
+    @Test
+    public void unfilledSlotIsSkipped() throws InterruptedException {
+        ConnectionStub connection = spy(new ConnectionStub(0, 1));
+        RingBufferApnsService service = new RingBufferApnsService(
+                new ApnsServiceImpl(connection, null), 4, RingBufferWaitStrategy.PARK);
+        service.start();
+
+        long s1 = service.next();
+        try {
+            service.get(s1).set(1, 100, 0, null, null, 0, 0);
+        } catch (NullPointerException e) {
+            // the producer failed to fill the slot
+        } finally {
+            service.publish(s1);
+        }
+        service.push(notification);
+
+        assertTrue(connection.semaphor.tryAcquire(10, TimeUnit.SECONDS));
+        verify(connection, times(1)).sendMessage(any(ApnsNotification.class));
+        verify(connection).sendMessage(notification);
+
+        service.stop();
+    }
+}
@@ -0,0 +1,120 @@
+package com.notnoop.apns.internal;
+
+import static com.notnoop.apns.utils.FixedCertificates.*;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+import org.junit.Test;
+
+import com.notnoop.apns.APNS;
+import com.notnoop.apns.ApnsService;
+import com.notnoop.apns.EnhancedApnsNotification;
+import com.notnoop.apns.ReconnectPolicy;
+import com.notnoop.apns.TlsHandshakeMetrics;
+import com.notnoop.apns.internal.netty.util.MockApnsServer;
+
+public class TlsSettingsTest {
+
+    private static final String[] TLS12 = { "TLSv1.2" };
+
+    @Test
+    public void defaultSettingsKeepFactory() {
+        SSLSocketFactory factory = clientContext().getSocketFactory();
+        assertSame(factory, TlsSettings.DEFAULT.wrap(factory));
+    }
+
+    @Test(timeout = 10000)
+    public void socketsResumeSession() throws Exception {
+        final SSLServerSocket server = (SSLServerSocket) serverContext()
+                .getServerSocketFactory().createServerSocket(0);
+        server.setEnabledProtocols(TLS12);
+        Thread acceptor = new Thread() {
+            public void run() {
+                try {
+                    for (int i = 0; i < 2; i++) {
+                        SSLSocket socket = (SSLSocket) server.accept();
+                        socket.startHandshake();
+                        socket.getInputStream().read();
+                        socket.close();
+                    }
+                } catch (IOException e) {
+                    // closed
+                }
+            }
+        };
+        acceptor.start();
+
+        TlsHandshakeMetrics metrics = new TlsHandshakeMetrics();
+        SSLSocketFactory factory = new TlsSettings(TLS12, null, metrics)
+                .wrap(clientContext().getSocketFactory());
+        for (int i = 0; i < 2; i++) {
+            Socket socket = factory.createSocket(TEST_HOST, server.getLocalPort());
+            assertEquals("TLSv1.2", ((SSLSocket) socket).getSession().getProtocol());
+            socket.close();
+        }
+        acceptor.join();
+        server.close();
+
+        assertEquals(2, metrics.getHandshakes());
+        assertEquals(1, metrics.getResumedHandshakes());
+    }
+
+    @Test(timeout = 10000)
+    public void handshakeTimesOut() throws Exception {
+        // accepts the connection but never answers the handshake
+        ServerSocket server = new ServerSocket(0);
+        TlsHandshakeMetrics metrics = new TlsHandshakeMetrics();
+        SSLSocketFactory factory = new TlsSettings(TLS12, null, metrics)
+                .wrap(clientContext().getSocketFactory(), 200);
+        try {
+            factory.createSocket(TEST_HOST, server.getLocalPort());
+            fail();
+        } catch (SocketTimeoutException expected) {
+        } finally {
+            server.close();
+        }
+        assertEquals(0, metrics.getHandshakes());
+    }
+
+    @Test(timeout = 10000)
+    public void channelsResumeSession() throws Exception {
+        int port;
+        try (ServerSocket free = new ServerSocket(0)) {
+            port = free.getLocalPort();
+        }
+        MockApnsServer server = new MockApnsServer(port, serverContext());
+        server.start();
+
+        TlsHandshakeMetrics metrics = new TlsHandshakeMetrics();
+        ApnsService service = APNS.newService()
+                .withSSLContext(clientContext())
+                .withGatewayDestination(TEST_HOST, port)
+                .withReconnectPolicy(ReconnectPolicy.Provided.EVERY_NOTIFICATION)
+                .withHandshakeMetrics(metrics)
+                .build();
+        try {
+            // each push opens a new channel, whose handshake may complete after it
+            for (int i = 0; metrics.getHandshakes() < 3; i++) {
+                service.push(new EnhancedApnsNotification(i, EnhancedApnsNotification.MAXIMUM_EXPIRY,
+                        new byte[32], new byte[] { '{', '}' }));
+                Thread.sleep(10);
+            }
+        } finally {
+            service.stop();
+            server.shutdown();
+        }
+
+        // all but the first
+        assertEquals(metrics.getHandshakes() - 1, metrics.getResumedHandshakes());
+    }
+}
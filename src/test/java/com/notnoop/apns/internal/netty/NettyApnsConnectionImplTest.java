@@ -4,9 +4,11 @@ import static org.junit.Assert.*;
 import static org.mockito.Matchers.*;
 import static org.mockito.Mockito.*;
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
 import io.netty.channel.ChannelHandlerContext;
 
 import java.io.IOException;
+import java.util.Queue;
 
 import org.junit.Test;
 
@@ -57,6 +59,40 @@ public class NettyApnsConnectionImplTest {
         }
     }
 
+    @Test
+    public void testLateErrorOnRotatedChannel() throws Exception {
+        EnhancedApnsNotification[] notifications = new EnhancedApnsNotification[3];
+        for (int i = 0; i < notifications.length; i++) {
+            notifications[i] = new EnhancedApnsNotification(i, 10,
+                    "asdf1234asdf5678asdf9012asdf3456".getBytes(),
+                    ("hello there notification " + i).getBytes());
+        }
+        MockChannelProvider provider = mockChannelProvider();
+        NettyApnsConnectionImpl conn = new NettyApnsConnectionImpl(provider,
+                new ApnsDelegateAdapter(), new CacheStoreImpl(200, true), null);
+        conn.init();
+
+        conn.sendMessage(notifications[0], false);
+        conn.sendMessage(notifications[1], false);
+        provider.rotate();
+        conn.sendMessage(notifications[2], false);
+
+        // the replaced channel rejects the first notification
+        ByteBuf error = Unpooled.buffer(6);
+        resultEncoder.encode(null, new DeliveryResult(
+                DeliveryError.INVALID_TOKEN, 0), error);
+        provider.getMockChannels().get(0).writeInbound(error);
+        conn.flush();
+        conn.close();
+
+        // only the second one is resent, after the third one
+        Queue<Object> written = provider.getMockChannels().get(1)
+                .outboundMessages();
+        assertEquals(2, written.size());
+        assertEquals(2, ((ByteBuf) written.poll()).getInt(1));
+        assertEquals(1, ((ByteBuf) written.poll()).getInt(1));
+    }
+
     private MockChannelProvider mockChannelProvider(int... failingIDs) {
         return new MockChannelProvider();
     }
@@ -39,6 +39,14 @@ public class MockChannelProvider extends AbstractChannelProvider {
         }
     }
 
+    /**
+     * Opens a new channel for the next notifications, leaving the current one
+     * open, as a rotation does.
+     */
+    public void rotate() {
+        currentChannel = null;
+    }
+
     @Override
     public void close() throws IOException {
         try {
@@ -61,6 +69,14 @@ public class MockChannelProvider extends AbstractChannelProvider {
 
     }
 
+    @Override
+    public MockChannelProvider copy() {
+        MockChannelProvider copy = new MockChannelProvider();
+        copy.setFailureAt(failureAt);
+        copy.setErrorCode(errorCode);
+        return copy;
+    }
+
     public MockChannel getCurrentChannel() {
         return currentChannel;
     }
@@ -0,0 +1,50 @@
+package com.notnoop.apns.internal.netty.encoding;
+
+import static com.notnoop.apns.internal.ApnsFeedbackParsingUtils.three;
+
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.notnoop.apns.FeedbackListener;
+
+public class FeedbackTupleDecoderTest {
+
+    final List<Long> timestamps = new ArrayList<Long>();
+    FeedbackTupleDecoder decoder = new FeedbackTupleDecoder(new FeedbackListener() {
+        public void inactiveDevice(byte[] deviceToken, long timestamp) {
+            timestamps.add(timestamp);
+        }
+    });
+
+    @Test
+    public void testDecodeSplitTuples() {
+        EmbeddedChannel channel = new EmbeddedChannel(decoder);
+        // the first tuple split within its header, the second within its token
+        channel.writeInbound(Unpooled.copiedBuffer(three, 0, 3));
+        channel.writeInbound(Unpooled.copiedBuffer(three, 3, 50));
+        Assert.assertEquals(1, decoder.getTuples());
+        channel.writeInbound(Unpooled.copiedBuffer(three, 53, three.length - 53));
+        channel.finish();
+
+        Assert.assertEquals(3, decoder.getTuples());
+        Assert.assertEquals(0, decoder.getPendingBytes());
+        Assert.assertEquals(3, timestamps.size());
+        Assert.assertNull(channel.readInbound());
+    }
+
+    @Test
+    public void testTruncatedStream() {
+        EmbeddedChannel channel = new EmbeddedChannel(decoder);
+        channel.writeInbound(Unpooled.copiedBuffer(three, 0, three.length - 1));
+        channel.finish();
+
+        Assert.assertEquals(2, decoder.getTuples());
+        Assert.assertEquals(37, decoder.getPendingBytes());
+    }
+}
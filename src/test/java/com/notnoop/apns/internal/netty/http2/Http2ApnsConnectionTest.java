@@ -0,0 +1,288 @@
+package com.notnoop.apns.internal.netty.http2;
+
+import static com.notnoop.apns.utils.FixedCertificates.*;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.codec.http2.DefaultHttp2Connection;
+import io.netty.handler.codec.http2.DefaultHttp2ConnectionDecoder;
+import io.netty.handler.codec.http2.DefaultHttp2ConnectionEncoder;
+import io.netty.handler.codec.http2.DefaultHttp2FrameReader;
+import io.netty.handler.codec.http2.DefaultHttp2FrameWriter;
+import io.netty.handler.codec.http2.DefaultHttp2Headers;
+import io.netty.handler.codec.http2.Http2ConnectionEncoder;
+import io.netty.handler.codec.http2.Http2ConnectionHandler;
+import io.netty.handler.codec.http2.Http2FrameAdapter;
+import io.netty.handler.codec.http2.Http2Headers;
+import io.netty.handler.codec.http2.Http2Settings;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.util.CharsetUtil;
+
+import java.net.InetSocketAddress;
+import java.security.KeyPairGenerator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLEngine;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.notnoop.apns.ApnsDelegateAdapter;
+import com.notnoop.apns.ApnsNotification;
+import com.notnoop.apns.ApnsSigningKey;
+import com.notnoop.apns.DeliveryError;
+import com.notnoop.apns.EnhancedApnsNotification;
+import com.notnoop.apns.FramedApnsNotification;
+import com.notnoop.apns.TopicApnsNotification;
+import com.notnoop.apns.internal.TlsSettings;
+import com.notnoop.exceptions.ApnsRejectionException;
+
+public class Http2ApnsConnectionTest {
+
+    private static final byte[] BAD_TOKEN = new byte[32];
+    private static final byte[] PAYLOAD = "{\"aps\":{\"alert\":\"hi\"}}".getBytes(CharsetUtil.UTF_8);
+
+    private EventLoopGroup group;
+    private Channel server;
+    private int port;
+    private volatile int maxStreams = 100;
+    private volatile long responseDelayMillis;
+    private final List<Http2Headers> requests = new CopyOnWriteArrayList<Http2Headers>();
+
+    @Before
+    public void startServer() throws Exception {
+        group = new NioEventLoopGroup(2);
+        server = new ServerBootstrap()
+                .group(group)
+                .channel(NioServerSocketChannel.class)
+                .childHandler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel ch) throws Exception {
+                        SSLEngine engine = serverContext().createSSLEngine();
+                        engine.setUseClientMode(false);
+                        engine.setEnabledProtocols(new String[] { "TLSv1.2" });
+                        TlsSettings.setApplicationProtocols(engine, "h2");
+                        ch.pipeline().addLast(new SslHandler(engine), new ServerHandler());
+                    }
+                })
+                .bind(0).sync().channel();
+        port = ((InetSocketAddress) server.localAddress()).getPort();
+    }
+
+    @After
+    public void stopServer() {
+        server.close();
+        group.shutdownGracefully(0, 1, TimeUnit.SECONDS);
+    }
+
+    private Http2ApnsConnection connection(int maxConnections, ApnsDelegateAdapter delegate) {
+        return new Http2ApnsConnection(group, clientContext(), TlsSettings.DEFAULT,
+                TEST_HOST, port, "com.example.app", maxConnections,
+                Http2ApnsConnection.DEFAULT_MAX_STREAMS, 5000, delegate, null);
+    }
+
+    private static EnhancedApnsNotification notification(int id, byte[] token) {
+        return new EnhancedApnsNotification(id, EnhancedApnsNotification.MAXIMUM_EXPIRY,
+                token, PAYLOAD);
+    }
+
+    private static byte[] token(int i) {
+        byte[] token = new byte[32];
+        token[0] = 1;
+        token[31] = (byte) i;
+        return token;
+    }
+
+    @Test(timeout = 10000)
+    public void responsesReachTheDelegate() throws Exception {
+        Results results = new Results(20);
+        Http2ApnsConnection connection = connection(1, results);
+        try {
+            for (int i = 0; i < 18; i++) {
+                connection.sendMessage(notification(i, token(i)));
+            }
+            connection.sendMessage(new FramedApnsNotification(18,
+                    EnhancedApnsNotification.MAXIMUM_EXPIRY,
+                    FramedApnsNotification.PRIORITY_CONSERVE_POWER, token(18), PAYLOAD));
+            connection.sendMessage(notification(19, BAD_TOKEN));
+            assertTrue(results.done.await(5, TimeUnit.SECONDS));
+        } finally {
+            connection.close();
+        }
+
+        assertEquals(19, results.sent.size());
+        assertEquals(1, results.failed.size());
+        ApnsRejectionException rejection = (ApnsRejectionException) results.failed.get(0);
+        assertEquals(400, rejection.getStatus());
+        assertEquals("BadDeviceToken", rejection.getReason());
+        assertEquals(DeliveryError.INVALID_TOKEN, rejection.getDeliveryError());
+        assertTrue(rejection.isInactiveDevice());
+
+        assertEquals(20, requests.size());
+        Http2Headers first = requests.get(0);
+        assertEquals("POST", string(first.method()));
+        assertEquals("/3/device/0100000000000000000000000000000000000000000000000000000000000000",
+                string(first.path()));
+        assertEquals(TEST_HOST + ":" + port, string(first.authority()));
+        assertEquals("com.example.app", string(first.get("apns-topic")));
+        assertEquals(null, string(first.get("apns-expiration")));
+        assertEquals(null, string(first.get("apns-priority")));
+        assertEquals("5", string(requests.get(18).get("apns-priority")));
+    }
+
+    @Test(timeout = 10000)
+    public void fullConnectionsOpenAnother() throws Exception {
+        maxStreams = 2;
+        responseDelayMillis = 300;
+        Results results = new Results(4);
+        Http2ApnsConnection connection = connection(2, results);
+        try {
+            for (int i = 0; i < 4; i++) {
+                connection.sendMessage(notification(i, token(i)));
+            }
+            assertEquals(2, connection.getConnections());
+            assertTrue(results.done.await(5, TimeUnit.SECONDS));
+            // waits for a stream rather than opening a third connection
+            for (int i = 0; i < 6; i++) {
+                connection.sendMessage(notification(i, token(i)));
+            }
+            assertEquals(2, connection.getConnections());
+            connection.flush();
+        } finally {
+            connection.close();
+        }
+        assertEquals(10, results.sent.size());
+    }
+
+    @Test(timeout = 10000)
+    public void signingKeyAuthorizesRequests() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+        generator.initialize(256);
+        ApnsSigningKey key = new ApnsSigningKey("ABC123DEFG", "DEF123GHIJ",
+                generator.generateKeyPair().getPrivate());
+        Results results = new Results(2);
+        Http2ApnsConnection connection = new Http2ApnsConnection(group, clientContext(),
+                TlsSettings.DEFAULT, TEST_HOST, port, "com.example.app", 1,
+                Http2ApnsConnection.DEFAULT_MAX_STREAMS, 5000, results, null, key);
+        try {
+            connection.sendMessage(notification(0, token(0)));
+            connection.sendMessage(new TopicApnsNotification("com.example.other",
+                    notification(1, token(1))));
+            assertTrue(results.done.await(5, TimeUnit.SECONDS));
+        } finally {
+            connection.close();
+        }
+
+        assertEquals(2, results.sent.size());
+        String authorization = string(requests.get(0).get("authorization"));
+        assertTrue(authorization.startsWith("bearer "));
+        assertEquals(authorization, string(requests.get(1).get("authorization")));
+        assertEquals("com.example.app", string(requests.get(0).get("apns-topic")));
+        assertEquals("com.example.other", string(requests.get(1).get("apns-topic")));
+    }
+
+    private static class Results extends ApnsDelegateAdapter {
+        final List<ApnsNotification> sent = new CopyOnWriteArrayList<ApnsNotification>();
+        final List<Throwable> failed = new CopyOnWriteArrayList<Throwable>();
+        final CountDownLatch done;
+
+        Results(int count) {
+            done = new CountDownLatch(count);
+        }
+
+        @Override
+        public void messageSent(ApnsNotification message, boolean resent) {
+            sent.add(message);
+            done.countDown();
+        }
+
+        @Override
+        public void messageSendFailed(ApnsNotification message, Throwable e) {
+            failed.add(e);
+            done.countDown();
+        }
+    }
+
+    /**
+     * Answers 200 to every request, and 400 to those for the zero token.
+     */
+    private class ServerHandler extends Http2ConnectionHandler {
+
+        ServerHandler() {
+            this(new DefaultHttp2ConnectionEncoder(new DefaultHttp2Connection(true),
+                    new DefaultHttp2FrameWriter()));
+        }
+
+        private ServerHandler(Http2ConnectionEncoder encoder) {
+            super(new DefaultHttp2ConnectionDecoder(encoder.connection(), encoder,
+                    new DefaultHttp2FrameReader()), encoder,
+                    new Http2Settings().maxConcurrentStreams(maxStreams));
+            decoder().frameListener(new Http2FrameAdapter() {
+                private final Map<Integer, Http2Headers> streams = new HashMap<Integer, Http2Headers>();
+
+                @Override
+                public void onHeadersRead(ChannelHandlerContext ctx, int streamId,
+                        Http2Headers headers, int streamDependency, short weight,
+                        boolean exclusive, int padding, boolean endOfStream) {
+                    streams.put(streamId, headers);
+                    requests.add(headers);
+                }
+
+                @Override
+                public int onDataRead(final ChannelHandlerContext ctx, final int streamId,
+                        ByteBuf data, int padding, boolean endOfStream) {
+                    if (endOfStream) {
+                        final boolean bad = streams.remove(streamId).path().toString()
+                                .endsWith("/" + zeros());
+                        if (responseDelayMillis > 0) {
+                            ctx.executor().schedule(new Runnable() {
+                                @Override
+                                public void run() {
+                                    respond(ctx, streamId, bad);
+                                }
+                            }, responseDelayMillis, TimeUnit.MILLISECONDS);
+                        } else {
+                            respond(ctx, streamId, bad);
+                        }
+                    }
+                    return data.readableBytes() + padding;
+                }
+            });
+        }
+
+        private void respond(ChannelHandlerContext ctx, int streamId, boolean bad) {
+            encoder().writeHeaders(ctx, streamId,
+                    new DefaultHttp2Headers().status(bad ? "400" : "200"), 0, !bad,
+                    ctx.newPromise());
+            if (bad) {
+                byte[] body = "{\"reason\":\"BadDeviceToken\"}".getBytes(CharsetUtil.UTF_8);
+                encoder().writeData(ctx, streamId, Unpooled.wrappedBuffer(body), 0, true,
+                        ctx.newPromise());
+            }
+            ctx.channel().flush();
+        }
+    }
+
+    private static String string(CharSequence value) {
+        return value == null ? null : value.toString();
+    }
+
+    private static String zeros() {
+        return new String(new char[64]).replace('\0', '0');
+    }
+}
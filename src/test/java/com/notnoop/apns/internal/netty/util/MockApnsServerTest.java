@@ -0,0 +1,200 @@
+package com.notnoop.apns.internal.netty.util;
+
+import static com.notnoop.apns.utils.FixedCertificates.*;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.net.Socket;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.notnoop.apns.APNS;
+import com.notnoop.apns.ApnsDelegateAdapter;
+import com.notnoop.apns.ApnsNotification;
+import com.notnoop.apns.ApnsService;
+import com.notnoop.apns.DeliveryError;
+import com.notnoop.apns.EnhancedApnsNotification;
+import com.notnoop.apns.FramedApnsNotification;
+import com.notnoop.apns.PoolSharding;
+import com.notnoop.apns.internal.Utilities;
+import com.notnoop.exceptions.ApnsDeliveryErrorException;
+
+public class MockApnsServerTest {
+
+    private static final byte[] TOKEN = new byte[32];
+    // beyond the 256 bytes the recording server accepts
+    private static final byte[] PAYLOAD = new byte[1024];
+
+    private MockApnsServer server;
+    private ApnsService service;
+    private final List<Throwable> failures = new CopyOnWriteArrayList<Throwable>();
+
+    @Before
+    public void start() throws Exception {
+        server = new MockApnsServer(0, serverContext(), false, 2);
+        server.start();
+        service = APNS.newService()
+                .withSSLContext(clientContext())
+                .withGatewayDestination(TEST_HOST, server.getPort())
+                .withDelegate(new ApnsDelegateAdapter() {
+                    @Override
+                    public void messageSendFailed(ApnsNotification message, Throwable e) {
+                        failures.add(e);
+                    }
+                })
+                .build();
+    }
+
+    @After
+    public void stop() throws Exception {
+        service.stop();
+        server.shutdown();
+    }
+
+    private static ApnsNotification notification(int id) {
+        if (id % 2 == 0) {
+            return new EnhancedApnsNotification(id, EnhancedApnsNotification.MAXIMUM_EXPIRY,
+                    TOKEN, PAYLOAD);
+        }
+        return new FramedApnsNotification(id, EnhancedApnsNotification.MAXIMUM_EXPIRY,
+                FramedApnsNotification.PRIORITY_CONSERVE_POWER, TOKEN, PAYLOAD);
+    }
+
+    @Test(timeout = 30000)
+    public void notificationsAreCounted() throws Exception {
+        int n = 1000;
+        for (int i = 0; i < n; i++) {
+            service.push(notification(i));
+        }
+        assertTrue(server.awaitNotificationCount(n, 10, TimeUnit.SECONDS));
+
+        assertEquals(n, server.getNotificationCount());
+        assertEquals((long) n * PAYLOAD.length, server.getPayloadBytes());
+        assertEquals(1, server.getConnectionCount());
+        assertEquals(0, server.getErrorCount());
+        assertEquals(n - 1, server.getArrivalGaps().getCount());
+        assertTrue(failures.isEmpty());
+    }
+
+    @Test(timeout = 30000)
+    public void failingIdentifierReachesTheDelegate() throws Exception {
+        server.fail(DeliveryError.INVALID_TOKEN, 50, 50);
+        for (int i = 0; i < 100; i++) {
+            service.push(notification(i));
+        }
+        while (failures.isEmpty()) {
+            Thread.sleep(10);
+        }
+
+        ApnsDeliveryErrorException failure = (ApnsDeliveryErrorException) failures.get(0);
+        assertEquals(DeliveryError.INVALID_TOKEN, failure.getDeliveryError());
+        assertEquals(1, server.getErrorCount());
+        assertTrue(server.getConnectionCount() >= 2);
+    }
+
+    @Test(timeout = 30000)
+    public void errorsAreInjectedAtTheRate() throws Exception {
+        server.injectErrors(1, DeliveryError.PROCESSING_ERROR);
+        service.push(notification(0));
+        while (failures.isEmpty()) {
+            Thread.sleep(10);
+        }
+        assertEquals(DeliveryError.PROCESSING_ERROR,
+                ((ApnsDeliveryErrorException) failures.get(0)).getDeliveryError());
+
+        server.injectErrors(0, DeliveryError.PROCESSING_ERROR);
+        server.resetCounters();
+        for (int i = 1; i <= 10; i++) {
+            service.push(notification(i));
+        }
+        assertTrue(server.awaitNotificationCount(10, 10, TimeUnit.SECONDS));
+        assertEquals(0, server.getErrorCount());
+    }
+
+    @Test(timeout = 30000)
+    public void shortTokensAreRejected() throws Exception {
+        service.push(new FramedApnsNotification(1, EnhancedApnsNotification.MAXIMUM_EXPIRY,
+                FramedApnsNotification.PRIORITY_IMMEDIATE, new byte[16], PAYLOAD));
+        while (failures.isEmpty()) {
+            Thread.sleep(10);
+        }
+        assertEquals(DeliveryError.INVALID_TOKEN_SIZE,
+                ((ApnsDeliveryErrorException) failures.get(0)).getDeliveryError());
+    }
+
+    @Test(timeout = 30000)
+    public void missizedItemsAreRejectedByTheRecordingServer() throws Exception {
+        MockApnsServer recording = new MockApnsServer(0, serverContext());
+        recording.start();
+        Socket socket = clientContext().getSocketFactory().createSocket(TEST_HOST, recording.getPort());
+        try {
+            ByteArrayOutputStream frame = new ByteArrayOutputStream();
+            DataOutputStream items = new DataOutputStream(frame);
+            items.writeByte(Utilities.FRAME_ITEM_DEVICE_TOKEN);
+            items.writeShort(TOKEN.length);
+            items.write(TOKEN);
+            items.writeByte(Utilities.FRAME_ITEM_PAYLOAD);
+            items.writeShort(2);
+            items.write(new byte[] { '{', '}' });
+            // a two-byte identifier
+            items.writeByte(Utilities.FRAME_ITEM_IDENTIFIER);
+            items.writeShort(2);
+            items.writeShort(7);
+
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            out.writeByte(2);
+            out.writeInt(frame.size());
+            frame.writeTo(out);
+            out.flush();
+
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            assertEquals(8, in.readByte());
+            assertEquals(DeliveryError.PROCESSING_ERROR.code(), in.readByte());
+            in.readInt();
+        } finally {
+            socket.close();
+            recording.shutdown();
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void nettyPoolOpensAConnectionPerShard() throws Exception {
+        ApnsService pooled = APNS.newService()
+                .withSSLContext(clientContext())
+                .withGatewayDestination(TEST_HOST, server.getPort())
+                .asPool(2, PoolSharding.ROUND_ROBIN)
+                .build();
+        try {
+            for (int i = 0; i < 10; i++) {
+                pooled.push(notification(i));
+            }
+            assertTrue(server.awaitNotificationCount(10, 10, TimeUnit.SECONDS));
+        } finally {
+            pooled.stop();
+        }
+        assertEquals(2, server.getConnectionCount());
+    }
+
+    @Test
+    public void histogramPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 99; i++) {
+            histogram.record(TimeUnit.MICROSECONDS.toNanos(1));
+        }
+        histogram.record(TimeUnit.MILLISECONDS.toNanos(10));
+
+        assertEquals(100, histogram.getCount());
+        assertTrue(histogram.getPercentile(50, TimeUnit.NANOSECONDS) < 2000);
+        assertTrue(histogram.getPercentile(99, TimeUnit.NANOSECONDS) < 2000);
+        assertEquals(10, histogram.getPercentile(100, TimeUnit.MILLISECONDS));
+        assertEquals(10, histogram.getMax(TimeUnit.MILLISECONDS));
+    }
+}
@@ -0,0 +1,199 @@
+package com.notnoop.apns.internal.netty.util;
+
+import static com.notnoop.apns.utils.FixedCertificates.*;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.handler.codec.http2.Http2Error;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.notnoop.apns.ApnsDelegateAdapter;
+import com.notnoop.apns.ApnsNotification;
+import com.notnoop.apns.EnhancedApnsNotification;
+import com.notnoop.apns.internal.TlsSettings;
+import com.notnoop.apns.internal.netty.http2.Http2ApnsConnection;
+import com.notnoop.exceptions.ApnsRejectionException;
+
+public class MockHttp2ApnsServerTest {
+
+    private static final byte[] PAYLOAD = "{\"aps\":{}}".getBytes();
+
+    private MockHttp2ApnsServer server;
+    private EventLoopGroup group;
+
+    @Before
+    public void start() throws Exception {
+        server = new MockHttp2ApnsServer(0, serverContext());
+        server.start();
+        group = new NioEventLoopGroup(1);
+    }
+
+    @After
+    public void stop() throws Exception {
+        server.shutdown();
+        group.shutdownGracefully(0, 1, TimeUnit.SECONDS);
+    }
+
+    private Http2ApnsConnection connection(Results results) {
+        return new Http2ApnsConnection(group, clientContext(), TlsSettings.DEFAULT, TEST_HOST,
+                server.getPort(), null, 1, Http2ApnsConnection.DEFAULT_MAX_STREAMS, 5000,
+                results, null);
+    }
+
+    private static ApnsNotification notification(int id) {
+        byte[] token = new byte[32];
+        token[0] = (byte) (id >> 8);
+        token[1] = (byte) id;
+        return new EnhancedApnsNotification(id, EnhancedApnsNotification.MAXIMUM_EXPIRY,
+                token, PAYLOAD);
+    }
+
+    private void send(Http2ApnsConnection connection, int count) {
+        for (int i = 0; i < count; i++) {
+            connection.sendMessage(notification(i));
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void tokensGetTheirResponses() throws Exception {
+        server.respond(notification(7).getDeviceToken(), 410, "Unregistered");
+        Results results = new Results(50);
+        Http2ApnsConnection connection = connection(results);
+        try {
+            send(connection, 50);
+            assertTrue(results.done.await(5, TimeUnit.SECONDS));
+        } finally {
+            connection.close();
+        }
+
+        assertEquals(49, results.sent.size());
+        assertEquals(1, results.failed.size());
+        ApnsRejectionException rejection = (ApnsRejectionException) results.failed.get(0);
+        assertEquals(410, rejection.getStatus());
+        assertEquals("Unregistered", rejection.getReason());
+        assertTrue(rejection.getTimestamp() > 0);
+        assertEquals(50, server.getRequests());
+        assertEquals(49, server.getAccepted());
+        assertEquals(1, server.getRejected());
+        assertEquals(50 * PAYLOAD.length, server.getPayloadBytes());
+    }
+
+    @Test(timeout = 10000)
+    public void protocolChecksPrecedeConfiguredResponses() throws Exception {
+        ApnsNotification large = notification(1);
+        server.respond(large.getDeviceToken(), 410, "Unregistered");
+        Results results = new Results(2);
+        Http2ApnsConnection connection = connection(results);
+        try {
+            connection.sendMessage(new EnhancedApnsNotification(1,
+                    EnhancedApnsNotification.MAXIMUM_EXPIRY, large.getDeviceToken(),
+                    new byte[4097]));
+            connection.flush();
+            connection.sendMessage(new EnhancedApnsNotification(2,
+                    EnhancedApnsNotification.MAXIMUM_EXPIRY, new byte[16], PAYLOAD));
+            assertTrue(results.done.await(5, TimeUnit.SECONDS));
+        } finally {
+            connection.close();
+        }
+
+        assertEquals(2, results.failed.size());
+        ApnsRejectionException tooLarge = (ApnsRejectionException) results.failed.get(0);
+        assertEquals(413, tooLarge.getStatus());
+        assertEquals("PayloadTooLarge", tooLarge.getReason());
+        ApnsRejectionException badToken = (ApnsRejectionException) results.failed.get(1);
+        assertEquals(400, badToken.getStatus());
+        assertEquals("BadDeviceToken", badToken.getReason());
+    }
+
+    @Test(timeout = 10000)
+    public void streamsBeyondGoAwayAreResent() throws Exception {
+        server.setMaxConcurrentStreams(5);
+        server.setGoAwayAfter(10);
+        server.setLatency(MockHttp2ApnsServer.uniform(1, 5, TimeUnit.MILLISECONDS));
+        Results results = new Results(30);
+        Http2ApnsConnection connection = connection(results);
+        try {
+            send(connection, 30);
+            assertTrue(results.done.await(5, TimeUnit.SECONDS));
+        } finally {
+            connection.close();
+        }
+
+        assertEquals(30, results.sent.size());
+        assertEquals(30, server.getAccepted());
+        assertEquals(3, server.getGoAways());
+        assertTrue(server.getConnections() >= 3);
+    }
+
+    @Test(timeout = 10000)
+    public void streamLimitBoundsConcurrency() throws Exception {
+        server.setMaxConcurrentStreams(4);
+        server.setLatency(MockHttp2ApnsServer.fixed(100, TimeUnit.MILLISECONDS));
+        Results results = new Results(12);
+        Http2ApnsConnection connection = connection(results);
+        long start = System.nanoTime();
+        try {
+            send(connection, 12);
+            assertTrue(results.done.await(5, TimeUnit.SECONDS));
+        } finally {
+            connection.close();
+        }
+
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(300));
+        assertEquals(12, results.sent.size());
+        assertEquals(0, server.getRefused());
+        assertEquals(1, server.getConnections());
+    }
+
+    @Test(timeout = 10000)
+    public void goAwayMovesToNewConnection() throws Exception {
+        Results results = new Results(10);
+        Http2ApnsConnection connection = connection(results);
+        try {
+            send(connection, 5);
+            connection.flush();
+            server.goAway(Http2Error.NO_ERROR.code());
+            while (connection.getConnections() > 0) {
+                Thread.sleep(10);
+            }
+            send(connection, 5);
+            assertTrue(results.done.await(5, TimeUnit.SECONDS));
+        } finally {
+            connection.close();
+        }
+
+        assertEquals(10, results.sent.size());
+        assertEquals(2, server.getConnections());
+    }
+
+    private static class Results extends ApnsDelegateAdapter {
+        final List<ApnsNotification> sent = new CopyOnWriteArrayList<ApnsNotification>();
+        final List<Throwable> failed = new CopyOnWriteArrayList<Throwable>();
+        final CountDownLatch done;
+
+        Results(int count) {
+            done = new CountDownLatch(count);
+        }
+
+        @Override
+        public void messageSent(ApnsNotification message, boolean resent) {
+            sent.add(message);
+            done.countDown();
+        }
+
+        @Override
+        public void messageSendFailed(ApnsNotification message, Throwable e) {
+            failed.add(e);
+            done.countDown();
+        }
+    }
+}